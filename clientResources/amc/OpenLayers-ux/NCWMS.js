@@ -48,6 +48,13 @@ OpenLayers.Layer.ux.NCWMS = OpenLayers.Class(OpenLayers.Layer.WMS, {
 	availableDates: null,
 	defaultDate: null,
 
+	// Times of the layer, expanded from the compact time dimension of the layer JSON (if any).
+	// Map of {'Y-m-d': [timeReceived, ...]}, where timeReceived is in timeResponseFormat.
+	timesteps: null,
+
+	// Maximum number of times expanded from one interval of the time dimension.
+	maxIntervalTimesteps: 100000,
+
 	getCurrentTime: function() {
 		var param = 'TIME';
 		if (!this.params) {
@@ -82,8 +89,18 @@ OpenLayers.Layer.ux.NCWMS = OpenLayers.Class(OpenLayers.Layer.WMS, {
 			scope = this;
 		}
 
-		if (this.availableDates == null || this.defaultDate == null || force) {
+		if (force) {
+			// The time dimension of the layer is a snapshot taken when the layer was harvested;
+			// the server may have new timesteps since.
 			this._reloadDates(callback, errorCallback, scope);
+		} else if (this.availableDates == null || this.defaultDate == null) {
+			if (this.atlasLayer && this.atlasLayer.json && this.atlasLayer.json['timeDimension']) {
+				// The times are listed in the layer JSON; no need to request them to the server.
+				this._expandTimeDimension();
+				callback.call(scope, this.availableDates, this.defaultDate);
+			} else {
+				this._reloadDates(callback, errorCallback, scope);
+			}
 		} else {
 			callback.call(scope, this.availableDates, this.defaultDate);
 		}
@@ -211,6 +228,22 @@ OpenLayers.Layer.ux.NCWMS = OpenLayers.Class(OpenLayers.Layer.WMS, {
 			scope = this;
 		}
 
+		if (this.atlasLayer.json['timeDimension']) {
+			this._expandTimeDimension();
+			// The days which are not in the time dimension of the layer may have
+			// been added since the layer was harvested; they are requested to the server.
+			var dayTimes = this.timesteps[date.format('Y-m-d')];
+			if (dayTimes) {
+				var timesArray = [];
+				Ext.each(dayTimes, function(time) {
+					var timeObj = Date.parseDate(time, this.timeResponseFormat);
+					timesArray.push([time, timeObj.format(this.timeFormat)]);
+				}, this);
+				callback.call(scope, timesArray);
+				return;
+			}
+		}
+
 		var serviceUrl = this.atlasLayer.json['serviceUrl'];
 		var dateStr = date.format(this.dateRequestFormat).trim();
 
@@ -297,5 +330,170 @@ OpenLayers.Layer.ux.NCWMS = OpenLayers.Class(OpenLayers.Layer.WMS, {
 		}
 
 		callback.call(scope, timesArray);
+	},
+
+	// private
+	// Expand the compact time dimension of the layer (see the server class TimeDimension):
+	//     {
+	//         "default": "2013-01-03T00:00:00.000Z",
+	//         "intervals": ["2013-01-01T00:00:00.000Z/2013-01-03T00:00:00.000Z/P1D", ...],
+	//         "values": ["2013-02-07T00:00:00.000Z", ...]
+	//     }
+	// The dimension is only expanded the first time the dates are needed. The dates
+	// requested to the server (see getAvailableDates) are more recent; they are kept.
+	// All the calculations are done in UTC, the times are formatted as the ncWMS GetMetadata responses.
+	_expandTimeDimension: function() {
+		if (this.timesteps != null) {
+			return;
+		}
+
+		var timeDimension = this.atlasLayer.json['timeDimension'];
+		var times = {};
+
+		if (timeDimension['values']) {
+			Ext.each(timeDimension['values'], function(value) {
+				var time = this._parseISOTime(value);
+				if (time !== null) {
+					times[time] = true;
+				}
+			}, this);
+		}
+
+		if (timeDimension['intervals']) {
+			Ext.each(timeDimension['intervals'], function(interval) {
+				var parts = interval.split('/');
+				var start = this._parseISOTime(parts[0]);
+				var end = (parts.length > 1 && parts[1].toLowerCase() === 'present') ?
+						new Date().getTime() : this._parseISOTime(parts[1]);
+				var period = parts.length > 2 ? this._parseISOPeriod(parts[2]) : null;
+				if (start === null || end === null || period === null) {
+					return;
+				}
+
+				var startDate = new Date(start);
+				for (var i=0; i<this.maxIntervalTimesteps; i++) {
+					var time = Date.UTC(
+						startDate.getUTCFullYear() + i * period.years,
+						startDate.getUTCMonth() + i * period.months,
+						startDate.getUTCDate() + i * period.days,
+						startDate.getUTCHours() + i * period.hours,
+						startDate.getUTCMinutes() + i * period.minutes,
+						startDate.getUTCSeconds(),
+						startDate.getUTCMilliseconds() + i * period.milliseconds);
+					if (time > end) {
+						break;
+					}
+					times[time] = true;
+				}
+			}, this);
+		}
+
+		var sortedTimes = [];
+		for (var time in times) {
+			if (times.hasOwnProperty(time)) {
+				sortedTimes.push(parseInt(time, 10));
+			}
+		}
+		sortedTimes.sort(function(a, b) { return a - b; });
+
+		this.timesteps = {};
+		var availableDates = [];
+		Ext.each(sortedTimes, function(time) {
+			var timeDate = new Date(time);
+			var day = timeDate.getUTCFullYear() + '-' + this._pad(timeDate.getUTCMonth() + 1, 2) + '-' + this._pad(timeDate.getUTCDate(), 2);
+			if (!this.timesteps[day]) {
+				this.timesteps[day] = [];
+				// Available dates format must match the display date format.
+				availableDates.push(Date.parseDate(day, 'Y-m-d').format(this.dateFormat));
+			}
+			this.timesteps[day].push(
+				this._pad(timeDate.getUTCHours(), 2) + ':' +
+				this._pad(timeDate.getUTCMinutes(), 2) + ':' +
+				this._pad(timeDate.getUTCSeconds(), 2) + '.' +
+				this._pad(timeDate.getUTCMilliseconds(), 3) + 'Z');
+		}, this);
+
+		if (this.availableDates == null) {
+			this.availableDates = availableDates;
+
+			// Default time of the layer, or the latest time
+			var defaultTime = timeDimension['default'] ? this._parseISOTime(timeDimension['default']) : null;
+			if (defaultTime === null && sortedTimes.length > 0) {
+				defaultTime = sortedTimes[sortedTimes.length - 1];
+			}
+			this.defaultDate = defaultTime === null ? null : this._formatISOTime(defaultTime);
+		}
+	},
+
+	// private
+	// Return the epoch time in UTC (ms) of an ISO 8601 date / time, or null if the string is not valid.
+	_parseISOTime: function(timeStr) {
+		if (!timeStr) {
+			return null;
+		}
+		var match = /^(-?\d{4})-(\d{1,2})-(\d{1,2})(?:[T ](\d{1,2}):(\d{2})(?::(\d{2})(?:[.,](\d+))?)?)?\s*(Z|[+\-]\d{2}(?::?\d{2})?)?$/.exec(timeStr.trim());
+		if (!match) {
+			return null;
+		}
+		var time = Date.UTC(
+			parseInt(match[1], 10),
+			parseInt(match[2], 10) - 1,
+			parseInt(match[3], 10),
+			match[4] ? parseInt(match[4], 10) : 0,
+			match[5] ? parseInt(match[5], 10) : 0,
+			match[6] ? parseInt(match[6], 10) : 0,
+			match[7] ? Math.round(parseFloat('0.' + match[7]) * 1000) : 0);
+
+		var timeZone = match[8];
+		if (timeZone && timeZone !== 'Z') {
+			var offset = timeZone.replace(':', '');
+			var offsetMs = parseInt(offset.substr(1, 2), 10) * 3600000 +
+					(offset.length > 3 ? parseInt(offset.substr(3, 2), 10) * 60000 : 0);
+			time += offset.charAt(0) === '-' ? offsetMs : -offsetMs;
+		}
+		return time;
+	},
+
+	// private
+	// Return the ISO 8601 duration as an object, or null if the string is not valid or if the duration is null.
+	_parseISOPeriod: function(periodStr) {
+		var match = /^P(?:(\d+)Y)?(?:(\d+)M)?(?:(\d+)W)?(?:(\d+)D)?(?:T(?:(\d+)H)?(?:(\d+)M)?(?:(\d+(?:\.\d+)?)S)?)?$/.exec(periodStr.trim());
+		if (!match) {
+			return null;
+		}
+		var period = {
+			years: match[1] ? parseInt(match[1], 10) : 0,
+			months: match[2] ? parseInt(match[2], 10) : 0,
+			days: (match[3] ? parseInt(match[3], 10) * 7 : 0) + (match[4] ? parseInt(match[4], 10) : 0),
+			hours: match[5] ? parseInt(match[5], 10) : 0,
+			minutes: match[6] ? parseInt(match[6], 10) : 0,
+			milliseconds: match[7] ? Math.round(parseFloat(match[7]) * 1000) : 0
+		};
+		if (!period.years && !period.months && !period.days && !period.hours && !period.minutes && !period.milliseconds) {
+			return null;
+		}
+		return period;
+	},
+
+	// private
+	// Format an epoch time (ms) using the outputFormat, in UTC.
+	_formatISOTime: function(time) {
+		var timeDate = new Date(time);
+		return timeDate.getUTCFullYear() + '-' +
+			this._pad(timeDate.getUTCMonth() + 1, 2) + '-' +
+			this._pad(timeDate.getUTCDate(), 2) + 'T' +
+			this._pad(timeDate.getUTCHours(), 2) + ':' +
+			this._pad(timeDate.getUTCMinutes(), 2) + ':' +
+			this._pad(timeDate.getUTCSeconds(), 2) + '.' +
+			this._pad(timeDate.getUTCMilliseconds(), 3) + 'Z';
+	},
+
+	// private
+	_pad: function(number, length) {
+		var str = '' + number;
+		while (str.length < length) {
+			str = '0' + str;
+		}
+		return str;
 	}
 });
@@ -24,5 +24,5 @@ package au.gov.aims.atlasmapperserver;
  * List possible actions that may be used with webapp/localhost/api.jsp
  */
 public enum APIActionType {
-	REFRESH
+	REFRESH, STATUS, CANCEL
 }
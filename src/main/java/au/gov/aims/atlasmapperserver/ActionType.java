@@ -26,5 +26,5 @@ package au.gov.aims.atlasmapperserver;
  * @author glafond
  */
 public enum ActionType {
-	READ, CREATE, UPDATE, DESTROY, GENERATE, GENERATEALL, GETPROJECTIONS, VALIDATEID, PROCESS, PROCESSALL
+	READ, CREATE, UPDATE, DESTROY, GENERATE, GENERATEALL, GETPROJECTIONS, VALIDATEID, PROCESS, PROCESSALL, JOBSTATUS, JOBCANCEL
 }
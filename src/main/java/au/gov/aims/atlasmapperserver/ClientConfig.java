@@ -292,9 +292,23 @@ public class ClientConfig extends AbstractConfig {
 	}
 
 	public Errors process(boolean complete) throws Exception {
+		RebuildJob.checkCancelled();
+
 		// Collect error messages
 		Errors clientErrors = new Errors();
 
+		// Inputs of the client, recorded after a successful generation, calculated before loading
+		// the data sources so a data source saved in the mean time will be seen as modified.
+		RefreshPlanner refreshPlanner = new RefreshPlanner(this.getConfigManager());
+		JSONObject clientInputs = null;
+		try {
+			clientInputs = refreshPlanner.getClientInputs(this);
+		} catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Can not calculate the inputs of the client {0}: {1}",
+					new String[]{ this.getClientId(), Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+		}
+
 		// Load data sources
 		Map<String, DataSourceWrapper> dataSources = this.loadDataSources();
 
@@ -350,6 +364,10 @@ public class ClientConfig extends AbstractConfig {
 		if (nbLayers <= 0) {
 			clientErrors.addWarning("The client has no available layers");
 		}
+		RebuildJob.addLayers(nbLayers);
+
+		// Last chance to cancel the generation, before modifying the client files
+		RebuildJob.checkCancelled();
 
 		try {
 			this.copyClientFilesIfNeeded(complete);
@@ -424,6 +442,10 @@ public class ClientConfig extends AbstractConfig {
 				this.setLastGeneratedDate(new Date());
 				// Write the changes to disk
 				this.getConfigManager().saveServerConfig();
+
+				if (clientInputs != null) {
+					refreshPlanner.saveGenerationInputs(this, clientInputs);
+				}
 			} catch (TemplateException ex) {
 				// May happen if a template is modified.
 				clientErrors.addError("Can not process the client templates: " + Utils.getExceptionMessage(ex) + "\nSee your server logs.");
@@ -50,9 +50,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletContext;
@@ -102,6 +105,21 @@ public class ConfigManager {
 
 	private Boolean demoMode = null;
 
+	// Disk cache budget; null for unlimited
+	private Long diskCacheMaxSize = null; // in bytes
+	private Integer diskCacheMaxFiles = null;
+
+	// HTTP transport settings (see HttpTransport); null for the default values
+	private Integer httpConnectTimeout = null; // in seconds
+	private Integer httpReadTimeout = null; // in seconds
+	private Integer harvestMaxConnectionsPerHost = null;
+	private Integer proxyMaxConnectionsPerHost = null;
+
+	// Maximum number of data sources refreshed at the same time by the RefreshScheduler; null for the default value
+	private Integer refreshMaxConcurrency = null;
+	// Maximum number of data sources harvested at the same time by a rebuild of all data sources; null for the default value
+	private Integer harvestMaxConcurrency = null;
+
 	private String defaultProxyUrl = null;
 	private String defaultLayerInfoServiceUrl = null;
 	private String defaultSearchServiceUrl = null;
@@ -264,6 +282,16 @@ public class ConfigManager {
 		}
 
 		this.demoMode = jsonServerConfig.isDemoMode(false);
+		this.diskCacheMaxSize = jsonServerConfig.getDiskCacheMaxSize();
+		this.diskCacheMaxFiles = jsonServerConfig.getDiskCacheMaxFiles();
+		this.httpConnectTimeout = jsonServerConfig.getHttpConnectTimeout();
+		this.httpReadTimeout = jsonServerConfig.getHttpReadTimeout();
+		this.harvestMaxConnectionsPerHost = jsonServerConfig.getHarvestMaxConnectionsPerHost();
+		this.proxyMaxConnectionsPerHost = jsonServerConfig.getProxyMaxConnectionsPerHost();
+		HttpTransport.configure(this.httpConnectTimeout, this.httpReadTimeout,
+				this.harvestMaxConnectionsPerHost, this.proxyMaxConnectionsPerHost);
+		this.refreshMaxConcurrency = jsonServerConfig.getRefreshMaxConcurrency();
+		this.harvestMaxConcurrency = jsonServerConfig.getHarvestMaxConcurrency();
 		this.configVersion = jsonServerConfig.getVersion(0.1);
 
 		if (this.configVersion > CURRENT_SERVER_CONFIG_VERSION) {
@@ -495,6 +523,14 @@ public class ConfigManager {
 		if (this.demoMode != null && this.demoMode) {
 			config.setDemoMode(this.demoMode);
 		}
+		config.setDiskCacheMaxSize(this.diskCacheMaxSize);
+		config.setDiskCacheMaxFiles(this.diskCacheMaxFiles);
+		config.setHttpConnectTimeout(this.httpConnectTimeout);
+		config.setHttpReadTimeout(this.httpReadTimeout);
+		config.setHarvestMaxConnectionsPerHost(this.harvestMaxConnectionsPerHost);
+		config.setProxyMaxConnectionsPerHost(this.proxyMaxConnectionsPerHost);
+		config.setRefreshMaxConcurrency(this.refreshMaxConcurrency);
+		config.setHarvestMaxConcurrency(this.harvestMaxConcurrency);
 
 		config.setVersion(CURRENT_SERVER_CONFIG_VERSION);
 		config.setDataSources(this.getDataSourceConfigsJSon(false));
@@ -571,6 +607,38 @@ public class ConfigManager {
 		return this.demoMode;
 	}
 
+	/**
+	 * @return The maximum size of the URL disk cache, in bytes. Null for unlimited.
+	 */
+	public Long getDiskCacheMaxSize() throws JSONException, IOException {
+		this.reloadServerConfigIfNeeded();
+		return this.diskCacheMaxSize;
+	}
+
+	/**
+	 * @return The maximum number of files in the URL disk cache. Null for unlimited.
+	 */
+	public Integer getDiskCacheMaxFiles() throws JSONException, IOException {
+		this.reloadServerConfigIfNeeded();
+		return this.diskCacheMaxFiles;
+	}
+
+	/**
+	 * @return The maximum number of data sources refreshed at the same time by the RefreshScheduler. Null for the default value.
+	 */
+	public Integer getRefreshMaxConcurrency() throws JSONException, IOException {
+		this.reloadServerConfigIfNeeded();
+		return this.refreshMaxConcurrency;
+	}
+
+	/**
+	 * @return The maximum number of data sources harvested at the same time by AbstractDataSourceConfig.processAll. Null for the default value.
+	 */
+	public Integer getHarvestMaxConcurrency() throws JSONException, IOException {
+		this.reloadServerConfigIfNeeded();
+		return this.harvestMaxConcurrency;
+	}
+
 	public synchronized List<AbstractDataSourceConfig> createDataSourceConfig(ServletRequest request) throws JSONException, IOException {
 		if (request == null) {
 			return null;
@@ -1187,15 +1255,23 @@ public class ConfigManager {
 	}
 
 	// Return error messages, if any
+	// The minimal generation (complete = false) skips the clients that are up to date (see RefreshPlanner).
 	public Map<String, Errors> generateAllClients(boolean complete) throws Exception {
 		Map<String, Errors> errorMessages = new HashMap<String, Errors>();
+		RefreshPlanner refreshPlanner = new RefreshPlanner(this);
 		// Can not loop on client instance directly (this one is quite tricky):
 		//     Since the collection of instances is reloaded when the config is modified,
 		//     the reference to the instance is not the same as the one in the loop,
 		//     so the modified instance is not saved in the config on the next server save.
 		for (String clientId : this.getClientConfigs().key2Set()) {
 			ClientConfig clientConfig = this.getClientConfig(clientId);
-			Errors clientErrors = clientConfig.process(complete);
+			Errors clientErrors;
+			if (!complete && refreshPlanner.getOutdatedReasons(clientConfig).isEmpty()) {
+				clientErrors = new Errors();
+				clientErrors.addMessage("The client is up to date; none of its inputs has changed since its last generation.");
+			} else {
+				clientErrors = clientConfig.process(complete);
+			}
 			if (clientErrors != null && !clientErrors.isEmpty()) {
 				String clientName = clientConfig.getClientName() + " (" + clientConfig.getClientId() + ")";
 				errorMessages.put(clientName, clientErrors);
@@ -1205,6 +1281,107 @@ public class ConfigManager {
 		return errorMessages;
 	}
 
+	/**
+	 * Refresh the cache of the data sources, then regenerate the clients which are
+	 * outdated (action REFRESH of localhost/api.jsp):
+	 *   - The listed clients, and the enabled clients using the refreshed data sources, are checked.
+	 *   - Only the clients having an input which has changed since their last generation
+	 *     are regenerated (see RefreshPlanner); the other ones are skipped.
+	 * @param dataSourceIds IDs of the data sources to refresh. Null to refresh none.
+	 * @param clientIds IDs of the clients to regenerate. Null to only check the clients using the data sources.
+	 * @param force True to regenerate the listed clients even if they are up to date.
+	 * @return The errors, warnings and messages, grouped by data source / client ID.
+	 *     {
+	 *         "errors": { "id": [errors...] },
+	 *         "warnings": { "id": [warnings...] },
+	 *         "messages": { "id": [messages...] }
+	 *     }
+	 * @throws Exception
+	 */
+	public JSONObject refresh(String[] dataSourceIds, String[] clientIds, boolean force) throws Exception {
+		JSONObject errors = new JSONObject();
+		JSONObject warnings = new JSONObject();
+		JSONObject messages = new JSONObject();
+
+		// Refresh data sources cache first
+		Set<String> refreshedDataSourceIds = new HashSet<String>();
+		if (dataSourceIds != null) {
+			for (String dataSourceId : dataSourceIds) {
+				AbstractDataSourceConfig dataSource = this.getDataSourceConfig(dataSourceId);
+				if (dataSource == null) {
+					// Invalid data source ID
+					JSONArray jsonError = new JSONArray();
+					jsonError.put("Invalid data source ID: ["+dataSourceId+"]");
+					errors.put(dataSourceId, jsonError);
+				} else {
+					// Refresh cache and merging error messages
+					JSONObject jsonErrors = dataSource.process(
+							true, // redownloadBrokenFiles
+							true, // clearCapabilitiesCache
+							false // clearMetadataCache
+					);
+					errors.put(dataSourceId, jsonErrors.opt("errors"));
+					warnings.put(dataSourceId, jsonErrors.opt("warnings"));
+					messages.put(dataSourceId, jsonErrors.opt("messages"));
+					refreshedDataSourceIds.add(dataSourceId);
+				}
+			}
+		}
+
+		// Refresh (regenerate) the outdated clients
+		RefreshPlanner refreshPlanner = new RefreshPlanner(this);
+		Set<String> listedClientIds = new LinkedHashSet<String>();
+		if (clientIds != null) {
+			listedClientIds.addAll(Arrays.asList(clientIds));
+		}
+		Set<String> plannedClientIds = new LinkedHashSet<String>(listedClientIds);
+		plannedClientIds.addAll(refreshPlanner.getDependentClientIds(refreshedDataSourceIds));
+
+		for (String clientId : plannedClientIds) {
+			ClientConfig client = this.getClientConfig(clientId);
+			if (client == null) {
+				// Invalid client ID
+				JSONArray jsonError = new JSONArray();
+				jsonError.put("Invalid client ID: ["+clientId+"]");
+				errors.put(clientId, jsonError);
+			} else {
+				List<String> outdatedReasons = refreshPlanner.getOutdatedReasons(client);
+				if (outdatedReasons.isEmpty() && !(force && listedClientIds.contains(clientId))) {
+					messages.put(clientId, new JSONArray().put("The client is up to date; none of its inputs has changed since its last generation."));
+				} else {
+					// Regenerate client and merging error messages
+					Errors errorsObj = client.process(false);
+					JSONObject jsonErrors = errorsObj.toJSON();
+					errors.put(clientId, jsonErrors.opt("errors"));
+					warnings.put(clientId, jsonErrors.opt("warnings"));
+					JSONArray jsonMessages = new JSONArray();
+					for (String outdatedReason : outdatedReasons) {
+						jsonMessages.put(outdatedReason);
+					}
+					JSONArray generationMessages = jsonErrors.optJSONArray("messages");
+					if (generationMessages != null) {
+						for (int i=0; i<generationMessages.length(); i++) {
+							jsonMessages.put(generationMessages.opt(i));
+						}
+					}
+					messages.put(clientId, jsonMessages);
+				}
+			}
+		}
+
+		JSONObject result = new JSONObject();
+		if (errors.length() > 0) {
+			result.put("errors", errors);
+		}
+		if (warnings.length() > 0) {
+			result.put("warnings", warnings);
+		}
+		if (messages.length() > 0) {
+			result.put("messages", messages);
+		}
+		return result;
+	}
+
 	public JSONObject getClientConfigFileJSon(ClientConfig clientConfig, ConfigType configType, boolean generate)
 			throws Exception {
 
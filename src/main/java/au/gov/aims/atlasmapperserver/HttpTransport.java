@@ -0,0 +1,220 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP client shared by the application, with keep-alive connections.
+ *
+ * There is one transport (one pool of connections) for the harvest of the data sources (URLCache)
+ * and one for the requests sent on behalf of the browsers (Proxy, location search), so a
+ * long harvest can never take all the connections needed by the users of the clients.
+ *
+ * The connections are only returned to their pool when the response has been completely
+ * read; see release(HttpRequestBase, HttpEntity, boolean).
+ */
+public class HttpTransport {
+	private static final Logger LOGGER = Logger.getLogger(HttpTransport.class.getName());
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 30; // in seconds
+	public static final int DEFAULT_READ_TIMEOUT = 120; // in seconds
+	public static final int DEFAULT_HARVEST_MAX_CONNECTIONS_PER_HOST = 10;
+	public static final int DEFAULT_PROXY_MAX_CONNECTIONS_PER_HOST = 20;
+
+	private static final int HARVEST_MAX_CONNECTIONS = 50;
+	private static final int PROXY_MAX_CONNECTIONS = 100;
+
+	// Connections that has not been used for that long are closed; the servers usually close them anyway.
+	private static final long IDLE_CONNECTION_TIMEOUT = 60; // in seconds
+
+	private static final HttpTransport harvestTransport = new HttpTransport(HARVEST_MAX_CONNECTIONS, DEFAULT_HARVEST_MAX_CONNECTIONS_PER_HOST);
+	private static final HttpTransport proxyTransport = new HttpTransport(PROXY_MAX_CONNECTIONS, DEFAULT_PROXY_MAX_CONNECTIONS_PER_HOST);
+
+	private static final ScheduledExecutorService idleConnectionMonitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "HttpTransport idle connections");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	static {
+		idleConnectionMonitor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				harvestTransport.closeIdleConnections();
+				proxyTransport.closeIdleConnections();
+			}
+		}, IDLE_CONNECTION_TIMEOUT, IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	private final PoolingClientConnectionManager connectionManager;
+	private final DefaultHttpClient httpClient;
+
+	private HttpTransport(int maxConnections, int maxConnectionsPerHost) {
+		SchemeRegistry schemeRegistry = SchemeRegistryFactory.createDefault();
+		// Try to set the SSL scheme factory: Accept all SSL certificates
+		try {
+			SSLSocketFactory sslSocketFactory = new SSLSocketFactory(
+				// All certificates are trusted
+				new TrustStrategy() {
+					public boolean isTrusted(final X509Certificate[] chain, String authType) throws CertificateException {
+						return true;
+					}
+				},
+				// Do not check if the hostname match the certificate
+				new AllowAllHostnameVerifier()
+			);
+
+			Scheme httpsScheme = new Scheme("https", 443, sslSocketFactory);
+			schemeRegistry.register(httpsScheme);
+		} catch(Exception ex) {
+			LOGGER.log(Level.SEVERE, "Can not initiate the SSLSocketFactory, needed to accept all SSL self signed certificates.", ex);
+		}
+
+		// Set a pool of multiple connections so more than one client can be generated simultaneously
+		// See: http://stackoverflow.com/questions/12799006/how-to-solve-error-invalid-use-of-basicclientconnmanager-make-sure-to-release
+		this.connectionManager = new PoolingClientConnectionManager(schemeRegistry);
+		this.connectionManager.setMaxTotal(maxConnections);
+		this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+		this.httpClient = new DefaultHttpClient(this.connectionManager);
+		this.setTimeouts(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+	}
+
+	/**
+	 * @return The transport used to harvest the data sources.
+	 */
+	public static HttpTransport getHarvestTransport() {
+		return harvestTransport;
+	}
+
+	/**
+	 * @return The transport used for the requests sent on behalf of the browsers.
+	 */
+	public static HttpTransport getProxyTransport() {
+		return proxyTransport;
+	}
+
+	/**
+	 * Apply the settings of the server configuration to the transports.
+	 * The null values are replaced with the default values.
+	 * @param connectTimeout Connection timeout, in seconds. 0 for no timeout.
+	 * @param readTimeout Timeout while waiting for data (socket timeout), in seconds. 0 for no timeout.
+	 * @param harvestMaxConnectionsPerHost
+	 * @param proxyMaxConnectionsPerHost
+	 */
+	public static void configure(Integer connectTimeout, Integer readTimeout, Integer harvestMaxConnectionsPerHost, Integer proxyMaxConnectionsPerHost) {
+		int connectTimeoutValue = connectTimeout == null ? DEFAULT_CONNECT_TIMEOUT : connectTimeout;
+		int readTimeoutValue = readTimeout == null ? DEFAULT_READ_TIMEOUT : readTimeout;
+
+		harvestTransport.setTimeouts(connectTimeoutValue, readTimeoutValue);
+		harvestTransport.setMaxConnectionsPerHost(harvestMaxConnectionsPerHost == null ?
+				DEFAULT_HARVEST_MAX_CONNECTIONS_PER_HOST : harvestMaxConnectionsPerHost);
+
+		proxyTransport.setTimeouts(connectTimeoutValue, readTimeoutValue);
+		proxyTransport.setMaxConnectionsPerHost(proxyMaxConnectionsPerHost == null ?
+				DEFAULT_PROXY_MAX_CONNECTIONS_PER_HOST : proxyMaxConnectionsPerHost);
+	}
+
+	public HttpClient getHttpClient() {
+		return this.httpClient;
+	}
+
+	private void setTimeouts(int connectTimeout, int readTimeout) {
+		HttpParams params = this.httpClient.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, Math.max(0, connectTimeout) * 1000);
+		HttpConnectionParams.setSoTimeout(params, Math.max(0, readTimeout) * 1000);
+	}
+
+	private void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		if (maxConnectionsPerHost > 0) {
+			this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+		}
+	}
+
+	private void closeIdleConnections() {
+		this.connectionManager.closeExpiredConnections();
+		this.connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Release the connection of a request. This method has to be called in a finally block,
+	 * before closing the streams of the response.
+	 *     HttpGet httpGet = new HttpGet(uri);
+	 *     HttpEntity entity = null;
+	 *     boolean reusable = false;
+	 *     try {
+	 *         HttpResponse response = transport.getHttpClient().execute(httpGet);
+	 *         entity = response.getEntity();
+	 *         // Read the response
+	 *         reusable = true;
+	 *     } finally {
+	 *         HttpTransport.release(httpGet, entity, reusable);
+	 *     }
+	 * @param request
+	 * @param entity The entity of the response, if any.
+	 * @param reusable True to read what is left of the response and return the connection to the pool.
+	 *     False to close the connection; when an error occurred, or when the rest of the response
+	 *     is too big to be worth reading.
+	 */
+	public static void release(HttpRequestBase request, HttpEntity entity, boolean reusable) {
+		if (request == null) {
+			return;
+		}
+		if (reusable) {
+			try {
+				EntityUtils.consume(entity);
+				return;
+			} catch (IOException ex) {
+				LOGGER.log(Level.FINE, "Can not consume the response of {0}: {1}",
+						new Object[]{ request.getURI(), Utils.getExceptionMessage(ex) });
+			}
+		}
+		// Cancel the connection, if it's still alive
+		request.abort();
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In memory cache of the documents parsed from the files of the URLCache
+ * (WMS capabilities, WMTS capabilities, TC211 records, ArcGIS JSON, etc.),
+ * shared by all the data sources, within and across rebuilds.
+ *
+ * The documents are keyed by the class of document, the file and the location
+ * of the document (URL). The files of the URLCache are named after the SHA-1 of
+ * their content, so the path of the file is also a checksum of the document;
+ * the size and the last modified date of the file are added to the key to detect
+ * the files which are modified in place (local files, old cache files).
+ *
+ * The cache is bounded by an estimated weight (the uncompressed size of the files)
+ * and the least recently used documents are evicted first. The documents are
+ * also softly referenced, so the garbage collector can reclaim them when the
+ * memory is low.
+ *
+ * The cached documents are shared; they must not be modified.
+ */
+public class ParsedDocumentCache {
+	private static final Logger LOGGER = Logger.getLogger(ParsedDocumentCache.class.getName());
+
+	// The parsed documents usually take a few times the size of their file, in memory.
+	private static final long DEFAULT_MAX_WEIGHT = Runtime.getRuntime().maxMemory() / 16; // in bytes
+
+	private static final ParsedDocumentCache instance = new ParsedDocumentCache(DEFAULT_MAX_WEIGHT);
+
+	// Concurrent requests of the same document share the same parsing
+	private final SingleFlight parseFlights;
+
+	private final long maxWeight;
+	private long weight;
+
+	// LinkedHashMap<String key, Entry entry>, in access order (least recently used first)
+	private final LinkedHashMap<String, Entry> entries;
+
+	public static ParsedDocumentCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param maxWeight Maximum sum of the uncompressed size of the files of the cached documents, in bytes.
+	 */
+	public ParsedDocumentCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+		this.weight = 0;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.parseFlights = new SingleFlight();
+	}
+
+	/**
+	 * Join the parsing flight of a document. If an other thread is already parsing the
+	 * document, wait for it to finish; the document can then be found in the cache
+	 * (unless the parsing failed).
+	 * Usage:
+	 *     SingleFlight.Flight flight = cache.joinParse(documentClass, file, location);
+	 *     try {
+	 *         document = cache.get(documentClass, file, location);
+	 *         if (document == null) {
+	 *             // Parse the document
+	 *             cache.put(documentClass, file, location, document);
+	 *         }
+	 *     } finally {
+	 *         flight.end();
+	 *     }
+	 * @param documentClass
+	 * @param file
+	 * @param location
+	 * @return The flight. It has to be ended, in a finally block.
+	 * @throws InterruptedIOException
+	 */
+	public SingleFlight.Flight joinParse(Class documentClass, File file, String location) throws InterruptedIOException {
+		String key = getKey(documentClass, file, location);
+		if (key == null) {
+			throw new IllegalArgumentException("Can not parse a null file.");
+		}
+		return this.parseFlights.join(key);
+	}
+
+	/**
+	 * @param documentClass Class of the document; the same file may be parsed in different kind of documents.
+	 * @param file The file from which the document was parsed.
+	 * @param location The location of the document (URL). Null if the document do not depend on its location.
+	 * @return The cached document, or null if it's not in the cache.
+	 */
+	public synchronized <T> T get(Class<T> documentClass, File file, String location) {
+		String key = getKey(documentClass, file, location);
+		if (key == null) {
+			return null;
+		}
+
+		Entry entry = this.entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+
+		Object document = entry.document.get();
+		if (document == null) {
+			// Reclaimed by the garbage collector
+			this.entries.remove(key);
+			this.weight -= entry.weight;
+			return null;
+		}
+
+		return documentClass.cast(document);
+	}
+
+	/**
+	 * Add a parsed document to the cache. The least recently used documents
+	 * are evicted when the cache get too big.
+	 * @param documentClass
+	 * @param file
+	 * @param location
+	 * @param document
+	 */
+	public synchronized <T> void put(Class<T> documentClass, File file, String location, T document) {
+		String key = getKey(documentClass, file, location);
+		if (key == null || document == null || !file.exists()) {
+			return;
+		}
+
+		long documentWeight = URLCache.getContentLength(file);
+		if (documentWeight > this.maxWeight) {
+			LOGGER.log(Level.FINE, "The document {0} is too big to be cached in memory", location);
+			return;
+		}
+
+		Entry oldEntry = this.entries.put(key, new Entry(document, documentWeight));
+		if (oldEntry != null) {
+			this.weight -= oldEntry.weight;
+		}
+		this.weight += documentWeight;
+
+		Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+		while (this.weight > this.maxWeight && it.hasNext()) {
+			Entry eldestEntry = it.next().getValue();
+			it.remove();
+			this.weight -= eldestEntry.weight;
+		}
+	}
+
+	public synchronized void clear() {
+		this.entries.clear();
+		this.weight = 0;
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	public synchronized long getWeight() {
+		return this.weight;
+	}
+
+	private static String getKey(Class documentClass, File file, String location) {
+		if (documentClass == null || file == null) {
+			return null;
+		}
+
+		return documentClass.getName() + "|" +
+				file.getAbsolutePath() + "|" +
+				file.length() + "|" +
+				file.lastModified() + "|" +
+				(location == null ? "" : location);
+	}
+
+	private static class Entry {
+		public final SoftReference<Object> document;
+		public final long weight;
+
+		public Entry(Object document, long weight) {
+			this.document = new SoftReference<Object>(document);
+			this.weight = weight;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rebuild of a data source or generation of a client, executed in a background
+ * thread (see RebuildJobManager), so the HTTP request that started it can return
+ * immediately. The status of the job can be requested at any time using its ID.
+ *
+ * The harvest code report its progress to the job of the current thread using the
+ * static methods (addLayers, addMetadataRecord, addDownloadedBytes); they do nothing
+ * when the code is not running in a job (synchronous rebuild, tests, etc.).
+ *
+ * A job is cancelled cooperatively: the harvest code call checkCancelled before
+ * each download, and before saving anything. The state of the data source or the
+ * client is not modified by a cancelled job.
+ */
+public abstract class RebuildJob implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(RebuildJob.class.getName());
+
+	private static final ThreadLocal<RebuildJob> currentJob = new ThreadLocal<RebuildJob>();
+
+	public enum State {
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED
+	}
+
+	private final String id;
+	private final String key;
+	private final String description;
+
+	private volatile State state;
+	private volatile boolean cancelRequested;
+	private final long submittedTime;
+	private volatile long startTime;
+	private volatile long endTime;
+
+	private final AtomicInteger layerCount;
+	private final AtomicInteger metadataRecordCount;
+	private final AtomicLong downloadedBytes;
+
+	private volatile JSONObject result;
+	private volatile String errorMessage;
+
+	/**
+	 * @param key Identify what the job is working on (example: "dataSource:ea"), to avoid running
+	 *     two jobs on the same data source or client at the same time.
+	 * @param description Human readable description of the job.
+	 */
+	protected RebuildJob(String key, String description) {
+		this.id = UUID.randomUUID().toString();
+		this.key = key;
+		this.description = description;
+		this.state = State.QUEUED;
+		this.cancelRequested = false;
+		this.submittedTime = System.currentTimeMillis();
+
+		this.layerCount = new AtomicInteger(0);
+		this.metadataRecordCount = new AtomicInteger(0);
+		this.downloadedBytes = new AtomicLong(0);
+	}
+
+	/**
+	 * Do the work.
+	 * @return The errors, warnings and messages of the work, in the same format as
+	 *     the response of the synchronous request.
+	 * @throws Exception
+	 */
+	protected abstract JSONObject execute() throws Exception;
+
+	@Override
+	public void run() {
+		if (this.cancelRequested) {
+			this.finish(State.CANCELLED);
+			return;
+		}
+
+		this.startTime = System.currentTimeMillis();
+		this.state = State.RUNNING;
+		currentJob.set(this);
+		try {
+			this.result = this.execute();
+			this.finish(State.DONE);
+		} catch (CancellationException ex) {
+			LOGGER.log(Level.INFO, "Job {0} cancelled: {1}", new String[]{ this.id, this.description });
+			this.finish(State.CANCELLED);
+		} catch (Throwable ex) {
+			LOGGER.log(Level.SEVERE, "Job {0} failed: {1}", new String[]{ this.id, Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+			this.errorMessage = Utils.getExceptionMessage(ex);
+			this.finish(State.FAILED);
+		} finally {
+			currentJob.remove();
+		}
+	}
+
+	private void finish(State finalState) {
+		this.endTime = System.currentTimeMillis();
+		this.state = finalState;
+	}
+
+	/**
+	 * Request the cancellation of the job. A queued job will never start;
+	 * a running job stops at its next check (see checkCancelled).
+	 */
+	public void cancel() {
+		this.cancelRequested = true;
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	public String getKey() {
+		return this.key;
+	}
+
+	public State getState() {
+		return this.state;
+	}
+
+	public boolean isFinished() {
+		State currentState = this.state;
+		return currentState == State.DONE || currentState == State.FAILED || currentState == State.CANCELLED;
+	}
+
+	public boolean isCancelRequested() {
+		return this.cancelRequested;
+	}
+
+	public long getEndTime() {
+		return this.endTime;
+	}
+
+	public JSONObject getResult() {
+		return this.result;
+	}
+
+	public JSONObject toJSON() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("id", this.id);
+		json.put("description", this.description);
+		json.put("state", this.state.name());
+		json.put("cancelRequested", this.cancelRequested);
+		json.put("submitted", this.submittedTime);
+		if (this.startTime > 0) {
+			json.put("started", this.startTime);
+		}
+		if (this.endTime > 0) {
+			json.put("ended", this.endTime);
+		}
+
+		JSONObject progress = new JSONObject();
+		progress.put("layers", this.layerCount.get());
+		progress.put("metadataRecords", this.metadataRecordCount.get());
+		progress.put("downloadedBytes", this.downloadedBytes.get());
+		json.put("progress", progress);
+
+		if (this.result != null) {
+			json.put("result", this.result);
+		}
+		if (this.errorMessage != null) {
+			json.put("error", this.errorMessage);
+		}
+		return json;
+	}
+
+	/**
+	 * @return The job executed by the current thread, or null if the thread is not executing a job.
+	 */
+	public static RebuildJob getCurrentJob() {
+		return currentJob.get();
+	}
+
+	/**
+	 * Stop the work of the current thread if its job has been cancelled.
+	 * @throws CancellationException If the job of the current thread has been cancelled.
+	 */
+	public static void checkCancelled() throws CancellationException {
+		RebuildJob job = currentJob.get();
+		if (job != null && job.cancelRequested) {
+			throw new CancellationException("The job " + job.id + " has been cancelled.");
+		}
+	}
+
+	/**
+	 * Wrap a task so it runs in the job of the current thread, if any. Used to execute
+	 * part of the work of a job in other threads (see AbstractDataSourceConfig.processAll);
+	 * the progress of the task is added to the job and the task stops when the job is cancelled.
+	 * @param task
+	 * @return The wrapped task, or the task itself if the current thread is not executing a job.
+	 */
+	public static Runnable inCurrentJob(final Runnable task) {
+		final RebuildJob job = currentJob.get();
+		if (job == null) {
+			return task;
+		}
+		return new Runnable() {
+			@Override
+			public void run() {
+				RebuildJob previousJob = currentJob.get();
+				currentJob.set(job);
+				try {
+					task.run();
+				} finally {
+					if (previousJob == null) {
+						currentJob.remove();
+					} else {
+						currentJob.set(previousJob);
+					}
+				}
+			}
+		};
+	}
+
+	public static void addLayers(int nbLayers) {
+		RebuildJob job = currentJob.get();
+		if (job != null) {
+			job.layerCount.addAndGet(nbLayers);
+		}
+	}
+
+	public static void addMetadataRecord() {
+		RebuildJob job = currentJob.get();
+		if (job != null) {
+			job.metadataRecordCount.incrementAndGet();
+		}
+	}
+
+	public static void addDownloadedBytes(long nbBytes) {
+		RebuildJob job = currentJob.get();
+		if (job != null && nbBytes > 0) {
+			job.downloadedBytes.addAndGet(nbBytes);
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import au.gov.aims.atlasmapperserver.dataSourceConfig.AbstractDataSourceConfig;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Execute the rebuild of the data sources and the generation of the clients
+ * in background threads, and keep track of the jobs so their status can be requested
+ * (see the actions JOBSTATUS and JOBCANCEL of admin/dataSourcesConfig.jsp,
+ * admin/clientsConfig.jsp and localhost/api.jsp).
+ *
+ * Submitting a job for a data source (or a client) which already has a job waiting
+ * or running returns the existing job instead of starting a new one.
+ * Jobs of different kinds (rebuild of a data source, rebuild of all data sources, refresh,
+ * harvest of the metadata) may still work on the same data source; its harvests are
+ * serialised by AbstractDataSourceConfig.process and harvestMetadata.
+ * Finished jobs are forgotten after a while (see FINISHED_JOB_RETENTION).
+ */
+public class RebuildJobManager {
+	// Number of jobs executed at the same time. The other jobs wait in the queue.
+	private static final int MAX_CONCURRENT_JOBS = 2;
+	// Time during which the status of a finished job can be requested, in milliseconds
+	private static final long FINISHED_JOB_RETENTION = 60 * 60 * 1000; // 1 hour
+
+	private static final RebuildJobManager instance = new RebuildJobManager();
+
+	private final ThreadPoolExecutor executor;
+	// ConcurrentHashMap<String jobId, RebuildJob job>
+	private final ConcurrentHashMap<String, RebuildJob> jobs;
+
+	public static RebuildJobManager getInstance() {
+		return instance;
+	}
+
+	private RebuildJobManager() {
+		this.jobs = new ConcurrentHashMap<String, RebuildJob>();
+		this.executor = new ThreadPoolExecutor(MAX_CONCURRENT_JOBS, MAX_CONCURRENT_JOBS,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger threadCount = new AtomicInteger(0);
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "RebuildJob " + this.threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queue a job, unless a job is already waiting or running for the same data source / client.
+	 * @param job
+	 * @return The submitted job, or the job already waiting or running for the same data source / client.
+	 */
+	public synchronized RebuildJob submit(RebuildJob job) {
+		this.purgeFinishedJobs();
+
+		for (RebuildJob existingJob : this.jobs.values()) {
+			if (!existingJob.isFinished() && !existingJob.isCancelRequested() &&
+					existingJob.getKey() != null && existingJob.getKey().equals(job.getKey())) {
+				return existingJob;
+			}
+		}
+
+		this.jobs.put(job.getId(), job);
+		this.executor.execute(job);
+		return job;
+	}
+
+	/**
+	 * @param jobId
+	 * @return The job, or null if there is no job with this ID, or if it has finished for a while.
+	 */
+	public RebuildJob getJob(String jobId) {
+		if (jobId == null) {
+			return null;
+		}
+		return this.jobs.get(jobId);
+	}
+
+	/**
+	 * Request the cancellation of a job. The method returns immediately;
+	 * the job stops when it reach its next check.
+	 * @param jobId
+	 * @return The job, or null if there is no job with this ID.
+	 */
+	public RebuildJob cancel(String jobId) {
+		RebuildJob job = this.getJob(jobId);
+		if (job != null && !job.isFinished()) {
+			job.cancel();
+		}
+		return job;
+	}
+
+	/**
+	 * Request the cancellation of the jobs waiting or running for a data source / client.
+	 * @param key
+	 */
+	public synchronized void cancelJobs(String key) {
+		for (RebuildJob job : this.jobs.values()) {
+			if (!job.isFinished() && key != null && key.equals(job.getKey())) {
+				job.cancel();
+			}
+		}
+	}
+
+	private void purgeFinishedJobs() {
+		long threshold = System.currentTimeMillis() - FINISHED_JOB_RETENTION;
+		Iterator<Map.Entry<String, RebuildJob>> it = this.jobs.entrySet().iterator();
+		while (it.hasNext()) {
+			RebuildJob job = it.next().getValue();
+			if (job.isFinished() && job.getEndTime() < threshold) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Asynchronous version of AbstractDataSourceConfig.process
+	 */
+	public RebuildJob submitDataSourceRebuild(final AbstractDataSourceConfig dataSource,
+			final boolean redownloadBrokenFiles, final boolean clearCapabilitiesCache, final boolean clearMetadataCache) {
+
+		String dataSourceId = dataSource.getDataSourceId();
+		return this.submit(new RebuildJob("dataSource:" + dataSourceId, "Rebuild of the data source " + dataSourceId) {
+			@Override
+			protected JSONObject execute() throws Exception {
+				return toResponse("Data source rebuilded",
+						dataSource.process(redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache));
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of AbstractDataSourceConfig.harvestMetadata.
+	 * The harvest of the metadata of a previous rebuild of the data source is cancelled;
+	 * its result would be discarded anyway.
+	 */
+	public RebuildJob submitMetadataHarvest(final AbstractDataSourceConfig dataSource, final String stateHash, final long elapsedTime) {
+		String dataSourceId = dataSource.getDataSourceId();
+		String key = "metadata:" + dataSourceId;
+		this.cancelJobs(key);
+		return this.submit(new RebuildJob(key, "Harvest of the metadata of the data source " + dataSourceId) {
+			@Override
+			protected JSONObject execute() throws Exception {
+				return toResponse("Data source metadata harvested",
+						dataSource.harvestMetadata(stateHash, elapsedTime));
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of AbstractDataSourceConfig.processAll
+	 */
+	public RebuildJob submitAllDataSourcesRebuild(final ConfigManager configManager,
+			final boolean redownloadBrokenFiles, final boolean clearCapabilitiesCache, final boolean clearMetadataCache) {
+
+		return this.submit(new RebuildJob("dataSources", "Rebuild of all data sources") {
+			@Override
+			protected JSONObject execute() throws Exception {
+				return toResponse("Data source rebuilded",
+						AbstractDataSourceConfig.processAll(configManager, redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache));
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of ClientConfig.process
+	 */
+	public RebuildJob submitClientGeneration(final ClientConfig clientConfig, final boolean complete) {
+		String clientId = clientConfig.getClientId();
+		return this.submit(new RebuildJob("client:" + clientId, "Generation of the client " + clientId) {
+			@Override
+			protected JSONObject execute() throws Exception {
+				JSONObject response = toResponse("Config Generated", clientConfig.process(complete).toJSON());
+				response.put("clientName", clientConfig.getClientName());
+				response.put("clientId", clientConfig.getClientId());
+				return response;
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of ConfigManager.generateAllClients
+	 */
+	public RebuildJob submitAllClientsGeneration(final ConfigManager configManager, final boolean complete) {
+		return this.submit(new RebuildJob("clients", "Generation of all clients") {
+			@Override
+			protected JSONObject execute() throws Exception {
+				return toResponse("Config saved for all clients",
+						Errors.toJSON(configManager.generateAllClients(complete)));
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of ConfigManager.refresh
+	 */
+	public RebuildJob submitRefresh(final ConfigManager configManager, final String[] dataSourceIds, final String[] clientIds, final boolean force) {
+		StringBuilder key = new StringBuilder("refresh");
+		if (dataSourceIds != null) {
+			key.append(":dataSources=").append(Arrays.toString(dataSourceIds));
+		}
+		if (clientIds != null) {
+			key.append(":clients=").append(Arrays.toString(clientIds));
+		}
+		return this.submit(new RebuildJob(key.toString(), "Refresh of the data sources and clients") {
+			@Override
+			protected JSONObject execute() throws Exception {
+				return toResponse("Config Generated", configManager.refresh(dataSourceIds, clientIds, force));
+			}
+		});
+	}
+
+	/**
+	 * Create the response of a job, in the format of the response of the synchronous request.
+	 * @param message
+	 * @param jsonErrors The errors, warnings and messages, if any.
+	 * @return
+	 * @throws JSONException
+	 */
+	private static JSONObject toResponse(String message, JSONObject jsonErrors) throws JSONException {
+		JSONObject response = new JSONObject();
+		response.put("message", message);
+		if (jsonErrors != null) {
+			response.put("errors", jsonErrors.opt("errors"));
+			response.put("warnings", jsonErrors.opt("warnings"));
+			response.put("messages", jsonErrors.opt("messages"));
+		}
+		response.put("success", !response.has("errors"));
+		return response;
+	}
+}
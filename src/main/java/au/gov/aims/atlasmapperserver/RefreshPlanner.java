@@ -0,0 +1,276 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import au.gov.aims.atlasmapperserver.dataSourceConfig.AbstractDataSourceConfig;
+import au.gov.aims.atlasmapperserver.jsonWrappers.client.DataSourceWrapper;
+import au.gov.aims.atlasmapperserver.servlet.FileFinder;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Find out which clients have to be regenerated after a refresh of the data sources.
+ *
+ * The generated files of a client only depend on the client configuration and the saved
+ * state of its data sources (see ClientConfig.getDataSources). Each saved state contains
+ * a hash of the harvested data (see AbstractDataSourceConfig.save). After each generation,
+ * the hashes of the inputs of the client are recorded; the client is outdated when one
+ * of its inputs has a different hash.
+ *
+ * {
+ *     "version": "<AtlasMapper version>",
+ *     "client": "<hash of the client configuration>",
+ *     "dataSources": {
+ *         "<data source ID>": "<hash of the data source saved state>",
+ *         ...
+ *     }
+ * }
+ */
+public class RefreshPlanner {
+	private static final Logger LOGGER = Logger.getLogger(RefreshPlanner.class.getName());
+
+	private final ConfigManager configManager;
+
+	public RefreshPlanner(ConfigManager configManager) {
+		this.configManager = configManager;
+	}
+
+	/**
+	 * @param clientConfig
+	 * @return The current inputs of the client.
+	 * @throws JSONException
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public JSONObject getClientInputs(ClientConfig clientConfig) throws JSONException, IOException, NoSuchAlgorithmException {
+		File applicationFolder = this.configManager.getApplicationFolder();
+
+		JSONObject clientJSON = clientConfig.toJSonObject();
+		// Modified by each generation
+		clientJSON.remove("lastGenerated");
+
+		JSONObject dataSourceHashes = new JSONObject();
+		JSONArray dataSourceIds = clientConfig.getDataSources();
+		if (dataSourceIds != null) {
+			for (int i=0; i<dataSourceIds.length(); i++) {
+				String dataSourceId = dataSourceIds.optString(i, null);
+				if (dataSourceId != null) {
+					DataSourceWrapper savedState = AbstractDataSourceConfig.load(applicationFolder, dataSourceId);
+					// JSONObject.NULL: The data source has never been harvested (or its saved state has no hash)
+					String stateHash = savedState == null ? null : savedState.getStateHash();
+					dataSourceHashes.put(dataSourceId, stateHash == null ? JSONObject.NULL : stateHash);
+				}
+			}
+		}
+
+		JSONObject inputs = new JSONObject();
+		inputs.put("version", ProjectInfo.getVersion());
+		inputs.put("client", Utils.jsonHash(clientJSON));
+		inputs.put("dataSources", dataSourceHashes);
+		return inputs;
+	}
+
+	/**
+	 * @param clientConfig
+	 * @return The list of reasons why the client has to be regenerated. An empty
+	 *     list if the client is up to date.
+	 */
+	public List<String> getOutdatedReasons(ClientConfig clientConfig) {
+		List<String> reasons = new ArrayList<String>();
+
+		File clientConfigFolder = FileFinder.getAtlasMapperClientConfigFolder(this.configManager.getApplicationFolder(), clientConfig, false);
+		if (clientConfigFolder == null || !clientConfigFolder.exists()) {
+			reasons.add("The client has not been generated.");
+			return reasons;
+		}
+
+		JSONObject lastInputs = this.loadGenerationInputs(clientConfig);
+		if (lastInputs == null) {
+			reasons.add("No previous generation has been recorded for the client.");
+			return reasons;
+		}
+
+		JSONObject inputs;
+		try {
+			inputs = this.getClientInputs(clientConfig);
+		} catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Can not calculate the inputs of the client {0}: {1}",
+					new String[]{ clientConfig.getClientId(), Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+			reasons.add("The inputs of the client can not be verified.");
+			return reasons;
+		}
+
+		if (!inputs.optString("version").equals(lastInputs.optString("version"))) {
+			reasons.add("The AtlasMapper has been updated.");
+		}
+		if (!inputs.optString("client").equals(lastInputs.optString("client"))) {
+			reasons.add("The client configuration has been modified.");
+		}
+
+		JSONObject dataSourceHashes = inputs.optJSONObject("dataSources");
+		JSONObject lastDataSourceHashes = lastInputs.optJSONObject("dataSources");
+		if (dataSourceHashes != null) {
+			JSONArray dataSourceIds = dataSourceHashes.names();
+			if (dataSourceIds != null) {
+				for (int i=0; i<dataSourceIds.length(); i++) {
+					String dataSourceId = dataSourceIds.optString(i);
+					String stateHash = dataSourceHashes.isNull(dataSourceId) ? null : dataSourceHashes.optString(dataSourceId);
+					String lastStateHash = (lastDataSourceHashes == null || lastDataSourceHashes.isNull(dataSourceId)) ?
+							null : lastDataSourceHashes.optString(dataSourceId, null);
+					if (stateHash == null || !stateHash.equals(lastStateHash)) {
+						reasons.add("The data source [" + dataSourceId + "] has changed.");
+					}
+				}
+			}
+		}
+		// Removed data sources are detected with the client configuration hash.
+
+		return reasons;
+	}
+
+	/**
+	 * @param dataSourceIds
+	 * @return The IDs of the enabled clients using at least one of the data sources.
+	 */
+	public Set<String> getDependentClientIds(Collection<String> dataSourceIds) throws IOException, JSONException {
+		Set<String> clientIds = new LinkedHashSet<String>();
+		if (dataSourceIds == null || dataSourceIds.isEmpty()) {
+			return clientIds;
+		}
+
+		for (String clientId : this.configManager.getClientConfigs().key2Set()) {
+			ClientConfig clientConfig = this.configManager.getClientConfig(clientId);
+			if (clientConfig != null && clientConfig.isEnable()) {
+				JSONArray clientDataSourceIds = clientConfig.getDataSources();
+				if (clientDataSourceIds != null) {
+					for (int i=0; i<clientDataSourceIds.length(); i++) {
+						if (dataSourceIds.contains(clientDataSourceIds.optString(i, null))) {
+							clientIds.add(clientId);
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		return clientIds;
+	}
+
+	/**
+	 * @param clientConfig
+	 * @param dataSourceId
+	 * @return The hash of the saved state of the data source used by the last generation
+	 *     of the client, or null if it has not been recorded.
+	 */
+	public String getGeneratedStateHash(ClientConfig clientConfig, String dataSourceId) {
+		JSONObject lastInputs = this.loadGenerationInputs(clientConfig);
+		JSONObject lastDataSourceHashes = lastInputs == null ? null : lastInputs.optJSONObject("dataSources");
+		if (lastDataSourceHashes == null || lastDataSourceHashes.isNull(dataSourceId)) {
+			return null;
+		}
+		return lastDataSourceHashes.optString(dataSourceId, null);
+	}
+
+	/**
+	 * Record the inputs used by a successful generation of the client.
+	 * @param clientConfig
+	 * @param inputs The inputs of the client, calculated before the generation (see getClientInputs).
+	 */
+	public void saveGenerationInputs(ClientConfig clientConfig, JSONObject inputs) {
+		File inputsFile = FileFinder.getClientGenerationStateFile(this.configManager.getApplicationFolder(), clientConfig.getClientId());
+
+		Writer writer = null;
+		BufferedWriter bw = null;
+		try {
+			writer = new FileWriter(inputsFile);
+			bw = new BufferedWriter(writer);
+			bw.write(Utils.jsonToStr(inputs));
+		} catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Can not save the generation state of the client {0}: {1}",
+					new String[]{ clientConfig.getClientId(), Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+		} finally {
+			if (bw != null) {
+				try {
+					bw.close();
+				} catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Can not close the client generation state buffered writer: {0}", Utils.getExceptionMessage(e));
+					LOGGER.log(Level.FINE, "Stack trace:", e);
+				}
+			}
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Can not close the client generation state writer: {0}", Utils.getExceptionMessage(e));
+					LOGGER.log(Level.FINE, "Stack trace:", e);
+				}
+			}
+		}
+	}
+
+	private JSONObject loadGenerationInputs(ClientConfig clientConfig) {
+		File inputsFile = FileFinder.getClientGenerationStateFile(this.configManager.getApplicationFolder(), clientConfig.getClientId());
+		if (!inputsFile.exists()) {
+			return null;
+		}
+
+		Reader reader = null;
+		try {
+			reader = new FileReader(inputsFile);
+			return new JSONObject(new JSONTokener(reader));
+		} catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Can not load the generation state of the client {0}: {1}",
+					new String[]{ clientConfig.getClientId(), Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+			return null;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (Exception ex) {
+					LOGGER.log(Level.SEVERE, "Can not close the client generation state reader: {0}", Utils.getExceptionMessage(ex));
+					LOGGER.log(Level.FINE, "Stack trace:", ex);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import au.gov.aims.atlasmapperserver.dataSourceConfig.AbstractDataSourceConfig;
+import au.gov.aims.atlasmapperserver.servlet.FileFinder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Refresh the data sources periodically, in background threads, according to their
+ * refresh interval (see AbstractDataSourceConfig.getRefreshInterval).
+ * After each refresh, the clients using the data source are regenerated.
+ *
+ * This replace the cron job calling "localhost/api.jsp?action=REFRESH", which does
+ * all the work in the thread of the request.
+ *   - A random delay (jitter) is added to the interval, so the data sources having the same interval
+ *     are not all refreshed at the same time.
+ *   - The number of data sources refreshed at the same time is limited (see ConfigManager.getRefreshMaxConcurrency).
+ *   - The refresh threads have a low priority, to keep serving the clients while harvesting.
+ *
+ * The scheduler is started and stopped with the application (see servlet.RefreshSchedulerListener).
+ */
+public class RefreshScheduler {
+	private static final Logger LOGGER = Logger.getLogger(RefreshScheduler.class.getName());
+
+	// Delay between the checks of the data sources, in minutes
+	private static final long CHECK_INTERVAL = 1;
+	// Maximum random delay added to the refresh interval, in ratio of the interval
+	protected static final double JITTER_RATIO = 0.1;
+
+	public static final int DEFAULT_MAX_CONCURRENCY = 1;
+
+	private static RefreshScheduler instance = null;
+
+	private final ConfigManager configManager;
+	private final ScheduledExecutorService timer;
+	private final ThreadPoolExecutor refreshExecutor;
+	private final Random random;
+
+	// ConcurrentHashMap<String dataSourceId, Schedule schedule>
+	private final ConcurrentHashMap<String, Schedule> schedules;
+	// IDs of the data sources being refreshed, or waiting to be refreshed
+	private final Set<String> runningRefreshes;
+	// The clients are regenerated one at the time; two data sources used by the same client may be refreshed at the same time
+	private final Object clientGenerationLock = new Object();
+
+	/**
+	 * Start the scheduler, if it's not already started.
+	 * @param configManager
+	 */
+	public static synchronized void start(ConfigManager configManager) {
+		if (instance == null && configManager != null) {
+			instance = new RefreshScheduler(configManager);
+			instance.timer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					RefreshScheduler scheduler = instance;
+					if (scheduler != null) {
+						scheduler.check(System.currentTimeMillis());
+					}
+				}
+			}, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MINUTES);
+			LOGGER.log(Level.INFO, "Data source refresh scheduler started.");
+		}
+	}
+
+	/**
+	 * Stop the scheduler. The refreshes in progress are interrupted.
+	 */
+	public static synchronized void stop() {
+		if (instance != null) {
+			instance.timer.shutdownNow();
+			instance.refreshExecutor.shutdownNow();
+			instance = null;
+			LOGGER.log(Level.INFO, "Data source refresh scheduler stopped.");
+		}
+	}
+
+	RefreshScheduler(ConfigManager configManager) {
+		this.configManager = configManager;
+		this.random = new Random();
+		this.schedules = new ConcurrentHashMap<String, Schedule>();
+		this.runningRefreshes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		this.timer = Executors.newSingleThreadScheduledExecutor(new SchedulerThreadFactory("RefreshScheduler timer"));
+
+		// The queue never contains more than one task per data source
+		this.refreshExecutor = new ThreadPoolExecutor(DEFAULT_MAX_CONCURRENCY, DEFAULT_MAX_CONCURRENCY,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new SchedulerThreadFactory("RefreshScheduler"));
+		this.refreshExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Check which data sources are due for a refresh and queue them.
+	 * @param now Epoch time in milliseconds.
+	 */
+	void check(long now) {
+		try {
+			this.setMaxConcurrency(this.configManager.getRefreshMaxConcurrency());
+
+			Set<String> scheduledDataSourceIds = new HashSet<String>();
+			for (AbstractDataSourceConfig dataSource : this.configManager.getDataSourceConfigs().values()) {
+				String dataSourceId = dataSource.getDataSourceId();
+				Integer refreshInterval = dataSource.getRefreshInterval();
+				if (dataSourceId == null || refreshInterval == null || refreshInterval <= 0) {
+					continue;
+				}
+				scheduledDataSourceIds.add(dataSourceId);
+
+				Schedule schedule = this.schedules.get(dataSourceId);
+				if (schedule == null || schedule.refreshInterval != refreshInterval) {
+					// New data source, or its interval has changed; the next refresh is calculated from the last one.
+					schedule = new Schedule(refreshInterval, this.getLastHarvestedTime(dataSourceId) + this.getDelay(refreshInterval));
+					this.schedules.put(dataSourceId, schedule);
+				}
+
+				if (schedule.nextRefreshTime <= now && this.runningRefreshes.add(dataSourceId)) {
+					// The next refresh is calculated from now, even if this one fails.
+					this.schedules.put(dataSourceId, new Schedule(refreshInterval, now + this.getDelay(refreshInterval)));
+					this.queueRefresh(dataSourceId);
+				}
+			}
+
+			// Forget about the deleted data sources, and the data sources that are not refreshed anymore
+			Iterator<String> dataSourceIds = this.schedules.keySet().iterator();
+			while (dataSourceIds.hasNext()) {
+				if (!scheduledDataSourceIds.contains(dataSourceIds.next())) {
+					dataSourceIds.remove();
+				}
+			}
+		} catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Error occurred while checking the data sources to refresh: {0}", Utils.getExceptionMessage(ex));
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+		}
+	}
+
+	/**
+	 * Queue the refresh of a data source. The data source is removed from
+	 * the running refreshes (see refreshDone) when its refresh is over.
+	 * @param dataSourceId
+	 */
+	void queueRefresh(String dataSourceId) {
+		this.refreshExecutor.execute(new RefreshTask(dataSourceId));
+	}
+
+	void refreshDone(String dataSourceId) {
+		this.runningRefreshes.remove(dataSourceId);
+	}
+
+	/**
+	 * @param dataSourceId
+	 * @return The time of the next refresh of the data source, or null if it's not scheduled.
+	 */
+	Long getNextRefreshTime(String dataSourceId) {
+		Schedule schedule = this.schedules.get(dataSourceId);
+		return schedule == null ? null : schedule.nextRefreshTime;
+	}
+
+	private void setMaxConcurrency(Integer maxConcurrency) {
+		int poolSize = (maxConcurrency == null || maxConcurrency <= 0) ? DEFAULT_MAX_CONCURRENCY : maxConcurrency;
+		if (poolSize != this.refreshExecutor.getMaximumPoolSize()) {
+			// The maximum pool size can not be lower than the core pool size
+			if (poolSize > this.refreshExecutor.getMaximumPoolSize()) {
+				this.refreshExecutor.setMaximumPoolSize(poolSize);
+				this.refreshExecutor.setCorePoolSize(poolSize);
+			} else {
+				this.refreshExecutor.setCorePoolSize(poolSize);
+				this.refreshExecutor.setMaximumPoolSize(poolSize);
+			}
+		}
+	}
+
+	/**
+	 * @param refreshInterval In minutes.
+	 * @return The refresh interval plus a random jitter, in milliseconds.
+	 */
+	long getDelay(int refreshInterval) {
+		long intervalMs = refreshInterval * URLCache.NB_MS_PER_MINUTE;
+		return intervalMs + (long)(intervalMs * JITTER_RATIO * this.random.nextDouble());
+	}
+
+	/**
+	 * @param dataSourceId
+	 * @return The time of the last harvest of the data source (the date of its saved state), or 0 if it has never been harvested.
+	 */
+	private long getLastHarvestedTime(String dataSourceId) {
+		File dataSourceCatalogFile = FileFinder.getDataSourcesCatalogFile(this.configManager.getApplicationFolder(), dataSourceId);
+		// lastModified() returns 0L if the file do not exists.
+		return dataSourceCatalogFile.lastModified();
+	}
+
+	/**
+	 * Regenerate the clients using the data source, if they are outdated (see RefreshPlanner).
+	 * @param dataSourceId
+	 */
+	private void regenerateClients(String dataSourceId) throws Exception {
+		synchronized (this.clientGenerationLock) {
+			RefreshPlanner refreshPlanner = new RefreshPlanner(this.configManager);
+			for (String clientId : refreshPlanner.getDependentClientIds(Collections.singleton(dataSourceId))) {
+				ClientConfig clientConfig = this.configManager.getClientConfig(clientId);
+				if (clientConfig != null && !refreshPlanner.getOutdatedReasons(clientConfig).isEmpty()) {
+					LOGGER.log(Level.INFO, "Regenerate the client {0} after the refresh of the data source {1}",
+							new String[]{ clientId, dataSourceId });
+					Errors errors = clientConfig.process(false);
+					if (errors != null && !errors.getErrors().isEmpty()) {
+						LOGGER.log(Level.WARNING, "Errors occurred while regenerating the client {0}: {1}",
+								new String[]{ clientId, errors.toJSON().optString("errors") });
+					}
+				}
+			}
+		}
+	}
+
+	private class RefreshTask implements Runnable {
+		private final String dataSourceId;
+
+		public RefreshTask(String dataSourceId) {
+			this.dataSourceId = dataSourceId;
+		}
+
+		@Override
+		public void run() {
+			try {
+				AbstractDataSourceConfig dataSource = RefreshScheduler.this.configManager.getDataSourceConfig(this.dataSourceId);
+				if (dataSource != null) {
+					LOGGER.log(Level.INFO, "Scheduled refresh of the data source {0}", this.dataSourceId);
+					// Same as "localhost/api.jsp?action=REFRESH"
+					JSONObject errors = dataSource.process(
+							true, // redownloadBrokenFiles
+							true, // clearCapabilitiesCache
+							false // clearMetadataCache
+					);
+					JSONArray jsonErrors = errors == null ? null : errors.optJSONArray("errors");
+					if (jsonErrors != null && jsonErrors.length() > 0) {
+						LOGGER.log(Level.WARNING, "Errors occurred while refreshing the data source {0}: {1}",
+								new String[]{ this.dataSourceId, jsonErrors.toString() });
+					}
+
+					RefreshScheduler.this.regenerateClients(this.dataSourceId);
+				}
+			} catch (Exception ex) {
+				LOGGER.log(Level.WARNING, "Error occurred while refreshing the data source {0}: {1}",
+						new String[]{ this.dataSourceId, Utils.getExceptionMessage(ex) });
+				LOGGER.log(Level.FINE, "Stack trace:", ex);
+			} finally {
+				RefreshScheduler.this.refreshDone(this.dataSourceId);
+			}
+		}
+	}
+
+	private static class Schedule {
+		public final int refreshInterval; // in minutes
+		public final long nextRefreshTime; // Epoch time in ms
+
+		public Schedule(int refreshInterval, long nextRefreshTime) {
+			this.refreshInterval = refreshInterval;
+			this.nextRefreshTime = nextRefreshTime;
+		}
+	}
+
+	private static class SchedulerThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger threadCount = new AtomicInteger(0);
+
+		public SchedulerThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, this.name + " " + this.threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			// Serving the clients is more important than refreshing the data sources
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+}
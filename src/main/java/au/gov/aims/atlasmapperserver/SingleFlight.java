@@ -0,0 +1,130 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesce concurrent executions of the same work (download of a URL, parsing of a file, etc.).
+ * The first thread to join a flight is its leader; it does the work. The threads which
+ * join while the flight is in progress wait for it to end, then reuse its result
+ * (usually found in a cache), instead of doing the same work again.
+ *
+ * Usage:
+ *     SingleFlight.Flight flight = singleFlight.join(key);
+ *     try {
+ *         if (flight.isLeader()) {
+ *             // Do the work
+ *         } else {
+ *             // An other thread just did the work; use its result
+ *         }
+ *     } finally {
+ *         flight.end();
+ *     }
+ */
+public class SingleFlight {
+	// ConcurrentHashMap<String key, Flight flight>
+	private final ConcurrentHashMap<String, Flight> flights;
+
+	public SingleFlight() {
+		this.flights = new ConcurrentHashMap<String, Flight>();
+	}
+
+	/**
+	 * Join the flight of the key. If a flight is already in progress for that key,
+	 * wait for it to end; otherwise start a new flight, lead by the current thread.
+	 * @param key
+	 * @return The flight. It has to be ended, in a finally block.
+	 * @throws InterruptedIOException If the thread get interrupted while waiting.
+	 */
+	public Flight join(String key) throws InterruptedIOException {
+		if (key == null) {
+			throw new IllegalArgumentException("The flight key can not be null.");
+		}
+
+		Flight flight = new Flight(key, Thread.currentThread(), System.currentTimeMillis());
+		Flight currentFlight = this.flights.putIfAbsent(key, flight);
+		if (currentFlight == null) {
+			return flight;
+		}
+
+		// Re-entrant call; waiting for itself would never end
+		if (currentFlight.leader != Thread.currentThread()) {
+			currentFlight.await();
+		}
+		return new Flight(key, null, currentFlight.startTime);
+	}
+
+	public class Flight {
+		private final String key;
+		// Null for the threads which has been waiting
+		private final Thread leader;
+		private final long startTime;
+		private final CountDownLatch latch;
+
+		private Flight(String key, Thread leader, long startTime) {
+			this.key = key;
+			this.leader = leader;
+			this.startTime = startTime;
+			this.latch = new CountDownLatch(1);
+		}
+
+		/**
+		 * @return True if the current thread has to do the work.
+		 */
+		public boolean isLeader() {
+			return this.leader != null;
+		}
+
+		/**
+		 * @return The time at which the leader started the flight, in milliseconds.
+		 *     Anything done after that time has been done by the flight (or later).
+		 */
+		public long getStartTime() {
+			return this.startTime;
+		}
+
+		/**
+		 * End the flight and release the threads that are waiting for it.
+		 * Does nothing if the current thread is not the leader.
+		 */
+		public void end() {
+			if (this.isLeader()) {
+				SingleFlight.this.flights.remove(this.key, this);
+				this.latch.countDown();
+			}
+		}
+
+		private void await() throws InterruptedIOException {
+			try {
+				this.latch.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				InterruptedIOException interruptedEx = new InterruptedIOException("Interrupted while waiting for " + this.key);
+				interruptedEx.initCause(ex);
+				throw interruptedEx;
+			}
+		}
+	}
+}
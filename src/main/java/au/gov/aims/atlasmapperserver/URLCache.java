@@ -23,32 +23,28 @@ package au.gov.aims.atlasmapperserver;
 
 import au.gov.aims.atlasmapperserver.collection.MultiKeyHashMap;
 import au.gov.aims.atlasmapperserver.dataSourceConfig.AbstractDataSourceConfig;
+import au.gov.aims.atlasmapperserver.dataSourceConfig.HarvestDeadline;
+import au.gov.aims.atlasmapperserver.dataSourceConfig.HarvestDeadlineException;
 import au.gov.aims.atlasmapperserver.servlet.FileFinder;
+import au.gov.aims.atlasmapperserver.xml.WMS.WMSCapabilitiesParser;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.conn.ssl.TrustStrategy;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.PoolingClientConnectionManager;
-import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.geotools.data.ows.WMSCapabilities;
-import org.geotools.data.wms.xml.WMSSchema;
-import org.geotools.ows.ServiceException;
-import org.geotools.xml.DocumentFactory;
-import org.geotools.xml.handlers.DocumentHandler;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.xml.sax.SAXException;
 
+import javax.xml.parsers.ParserConfigurationException;
+
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -60,28 +56,50 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
-// TODO IMPORTANT: The WHOLE class has to be synchronized (no one can access a method while one method is running)
+/**
+ * Disk cache for the documents downloaded by the AtlasMapper (capabilities documents, MEST records, etc.).
+ *
+ * This class can be used by multiple threads at once (multiple data sources rebuilt simultaneously,
+ * layer info requests, etc.). The cache map is a concurrent map and every operation on a URL
+ * (getURLFile, commitURLFile, rollbackURLFile, ...) is done while holding the lock associated with that URL.
+ * The locks are striped; URLs are spread over a fixed number of locks using their hash code, so independent
+ * URLs can be downloaded in parallel while the same URL is never downloaded twice at once.
+ * WARNING: A thread should never hold the lock of more than one URL at a time, to avoid dead locks.
+ */
 public class URLCache {
 	private static final Logger LOGGER = Logger.getLogger(URLCache.class.getName());
 
@@ -94,70 +112,124 @@ public class URLCache {
 	protected static final int INVALID_FILE_CACHE_TIMEOUT = -1; // In minutes; Invalid files are re-downloaded by checking a checkbox on the re-building of the data source.
 	protected static final long SEARCH_CACHE_TIMEOUT = 60 * NB_MS_PER_MINUTE;
 	protected static final long SEARCH_CACHE_MAXSIZE = 10; // Maximum search responses
+	protected static final long RESPONSE_STATUS_CACHE_TIMEOUT = 10 * NB_MS_PER_MINUTE;
+	protected static final long RESPONSE_STATUS_CACHE_MAXSIZE = 1000; // Maximum URL statuses
 
 	protected static final String CACHE_FILES_FOLDER = "files";
-	protected static final int MAX_CACHED_FILE_SIZE = 50; // in megabytes (Mb)
+	protected static final int MAX_CACHED_FILE_SIZE = 50; // in megabytes (Mb), uncompressed
+	// Downloaded files bigger than this are compressed (GZIP) in the cache folder. Smaller
+	// files are not worth it; they are saved as they are. See getInputStream(File).
+	protected static final int COMPRESSION_THRESHOLD = 64 * 1024; // in bytes
+
+	// Negative cache; delay before re-downloading a URL (or sending requests to a host) that failed.
+	// The delay double after each consecutive failure, up to FAILURE_BACKOFF_MAX.
+	protected static final long FAILURE_BACKOFF_BASE = 5 * NB_MS_PER_MINUTE;
+	protected static final long FAILURE_BACKOFF_MAX = 24 * 60 * NB_MS_PER_MINUTE;
 
 	protected static final int MAX_FOLLOW_REDIRECTION = 50; // Maximum number of URL follow allowed. Over passing this amount will be considered as a cycle in the cache and will throw IOException.
 
-	// HashMap<String urlString, ResponseWrapper response>
-	private static HashMap<String, ResponseWrapper> searchResponseCache = new HashMap<String, ResponseWrapper>();
+	// Number of locks shared by the URLs. The same lock may be shared by multiple URLs.
+	private static final int URL_LOCK_STRIPES = 64;
+	private static final ReentrantLock[] urlLocks = new ReentrantLock[URL_LOCK_STRIPES];
+	static {
+		for (int i=0; i<URL_LOCK_STRIPES; i++) {
+			urlLocks[i] = new ReentrantLock();
+		}
+	}
+
+	// Concurrent requests of the same URL share the same download
+	private static final SingleFlight downloadFlights = new SingleFlight();
+
+	// The entries accessed more recently than this are not evicted; they may be in use.
+	protected static final long EVICTION_MIN_IDLE_TIME = 60 * NB_MS_PER_MINUTE;
+	// The eviction of the old entries is done in the background, one at the time.
+	private static final ExecutorService evictionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "URLCache eviction");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+
+	// ConcurrentHashMap<String urlString, ResponseWrapper response>
+	private static final ConcurrentHashMap<String, ResponseWrapper> searchResponseCache = new ConcurrentHashMap<String, ResponseWrapper>();
+
+	// ConcurrentHashMap<String urlString, ResponseStatusWrapper status>
+	private static final ConcurrentHashMap<String, ResponseStatusWrapper> responseStatusCache = new ConcurrentHashMap<String, ResponseStatusWrapper>();
 
 	/**
 	 * {
 	 *     url: {
 	 *         file: "path/to/the/file",
 	 *         dataSourceIds: ["ea", "g", ...],
-	 *         downloadedTime: "2012-09-24 14:06:49",
+	 *         downloadedTime: 1348459609000, // Epoch time, in milliseconds
 	 *         expiry: 60, // In minutes
+	 *         eTag: "\"3f80f-1b6-3e1cb03b\"", // HTTP validators, used to send conditional requests
+	 *         lastModified: "Wed, 15 Nov 1995 04:58:08 GMT",
+	 *         failureCount: 2, // Consecutive failed downloads (unreachable server or server error)
+	 *         retryAfter: 1348460209125, // Epoch time, in milliseconds. The URL is not re-downloaded before that time.
 	 *
 	 *         // Set when the file expired, the actual file is replace with this if it's approved by the application.
-	 *         tmpFile: {
+	 *         tmpData: {
 	 *             file: "path/to/the/tmpFile",
-	 *             downloadedTime: "2012-09-24 15:07:34"
+	 *             httpStatusCode: 200,
+	 *             eTag: "\"3f80f-1b6-3e1cb03c\"",
+	 *             lastModified: "Thu, 16 Nov 1995 04:58:08 GMT"
+	 *         }
+	 *     },
+	 *
+	 *     // Status of the hosts which are not responding, and metadata URL strategy
+	 *     // of the hosts (see URLCacheCatalog.HostStatus). The key can not clash with a URL.
+	 *     hosts: {
+	 *         "www.host.com:8080": {
+	 *             failureCount: 4,
+	 *             retryAfter: 1348460209125,
+	 *             errorMsg: "Connection timed out",
+	 *             metadataUrlStrategy: "GEONETWORK"
 	 *         }
 	 *     }
 	 * }
+	 * The map is loaded into a URLCacheCatalog, which index the entries by data source, category and filename.
+	 * The CachedFile entries are not thread safe; they must only be accessed while holding the lock of their URL.
  	 */
-	private static JSONObject diskCacheMap = null;
+	private static volatile URLCacheCatalog diskCacheMap = null;
+	// Lock used while loading and writing the disk cache map file.
+	private static final Object diskCacheMapLock = new Object();
+	// Lock used to serialise the saves. Must never be requested while holding a URL lock.
+	private static final Object diskCacheSaveLock = new Object();
+
+	// Number of records written in the journal since the last snapshot. The journal is compacted
+	// when it contains more records than the cache map (or JOURNAL_COMPACTION_MIN_RECORDS for small caches).
+	private static final int JOURNAL_COMPACTION_MIN_RECORDS = 1000;
+	// Key of the host statuses in the cache map. The URLs always contain "://", so it can not clash with a URL.
+	private static final String SNAPSHOT_HOSTS_KEY = "hosts";
+	private static volatile int journalRecordCount = 0;
+	// Set when the cache map is reset; the next save has to write a complete snapshot.
+	private static volatile boolean compactionRequired = false;
 	/**
 	 * Reload the disk cache when the disk cache file is manually modified;
 	 *     Every time the disk cache is accessed, the last modified date of the disk cache map file is
 	 *     checked against this attribute. If the file is newer, that the file is reloaded.
-	 *     TODO: Do not reload while modifying the disk cache in memory. Use a DB for better handling & thread safe
 	 */
- 	private static long loadedTime = -1;
-
-	// NOTE: The Proxy has a very similar http client
-	private static HttpClient httpClient = null;
-	static {
-		SchemeRegistry schemeRegistry = SchemeRegistryFactory.createDefault();
-		// Try to set the SSL scheme factory: Accept all SSL certificates
-		try {
-			SSLSocketFactory sslSocketFactory = new SSLSocketFactory(
-				// All certificates are trusted
-				new TrustStrategy() {
-					public boolean isTrusted(final X509Certificate[] chain, String authType) throws CertificateException {
-						return true;
-					}
-				},
-				// Do not check if the hostname match the certificate
-				new AllowAllHostnameVerifier()
-			);
+ 	private static volatile long loadedTime = -1;
 
-			Scheme httpsScheme = new Scheme("https", 443, sslSocketFactory);
-			schemeRegistry.register(httpsScheme);
-		} catch(Exception ex) {
-			LOGGER.log(Level.SEVERE, "Can not initiate the SSLSocketFactory, needed to accept all SSL self signed certificates.", ex);
-		}
-
-		// Set a pool of multiple connections so more than one client can be generated simultaneously
-		// See: http://stackoverflow.com/questions/12799006/how-to-solve-error-invalid-use-of-basicclientconnmanager-make-sure-to-release
-		PoolingClientConnectionManager cxMgr = new PoolingClientConnectionManager(schemeRegistry);
-		cxMgr.setMaxTotal(100);
-		cxMgr.setDefaultMaxPerRoute(20);
-
-		httpClient = new DefaultHttpClient(cxMgr);
+	/**
+	 * Return the lock associated with the URL. The lock has to be released in a finally block:
+	 *     ReentrantLock lock = getURLLock(urlStr);
+	 *     lock.lock();
+	 *     try {
+	 *         ...
+	 *     } finally {
+	 *         lock.unlock();
+	 *     }
+	 * @param urlStr
+	 * @return
+	 */
+	private static ReentrantLock getURLLock(String urlStr) {
+		int hash = urlStr == null ? 0 : urlStr.hashCode();
+		return urlLocks[(hash & 0x7fffffff) % URL_LOCK_STRIPES];
 	}
 
 	private static File getApplicationFolder(ConfigManager configManager) {
@@ -168,21 +240,46 @@ public class URLCache {
 		return configManager.getApplicationFolder();
 	}
 
+	/**
+	 * Check if a URL is accessible, without downloading its document.
+	 * A HEAD request is sent first. Some servers do not allow HEAD requests (405 Method Not Allowed)
+	 * or do not implement them (501 Not Implemented); the status is then requested again with
+	 * a GET request limited to the first byte of the document. The other errors are returned as-is;
+	 * the GET request would get the same error.
+	 * @param urlStr
+	 * @return
+	 */
 	public static ResponseStatus getResponseStatus(String urlStr) {
-		ResponseStatus responseStatus = new ResponseStatus();
-
 		URI uri = null;
 		try {
 			uri = Utils.toURL(urlStr).toURI();
 		} catch (Exception ex) {
+			ResponseStatus responseStatus = new ResponseStatus();
 			responseStatus.setStatusCode(HttpStatus.SC_BAD_REQUEST);
 			responseStatus.setErrorMessage("Can not parse the URL: " + urlStr);
 			return responseStatus;
 		}
-		HttpGet httpGet = new HttpGet(uri);
 
+		// The response to a HEAD request has no content; the connection can be reused.
+		ResponseStatus responseStatus = getResponseStatus(new HttpHead(uri), true);
+		Integer statusCode = responseStatus.getStatusCode();
+		if (statusCode != null && (statusCode == HttpStatus.SC_METHOD_NOT_ALLOWED || statusCode == HttpStatus.SC_NOT_IMPLEMENTED)) {
+			HttpGet httpGet = new HttpGet(uri);
+			// The servers supporting ranges only send the first byte (status 206)
+			httpGet.setHeader("Range", "bytes=0-0");
+			// The servers ignoring the range send the whole document; the connection is closed instead of reading it.
+			responseStatus = getResponseStatus(httpGet, false);
+		}
+
+		return responseStatus;
+	}
+
+	private static ResponseStatus getResponseStatus(HttpRequestBase request, boolean reusable) {
+		ResponseStatus responseStatus = new ResponseStatus();
+		HttpEntity entity = null;
 		try {
-			HttpResponse response = httpClient.execute(httpGet);
+			HttpResponse response = HttpTransport.getHarvestTransport().getHttpClient().execute(request);
+			entity = response.getEntity();
 
 			StatusLine httpStatus = response.getStatusLine();
 			if (httpStatus != null) {
@@ -190,12 +287,50 @@ public class URLCache {
 			}
 		} catch (IOException ex) {
 			responseStatus.setErrorMessage(getErrorMessage(ex));
+			reusable = false;
 		} finally {
-			if (httpGet != null) {
-				// Cancel the connection, if it's still alive
-				httpGet.abort();
-				// Close connections
-				httpGet.reset();
+			HttpTransport.release(request, entity, reusable);
+		}
+
+		return responseStatus;
+	}
+
+	/**
+	 * Same as getResponseStatus, but the status of the URL is reused for a while (see RESPONSE_STATUS_CACHE_TIMEOUT);
+	 * the same URLs are not checked again when the data sources are rebuilt one after the other.
+	 * The connection failures are not cached, they are usually temporary.
+	 * @param urlStr
+	 * @param forceCheck True to check the URL even if its status is cached, when the admin
+	 *     request the files to be re-downloaded. The new status replace the cached one.
+	 * @return
+	 */
+	public static ResponseStatus getCachedResponseStatus(String urlStr, boolean forceCheck) {
+		ResponseStatusWrapper cachedStatus = responseStatusCache.get(urlStr);
+		if (cachedStatus != null) {
+			long timeoutTimestamp = Utils.getCurrentTimestamp() - RESPONSE_STATUS_CACHE_TIMEOUT;
+			if (!forceCheck && cachedStatus.timestamp > timeoutTimestamp) {
+				return cachedStatus.status;
+			}
+			responseStatusCache.remove(urlStr, cachedStatus);
+		}
+
+		ResponseStatus responseStatus = getResponseStatus(urlStr);
+		if (!responseStatus.isConnectionFailure()) {
+			// The size check and the eviction have to be done atomically
+			synchronized (responseStatusCache) {
+				if (responseStatusCache.size() >= RESPONSE_STATUS_CACHE_MAXSIZE) {
+					// Delete the expired entries; they are usually the oldest ones
+					long timeoutTimestamp = Utils.getCurrentTimestamp() - RESPONSE_STATUS_CACHE_TIMEOUT;
+					Iterator<ResponseStatusWrapper> cachedStatuses = responseStatusCache.values().iterator();
+					while (cachedStatuses.hasNext()) {
+						if (cachedStatuses.next().timestamp <= timeoutTimestamp) {
+							cachedStatuses.remove();
+						}
+					}
+				}
+				if (responseStatusCache.size() < RESPONSE_STATUS_CACHE_MAXSIZE) {
+					responseStatusCache.put(urlStr, new ResponseStatusWrapper(responseStatus));
+				}
 			}
 		}
 
@@ -214,6 +349,14 @@ public class URLCache {
 	 *         jsonResponse = parseFile(rollbackFile, urlStr);
 	 *     }
 	 *
+	 * When the time budget of the harvest of the data source is spent (see HarvestDeadline),
+	 * nothing is downloaded; a HarvestDeadlineException is thrown with the cached file. That file
+	 * must not be committed nor rolled back, the callers have to catch that exception first:
+	 *     } catch(HarvestDeadlineException ex) {
+	 *         jsonResponse = parseFile(ex.getCachedFile(), urlStr);
+	 *     } catch(Exception ex) {
+	 *         ...
+	 *
 	 * @param configManager
 	 * @param dataSource
 	 * @param urlStr
@@ -222,10 +365,26 @@ public class URLCache {
 	 *     The errors / warnings are recorded in the "CachedFile" object and saved in the cache data base.
 	 *     (the DB is a JSON file on disk).
 	 * @return
+	 * @throws HarvestDeadlineException If the harvest of the data source is out of time.
 	 * @throws IOException
 	 * @throws JSONException
 	 */
 	public static File getURLFile(ConfigManager configManager, AbstractDataSourceConfig dataSource, String urlStr, Category category, boolean mandatory) throws IOException, JSONException {
+		// Do not start new downloads for a cancelled rebuild
+		RebuildJob.checkCancelled();
+
+		// The harvest of the data source is out of time; use the cached file instead of downloading the URL.
+		HarvestDeadline harvestDeadline = dataSource == null ? null : dataSource.getHarvestDeadline();
+		if (harvestDeadline != null && harvestDeadline.isExpired() && !isURLFileUpToDate(configManager, dataSource, urlStr)) {
+			File cachedFile = getCachedURLFile(configManager, urlStr);
+			if (cachedFile == null) {
+				harvestDeadline.addSkippedUrl(urlStr);
+			} else {
+				harvestDeadline.addStaleUrl(urlStr);
+			}
+			throw new HarvestDeadlineException(urlStr, cachedFile);
+		}
+
 		return getURLFile(configManager, dataSource, urlStr, category, mandatory, 0);
 	}
 	private static File getURLFile(ConfigManager configManager, AbstractDataSourceConfig dataSource, String urlStr, Category category, boolean mandatory, int followRedirectionCount) throws IOException, JSONException {
@@ -242,100 +401,253 @@ public class URLCache {
 			activeDownload = false;
 		}
 
-		JSONObject jsonCache = getDiskCacheMap(applicationFolder);
+		// The redirection is followed after releasing the lock, to never hold more than one URL lock at a time.
+		String redirectionUrl = null;
+		File file = null;
 
-		File cacheFolder = FileFinder.getDiskCacheFolder(applicationFolder);
-		CachedFile cachedFile = getCachedFile(applicationFolder, urlStr);
+		// If an other thread is already requesting this URL, wait for it and use its file
+		// instead of downloading it again. The flight is joined before taking the URL lock.
+		SingleFlight.Flight flight = downloadFlights.join(urlStr);
+		ReentrantLock lock = getURLLock(urlStr);
+		lock.lock();
+		try {
+			URLCacheCatalog catalog = getDiskCacheMap(applicationFolder);
 
-		// Check if the disk cache is valid (we might have to do a little clean-up of the text file if it has been left in a inconsistent state).
-		if (!cachedFile.isEmpty()) {
-			if (dataSourceId != null && !cachedFile.hasDataSourceId(dataSourceId)) {
-				cachedFile.addDataSourceId(dataSourceId);
-			}
+			File cacheFolder = FileFinder.getDiskCacheFolder(applicationFolder);
+			CachedFile cachedFile = getCachedFile(applicationFolder, urlStr);
 
-			// Follow redirection - WARNING: A maximum number of redirection is allowed to avoid infinite loops (this may occurred if there is a loop in the redirections).
-			String redirectionUrl = cachedFile.getRedirection();
-			if (Utils.isNotBlank(redirectionUrl)) {
-				if (followRedirectionCount < MAX_FOLLOW_REDIRECTION) {
-					// Touch the cache entry; set the last access date to "now"
-					cachedFile.setLastAccessDate();
-					return getURLFile(configManager, dataSource, redirectionUrl, category, mandatory, followRedirectionCount+1);
-				} else {
-					// Hopefully this error will never occurred
-					LOGGER.log(Level.SEVERE, "Maximum URL follow reach. There is probably a cycle in the cache, which create potential infinite loops.");
-					throw new IOException("Cycle in the cache follow URLs");
+			// Check if the disk cache is valid (we might have to do a little clean-up of the text file if it has been left in a inconsistent state).
+			if (!cachedFile.isEmpty()) {
+				if (dataSourceId != null && !cachedFile.hasDataSourceId(dataSourceId)) {
+					cachedFile.addDataSourceId(dataSourceId);
 				}
-			}
 
-			boolean timedOut = true;
-			int expiry = cachedFile.getExpiry();
-			if (expiry < 0) {
-				timedOut = false;
-			} else {
-				Date downloadTime = cachedFile.getDownloadedTime();
-				if (downloadTime != null) {
-					long ageInMs = new Date().getTime() - downloadTime.getTime();
-					// Expiry (in hour) * (60*60*1000) = Expiry in ms
-					if (ageInMs < expiry * NB_MS_PER_MINUTE) {
-						timedOut = false;
+				// Follow redirection - WARNING: A maximum number of redirection is allowed to avoid infinite loops (this may occurred if there is a loop in the redirections).
+				redirectionUrl = cachedFile.getRedirection();
+				if (Utils.isNotBlank(redirectionUrl)) {
+					if (followRedirectionCount < MAX_FOLLOW_REDIRECTION) {
+						// Touch the cache entry; set the last access date to "now"
+						cachedFile.setLastAccessDate();
+					} else {
+						// Hopefully this error will never occurred
+						LOGGER.log(Level.SEVERE, "Maximum URL follow reach. There is probably a cycle in the cache, which create potential infinite loops.");
+						throw new IOException("Cycle in the cache follow URLs");
+					}
+				} else {
+					boolean timedOut = isTimedOut(cachedFile);
+					boolean markedForReDownload = cachedFile.isMarkedForReDownload();
+
+					// The file has just been downloaded by the thread this thread was waiting for
+					boolean justDownloaded = false;
+					if (!flight.isLeader()) {
+						Date downloadTime = cachedFile.getDownloadedTime();
+						justDownloaded = downloadTime != null && downloadTime.getTime() >= flight.getStartTime();
+					}
+
+					if ((timedOut || markedForReDownload || activeDownload) && !justDownloaded) {
+						// Set the time of the last download tentative; which is now
+						cachedFile.setDownloadedTime(new Date());
+
+						// Conditional request: only download the file if it has changed since the approved version.
+						String eTag = null, lastModified = null;
+						File approvedFile = cachedFile.getFile();
+						if (cachedFile.isApproved() && !cachedFile.hasTemporaryData() && approvedFile != null && approvedFile.exists()) {
+							eTag = cachedFile.getETag();
+							lastModified = cachedFile.getLastModified();
+						}
+
+						File downloadFile = CachedFile.createDownloadFile(cacheFolder);
+
+						LOGGER.log(Level.INFO, "\n### DOWNLOADING ### Re-download URL {0}\n", urlStr);
+
+						// The URL is re-downloaded because it expired, or because the user requested it.
+						// A URL that keep failing is only retried when it expires, or when its backoff delay is over.
+						boolean forced = !timedOut;
+						ResponseStatus responseStatus = loadURLToFile(catalog, cachedFile, urlStr, downloadFile, eTag, lastModified, forced);
+						cachedFile.setMarkedForReDownload(false);
+						if (responseStatus.isNotModified()) {
+							// The approved file is still valid
+							LOGGER.log(Level.INFO, "URL not modified {0}", urlStr);
+							if (downloadFile.exists()) {
+								downloadFile.delete();
+							}
+							cachedFile.setLatestErrorMessage(null);
+							// The server may send updated validators with a 304
+							cachedFile.setValidators(responseStatus.getETag(), responseStatus.getLastModified());
+						} else {
+							cachedFile.storeDownloadedFile(downloadFile, true);
+							cachedFile.setTemporaryHttpStatusCode(responseStatus.getStatusCode());
+							cachedFile.setTemporaryValidators(responseStatus.getETag(), responseStatus.getLastModified());
+							cachedFile.setLatestErrorMessage(responseStatus.getErrorMessage());
+							cachedFile.cleanUpFilenames();
+						}
 					}
 				}
 			}
 
-			boolean markedForReDownload = cachedFile.isMarkedForReDownload();
+			if (Utils.isBlank(redirectionUrl)) {
+				redirectionUrl = null;
 
-			if (timedOut || markedForReDownload || activeDownload) {
-				String tmpFilename = CachedFile.generateFilename(cacheFolder, urlStr);
-				cachedFile.setTemporaryFilename(tmpFilename);
-				// Set the time of the last download tentative; which is now
-				cachedFile.setDownloadedTime(new Date());
+				// The URL is not present in the cache. Load it!
+				if (cachedFile.isEmpty()) {
+					cachedFile = new CachedFile(cacheFolder, dataSourceId, null, category, new Date(), CACHE_TIMEOUT, mandatory);
+					catalog.put(urlStr, cachedFile);
+
+					File downloadFile = CachedFile.createDownloadFile(cacheFolder);
+
+					LOGGER.log(Level.INFO, "\n### DOWNLOADING ### URL {0}\n", urlStr);
+
+					ResponseStatus responseStatus = loadURLToFile(catalog, cachedFile, urlStr, downloadFile, null, null, false);
+					cachedFile.storeDownloadedFile(downloadFile, false);
+					cachedFile.setHttpStatusCode(responseStatus.getStatusCode());
+					cachedFile.setETag(responseStatus.getETag());
+					cachedFile.setLastModified(responseStatus.getLastModified());
+					cachedFile.setLatestErrorMessage(responseStatus.getErrorMessage());
+					cachedFile.cleanUpFilenames();
+					if (Utils.isNotBlank(responseStatus.getErrorMessage())) {
+						cachedFile.setApproved(false);
+					}
+				}
 
-				File tmpFile = new File(cachedFile.getCachedFileFolder(), tmpFilename);
+				if (!cachedFile.isEmpty()) {
+					// Touch the cache entry; set the last access date to "now"
+					cachedFile.setLastAccessDate();
 
-				LOGGER.log(Level.INFO, "\n### DOWNLOADING ### Re-download URL {0}\n", urlStr);
+					file = cachedFile.hasTemporaryData() ? cachedFile.getTemporaryFile() : cachedFile.getFile();
 
-				ResponseStatus responseStatus = loadURLToFile(urlStr, tmpFile);
-				cachedFile.setMarkedForReDownload(false);
-				cachedFile.setTemporaryHttpStatusCode(responseStatus.getStatusCode());
-				cachedFile.setLatestErrorMessage(responseStatus.getErrorMessage());
-				cachedFile.cleanUpFilenames();
+					// If we already know that something went wrong, rollback.
+					if (Utils.isNotBlank(cachedFile.getLatestErrorMessage()) || file == null || !file.exists()) {
+						file = rollbackURLFile(configManager, file, urlStr, (String) null);
+					}
+				}
 			}
+		} finally {
+			lock.unlock();
+			flight.end();
 		}
 
-		// The URL is not present in the cache. Load it!
-		if (cachedFile.isEmpty()) {
-			String filename = CachedFile.generateFilename(cacheFolder, urlStr);
+		if (redirectionUrl != null) {
+			return getURLFile(configManager, dataSource, redirectionUrl, category, mandatory, followRedirectionCount+1);
+		}
 
-			cachedFile = new CachedFile(cacheFolder, dataSourceId, filename, category, new Date(), CACHE_TIMEOUT, mandatory);
-			jsonCache.put(urlStr, cachedFile.toJSON());
+		return file;
+	}
 
-			File file = new File(cachedFile.getCachedFileFolder(), filename);
+	private static boolean isTimedOut(CachedFile cachedFile) {
+		int expiry = cachedFile.getExpiry();
+		if (expiry < 0) {
+			return false;
+		}
+		Date downloadTime = cachedFile.getDownloadedTime();
+		if (downloadTime != null) {
+			long ageInMs = new Date().getTime() - downloadTime.getTime();
+			// Expiry (in hour) * (60*60*1000) = Expiry in ms
+			if (ageInMs < expiry * NB_MS_PER_MINUTE) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-			LOGGER.log(Level.INFO, "\n### DOWNLOADING ### URL {0}\n", urlStr);
+	/**
+	 * Same as getURLFile, but never download anything: return the approved file of the URL
+	 * (following the redirections), even if it has expired.
+	 * Used to build a layer catalog from what is already known, without waiting for the
+	 * network (see AbstractLayerGenerator.setHarvestMetadata).
+	 * The returned file is already approved; it do not need to be committed nor rolled back.
+	 * @param configManager
+	 * @param urlStr
+	 * @return The cached file, or null if the URL has never been successfully downloaded.
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public static File getCachedURLFile(ConfigManager configManager, String urlStr) throws IOException, JSONException {
+		File applicationFolder = getApplicationFolder(configManager);
+
+		String currentUrl = urlStr;
+		int followRedirectionCount = 0;
+		while (currentUrl != null) {
+			if (followRedirectionCount >= MAX_FOLLOW_REDIRECTION) {
+				// Hopefully this error will never occurred
+				LOGGER.log(Level.SEVERE, "Maximum URL follow reach. There is probably a cycle in the cache, which create potential infinite loops.");
+				throw new IOException("Cycle in the cache follow URLs");
+			}
+
+			String redirectionUrl;
+			ReentrantLock lock = getURLLock(currentUrl);
+			lock.lock();
+			try {
+				CachedFile cachedFile = getCachedFile(applicationFolder, currentUrl);
+				if (cachedFile.isEmpty()) {
+					return null;
+				}
+				// Touch the cache entry, so it's not deleted as an unused entry (see deleteOldEntries)
+				cachedFile.setLastAccessDate();
 
-			ResponseStatus responseStatus = loadURLToFile(urlStr, file);
-			cachedFile.setHttpStatusCode(responseStatus.getStatusCode());
-			cachedFile.setLatestErrorMessage(responseStatus.getErrorMessage());
-			cachedFile.cleanUpFilenames();
-			if (Utils.isNotBlank(responseStatus.getErrorMessage())) {
-				cachedFile.setApproved(false);
+				redirectionUrl = cachedFile.getRedirection();
+				if (Utils.isBlank(redirectionUrl)) {
+					File file = cachedFile.getFile();
+					return (cachedFile.isApproved() && file != null && file.exists()) ? file : null;
+				}
+			} finally {
+				lock.unlock();
 			}
+			currentUrl = redirectionUrl;
+			followRedirectionCount++;
 		}
 
-		File file = null;
-		if (!cachedFile.isEmpty()) {
-			// Touch the cache entry; set the last access date to "now"
-			cachedFile.setLastAccessDate();
+		return null;
+	}
+
+	/**
+	 * Follow redirections to find out if the URL would be downloaded by getURLFile.
+	 * @param configManager
+	 * @param dataSource
+	 * @param urlStr
+	 * @return True if the URL is in the cache and has not expired; getURLFile would return the cached file
+	 *     without downloading anything. The cached file may be a failed download.
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public static boolean isURLFileUpToDate(ConfigManager configManager, AbstractDataSourceConfig dataSource, String urlStr) throws IOException, JSONException {
+		// The data sources with "active download" re-download their files at every harvest
+		Boolean activeDownload = dataSource == null ? null : dataSource.isActiveDownload();
+		if (activeDownload != null && activeDownload) {
+			return false;
+		}
 
-			file = cachedFile.hasTemporaryData() ? cachedFile.getTemporaryFile() : cachedFile.getFile();
+		File applicationFolder = getApplicationFolder(configManager);
 
-			// If we already know that something went wrong, rollback.
-			if (Utils.isNotBlank(cachedFile.getLatestErrorMessage()) || file == null || !file.exists()) {
-				file = rollbackURLFile(configManager, file, urlStr, (String) null);
+		String currentUrl = urlStr;
+		int followRedirectionCount = 0;
+		while (currentUrl != null) {
+			if (followRedirectionCount >= MAX_FOLLOW_REDIRECTION) {
+				// Hopefully this error will never occurred
+				LOGGER.log(Level.SEVERE, "Maximum URL follow reach. There is probably a cycle in the cache, which create potential infinite loops.");
+				throw new IOException("Cycle in the cache follow URLs");
 			}
+
+			String redirectionUrl;
+			ReentrantLock lock = getURLLock(currentUrl);
+			lock.lock();
+			try {
+				CachedFile cachedFile = getCachedFile(applicationFolder, currentUrl);
+				if (cachedFile.isEmpty()) {
+					return false;
+				}
+
+				redirectionUrl = cachedFile.getRedirection();
+				if (Utils.isBlank(redirectionUrl)) {
+					return !isTimedOut(cachedFile) && !cachedFile.isMarkedForReDownload();
+				}
+			} finally {
+				lock.unlock();
+			}
+			currentUrl = redirectionUrl;
+			followRedirectionCount++;
 		}
 
-		return file;
+		return false;
 	}
 
 	/**
@@ -347,26 +659,31 @@ public class URLCache {
 	 * @throws JSONException
 	 */
 	public static boolean isRecursiveApproved(File applicationFolder, CachedFile cachedFile) throws IOException, JSONException {
-		return isRecursiveApproved(applicationFolder, cachedFile, 0);
-	}
-	private static boolean isRecursiveApproved(File applicationFolder, CachedFile cachedFile, int followRedirectionCount) throws IOException, JSONException {
 		String redirectionUrl = cachedFile.getRedirection();
-		if (Utils.isBlank(redirectionUrl)) {
-			return cachedFile.isApproved();
-		}
+		boolean approved = cachedFile.isApproved();
 
-		CachedFile redirectedCachedFile = getCachedFile(applicationFolder, redirectionUrl);
-		if (redirectedCachedFile == null) {
-			return false;
-		}
+		// Each entry is read while holding its lock. The lock is released before following the next redirection.
+		int followRedirectionCount = 0;
+		while (Utils.isNotBlank(redirectionUrl)) {
+			if (followRedirectionCount >= MAX_FOLLOW_REDIRECTION) {
+				// Hopefully this error will never occurred
+				LOGGER.log(Level.SEVERE, "Maximum URL follow reach. There is probably a cycle in the cache, which create potential infinite loops.");
+				throw new IOException("Cycle in the cache follow URLs");
+			}
 
-		if (followRedirectionCount < MAX_FOLLOW_REDIRECTION) {
-			return isRecursiveApproved(applicationFolder, redirectedCachedFile, followRedirectionCount + 1);
-		} else {
-			// Hopefully this error will never occurred
-			LOGGER.log(Level.SEVERE, "Maximum URL follow reach. There is probably a cycle in the cache, which create potential infinite loops.");
-			throw new IOException("Cycle in the cache follow URLs");
+			ReentrantLock lock = getURLLock(redirectionUrl);
+			lock.lock();
+			try {
+				CachedFile redirectedCachedFile = getCachedFile(applicationFolder, redirectionUrl);
+				redirectionUrl = redirectedCachedFile.getRedirection();
+				approved = redirectedCachedFile.isApproved();
+			} finally {
+				lock.unlock();
+			}
+			followRedirectionCount++;
 		}
+
+		return approved;
 	}
 
 	private static String getErrorMessage(Throwable ex) {
@@ -385,9 +702,44 @@ public class URLCache {
 
 	public static void setRedirection(ConfigManager configManager, String invalidUrl, String craftedUrl) throws IOException, JSONException {
 		File applicationFolder = getApplicationFolder(configManager);
-		CachedFile cachedFile = getCachedFile(applicationFolder, invalidUrl);
-		if (!cachedFile.isEmpty()) {
-			cachedFile.setRedirection(craftedUrl);
+		ReentrantLock lock = getURLLock(invalidUrl);
+		lock.lock();
+		try {
+			CachedFile cachedFile = getCachedFile(applicationFolder, invalidUrl);
+			if (!cachedFile.isEmpty()) {
+				cachedFile.setRedirection(craftedUrl);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param configManager
+	 * @param urlStr URL of a metadata record.
+	 * @return The strategy which worked the last time for a metadata record of the same host,
+	 *     or null if it's unknown.
+	 */
+	public static MetadataUrlStrategy getMetadataUrlStrategy(ConfigManager configManager, String urlStr) throws IOException, JSONException {
+		URLCacheCatalog catalog = getDiskCacheMap(getApplicationFolder(configManager));
+		URLCacheCatalog.HostStatus hostStatus = catalog == null ? null : catalog.findHostStatus(getHost(urlStr));
+		return hostStatus == null ? null : hostStatus.getMetadataUrlStrategy();
+	}
+
+	/**
+	 * Remember the strategy which worked for a metadata record, for the other records of the
+	 * same host. It's saved with the cache map.
+	 * @param configManager
+	 * @param urlStr URL of a metadata record.
+	 * @param strategy
+	 */
+	public static void setMetadataUrlStrategy(ConfigManager configManager, String urlStr, MetadataUrlStrategy strategy) throws IOException, JSONException {
+		URLCacheCatalog catalog = getDiskCacheMap(getApplicationFolder(configManager));
+		String host = getHost(urlStr);
+		URLCacheCatalog.HostStatus hostStatus = catalog == null ? null : catalog.getHostStatus(host);
+		if (hostStatus != null && hostStatus.setMetadataUrlStrategy(strategy)) {
+			LOGGER.log(Level.FINE, "Metadata URL strategy of the host {0}: {1}", new String[]{ host, String.valueOf(strategy) });
+			catalog.setHostModified(host);
 		}
 	}
 
@@ -398,10 +750,16 @@ public class URLCache {
 	 */
 	public static void commitURLFile(ConfigManager configManager, File approvedFile, String urlStr) throws IOException, JSONException {
 		File applicationFolder = getApplicationFolder(configManager);
-		CachedFile cachedFile = getCachedFile(applicationFolder, urlStr);
+		ReentrantLock lock = getURLLock(urlStr);
+		lock.lock();
+		try {
+			CachedFile cachedFile = getCachedFile(applicationFolder, urlStr);
 
-		if (!cachedFile.isEmpty()) {
-			cachedFile.commit(approvedFile);
+			if (!cachedFile.isEmpty()) {
+				cachedFile.commit(approvedFile);
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -418,66 +776,217 @@ public class URLCache {
 	public static File rollbackURLFile(ConfigManager configManager, File unapprovedFile, String urlStr, String reasonStr) throws IOException, JSONException {
 		File backupFile = unapprovedFile;
 		File applicationFolder = getApplicationFolder(configManager);
-		CachedFile cachedFile = getCachedFile(applicationFolder, urlStr);
-
-		if (!cachedFile.isEmpty()) {
-			backupFile = cachedFile.rollback(unapprovedFile, reasonStr);
-			// NOTE: The logger use MessageText to parse its message;
-			//     Everything between "single quote" are interpreted as literal string.
-			//     To print a "single quote", you have to use two "single quote".
-			if (INVALID_FILE_CACHE_TIMEOUT >= 0) {
-				LOGGER.log(Level.INFO, "Invalid downloaded file: {0}\nThe application won''t try to re-download it for {1} minutes.",
-						new String[]{ urlStr, "" + INVALID_FILE_CACHE_TIMEOUT });
+		ReentrantLock lock = getURLLock(urlStr);
+		lock.lock();
+		try {
+			CachedFile cachedFile = getCachedFile(applicationFolder, urlStr);
+
+			if (!cachedFile.isEmpty()) {
+				backupFile = cachedFile.rollback(unapprovedFile, reasonStr);
+				// NOTE: The logger use MessageText to parse its message;
+				//     Everything between "single quote" are interpreted as literal string.
+				//     To print a "single quote", you have to use two "single quote".
+				if (INVALID_FILE_CACHE_TIMEOUT >= 0) {
+					LOGGER.log(Level.INFO, "Invalid downloaded file: {0}\nThe application won''t try to re-download it for {1} minutes.",
+							new String[]{ urlStr, "" + INVALID_FILE_CACHE_TIMEOUT });
+				}
 			}
+		} finally {
+			lock.unlock();
 		}
 
 		return backupFile;
 	}
 
-	private static ResponseStatus loadURLToFile(String urlStr, File file) {
-		return loadURLToFile(urlStr, file, MAX_CACHED_FILE_SIZE);
+	/**
+	 * Download the URL into the file, unless it's known to fail (negative cache):
+	 *     The requests to a host that is not responding are skipped until its backoff delay is over
+	 *     (see URLCacheCatalog.HostStatus).
+	 *     A URL that failed is not re-downloaded on demand (forced) until its backoff delay is over.
+	 * The outcome of the download is recorded in the entry and in the status of the host.
+	 * This method has to be called while holding the lock of the URL.
+	 * @param catalog
+	 * @param cachedFile The entry of the URL.
+	 * @param urlStr
+	 * @param file
+	 * @param eTag
+	 * @param lastModified
+	 * @param forced True if the file is re-downloaded before it expires.
+	 * @return The response status. A skipped download has no status code.
+	 */
+	private static ResponseStatus loadURLToFile(URLCacheCatalog catalog, CachedFile cachedFile, String urlStr, File file, String eTag, String lastModified, boolean forced) throws JSONException {
+		long now = System.currentTimeMillis();
+		String host = getHost(urlStr);
+		URLCacheCatalog.HostStatus hostStatus = catalog.getHostStatus(host);
+
+		String skippedMsg = null;
+		if (forced && cachedFile.getRetryAfter() > now) {
+			skippedMsg = "The URL failed " + cachedFile.getFailureCount() + " time(s) in a row. " +
+					"It will not be downloaded again before " + formatTime(cachedFile.getRetryAfter()) + ".";
+		} else if (hostStatus != null && !hostStatus.acquire(now)) {
+			skippedMsg = "The host " + host + " is not responding (" + hostStatus.getErrorMessage() + "). " +
+					"Its requests are skipped until " + formatTime(hostStatus.getRetryAfter()) + ".";
+		}
+		if (skippedMsg != null) {
+			LOGGER.log(Level.INFO, "Skipped URL {0}: {1}", new String[]{ urlStr, skippedMsg });
+			if (file != null && file.exists()) {
+				file.delete();
+			}
+			ResponseStatus responseStatus = new ResponseStatus();
+			responseStatus.setErrorMessage(skippedMsg);
+			return responseStatus;
+		}
+
+		ResponseStatus responseStatus = loadURLToFile(urlStr, file, eTag, lastModified);
+		if (file != null && file.exists()) {
+			RebuildJob.addDownloadedBytes(file.length());
+		}
+
+		now = System.currentTimeMillis();
+		if (hostStatus != null) {
+			if (responseStatus.isConnectionFailure()) {
+				hostStatus.failure(now, responseStatus.getErrorMessage());
+				catalog.setHostModified(host);
+			} else if (hostStatus.success()) {
+				catalog.setHostModified(host);
+			}
+		}
+		if (responseStatus.isServerFailure()) {
+			cachedFile.setFailure(now);
+		} else {
+			cachedFile.setSuccess();
+		}
+
+		return responseStatus;
+	}
+
+	/**
+	 * @param failureCount Number of consecutive failures.
+	 * @return The delay before the next attempt, in milliseconds.
+	 */
+	protected static long getFailureBackoff(int failureCount) {
+		if (failureCount <= 0) {
+			return 0;
+		}
+		long backoff = FAILURE_BACKOFF_BASE;
+		for (int i=1; i<failureCount && backoff < FAILURE_BACKOFF_MAX; i++) {
+			backoff *= 2;
+		}
+		return Math.min(backoff, FAILURE_BACKOFF_MAX);
+	}
+
+	/**
+	 * @param urlStr
+	 * @return The host of the URL, with its port if any (the services of a server
+	 *     often run on different ports), or null if the URL can not be parsed.
+	 */
+	public static String getHost(String urlStr) {
+		try {
+			String host = Utils.toURL(urlStr).getAuthority();
+			return Utils.isBlank(host) ? null : host.toLowerCase();
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	private static String formatTime(long time) {
+		return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(time));
+	}
+
+	/**
+	 * Download the URL into the file.
+	 * @param urlStr
+	 * @param file
+	 * @param eTag ETag of the cached version of the file, to send a conditional request. Null to ignore.
+	 * @param lastModified Last-Modified date of the cached version of the file, to send a conditional request. Null to ignore.
+	 * @return The response status. If the response is "304 Not Modified", nothing is written in the file.
+	 */
+	private static ResponseStatus loadURLToFile(String urlStr, File file, String eTag, String lastModified) {
+		return loadURLToFile(urlStr, file, eTag, lastModified, MAX_CACHED_FILE_SIZE);
 	}
 
-	private static ResponseStatus loadURLToFile(String urlStr, File file, int maxFileSizeMb) {
+	private static ResponseStatus loadURLToFile(String urlStr, File file, String eTag, String lastModified, int maxFileSizeMb) {
 		ResponseStatus responseStatus = new ResponseStatus();
 
 		URI uri = null;
 		try {
 			uri = Utils.toURL(urlStr).toURI();
 		} catch (Exception ex) {
+			// Delete the download file
+			if (file != null && file.exists()) {
+				file.delete();
+			}
 			responseStatus.setStatusCode(HttpStatus.SC_BAD_REQUEST);
 			responseStatus.setErrorMessage("Can not parse the URL: " + urlStr);
 			return responseStatus;
 		}
 
 		HttpGet httpGet = new HttpGet(uri);
+		// Capabilities documents and JSON responses are mostly text; they compress very well.
+		httpGet.setHeader("Accept-Encoding", "gzip, deflate");
+		if (Utils.isNotBlank(eTag)) {
+			httpGet.setHeader("If-None-Match", eTag);
+		}
+		if (Utils.isNotBlank(lastModified)) {
+			httpGet.setHeader("If-Modified-Since", lastModified);
+		}
 		HttpEntity entity = null;
 		InputStream in = null;
-		FileOutputStream out = null;
+		boolean downloaded = false;
+		// True when the rest of the response (if any) can be read, to reuse the connection
+		boolean reusable = false;
 
 		try {
 			// Java DOC:
 			//     http://hc.apache.org/httpcomponents-core-ga/httpcore/apidocs/index.html
 			//     http://hc.apache.org/httpcomponents-client-ga/httpclient/apidocs/index.html
 			// Example: http://hc.apache.org/httpcomponents-client-ga/tutorial/html/fundamentals.html#d5e37
-			HttpResponse response = httpClient.execute(httpGet);
+			HttpResponse response = HttpTransport.getHarvestTransport().getHttpClient().execute(httpGet);
 
 			StatusLine httpStatus = response.getStatusLine();
 			if (httpStatus != null) {
 				responseStatus.setStatusCode(httpStatus.getStatusCode());
 			}
 
+			// Validators, used to send conditional request when the file is re-downloaded
+			Header eTagHeader = response.getFirstHeader("ETag");
+			if (eTagHeader != null) {
+				responseStatus.setETag(eTagHeader.getValue());
+			}
+			Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+			if (lastModifiedHeader != null) {
+				responseStatus.setLastModified(lastModifiedHeader.getValue());
+			}
+
 			// The entity is streamed
 			entity = response.getEntity();
-			if (entity != null) {
+			// The server do not send any content with a 304
+			if (entity == null || responseStatus.isNotModified()) {
+				reusable = true;
+			} else {
+				// NOTE: When the response is compressed, this is the compressed size.
 				long contentSizeMb = entity.getContentLength() / (1024*1024); // in megabytes
 				// long value can go over 8 millions terabytes
 
 				if (contentSizeMb < maxFileSizeMb) {
 					in = entity.getContent();
-					out = new FileOutputStream(file);
-					// The file size may be unknown on the server. This method stop streaming when the file size reach the limit.
-					Utils.binaryCopy(in, out, maxFileSizeMb * (1024*1024));
+
+					// The HttpClient do not decompress the response by itself
+					Header contentEncoding = entity.getContentEncoding();
+					if (contentEncoding != null && contentEncoding.getValue() != null) {
+						String encoding = contentEncoding.getValue().trim();
+						if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+							in = new GZIPInputStream(in);
+						} else if ("deflate".equalsIgnoreCase(encoding)) {
+							in = new InflaterInputStream(in);
+						}
+					}
+
+					// The file size may be unknown on the server. This method stop streaming when
+					// the (uncompressed) file size reach the limit.
+					writeCachedFile(in, file, maxFileSizeMb * (1024*1024));
+					downloaded = true;
+					reusable = true;
 				} else {
 					LOGGER.log(Level.WARNING, "File size exceeded for URL {0}\n" +
 							"      File size is {1} Mb, expected less than {2} Mb.", new Object[]{urlStr, entity.getContentLength(), maxFileSizeMb});
@@ -489,43 +998,335 @@ public class URLCache {
 			if (file != null && file.exists()) {
 				file.delete();
 			}
-			responseStatus.setErrorMessage(getErrorMessage(ex));
-		} finally {
-			if (httpGet != null) {
-				// Cancel the connection, if it's still alive
-				httpGet.abort();
-				// Close connections
-				httpGet.reset();
+			responseStatus.setErrorMessage(getErrorMessage(ex));
+		} finally {
+			// Return the connection to the pool, or close it if the download failed or the file is too big.
+			HttpTransport.release(httpGet, entity, reusable);
+			if (in != null) {
+				try { in.close(); } catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Error occur while closing the URL: {0}", Utils.getExceptionMessage(e));
+					LOGGER.log(Level.FINE, "Stack trace:", e);
+				}
+			}
+			// Delete the download file when nothing has been downloaded
+			if (!downloaded && file != null && file.exists()) {
+				file.delete();
+			}
+		}
+
+		return responseStatus;
+	}
+
+	/**
+	 * Write the stream in the file. The content is compressed (GZIP) when it is
+	 * bigger than COMPRESSION_THRESHOLD.
+	 * The GZIP output do not contains any timestamp; the same content always
+	 * give the same file, so identical files still share the same content address.
+	 * @param in
+	 * @param file
+	 * @param maxBytesFileSize Maximum uncompressed size, in bytes. -1 for unlimited.
+	 * @throws IOException If the size limit is reached or the file can not be written.
+	 */
+	private static void writeCachedFile(InputStream in, File file, int maxBytesFileSize) throws IOException {
+		// Read the beginning of the file, to know if it's worth compressing
+		byte[] head = new byte[COMPRESSION_THRESHOLD];
+		int headLength = 0;
+		int bytesRead = 0;
+		while (headLength < head.length && (bytesRead = in.read(head, headLength, head.length - headLength)) != -1) {
+			headLength += bytesRead;
+		}
+		if (maxBytesFileSize >= 0 && headLength > maxBytesFileSize) {
+			throw new IOException("File size exceeded. The maximum size allowed for this file is " + maxBytesFileSize + " bytes.");
+		}
+
+		OutputStream out = null;
+		try {
+			if (bytesRead == -1) {
+				// The whole file fit in the buffer
+				out = new FileOutputStream(file);
+				out.write(head, 0, headLength);
+			} else {
+				out = new GZIPOutputStream(new FileOutputStream(file), 32 * 1024);
+				out.write(head, 0, headLength);
+
+				long totalBytesRead = headLength;
+				byte[] buf = new byte[32 * 1024];  // 32K buffer
+				while ((bytesRead = in.read(buf)) != -1) {
+					totalBytesRead += bytesRead;
+					if (maxBytesFileSize >= 0 && totalBytesRead > maxBytesFileSize) {
+						throw new IOException("File size exceeded. The maximum size allowed for this file is " + maxBytesFileSize + " bytes.");
+					}
+					out.write(buf, 0, bytesRead);
+				}
+			}
+		} finally {
+			if (out != null) {
+				try { out.close(); } catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Error occur while closing the file: {0}", Utils.getExceptionMessage(e));
+					LOGGER.log(Level.FINE, "Stack trace:", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Open a file of the cache. The file is transparently decompressed
+	 * when it has been saved compressed (see COMPRESSION_THRESHOLD).
+	 * @param file
+	 * @return An input stream of the uncompressed content of the file. The caller has to close it.
+	 * @throws IOException
+	 */
+	public static InputStream getInputStream(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			// Look for the GZIP magic number
+			in.mark(2);
+			int b1 = in.read();
+			int b2 = in.read();
+			in.reset();
+			if (b1 == 0x1f && b2 == 0x8b) {
+				return new GZIPInputStream(in);
+			}
+		} catch (IOException ex) {
+			in.close();
+			throw ex;
+		}
+		return in;
+	}
+
+	/**
+	 * @param file A file of the cache.
+	 * @return The uncompressed size of the file, in bytes (see getInputStream(File)). 0 if the file do not exist.
+	 */
+	public static long getContentLength(File file) {
+		if (file == null || !file.exists()) {
+			return 0;
+		}
+
+		long length = file.length();
+		if (length < 18) {
+			// Too small to be a GZIP file (header + footer)
+			return length;
+		}
+
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "r");
+			if (randomAccessFile.read() == 0x1f && randomAccessFile.read() == 0x8b) {
+				// The GZIP footer ends with the uncompressed size (modulo 2^32), in little endian
+				randomAccessFile.seek(length - 4);
+				long uncompressedLength = 0;
+				for (int i=0; i<4; i++) {
+					uncompressedLength |= ((long)randomAccessFile.read()) << (8*i);
+				}
+				return uncompressedLength;
+			}
+		} catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Can not read the file {0}: {1}",
+					new String[]{ file.getAbsolutePath(), Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+		} finally {
+			if (randomAccessFile != null) {
+				try {
+					randomAccessFile.close();
+				} catch (Exception ex) {
+					LOGGER.log(Level.SEVERE, "Can not close the file {0}: {1}",
+							new String[]{ file.getAbsolutePath(), Utils.getExceptionMessage(ex) });
+					LOGGER.log(Level.FINE, "Stack trace:", ex);
+				}
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Save the modifications made to the cache map.
+	 * The modified entries are appended to the journal file. When the journal get too big
+	 * (or after the cache has been reset), it is compacted; the whole cache map is written
+	 * in the cache map file (the snapshot) and the journal is cleared.
+	 * @param applicationFolder
+	 * @throws JSONException
+	 * @throws IOException
+	 */
+	public static void saveDiskCacheMap(File applicationFolder) throws JSONException, IOException {
+		// Only one save at the time; a journal record must never be written after a newer snapshot.
+		// This lock is never requested while holding a URL lock.
+		synchronized (diskCacheSaveLock) {
+			URLCacheCatalog catalog = diskCacheMap;
+			if (catalog == null || compactionRequired ||
+					journalRecordCount >= Math.max(JOURNAL_COMPACTION_MIN_RECORDS, catalog.size())) {
+
+				// Reset the flag before taking the snapshot; the cache may be reset again meanwhile.
+				compactionRequired = false;
+				if (catalog != null) {
+					// The snapshot contains all the modifications
+					catalog.takeModifiedURLs();
+					catalog.takeModifiedHosts();
+				}
+				JSONObject jsonCacheSnapshot = toJSONSnapshot(catalog, true);
+
+				synchronized (diskCacheMapLock) {
+					if (diskCacheMap == null) {
+						diskCacheMap = new URLCacheCatalog();
+					}
+					writeDiskCacheMap(applicationFolder, jsonCacheSnapshot);
+				}
+			} else {
+				List<JSONObject> journalRecords = getJournalRecords(catalog);
+				if (!journalRecords.isEmpty()) {
+					synchronized (diskCacheMapLock) {
+						appendToJournal(applicationFolder, journalRecords);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take a snapshot of the cache map.
+	 * @param catalog
+	 * @param lockEntries True to copy each entry while holding its URL lock. This is needed
+	 *     for the map in use. The lock can be omitted for a map that is not yet accessible by other threads.
+	 */
+	private static JSONObject toJSONSnapshot(URLCacheCatalog catalog, boolean lockEntries) throws JSONException {
+		JSONObject jsonCacheSnapshot = new JSONObject();
+		if (catalog != null) {
+			for (String url : catalog.getURLs()) {
+				ReentrantLock lock = lockEntries ? getURLLock(url) : null;
+				if (lock != null) {
+					lock.lock();
+				}
+				try {
+					CachedFile cachedFile = catalog.get(url);
+					JSONObject jsonCachedFile = cachedFile == null ? null : cachedFile.toJSON();
+					if (jsonCachedFile != null) {
+						jsonCacheSnapshot.put(url, jsonCachedFile);
+					}
+				} finally {
+					if (lock != null) {
+						lock.unlock();
+					}
+				}
+			}
+
+			JSONObject jsonHosts = new JSONObject();
+			for (String host : catalog.getHosts()) {
+				URLCacheCatalog.HostStatus hostStatus = catalog.findHostStatus(host);
+				JSONObject jsonHostStatus = hostStatus == null ? null : hostStatus.toJSON();
+				if (jsonHostStatus != null) {
+					jsonHosts.put(host, jsonHostStatus);
+				}
+			}
+			if (jsonHosts.length() > 0) {
+				jsonCacheSnapshot.put(SNAPSHOT_HOSTS_KEY, jsonHosts);
+			}
+		}
+		return jsonCacheSnapshot;
+	}
+
+	/**
+	 * Create a journal record for each entry modified since the last save.
+	 * {
+	 *     time: 1348459609125, // Epoch time, in milliseconds
+	 *     url: "http://...",
+	 *     entry: { ... } // The new state of the entry. Missing when the entry has been removed.
+	 * }
+	 * and for each host status modified since the last save.
+	 * {
+	 *     time: 1348459609125,
+	 *     host: "www.host.com:8080",
+	 *     hostStatus: { ... } // Missing when the host is responding and has no metadata URL strategy.
+	 * }
+	 */
+	private static List<JSONObject> getJournalRecords(URLCacheCatalog catalog) throws JSONException {
+		List<JSONObject> journalRecords = new ArrayList<JSONObject>();
+		for (String url : catalog.takeModifiedURLs()) {
+			ReentrantLock lock = getURLLock(url);
+			lock.lock();
+			try {
+				CachedFile cachedFile = catalog.get(url);
+				JSONObject journalRecord = new JSONObject();
+				journalRecord.put("url", url);
+				JSONObject jsonCachedFile = cachedFile == null ? null : cachedFile.toJSON();
+				if (jsonCachedFile != null) {
+					journalRecord.put("entry", jsonCachedFile);
+				}
+				journalRecords.add(journalRecord);
+			} finally {
+				lock.unlock();
+			}
+		}
+		for (String host : catalog.takeModifiedHosts()) {
+			URLCacheCatalog.HostStatus hostStatus = catalog.findHostStatus(host);
+			JSONObject journalRecord = new JSONObject();
+			journalRecord.put("host", host);
+			JSONObject jsonHostStatus = hostStatus == null ? null : hostStatus.toJSON();
+			if (jsonHostStatus != null) {
+				journalRecord.put("hostStatus", jsonHostStatus);
 			}
-			if (in != null) {
-				try { in.close(); } catch (Exception e) {
-					LOGGER.log(Level.SEVERE, "Error occur while closing the URL: {0}", Utils.getExceptionMessage(e));
+			journalRecords.add(journalRecord);
+		}
+		return journalRecords;
+	}
+
+	// This method has to be called while holding the diskCacheMapLock.
+	private static void appendToJournal(File applicationFolder, List<JSONObject> journalRecords) throws JSONException, IOException {
+		File journalFile = FileFinder.getDiskCacheJournalFile(applicationFolder);
+
+		// The time is set when the record is written, to be compared with the time of the snapshot.
+		long now = System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder();
+		for (JSONObject journalRecord : journalRecords) {
+			journalRecord.put("time", now);
+			sb.append(journalRecord.toString()).append('\n');
+		}
+
+		FileOutputStream out = null;
+		Writer writer = null;
+		try {
+			out = new FileOutputStream(journalFile, true);
+			writer = new OutputStreamWriter(out, "UTF-8");
+			writer.write(sb.toString());
+			writer.flush();
+			// Make sure the records are on the disk; a crash can only corrupt the last record.
+			out.getFD().sync();
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Can not close the cache map journal writer: {0}", Utils.getExceptionMessage(e));
 					LOGGER.log(Level.FINE, "Stack trace:", e);
 				}
 			}
 			if (out != null) {
-				try { out.close(); } catch (Exception e) {
-					LOGGER.log(Level.SEVERE, "Error occur while closing the file: {0}", Utils.getExceptionMessage(e));
+				try {
+					out.close();
+				} catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Can not close the cache map journal output stream: {0}", Utils.getExceptionMessage(e));
 					LOGGER.log(Level.FINE, "Stack trace:", e);
 				}
 			}
 		}
-
-		return responseStatus;
+		journalRecordCount += journalRecords.size();
+		loadedTime = new Date().getTime();
 	}
 
-	public static void saveDiskCacheMap(File applicationFolder) throws JSONException, IOException {
+	/**
+	 * Write the snapshot in the cache map file and clear the journal.
+	 * The snapshot is written in a temporary file first, so a crash can not leave a partial cache map file.
+	 * This method has to be called while holding the diskCacheMapLock.
+	 */
+	private static void writeDiskCacheMap(File applicationFolder, JSONObject jsonCacheSnapshot) throws JSONException, IOException {
 		File configFile = FileFinder.getDiskCacheFile(applicationFolder);
-		if (diskCacheMap == null) {
-			diskCacheMap = new JSONObject();
-		}
+		File tmpConfigFile = new File(configFile.getParentFile(), configFile.getName() + ".tmp");
 
 		Writer writer = null;
 		BufferedWriter bw = null;
 		try {
-			writer = new FileWriter(configFile);
+			writer = new FileWriter(tmpConfigFile);
 			bw = new BufferedWriter(writer);
-			String jsonStr = Utils.jsonToStr(diskCacheMap);
+			String jsonStr = Utils.jsonToStr(jsonCacheSnapshot);
 			if (Utils.isNotBlank(jsonStr)) {
 				bw.write(jsonStr);
 			}
@@ -547,55 +1348,210 @@ public class URLCache {
 				}
 			}
 		}
+
+		// File.renameTo do not replace existing files on some platforms (Windows)
+		if (!tmpConfigFile.renameTo(configFile)) {
+			configFile.delete();
+			if (!tmpConfigFile.renameTo(configFile)) {
+				throw new IOException("Can not replace the cache map file " + configFile.getAbsolutePath());
+			}
+		}
+
+		// Clear the journal. If the application crash before this point, the journal records are
+		// ignored on load since they are older than the snapshot.
+		File journalFile = FileFinder.getDiskCacheJournalFile(applicationFolder);
+		Writer journalWriter = null;
+		try {
+			journalWriter = new FileWriter(journalFile);
+		} finally {
+			if (journalWriter != null) {
+				try {
+					journalWriter.close();
+				} catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Can not close the cache map journal writer: {0}", Utils.getExceptionMessage(e));
+					LOGGER.log(Level.FINE, "Stack trace:", e);
+				}
+			}
+		}
+		journalRecordCount = 0;
+
 		loadedTime = new Date().getTime();
 	}
 
+	/**
+	 * Load the cache map from the disk; the snapshot is loaded, then the journal is replayed.
+	 * The loaded map is purged before being published, so no other thread can access it before it's ready.
+	 * This method has to be called while holding the diskCacheMapLock.
+	 */
 	private static void loadDiskCacheMap(File applicationFolder) throws IOException, JSONException {
 		File configFile = FileFinder.getDiskCacheFile(applicationFolder);
+		File journalFile = FileFinder.getDiskCacheJournalFile(applicationFolder);
 
-		Reader reader = null;
+		JSONObject jsonCache = null;
+		if (configFile.length() > 0) {
+			Reader reader = null;
+			try {
+				reader = new FileReader(configFile);
+				jsonCache = new JSONObject(new JSONTokener(reader));
+			} catch(Exception ex) {
+				LOGGER.log(Level.SEVERE, "Can not load the cache map. The cache has been reset: {0}", Utils.getExceptionMessage(ex));
+				LOGGER.log(Level.FINE, "Stack trace:", ex);
+			} finally {
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (Exception ex) {
+						LOGGER.log(Level.SEVERE, "Can not close the cache map reader: {0}", Utils.getExceptionMessage(ex));
+						LOGGER.log(Level.FINE, "Stack trace:", ex);
+					}
+				}
+			}
+		}
+		if (jsonCache == null) {
+			jsonCache = new JSONObject();
+		}
+		JSONObject jsonHosts = jsonCache.optJSONObject(SNAPSHOT_HOSTS_KEY);
+		jsonCache.remove(SNAPSHOT_HOSTS_KEY);
+		if (jsonHosts == null) {
+			jsonHosts = new JSONObject();
+		}
+
+		// Replay the journal. Records older than the snapshot has already been compacted into it;
+		// this only happen if the application crashed during the compaction, or when
+		// the cache map file has been modified manually.
+		long snapshotTime = configFile.lastModified();
+		int nbRecords = 0;
+		boolean corruptedJournal = false;
+		Reader journalReader = null;
+		BufferedReader bufferedJournalReader = null;
 		try {
-			reader = new FileReader(configFile);
-			diskCacheMap = new JSONObject(new JSONTokener(reader));
-		} catch(Exception ex) {
-			diskCacheMap = new JSONObject();
-			LOGGER.log(Level.SEVERE, "Can not load the cache map. The cache has been reset.");
+			journalReader = new InputStreamReader(new FileInputStream(journalFile), "UTF-8");
+			bufferedJournalReader = new BufferedReader(journalReader);
+			String line;
+			while ((line = bufferedJournalReader.readLine()) != null) {
+				if (Utils.isNotBlank(line)) {
+					JSONObject journalRecord;
+					try {
+						journalRecord = new JSONObject(line);
+					} catch (JSONException ex) {
+						// The last record was not completely written (the application crashed); ignore it.
+						LOGGER.log(Level.WARNING, "Corrupted record found in the cache map journal after {0} records. The rest of the journal is ignored.", nbRecords);
+						corruptedJournal = true;
+						break;
+					}
+					nbRecords++;
+					if (journalRecord.optLong("time", 0) >= snapshotTime) {
+						String url = journalRecord.optString("url", null);
+						if (url != null) {
+							JSONObject jsonCachedFile = journalRecord.optJSONObject("entry");
+							if (jsonCachedFile == null) {
+								jsonCache.remove(url);
+							} else {
+								jsonCache.put(url, jsonCachedFile);
+							}
+						}
+						String host = journalRecord.optString("host", null);
+						if (host != null) {
+							JSONObject jsonHostStatus = journalRecord.optJSONObject("hostStatus");
+							if (jsonHostStatus == null) {
+								jsonHosts.remove(host);
+							} else {
+								jsonHosts.put(host, jsonHostStatus);
+							}
+						}
+					}
+				}
+			}
 		} finally {
-			if (reader != null) {
+			if (bufferedJournalReader != null) {
 				try {
-					reader.close();
+					bufferedJournalReader.close();
+				} catch (Exception ex) {
+					LOGGER.log(Level.SEVERE, "Can not close the cache map journal buffered reader: {0}", Utils.getExceptionMessage(ex));
+					LOGGER.log(Level.FINE, "Stack trace:", ex);
+				}
+			}
+			if (journalReader != null) {
+				try {
+					journalReader.close();
 				} catch (Exception ex) {
-					LOGGER.log(Level.SEVERE, "Can not close the cache map reader: {0}", Utils.getExceptionMessage(ex));
+					LOGGER.log(Level.SEVERE, "Can not close the cache map journal reader: {0}", Utils.getExceptionMessage(ex));
 					LOGGER.log(Level.FINE, "Stack trace:", ex);
 				}
 			}
 		}
 
+		File diskCacheFolder = FileFinder.getDiskCacheFolder(applicationFolder);
+		URLCacheCatalog loadedCacheMap = new URLCacheCatalog();
+		Iterator<String> urls = jsonCache.keys();
+		while (urls.hasNext()) {
+			String url = urls.next();
+			JSONObject jsonCachedFile = jsonCache.optJSONObject(url);
+			if (jsonCachedFile != null) {
+				CachedFile cachedFile = new CachedFile(diskCacheFolder, jsonCachedFile);
+				if (!cachedFile.isEmpty()) {
+					loadedCacheMap.put(url, cachedFile);
+				}
+			}
+		}
+		Iterator<String> hosts = jsonHosts.keys();
+		while (hosts.hasNext()) {
+			String host = hosts.next();
+			loadedCacheMap.putHostStatus(host, new URLCacheCatalog.HostStatus(jsonHosts.optJSONObject(host)));
+		}
+		// The loaded entries do not need to be saved
+		loadedCacheMap.takeModifiedURLs();
+
 		loadedTime = new Date().getTime();
-		purgeCache(applicationFolder);
+		journalRecordCount = nbRecords;
+		// Compact the journal if it contains garbage; new records can not be appended after a corrupted record.
+		if (purgeCache(applicationFolder, loadedCacheMap, false) || corruptedJournal ||
+				journalRecordCount >= Math.max(JOURNAL_COMPACTION_MIN_RECORDS, loadedCacheMap.size())) {
+			loadedCacheMap.takeModifiedURLs();
+			loadedCacheMap.takeModifiedHosts();
+			writeDiskCacheMap(applicationFolder, toJSONSnapshot(loadedCacheMap, false));
+		}
+		diskCacheMap = loadedCacheMap;
 	}
 
-	protected static JSONObject getDiskCacheMap(File applicationFolder) throws IOException, JSONException {
-		if (diskCacheMap == null || (isDiskCacheIsExpired(applicationFolder))) {
-			loadDiskCacheMap(applicationFolder);
+	/**
+	 * Forget the cache map loaded in memory. It is loaded again from the disk (snapshot and journal)
+	 * the next time it's accessed, as after a restart of the application.
+	 * This method is used by Unit Tests.
+	 */
+	protected static void unloadDiskCacheMap() {
+		synchronized (diskCacheSaveLock) {
+			synchronized (diskCacheMapLock) {
+				diskCacheMap = null;
+			}
 		}
+	}
+
+	protected static URLCacheCatalog getDiskCacheMap(File applicationFolder) throws IOException, JSONException {
+		reloadDiskCacheMapIfNeeded(applicationFolder);
 		return diskCacheMap;
 	}
 
 	public static void reloadDiskCacheMapIfNeeded(File applicationFolder) throws IOException, JSONException {
 		if (diskCacheMap == null || (isDiskCacheIsExpired(applicationFolder))) {
-			loadDiskCacheMap(applicationFolder);
+			synchronized (diskCacheMapLock) {
+				// Check again; the map may have been loaded by an other thread while waiting for the lock
+				if (diskCacheMap == null || (isDiskCacheIsExpired(applicationFolder))) {
+					loadDiskCacheMap(applicationFolder);
+				}
+			}
 		}
 	}
 
 	private static boolean isDiskCacheIsExpired(File applicationFolder) throws IOException {
 		File configFile = FileFinder.getDiskCacheFile(applicationFolder);
+		File journalFile = FileFinder.getDiskCacheJournalFile(applicationFolder);
 
 		if (!configFile.exists()) {
 			return true;
 		}
 
-		return loadedTime < configFile.lastModified();
+		return loadedTime < configFile.lastModified() || loadedTime < journalFile.lastModified();
 	}
 
 	public static JSONObject getJSONResponse(ConfigManager configManager, AbstractDataSourceConfig dataSource, String urlStr, Category category, boolean mandatory) throws IOException, JSONException {
@@ -606,6 +1562,9 @@ public class URLCache {
 			jsonFile = getURLFile(configManager, dataSource, urlStr, category, mandatory);
 			jsonResponse = parseFile(jsonFile, urlStr);
 			commitURLFile(configManager, jsonFile, urlStr);
+		} catch(HarvestDeadlineException ex) {
+			// Out of time; the cached file is used as it is
+			jsonResponse = parseFile(ex.getCachedFile(), urlStr);
 		} catch(Exception ex) {
 			File rollbackFile = rollbackURLFile(configManager, jsonFile, urlStr, ex);
 			jsonResponse = parseFile(rollbackFile, urlStr);
@@ -614,12 +1573,29 @@ public class URLCache {
 		return jsonResponse;
 	}
 
+	/**
+	 * The parsed JSON Object is cached in memory (see ParsedDocumentCache); it must not be modified.
+	 * @param jsonFile
+	 * @param urlStr
+	 * @return
+	 */
 	private static JSONObject parseFile(File jsonFile, String urlStr) {
+		if (jsonFile == null) {
+			return null;
+		}
+
+		ParsedDocumentCache parsedDocumentCache = ParsedDocumentCache.getInstance();
+		SingleFlight.Flight flight = null;
 		JSONObject jsonResponse = null;
 		Reader reader = null;
 		try {
-			reader = new FileReader(jsonFile);
-			jsonResponse = new JSONObject(new JSONTokener(reader));
+			flight = parsedDocumentCache.joinParse(JSONObject.class, jsonFile, null);
+			jsonResponse = parsedDocumentCache.get(JSONObject.class, jsonFile, null);
+			if (jsonResponse == null) {
+				reader = new InputStreamReader(URLCache.getInputStream(jsonFile), "UTF-8");
+				jsonResponse = new JSONObject(new JSONTokener(reader));
+				parsedDocumentCache.put(JSONObject.class, jsonFile, null, jsonResponse);
+			}
 		} catch(Exception ex) {
 			LOGGER.log(Level.SEVERE, "Can not load the JSON Object returning from the URL {0}: {1}",
 					new String[]{ urlStr, Utils.getExceptionMessage(ex) });
@@ -634,6 +1610,9 @@ public class URLCache {
 					LOGGER.log(Level.FINE, "Stack trace:", ex);
 				}
 			}
+			if (flight != null) {
+				flight.end();
+			}
 		}
 
 		return jsonResponse;
@@ -677,15 +1656,28 @@ public class URLCache {
 		return response.jsonArrayResponse;
 	}
 
+	/**
+	 * Send a request on behalf of a browser (location search).
+	 * The request use the proxy transport; it is not affected by the harvest of the data sources.
+	 */
 	public static String getUncachedResponse(String urlStr) throws IOException, JSONException, URISyntaxException {
 		URL url = Utils.toURL(urlStr);
 
-		URLConnection connection = url.openConnection();
+		HttpGet httpGet = new HttpGet(url.toURI());
+		HttpEntity entity = null;
+		boolean reusable = false;
 		InputStream in = null;
 		BufferedReader reader = null;
 		StringBuilder sb = new StringBuilder();
 		try {
-			in = connection.getInputStream();
+			HttpResponse response = HttpTransport.getProxyTransport().getHttpClient().execute(httpGet);
+			StatusLine httpStatus = response.getStatusLine();
+			if (httpStatus != null && httpStatus.getStatusCode() >= 400) {
+				throw new IOException("Server returned HTTP response code: " + httpStatus.getStatusCode() + " for URL: " + urlStr);
+			}
+
+			entity = response.getEntity();
+			in = entity == null ? null : entity.getContent();
 			if (in != null) {
 				reader = new BufferedReader(new InputStreamReader(in));
 
@@ -694,7 +1686,9 @@ public class URLCache {
 					sb.append((char) cp);
 				}
 			}
+			reusable = true;
 		} finally {
+			HttpTransport.release(httpGet, entity, reusable);
 			if (in != null) {
 				try { in.close(); } catch(Exception e) {
 					LOGGER.log(Level.WARNING, "Can not close the URL input stream: {0}", Utils.getExceptionMessage(e));
@@ -714,34 +1708,49 @@ public class URLCache {
 
 
 	public static Errors getDataSourceErrors(AbstractDataSourceConfig dataSourceConfig, File applicationFolder) throws IOException, JSONException {
-		File diskCacheFolder = FileFinder.getDiskCacheFolder(applicationFolder);
-		JSONObject jsonCache = getDiskCacheMap(applicationFolder);
+		URLCacheCatalog catalog = getDiskCacheMap(applicationFolder);
+		String dataSourceId = dataSourceConfig.getDataSourceId();
 
 		// Collect warnings
 		Errors errors = new Errors();
 
 		// Add errors reported by the disk cache utility (filter by specified data source)
-		if (jsonCache != null && jsonCache.length() > 0) {
-			Iterator<String> urls = jsonCache.keys();
-			String url;
-			boolean hasChanged = false;
-			while (urls.hasNext()) {
-				url = urls.next();
-				CachedFile cachedFile = getCachedFile(applicationFolder, url);
-				// Ignore empty entries (should not have any) or MEST entry concerning brute force records (these produce heaps of useless warnings)
-				if (!cachedFile.isEmpty() && !Category.BRUTEFORCE_MEST_RECORD.equals(cachedFile.getCategory())) {
-					String errorMsg = cachedFile.getLatestErrorMessage();
-					if (Utils.isNotBlank(errorMsg)) {
-						for (String dataSourceId : cachedFile.getDataSourceIds()) {
-							if (dataSourceConfig.getDataSourceId().equals(dataSourceId)) {
-								if (cachedFile.isMandatory()) {
-									errors.addError(url, errorMsg);
-								} else {
-									errors.addWarning(url, errorMsg);
-								}
+		if (catalog != null && !catalog.isEmpty()) {
+			Set<String> hosts = new TreeSet<String>();
+			for (String url : catalog.getURLsByDataSourceId(dataSourceId)) {
+				String host = getHost(url);
+				if (host != null) {
+					hosts.add(host);
+				}
+
+				ReentrantLock lock = getURLLock(url);
+				lock.lock();
+				try {
+					CachedFile cachedFile = getCachedFile(applicationFolder, url);
+					// Ignore empty entries (should not have any) or MEST entry concerning brute force records (these produce heaps of useless warnings)
+					// The data source is checked again; the entry may have been modified since the index has been read.
+					if (!cachedFile.isEmpty() && cachedFile.hasDataSourceId(dataSourceId) &&
+							!Category.BRUTEFORCE_MEST_RECORD.equals(cachedFile.getCategory())) {
+						String errorMsg = cachedFile.getLatestErrorMessage();
+						if (Utils.isNotBlank(errorMsg)) {
+							if (cachedFile.isMandatory()) {
+								errors.addError(url, errorMsg);
+							} else {
+								errors.addWarning(url, errorMsg);
 							}
 						}
 					}
+				} finally {
+					lock.unlock();
+				}
+			}
+
+			// Hosts that are not responding; their requests are skipped (negative cache)
+			for (String host : hosts) {
+				URLCacheCatalog.HostStatus hostStatus = catalog.findHostStatus(host);
+				if (hostStatus != null && hostStatus.isFailing()) {
+					errors.addWarning("The host " + host + " is not responding (" + hostStatus.getErrorMessage() + "). " +
+							"Its requests are skipped until " + formatTime(hostStatus.getRetryAfter()) + ".");
 				}
 			}
 		}
@@ -782,6 +1791,9 @@ public class URLCache {
 				capabilitiesFile = URLCache.getURLFile(configManager, dataSource, urlStr, category, mandatory);
 				wmsCapabilities = URLCache.getCapabilities(capabilitiesFile);
 				URLCache.commitURLFile(configManager, capabilitiesFile, urlStr);
+			} catch (HarvestDeadlineException ex) {
+				// Out of time; the cached file is used as it is
+				wmsCapabilities = URLCache.getCapabilities(ex.getCachedFile());
 			} catch (Exception ex) {
 				File rollbackFile = URLCache.rollbackURLFile(configManager, capabilitiesFile, urlStr, ex);
 				wmsCapabilities = URLCache.getCapabilities(rollbackFile);
@@ -792,10 +1804,9 @@ public class URLCache {
 	}
 
 	/**
-	 * GetCapabilities from a local file. The latest GeoTools library seems to only be good at
-	 * doing this using the HTTP protocol.
-	 * This method is a slightly modified copy of:
-	 *     org.geotools.data.wms.response.WMSGetCapabilitiesResponse(HTTPResponse response)
+	 * GetCapabilities from a local file. The document is streamed (see WMSCapabilitiesParser);
+	 * only the info used by the AtlasMapper is kept in memory.
+	 * The parsed document is cached in memory (see ParsedDocumentCache); it must not be modified.
 	 * @param file
 	 * @return
 	 * @throws IOException
@@ -806,29 +1817,37 @@ public class URLCache {
 			return null;
 		}
 
-		InputStream inputStream = null;
+		ParsedDocumentCache parsedDocumentCache = ParsedDocumentCache.getInstance();
+		SingleFlight.Flight flight = parsedDocumentCache.joinParse(WMSCapabilities.class, file, null);
 		try {
-			inputStream = new FileInputStream(file);
-			return URLCache.getCapabilities(inputStream);
-		} finally {
-			if (inputStream != null) {
-				inputStream.close();
+			WMSCapabilities wmsCapabilities = parsedDocumentCache.get(WMSCapabilities.class, file, null);
+			if (wmsCapabilities != null) {
+				return wmsCapabilities;
 			}
-		}
-	}
 
-	private static WMSCapabilities getCapabilities(InputStream inputStream) throws IOException, SAXException {
-		Map<String, Object> hints = new HashMap<String, Object>();
-		hints.put(DocumentHandler.DEFAULT_NAMESPACE_HINT_KEY, WMSSchema.getInstance());
-		hints.put(DocumentFactory.VALIDATION_HINT, Boolean.FALSE);
-
-		Object object = DocumentFactory.getInstance(inputStream, hints, Level.WARNING);
+			InputStream inputStream = null;
+			try {
+				inputStream = URLCache.getInputStream(file);
+				wmsCapabilities = URLCache.getCapabilities(inputStream, file.toURI().toString());
+			} finally {
+				if (inputStream != null) {
+					inputStream.close();
+				}
+			}
 
-		if (object instanceof ServiceException) {
-			throw (ServiceException)object;
+			parsedDocumentCache.put(WMSCapabilities.class, file, null, wmsCapabilities);
+			return wmsCapabilities;
+		} finally {
+			flight.end();
 		}
+	}
 
-		return (WMSCapabilities)object;
+	private static WMSCapabilities getCapabilities(InputStream inputStream, String location) throws IOException, SAXException {
+		try {
+			return WMSCapabilitiesParser.parseInputStream(inputStream, location);
+		} catch (ParserConfigurationException ex) {
+			throw new SAXException("Can not create the capabilities document parser", ex);
+		}
 	}
 
 	/**
@@ -840,13 +1859,18 @@ public class URLCache {
 	 */
 	protected static void deleteCache(ConfigManager configManager, boolean updateDataSources) throws IOException, JSONException {
 		searchResponseCache.clear();
+		responseStatusCache.clear();
+		ParsedDocumentCache.getInstance().clear();
 
 		File applicationFolder = configManager.getApplicationFolder();
 
 		// Clear cached files
 		if (applicationFolder == null) return;
 
-		diskCacheMap = new JSONObject();
+		synchronized (diskCacheMapLock) {
+			diskCacheMap = new URLCacheCatalog();
+			compactionRequired = true;
+		}
 		File diskCacheFolder = FileFinder.getDiskCacheFolder(applicationFolder);
 
 		File[] folders = diskCacheFolder.listFiles(new FileFilter() {
@@ -856,15 +1880,11 @@ public class URLCache {
 			}
 		});
 
-		// Remove the files that are not listed in the cache map
-		for (File folder : folders) {
-			File[] files = folder.listFiles();
-			if (files != null) {
-				for (File file : files) {
-					file.delete();
-				}
+		// Remove the files that are not listed in the cache map (including the sub-folders of the cache files folder)
+		if (folders != null) {
+			for (File folder : folders) {
+				Utils.recursiveFileDelete(folder);
 			}
-			folder.delete();
 		}
 
 		if (updateDataSources) {
@@ -886,38 +1906,28 @@ public class URLCache {
 		}
 		String dataSourceId = dataSource.getDataSourceId();
 
-		JSONObject jsonCache = getDiskCacheMap(applicationFolder);
+		URLCacheCatalog catalog = getDiskCacheMap(applicationFolder);
 
-		if (jsonCache != null && jsonCache.length() > 0) {
-			List<String> urlsToDelete = new ArrayList<String>();
-			Iterator<String> urls = jsonCache.keys();
-			String url;
-			while (urls.hasNext()) {
-				url = urls.next();
-				CachedFile cachedFile = getCachedFile(applicationFolder, url);
-				if (cachedFile.isEmpty()) {
-					// Remove null entries - This should not happen
-					urlsToDelete.add(url);
-				} else if (cachedFile.hasDataSourceId(dataSourceId)) {
-					// Flag entries associated with the data source to be deleted, if not associated with other data sources
-					File file = cachedFile.getFile();
-					if (file != null && file.exists()) {
-						file.delete();
-					}
-					File tmpFile = cachedFile.getTemporaryFile();
-					if (tmpFile != null && tmpFile.exists()) {
-						tmpFile.delete();
-					}
+		if (catalog != null && !catalog.isEmpty()) {
+			for (String url : catalog.getURLsByDataSourceId(dataSourceId)) {
+				ReentrantLock lock = getURLLock(url);
+				lock.lock();
+				try {
+					CachedFile cachedFile = getCachedFile(applicationFolder, url);
+					if (cachedFile.isEmpty()) {
+						// Remove null entries - This should not happen
+						catalog.remove(url);
+					} else if (cachedFile.hasDataSourceId(dataSourceId)) {
+						// Delete entries associated with the data source, if not associated with other data sources
+						// The files are kept if other URLs refer to them (same content).
+						cachedFile.deleteFiles();
 
-					if (cachedFile.removeDataSourceId(dataSourceId)) {
-						urlsToDelete.add(url);
+						if (cachedFile.removeDataSourceId(dataSourceId)) {
+							catalog.remove(url);
+						}
 					}
-				}
-			}
-
-			if (!urlsToDelete.isEmpty()) {
-				for (String urlToDelete : urlsToDelete) {
-					jsonCache.remove(urlToDelete);
+				} finally {
+					lock.unlock();
 				}
 			}
 		}
@@ -944,30 +1954,34 @@ public class URLCache {
 		}
 		String dataSourceId = dataSource.getDataSourceId();
 
-		JSONObject jsonCache = getDiskCacheMap(applicationFolder);
+		URLCacheCatalog catalog = getDiskCacheMap(applicationFolder);
 
-		if (jsonCache != null && jsonCache.length() > 0) {
-			List<String> urlsToDelete = new ArrayList<String>();
-			Iterator<String> urls = jsonCache.keys();
-			String url;
-			while (urls.hasNext()) {
-				url = urls.next();
-				CachedFile cachedFile = getCachedFile(applicationFolder, url);
-				if (cachedFile.isEmpty()) {
-					// Remove null entries - This should not happen
-					urlsToDelete.add(url);
-				} else if (cachedFile.hasDataSourceId(dataSourceId)) {
-					if (removeBrokenEntry && !isRecursiveApproved(applicationFolder, cachedFile)) {
-						cachedFile.setMarkedForReDownload(true);
-					} else if (category != null && (category.equals(Category.ALL) || cachedFile.getCategory() == null || category.equals(cachedFile.getCategory()))) {
-						cachedFile.setMarkedForReDownload(true);
-					}
+		if (catalog != null && !catalog.isEmpty()) {
+			for (String url : catalog.getURLsByDataSourceId(dataSourceId)) {
+				// The approval of the redirections has to be checked before locking the entry;
+				//     a thread can not hold the lock of 2 URLs at the same time.
+				boolean brokenEntry = false;
+				if (removeBrokenEntry) {
+					CachedFile unlockedCachedFile = getCachedFileCopy(applicationFolder, url);
+					brokenEntry = unlockedCachedFile != null && !isRecursiveApproved(applicationFolder, unlockedCachedFile);
 				}
-			}
 
-			if (!urlsToDelete.isEmpty()) {
-				for (String urlToDelete : urlsToDelete) {
-					jsonCache.remove(urlToDelete);
+				ReentrantLock lock = getURLLock(url);
+				lock.lock();
+				try {
+					CachedFile cachedFile = getCachedFile(applicationFolder, url);
+					if (cachedFile.isEmpty()) {
+						// Remove null entries - This should not happen
+						catalog.remove(url);
+					} else if (cachedFile.hasDataSourceId(dataSourceId)) {
+						if (brokenEntry) {
+							cachedFile.setMarkedForReDownload(true);
+						} else if (category != null && (category.equals(Category.ALL) || cachedFile.getCategory() == null || category.equals(cachedFile.getCategory()))) {
+							cachedFile.setMarkedForReDownload(true);
+						}
+					}
+				} finally {
+					lock.unlock();
 				}
 			}
 		}
@@ -983,128 +1997,320 @@ public class URLCache {
 	 */
 	public static void purgeCache(File applicationFolder) throws IOException, JSONException {
 		if (applicationFolder == null) return;
+
+		if (purgeCache(applicationFolder, getDiskCacheMap(applicationFolder), true)) {
+			saveDiskCacheMap(applicationFolder);
+		}
+	}
+
+	/**
+	 * @param applicationFolder
+	 * @param catalog The cache map to purge.
+	 * @param lockEntries True to access each entry while holding its URL lock. The lock
+	 *     can be omitted for a map that is not yet accessible by other threads.
+	 * @return True if the map has been modified.
+	 */
+	private static boolean purgeCache(File applicationFolder, URLCacheCatalog catalog, boolean lockEntries) throws IOException, JSONException {
 		final File diskCacheFolder = FileFinder.getDiskCacheFolder(applicationFolder);
-		final File diskFileCacheFolder = CachedFile.getCachedFileFolder(diskCacheFolder);
 
-		JSONObject jsonCache = getDiskCacheMap(applicationFolder);
+		boolean hasChanged = false;
 
 		// Remove the cache entry that are out of date
-		if (jsonCache != null && jsonCache.length() > 0) {
-			List<String> urlsToDelete = new ArrayList<String>();
-			Iterator<String> urls = jsonCache.keys();
-			String url;
-			boolean hasChanged = false;
-			while (urls.hasNext()) {
-				url = urls.next();
-				CachedFile cachedFile = getCachedFile(applicationFolder, url);
-				if (cachedFile.isEmpty()) {
-					// Remove null entries
-					urlsToDelete.add(url);
-				} else {
-					// Check if the file reach its expiry
-					Date downloadedTime = cachedFile.getDownloadedTime();
-					if (downloadedTime != null) {
-						long expiry = cachedFile.getExpiry();
-						if (expiry >= 0) {
-							long age = new Date().getTime() - downloadedTime.getTime();
-							if (age >= expiry * NB_MS_PER_MINUTE) {
-								urlsToDelete.add(url);
+		if (catalog != null && !catalog.isEmpty()) {
+			long now = System.currentTimeMillis();
+			for (String url : catalog.getURLs()) {
+				ReentrantLock lock = lockEntries ? getURLLock(url) : null;
+				if (lock != null) {
+					lock.lock();
+				}
+				try {
+					CachedFile cachedFile = catalog.get(url);
+					if (cachedFile == null) {
+						// Removed by an other thread
+					} else if (cachedFile.isEmpty()) {
+						// Remove null entries
+						catalog.remove(url);
+						hasChanged = true;
+					} else {
+						// Check if the file reach its expiry
+						boolean expired = false;
+						long downloadedTime = cachedFile.getDownloadedTimestamp();
+						if (downloadedTime >= 0) {
+							long expiry = cachedFile.getExpiry();
+							if (expiry >= 0 && now - downloadedTime >= expiry * NB_MS_PER_MINUTE) {
+								expired = true;
 							}
 						}
+
+						if (expired) {
+							catalog.remove(url);
+							hasChanged = true;
+						}
+					}
+				} finally {
+					if (lock != null) {
+						lock.unlock();
 					}
 				}
 			}
+		}
 
-			if (!urlsToDelete.isEmpty()) {
-				for (String urlToDelete : urlsToDelete) {
-					jsonCache.remove(urlToDelete);
-				}
-				hasChanged = true;
-			}
+		// Remove the files that are not listed in the cache map (the catalog index the files of its entries)
+		CachedFile.purgeFiles(catalog, diskCacheFolder);
 
-			if (hasChanged) {
-				saveDiskCacheMap(applicationFolder);
-			}
-		}
+		return hasChanged;
+	}
+
+	public static void deleteOldEntries(AbstractDataSourceConfig dataSourceConfig, Date thresholdDate, List<URLCache.Category> categories) throws IOException, JSONException {
+		if (thresholdDate != null && categories != null && !categories.isEmpty()) {
+			File applicationFolder = dataSourceConfig.getConfigManager().getApplicationFolder();
+			boolean allCategories = categories.contains(Category.ALL);
+			String dataSourceId = dataSourceConfig.getDataSourceId();
 
-		// Remove the files that are not listed in the cache map
-		File[] files = diskFileCacheFolder.listFiles();
+			URLCacheCatalog catalog = getDiskCacheMap(applicationFolder);
 
-		if (files != null) {
-			for (File file : files) {
-				String cachedFilename = file.getName();
-
-				// Try to find the file in the cache
-				boolean found = false;
-				if (jsonCache != null && jsonCache.length() > 0) {
-					Iterator<String> urls = jsonCache.keys(); // reset the iterator
-					while (!found && urls.hasNext()) {
-						String url = urls.next();
+			// Remove the cache entry that are out of date
+			if (catalog != null && !catalog.isEmpty()) {
+				for (String url : catalog.getURLsByDataSourceId(dataSourceId)) {
+					ReentrantLock lock = getURLLock(url);
+					lock.lock();
+					try {
 						CachedFile cachedFile = getCachedFile(applicationFolder, url);
-						if (!cachedFile.isEmpty()) {
-							if (cachedFilename.equals(cachedFile.getFilename())) {
-								found = true;
-							} else {
-								if (cachedFilename.equals(cachedFile.getTemporaryFilename())) {
-									found = true;
+						if (cachedFile.isEmpty()) {
+							// Remove null entries
+							catalog.remove(url);
+						} else if (cachedFile.hasDataSourceId(dataSourceId)) {
+							// Check if the file has been access since the threshold date
+							// NOTE: There is more optimal ways to do this (all the condition in a if, without a boolean)
+							//     but I think it's easier to understand as it is.
+							long accessDate = cachedFile.getLastAccessTimestamp();
+							boolean hasBeenAccessed = false;
+							if (accessDate >= 0 && accessDate >= thresholdDate.getTime()) {
+								hasBeenAccessed = true;
+							}
+							if (!hasBeenAccessed) {
+								Category cachedFileCategory = cachedFile.getCategory();
+								if (allCategories || cachedFileCategory == null || categories.contains(cachedFileCategory)) {
+									if (cachedFile.removeDataSourceId(dataSourceId)) {
+										catalog.remove(url);
+									}
 								}
 							}
 						}
+					} finally {
+						lock.unlock();
 					}
 				}
+			}
+		}
+	}
 
-				if (!found) {
-					file.delete();
+	/**
+	 * Schedule an eviction of the least recently used entries of the disk cache (see evictEntries).
+	 * The eviction run in a background thread; this method returns immediately.
+	 * Multiple requests received before the eviction starts are merged.
+	 * @param configManager
+	 */
+	public static void scheduleEviction(final ConfigManager configManager) {
+		if (configManager == null) {
+			return;
+		}
+		if (evictionScheduled.compareAndSet(false, true)) {
+			evictionExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					// Requests received from now on need an other pass
+					evictionScheduled.set(false);
+					try {
+						evictEntries(configManager);
+					} catch (Exception ex) {
+						LOGGER.log(Level.SEVERE, "Error occurred while evicting entries from the disk cache: {0}", Utils.getExceptionMessage(ex));
+						LOGGER.log(Level.FINE, "Stack trace:", ex);
+					}
 				}
-			}
+			});
 		}
 	}
 
-	public static void deleteOldEntries(AbstractDataSourceConfig dataSourceConfig, Date thresholdDate, List<URLCache.Category> categories) throws IOException, JSONException {
-		if (thresholdDate != null && categories != null && !categories.isEmpty()) {
-			File applicationFolder = dataSourceConfig.getConfigManager().getApplicationFolder();
-			boolean allCategories = categories.contains(Category.ALL);
-			String dataSourceId = dataSourceConfig.getDataSourceId();
+	/**
+	 * Evict the least recently used entries (using their last access date) until the files
+	 * of the disk cache fit in the budget (size in bytes and number of files) set in the
+	 * server configuration.
+	 * The entries are evicted in this order: brute force MEST records, MEST records,
+	 * other entries. The mandatory capabilities documents are never evicted; they are the
+	 * fall back of the data sources when their service is down.
+	 * The entries accessed recently (which may still be in use) and the entries waiting
+	 * for approval are also kept.
+	 * @param configManager
+	 * @return The number of evicted entries.
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	protected static int evictEntries(ConfigManager configManager) throws IOException, JSONException {
+		return evictEntries(configManager.getApplicationFolder(),
+				configManager.getDiskCacheMaxSize(), configManager.getDiskCacheMaxFiles());
+	}
 
-			JSONObject jsonCache = getDiskCacheMap(applicationFolder);
+	/**
+	 * @param applicationFolder
+	 * @param maxSize Maximum size of the files of the disk cache, in bytes. Null for unlimited.
+	 * @param maxFiles Maximum number of files in the disk cache. Null for unlimited.
+	 * @return The number of evicted entries.
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	protected static int evictEntries(File applicationFolder, Long maxSize, Integer maxFiles) throws IOException, JSONException {
+		boolean sizeLimited = maxSize != null && maxSize >= 0;
+		boolean filesLimited = maxFiles != null && maxFiles >= 0;
+		if (!sizeLimited && !filesLimited) {
+			return 0;
+		}
 
-			// Remove the cache entry that are out of date
-			if (jsonCache != null && jsonCache.length() > 0) {
-				List<String> urlsToDelete = new ArrayList<String>();
-				Iterator<String> urls = jsonCache.keys();
-				String url;
-				while (urls.hasNext()) {
-					url = urls.next();
-					CachedFile cachedFile = getCachedFile(applicationFolder, url);
-					if (cachedFile.isEmpty()) {
-						// Remove null entries
-						urlsToDelete.add(url);
-					} else if (cachedFile.hasDataSourceId(dataSourceId)) {
-						// Check if the file has been access since the threshold date
-						// NOTE: There is more optimal ways to do this (all the condition in a if, without a boolean)
-						//     but I think it's easier to understand as it is.
-						Date accessDate = cachedFile.getLastAccessDate();
-						boolean hasBeenAccessed = false;
-						if (accessDate != null && accessDate.getTime() >= thresholdDate.getTime()) {
-							hasBeenAccessed = true;
-						}
-						if (!hasBeenAccessed) {
-							Category cachedFileCategory = cachedFile.getCategory();
-							if (allCategories || cachedFileCategory == null || categories.contains(cachedFileCategory)) {
-								if (cachedFile.removeDataSourceId(dataSourceId)) {
-									urlsToDelete.add(url);
-								}
-							}
-						}
+		URLCacheCatalog catalog = getDiskCacheMap(applicationFolder);
+		if (catalog == null || catalog.isEmpty()) {
+			return 0;
+		}
+
+		File cachedFileFolder = CachedFile.getCachedFileFolder(FileFinder.getDiskCacheFolder(applicationFolder));
+		long[] usage = getDiskUsage(cachedFileFolder);
+		long totalSize = usage[0];
+		long totalFiles = usage[1];
+		if ((!sizeLimited || totalSize <= maxSize) && (!filesLimited || totalFiles <= maxFiles)) {
+			return 0;
+		}
+
+		// Find the entries that can be evicted
+		long idleThreshold = System.currentTimeMillis() - EVICTION_MIN_IDLE_TIME;
+		List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>();
+		for (String url : catalog.getURLs()) {
+			ReentrantLock lock = getURLLock(url);
+			lock.lock();
+			try {
+				CachedFile cachedFile = catalog.get(url);
+				if (cachedFile != null && cachedFile.getFilename() != null && !cachedFile.hasTemporaryData() &&
+						cachedFile.getLastAccessTimestamp() < idleThreshold) {
+					Category category = cachedFile.getCategory();
+					int priority;
+					if (Category.BRUTEFORCE_MEST_RECORD.equals(category)) {
+						priority = 0;
+					} else if (Category.MEST_RECORD.equals(category)) {
+						priority = 1;
+					} else if (!cachedFile.isMandatory()) {
+						priority = 2;
+					} else {
+						// Mandatory capabilities document
+						priority = -1;
+					}
+					if (priority >= 0) {
+						candidates.add(new EvictionCandidate(url, priority, cachedFile.getLastAccessTimestamp()));
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		Collections.sort(candidates);
+
+		int evicted = 0;
+		for (EvictionCandidate candidate : candidates) {
+			if ((!sizeLimited || totalSize <= maxSize) && (!filesLimited || totalFiles <= maxFiles)) {
+				break;
+			}
+
+			ReentrantLock lock = getURLLock(candidate.url);
+			lock.lock();
+			try {
+				CachedFile cachedFile = catalog.get(candidate.url);
+				// Check again; the entry may have been used since
+				if (cachedFile != null && !cachedFile.hasTemporaryData() &&
+						cachedFile.getLastAccessTimestamp() == candidate.lastAccessTimestamp) {
+
+					// The file is only deleted when no other entry refer to it (same content)
+					String filename = cachedFile.getFilename();
+					File file = cachedFile.getFile();
+					Set<String> fileURLs = catalog.getURLsByFilename(filename);
+					if (file != null && file.exists() && fileURLs.size() == 1 && fileURLs.contains(candidate.url)) {
+						totalSize -= file.length();
+						totalFiles--;
+					}
+
+					cachedFile.deleteFiles();
+					catalog.remove(candidate.url);
+					evicted++;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		if (evicted > 0) {
+			LOGGER.log(Level.INFO, "{0} entries evicted from the disk cache. The cache now contains {1} files, {2} bytes.",
+					new Object[]{ evicted, totalFiles, totalSize });
+			saveDiskCacheMap(applicationFolder);
+		}
+		if ((sizeLimited && totalSize > maxSize) || (filesLimited && totalFiles > maxFiles)) {
+			LOGGER.log(Level.WARNING, "The disk cache is over its budget ({0} files, {1} bytes) but there is nothing left to evict.",
+					new Object[]{ totalFiles, totalSize });
+		}
+
+		return evicted;
+	}
+
+	// Return { size in bytes, number of files }
+	private static long[] getDiskUsage(File folder) {
+		long[] usage = new long[]{ 0, 0 };
+		if (folder != null) {
+			File[] files = folder.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.isDirectory()) {
+						long[] subUsage = getDiskUsage(file);
+						usage[0] += subUsage[0];
+						usage[1] += subUsage[1];
+					} else {
+						usage[0] += file.length();
+						usage[1]++;
 					}
 				}
+			}
+		}
+		return usage;
+	}
 
-				if (!urlsToDelete.isEmpty()) {
-					for (String urlToDelete : urlsToDelete) {
-						jsonCache.remove(urlToDelete);
-					}
-				}
+	private static class EvictionCandidate implements Comparable<EvictionCandidate> {
+		public final String url;
+		public final int priority; // Lowest priority are evicted first
+		public final long lastAccessTimestamp;
+
+		public EvictionCandidate(String url, int priority, long lastAccessTimestamp) {
+			this.url = url;
+			this.priority = priority;
+			this.lastAccessTimestamp = lastAccessTimestamp;
+		}
+
+		@Override
+		public int compareTo(EvictionCandidate other) {
+			if (this.priority != other.priority) {
+				return this.priority < other.priority ? -1 : 1;
+			}
+			// Least recently used first
+			if (this.lastAccessTimestamp != other.lastAccessTimestamp) {
+				return this.lastAccessTimestamp < other.lastAccessTimestamp ? -1 : 1;
 			}
+			return this.url.compareTo(other.url);
+		}
+	}
+
+	/**
+	 * Age the cached status of a URL, as if the URL had been checked earlier.
+	 * This method is used by Unit Tests to check the timeout of the cached statuses.
+	 * @param urlStr
+	 * @param age Number of milliseconds.
+	 */
+	protected static void ageCachedResponseStatus(String urlStr, long age) {
+		ResponseStatusWrapper cachedStatus = responseStatusCache.get(urlStr);
+		if (cachedStatus != null) {
+			responseStatusCache.replace(urlStr, cachedStatus, new ResponseStatusWrapper(cachedStatus.status, cachedStatus.timestamp - age));
 		}
 	}
 
@@ -1119,15 +2325,53 @@ public class URLCache {
 		if (diskCacheFileFolder == null || !diskCacheFileFolder.exists()) {
 			return 0;
 		}
-		String[] files = diskCacheFileFolder.list();
-		return files == null ? 0 : files.length;
+		return countFiles(diskCacheFileFolder);
+	}
+	private static int countFiles(File folder) {
+		int count = 0;
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				count += file.isDirectory() ? countFiles(file) : 1;
+			}
+		}
+		return count;
 	}
 
+	/**
+	 * Return the cache entry for the URL. The returned object is the one registered in the cache map,
+	 * it should only be used while holding the URL lock.
+	 * If the URL is not in the cache, an empty entry, not registered in the cache map, is returned.
+	 */
 	protected static CachedFile getCachedFile(File applicationFolder, String urlStr) throws JSONException, IOException {
-		JSONObject jsonCache = getDiskCacheMap(applicationFolder);
+		URLCacheCatalog catalog = getDiskCacheMap(applicationFolder);
 
-		final File diskCacheFolder = FileFinder.getDiskCacheFolder(applicationFolder);
-		return new CachedFile(diskCacheFolder, jsonCache.optJSONObject(urlStr));
+		CachedFile cachedFile = catalog.get(urlStr);
+		if (cachedFile == null) {
+			final File diskCacheFolder = FileFinder.getDiskCacheFolder(applicationFolder);
+			cachedFile = new CachedFile(diskCacheFolder, (JSONObject)null);
+		}
+		return cachedFile;
+	}
+
+	/**
+	 * Return a copy of the cache entry for the URL, which can be used without holding the URL lock.
+	 * Modifications made to the copy are not saved in the cache.
+	 * @return The copy, or null if the URL is not in the cache.
+	 */
+	private static CachedFile getCachedFileCopy(File applicationFolder, String urlStr) throws JSONException, IOException {
+		ReentrantLock lock = getURLLock(urlStr);
+		lock.lock();
+		try {
+			CachedFile cachedFile = getDiskCacheMap(applicationFolder).get(urlStr);
+			if (cachedFile == null) {
+				return null;
+			}
+
+			return cachedFile.copy();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	private static ResponseWrapper getSearchCachedResponse(String urlStr) {
@@ -1151,20 +2395,23 @@ public class URLCache {
 
 	private static void setSearchCachedResponse(String urlStr, ResponseWrapper response) {
 		if (urlStr != null && response != null) {
-			// Max cache size reach...
-			if (searchResponseCache.size() >= SEARCH_CACHE_MAXSIZE) {
-				// Delete the oldest entry
-				Map.Entry<String, ResponseWrapper> oldestResponseEntry = null;
-				for (Map.Entry<String, ResponseWrapper> responseEntry : searchResponseCache.entrySet()) {
-					if (oldestResponseEntry == null || responseEntry.getValue().timestamp < oldestResponseEntry.getValue().timestamp) {
-						oldestResponseEntry = responseEntry;
+			// The size check and the eviction have to be done atomically
+			synchronized (searchResponseCache) {
+				// Max cache size reach...
+				if (searchResponseCache.size() >= SEARCH_CACHE_MAXSIZE) {
+					// Delete the oldest entry
+					Map.Entry<String, ResponseWrapper> oldestResponseEntry = null;
+					for (Map.Entry<String, ResponseWrapper> responseEntry : searchResponseCache.entrySet()) {
+						if (oldestResponseEntry == null || responseEntry.getValue().timestamp < oldestResponseEntry.getValue().timestamp) {
+							oldestResponseEntry = responseEntry;
+						}
+					}
+					if (oldestResponseEntry != null) {
+						searchResponseCache.remove(oldestResponseEntry.getKey());
 					}
 				}
-				if (oldestResponseEntry != null) {
-					searchResponseCache.remove(oldestResponseEntry.getKey());
-				}
+				searchResponseCache.put(urlStr, response);
 			}
-			searchResponseCache.put(urlStr, response);
 		}
 	}
 
@@ -1189,13 +2436,33 @@ public class URLCache {
 		}
 	}
 
+	private static class ResponseStatusWrapper {
+		public final ResponseStatus status;
+
+		// Log the creation time, to knows when it times out
+		public final long timestamp;
+
+		public ResponseStatusWrapper(ResponseStatus status) {
+			this(status, Utils.getCurrentTimestamp());
+		}
+
+		public ResponseStatusWrapper(ResponseStatus status, long timestamp) {
+			this.status = status;
+			this.timestamp = timestamp;
+		}
+	}
+
 	public static class ResponseStatus {
 		private Integer statusCode;
 		private String errorMessage;
+		private String eTag;
+		private String lastModified;
 
 		public ResponseStatus() {
 			this.statusCode = null;
 			this.errorMessage = null;
+			this.eTag = null;
+			this.lastModified = null;
 		}
 
 		public void setStatusCode(Integer statusCode) {
@@ -1218,36 +2485,121 @@ public class URLCache {
 			return this.statusCode != null && this.statusCode >= 200 && this.statusCode < 300;
 		}
 
+		public boolean isNotModified() {
+			return this.statusCode != null && this.statusCode == HttpStatus.SC_NOT_MODIFIED;
+		}
+
+		/**
+		 * @return True if the server could not be reached (connection refused, timeout, etc.).
+		 */
+		public boolean isConnectionFailure() {
+			return this.statusCode == null && this.errorMessage != null;
+		}
+
+		/**
+		 * @return True if the server could not be reached, or if it returned a server error (5xx).
+		 */
+		public boolean isServerFailure() {
+			return this.isConnectionFailure() || (this.statusCode != null && this.statusCode >= 500);
+		}
+
 		public String getErrorMessage() {
 			return this.errorMessage;
 		}
+
+		public String getETag() {
+			return this.eTag;
+		}
+		public void setETag(String eTag) {
+			this.eTag = eTag;
+		}
+
+		public String getLastModified() {
+			return this.lastModified;
+		}
+		public void setLastModified(String lastModified) {
+			this.lastModified = lastModified;
+		}
 	}
 
 	/**
 	 * {
 	 *     url: {
 	 *         file: "path/to/the/file",
-	 *         dataSourceId: "ea",
-	 *         downloadedTime: "2012-09-24 14:06:49",
+	 *         dataSourceIds: ["ea", "g", ...],
+	 *         category: "CAPABILITIES_DOCUMENT",
+	 *         downloadedTime: 1348459609000, // Epoch time, in milliseconds
+	 *         lastAccessDate: 1348459609125, // Epoch time, in milliseconds
 	 *         expiry: 60, // In minutes
+	 *         eTag: "\"3f80f-1b6-3e1cb03b\"", // HTTP validators, used to send conditional requests
+	 *         lastModified: "Wed, 15 Nov 1995 04:58:08 GMT",
+	 *         failureCount: 2, // Consecutive failed downloads (unreachable server or server error)
+	 *         retryAfter: 1348460209125, // Epoch time, in milliseconds. The URL is not re-downloaded before that time.
 	 *
 	 *         // Set when the file expired, the actual file is replace with this if it's approved by the application.
 	 *         tmpData: {
 	 *             file: "path/to/the/tmpFile",
-	 *             downloadedTime: "2012-09-24 15:07:34"
+	 *             httpStatusCode: 200,
+	 *             eTag: "\"3f80f-1b6-3e1cb03c\"",
+	 *             lastModified: "Thu, 16 Nov 1995 04:58:08 GMT"
 	 *         }
 	 *     }
 	 * }
+	 * The entry is typed in memory; the JSON representation is only used to save / load the cache map.
+	 * Dates saved by older versions ("2012-09-24 14:06:49") are still accepted.
+	 * The instance is not thread safe. It should only be accessed while holding the lock of its URL.
 	 * This class is protected to be used in URLCache class and in URLCacheTest class only.
  	 */
 	protected static class CachedFile {
-		// Date format: "2012-09-24 14:06:49"
-		private static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		// Cached files are named after the SHA-1 of their content (40 hexadecimal characters) + extension
+		private static final String CACHED_FILE_EXTENSION = ".bin";
+		private static final int CONTENT_FILENAME_LENGTH = 40 + CACHED_FILE_EXTENSION.length();
+		// Folder, in the cache folder, where the files are downloaded before being stored in the cache
+		private static final String DOWNLOAD_FOLDER = "downloads";
+		// Files in the download folder that has not been modified for that long are considered abandoned
+		private static final long ABANDONED_DOWNLOAD_TIMEOUT = 24 * 60 * NB_MS_PER_MINUTE;
+		// Lock used to synchronise the storage of new files with the deletion of unused files
+		private static final Object fileStoreLock = new Object();
+
+		// Legacy date format, used to load old cache map files: "2012-09-24 14:06:49"
+		// NOTE: SimpleDateFormat is not thread safe. The date formats have to be used in a synchronized block.
+		private static final SimpleDateFormat legacyDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 		// Precise to the millisecond "2012-09-24 14:06:49:125"
-		private static SimpleDateFormat lastAccessDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:S");
-
-		JSONObject jsonCachedFile;
-		File cacheFolder;
+		private static final SimpleDateFormat legacyLastAccessDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:S");
+
+		private File cacheFolder;
+
+		// The catalog containing this entry, used to keep its indexes up to date. Null when the entry is not in the catalog.
+		private URLCacheCatalog catalog;
+		private String url;
+
+		// True until an attribute is set (the last access date is ignored)
+		private boolean empty;
+
+		private String filename;
+		private Set<String> dataSourceIds;
+		private Category category;
+		private long downloadedTime; // Epoch time in ms, -1 if unknown
+		private long lastAccessDate; // Epoch time in ms, -1 if unknown
+		private int expiry;
+		private boolean markedForReDownload;
+		private Integer httpStatusCode;
+		private boolean approved;
+		private String redirection;
+		private boolean mandatory;
+		private String errorMsg;
+		// HTTP validators of the file, as returned by the server
+		private String eTag;
+		private String lastModified;
+		// Negative cache; consecutive failed downloads
+		private int failureCount;
+		private long retryAfter; // Epoch time in ms, -1 if none
+
+		private boolean temporaryData;
+		private String temporaryFilename;
+		private Integer temporaryHttpStatusCode;
+		private String temporaryETag;
+		private String temporaryLastModified;
 
 		/**
 		 * @param cacheFolder
@@ -1259,9 +2611,8 @@ public class URLCache {
 		 * @throws JSONException
 		 */
 		public CachedFile(File cacheFolder, String dataSourceId, String filename, Category category, Date downloadedTime, int expiry, boolean mandatory) throws JSONException {
-			this.cacheFolder = cacheFolder;
+			this(cacheFolder);
 
-			this.jsonCachedFile = new JSONObject();
 			if (dataSourceId != null) {
 				this.addDataSourceId(dataSourceId);
 			}
@@ -1273,81 +2624,364 @@ public class URLCache {
 		}
 
 		public CachedFile(File cacheFolder, JSONObject json) throws JSONException {
+			this(cacheFolder);
+
+			if (json != null) {
+				this.loadJSON(json);
+			}
+		}
+
+		private CachedFile(File cacheFolder) {
 			this.cacheFolder = cacheFolder;
+			this.catalog = null;
+			this.url = null;
+
+			this.empty = true;
+			this.dataSourceIds = new LinkedHashSet<String>();
+			this.downloadedTime = -1;
+			this.lastAccessDate = -1;
+			this.expiry = CACHE_TIMEOUT;
+			this.failureCount = 0;
+			this.retryAfter = -1;
+		}
+
+		private void loadJSON(JSONObject json) throws JSONException {
+			this.filename = json.optString("file", null);
+
+			JSONArray jsonDataSourceIds = json.optJSONArray("dataSourceIds");
+			if (jsonDataSourceIds != null) {
+				for (int i=0; i<jsonDataSourceIds.length(); i++) {
+					String dataSourceId = jsonDataSourceIds.optString(i, null);
+					if (dataSourceId != null) {
+						this.dataSourceIds.add(dataSourceId.intern());
+					}
+				}
+			}
+
+			String categoryStr = json.optString("category", null);
+			if (categoryStr != null) {
+				try {
+					this.category = Category.valueOf(categoryStr);
+				} catch (IllegalArgumentException ex) {
+					LOGGER.log(Level.WARNING, "Invalid cache category: {0}", categoryStr);
+				}
+			}
+
+			this.downloadedTime = parseTimestamp(json.opt("downloadedTime"), legacyDateFormat);
+			this.lastAccessDate = parseTimestamp(json.opt("lastAccessDate"), legacyLastAccessDateFormat);
+			this.expiry = json.optInt("expiry", CACHE_TIMEOUT);
+			this.markedForReDownload = json.optBoolean("markedForReDownload", false);
+			this.httpStatusCode = json.has("httpStatusCode") ? json.optInt("httpStatusCode") : null;
+			this.approved = json.optBoolean("approved", false);
+			this.redirection = json.optString("redirection", null);
+			this.mandatory = json.optBoolean("mandatory", false);
+			this.errorMsg = json.optString("errorMsg", null);
+			this.eTag = json.optString("eTag", null);
+			this.lastModified = json.optString("lastModified", null);
+			this.failureCount = json.optInt("failureCount", 0);
+			this.retryAfter = json.optLong("retryAfter", -1);
+
+			JSONObject jsonTmpData = json.optJSONObject("tmpData");
+			if (jsonTmpData != null) {
+				this.temporaryData = true;
+				this.temporaryFilename = jsonTmpData.optString("file", null);
+				this.temporaryHttpStatusCode = jsonTmpData.has("httpStatusCode") ? jsonTmpData.optInt("httpStatusCode") : null;
+				this.temporaryETag = jsonTmpData.optString("eTag", null);
+				this.temporaryLastModified = jsonTmpData.optString("lastModified", null);
+			}
+
+			// Same behaviour as before; an entry containing nothing else than a last access date is considered empty.
+			int nbIgnoredAttribute = json.has("lastAccessDate") ? 1 : 0;
+			this.empty = json.length() <= nbIgnoredAttribute;
+		}
+
+		private static long parseTimestamp(Object value, SimpleDateFormat legacyFormat) {
+			if (value == null) {
+				return -1;
+			}
+			if (value instanceof Number) {
+				return ((Number)value).longValue();
+			}
+
+			String valueStr = value.toString();
+			try {
+				return Long.parseLong(valueStr);
+			} catch (NumberFormatException ex) {
+				// Legacy date format
+				try {
+					synchronized (legacyFormat) {
+						return legacyFormat.parse(valueStr).getTime();
+					}
+				} catch (ParseException e) {
+					LOGGER.log(Level.WARNING, "Can not parse the date \"{0}\": {1}",
+							new String[]{ valueStr, Utils.getExceptionMessage(e) });
+					LOGGER.log(Level.FINE, "Stack trace: ", e);
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return A copy of this entry, not associated with the catalog.
+		 */
+		public CachedFile copy() throws JSONException {
+			JSONObject json = this.toJSON();
+			CachedFile copy = new CachedFile(this.cacheFolder, json);
 			if (json == null) {
-				json = new JSONObject();
+				copy.lastAccessDate = this.lastAccessDate;
+			}
+			return copy;
+		}
+
+		// Called by the catalog
+		protected void attach(URLCacheCatalog catalog, String url) {
+			this.catalog = catalog;
+			this.url = url;
+		}
+		protected void detach() {
+			this.catalog = null;
+			this.url = null;
+		}
+
+		// Notify the catalog that the entry need to be saved
+		private void modified() {
+			if (this.catalog != null) {
+				this.catalog.setModified(this.url);
 			}
-			this.jsonCachedFile = json;
 		}
 
-		public JSONObject toJSON() {
+		public JSONObject toJSON() throws JSONException {
 			if (this.isEmpty()) {
 				return null;
 			}
-			return this.jsonCachedFile;
-		}
 
-		public boolean isEmpty() {
-			int nbIgnoredAttribute = 0;
-			if (this.jsonCachedFile.has("lastAccessDate")) {
-				nbIgnoredAttribute++;
+			JSONObject json = new JSONObject();
+			if (this.filename != null) {
+				json.put("file", this.filename);
+			}
+			if (!this.dataSourceIds.isEmpty()) {
+				json.put("dataSourceIds", new JSONArray(this.dataSourceIds));
+			}
+			if (this.category != null) {
+				json.put("category", this.category.name());
+			}
+			if (this.downloadedTime >= 0) {
+				json.put("downloadedTime", this.downloadedTime);
+			}
+			if (this.lastAccessDate >= 0) {
+				json.put("lastAccessDate", this.lastAccessDate);
+			}
+			json.put("expiry", this.expiry);
+			if (this.markedForReDownload) {
+				json.put("markedForReDownload", true);
+			}
+			if (this.httpStatusCode != null) {
+				json.put("httpStatusCode", this.httpStatusCode);
+			}
+			json.put("approved", this.approved);
+			if (this.redirection != null) {
+				json.put("redirection", this.redirection);
+			}
+			json.put("mandatory", this.mandatory);
+			if (this.errorMsg != null) {
+				json.put("errorMsg", this.errorMsg);
+			}
+			if (this.eTag != null) {
+				json.put("eTag", this.eTag);
+			}
+			if (this.lastModified != null) {
+				json.put("lastModified", this.lastModified);
+			}
+			if (this.failureCount > 0) {
+				json.put("failureCount", this.failureCount);
+			}
+			if (this.retryAfter >= 0) {
+				json.put("retryAfter", this.retryAfter);
+			}
+			if (this.temporaryData) {
+				JSONObject jsonTmpData = new JSONObject();
+				if (this.temporaryFilename != null) {
+					jsonTmpData.put("file", this.temporaryFilename);
+				}
+				if (this.temporaryHttpStatusCode != null) {
+					jsonTmpData.put("httpStatusCode", this.temporaryHttpStatusCode);
+				}
+				if (this.temporaryETag != null) {
+					jsonTmpData.put("eTag", this.temporaryETag);
+				}
+				if (this.temporaryLastModified != null) {
+					jsonTmpData.put("lastModified", this.temporaryLastModified);
+				}
+				json.put("tmpData", jsonTmpData);
 			}
 
-			return this.jsonCachedFile.length() <= nbIgnoredAttribute;
+			return json;
 		}
 
-		public static String generateFilename(File cacheFolder, String urlStr) {
-			File folder = CachedFile.getCachedFileFolder(cacheFolder);
+		public boolean isEmpty() {
+			return this.empty;
+		}
 
-			String host = null;
-			try {
-				URL url = Utils.toURL(urlStr);
-				host = url.getHost();
-			} catch (Exception ex) {
-				LOGGER.log(Level.WARNING, "Malformed URL: " + urlStr);
+		/**
+		 * Create an empty file, in the download folder, to receive a download.
+		 * The file has to be stored in the cache using storeDownloadedFile once the download is done.
+		 * @param cacheFolder
+		 * @return
+		 */
+		public static File createDownloadFile(File cacheFolder) throws IOException {
+			File downloadFolder = new File(cacheFolder, DOWNLOAD_FOLDER);
+			downloadFolder.mkdirs();
+			return File.createTempFile("download_", ".part", downloadFolder);
+		}
+
+		/**
+		 * Move a downloaded file into the cache files folder and set it as the file
+		 * (or the temporary file) of this entry.
+		 * The file is named after the SHA-1 of its content. If an identical file is already
+		 * in the cache (downloaded for an other URL, or the previous download of this URL),
+		 * the downloaded file is deleted and the existing file is used.
+		 * @param downloadedFile The file created by createDownloadFile. If the file do not exists
+		 *     (nothing has been downloaded), the filename of the entry is set to null.
+		 * @param temporary True to set the file as the temporary file of the entry.
+		 */
+		public void storeDownloadedFile(File downloadedFile, boolean temporary) throws IOException, JSONException {
+			String filename = null;
+			if (downloadedFile != null && downloadedFile.exists()) {
+				try {
+					filename = Utils.toHex(Utils.sha1sum(downloadedFile)) + CACHED_FILE_EXTENSION;
+				} catch (NoSuchAlgorithmException ex) {
+					throw new IOException("Can not calculate the file checksum: " + Utils.getExceptionMessage(ex), ex);
+				}
 			}
-			if (host == null) {
-				host = "unknown";
+
+			// The file must not be deleted (as unused) between the moment it's stored and the moment it's referenced.
+			synchronized (fileStoreLock) {
+				if (filename != null) {
+					File file = CachedFile.getCachedFile(this.getCachedFileFolder(), filename);
+					if (file.exists()) {
+						// Same content; the file is already in the cache
+						downloadedFile.delete();
+					} else {
+						file.getParentFile().mkdirs();
+						if (!downloadedFile.renameTo(file)) {
+							Utils.recursiveFileCopy(downloadedFile, file, true);
+							downloadedFile.delete();
+						}
+					}
+				}
+
+				if (temporary) {
+					this.setTemporaryFilename(filename);
+				} else {
+					this.setFilename(filename);
+				}
 			}
+		}
 
-			String prefix = host.replace('.', '_').replaceAll("[^a-zA-Z0-9]", "-");
-			String extension = ".bin";
+		/**
+		 * Delete the file and the temporary file of this entry, unless they are used by other entries.
+		 */
+		public void deleteFiles() throws JSONException {
+			String filename = this.getFilename();
+			String temporaryFilename = this.getTemporaryFilename();
 
-			int counter = 0;
-			String filename = prefix + extension;
-			File testedFile = new File(folder, filename);
-			while (testedFile.exists()) {
-				counter++;
-				filename = prefix + "_" + counter + extension;
-				testedFile = new File(folder, filename);
+			this.setFilename(null);
+			if (this.hasTemporaryData()) {
+				this.setTemporaryFilename(null);
 			}
 
-			return filename;
+			this.deleteFileIfUnused(filename);
+			this.deleteFileIfUnused(temporaryFilename);
+		}
+
+		// Delete the file if no entry of the catalog refers to it.
+		private void deleteFileIfUnused(String filename) {
+			CachedFile.deleteFileIfUnused(this.catalog, this.getCachedFileFolder(), filename);
+		}
+
+		/**
+		 * Delete a file of the cache files folder, if no entry of the catalog refers to it.
+		 * @return True if the file has been deleted.
+		 */
+		private static boolean deleteFileIfUnused(URLCacheCatalog catalog, File cachedFileFolder, String filename) {
+			if (filename == null) {
+				return false;
+			}
+			synchronized (fileStoreLock) {
+				if (catalog != null && catalog.containsFilename(filename)) {
+					return false;
+				}
+				File file = CachedFile.getCachedFile(cachedFileFolder, filename);
+				return file.exists() && file.delete();
+			}
 		}
 
-		public String[] getDataSourceIds() throws JSONException {
-			JSONArray dataSourceIds = this.jsonCachedFile.optJSONArray("dataSourceIds");
-			if (dataSourceIds == null) {
-				dataSourceIds = new JSONArray();
-				this.jsonCachedFile.put("dataSourceIds", dataSourceIds);
+		/**
+		 * Delete the files of the cache files folder that are not used by the entries of the catalog,
+		 * and the downloads that has been abandoned (the application stopped during the download).
+		 * @param catalog
+		 * @param cacheFolder
+		 */
+		private static void purgeFiles(URLCacheCatalog catalog, File cacheFolder) {
+			File cachedFileFolder = CachedFile.getCachedFileFolder(cacheFolder);
+			File[] files = cachedFileFolder.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.isDirectory()) {
+						File[] subFiles = file.listFiles();
+						if (subFiles != null) {
+							for (File subFile : subFiles) {
+								CachedFile.deleteFileIfUnused(catalog, cachedFileFolder, subFile.getName());
+							}
+						}
+						synchronized (fileStoreLock) {
+							// Only deleted if empty
+							file.delete();
+						}
+					} else {
+						CachedFile.deleteFileIfUnused(catalog, cachedFileFolder, file.getName());
+					}
+				}
+			}
+
+			File[] downloadFiles = new File(cacheFolder, DOWNLOAD_FOLDER).listFiles();
+			if (downloadFiles != null) {
+				long threshold = System.currentTimeMillis() - ABANDONED_DOWNLOAD_TIMEOUT;
+				for (File downloadFile : downloadFiles) {
+					if (downloadFile.lastModified() < threshold) {
+						downloadFile.delete();
+					}
+				}
 			}
+		}
 
-			int len = dataSourceIds.length();
-			String[] dataSourceIdsArray = new String[len];
-			for (int i=0; i<len; i++) {
-				dataSourceIdsArray[i] = dataSourceIds.optString(i, null);
+		/**
+		 * Return the file, in the cache files folder, for the given filename.
+		 * The files named after their content are stored in sub-folders named after the
+		 * first 2 characters of the name, to keep the folders small. Files created by older
+		 * versions of the application (host.bin, host_1.bin, etc.) are in the cache files folder.
+		 */
+		private static File getCachedFile(File cachedFileFolder, String filename) {
+			if (filename.length() == CONTENT_FILENAME_LENGTH && filename.endsWith(CACHED_FILE_EXTENSION)) {
+				return new File(new File(cachedFileFolder, filename.substring(0, 2)), filename);
 			}
+			return new File(cachedFileFolder, filename);
+		}
 
-			return dataSourceIdsArray;
+		public String[] getDataSourceIds() {
+			return this.dataSourceIds.toArray(new String[this.dataSourceIds.size()]);
 		}
 		public void addDataSourceId(String dataSourceId) throws JSONException {
-			JSONArray dataSourceIds = this.jsonCachedFile.optJSONArray("dataSourceIds");
-			if (dataSourceIds == null) {
-				dataSourceIds = new JSONArray();
-				this.jsonCachedFile.put("dataSourceIds", dataSourceIds);
+			if (dataSourceId == null) {
+				return;
 			}
-
-			dataSourceIds.put(dataSourceId);
+			// The same few data source IDs are repeated in every entries of the cache.
+			String internedDataSourceId = dataSourceId.intern();
+			if (this.dataSourceIds.add(internedDataSourceId) && this.catalog != null) {
+				this.catalog.indexDataSourceId(this.url, internedDataSourceId);
+			}
+			this.empty = false;
+			this.modified();
 		}
 
 		/**
@@ -1356,38 +2990,17 @@ public class URLCache {
 		 * @return True if the list of data source is empty after the remove.
 		 */
 		public boolean removeDataSourceId(String dataSourceId) {
-			boolean isEmpty = true;
-			JSONArray dataSourceIds = this.jsonCachedFile.optJSONArray("dataSourceIds");
-			if (dataSourceIds != null) {
-				int len = dataSourceIds.length();
-				if (dataSourceId != null) {
-					for (int i=0; i<len; i++) {
-						if (dataSourceId.equals(dataSourceIds.optString(i, null))) {
-							dataSourceIds.remove(i);
-							i--;
-							len--;
-						}
-					}
-				}
-				isEmpty = len <= 0;
+			if (dataSourceId != null && this.dataSourceIds.remove(dataSourceId) && this.catalog != null) {
+				this.catalog.unindexDataSourceId(this.url, dataSourceId);
+				this.catalog.setModified(this.url);
 			}
 
-			return isEmpty;
+			return this.dataSourceIds.isEmpty();
 		}
 		public boolean hasDataSourceId(String dataSourceId) {
 			if (dataSourceId == null) { return false; }
 
-			JSONArray dataSourceIds = this.jsonCachedFile.optJSONArray("dataSourceIds");
-			if (dataSourceIds == null) { return false; }
-
-			int len = dataSourceIds.length();
-			for (int i=0; i<len; i++) {
-				if (dataSourceId.equals(dataSourceIds.optString(i, null))) {
-					return true;
-				}
-			}
-
-			return false;
+			return this.dataSourceIds.contains(dataSourceId);
 		}
 
 		public File getCachedFileFolder() {
@@ -1400,18 +3013,32 @@ public class URLCache {
 		}
 
 		public String getFilename() {
-			return this.jsonCachedFile.optString("file", null);
+			return this.filename;
 		}
 		public void setFilename(String file) throws JSONException {
-			this.jsonCachedFile.put("file", file);
+			if (this.catalog != null) {
+				// The old filename may still be referenced by the temporary data
+				if (this.filename != null && !this.filename.equals(this.temporaryFilename)) {
+					this.catalog.unindexFilename(this.url, this.filename);
+				}
+				this.catalog.indexFilename(this.url, file);
+			}
+			this.filename = file;
+			this.empty = false;
+			this.modified();
 		}
 
 		public Category getCategory() {
-			String categoryStr = this.jsonCachedFile.optString("category", null);
-			return categoryStr == null ? null : Category.valueOf(categoryStr);
+			return this.category;
 		}
 		public void setCategory(Category category) throws JSONException {
-			this.jsonCachedFile.put("category", category.name());
+			if (this.catalog != null) {
+				this.catalog.unindexCategory(this.url, this.category);
+				this.catalog.indexCategory(this.url, category);
+			}
+			this.category = category;
+			this.empty = false;
+			this.modified();
 		}
 
 		public File getFile() {
@@ -1419,96 +3046,73 @@ public class URLCache {
 			if (filename == null) {
 				return null;
 			}
-			return new File(this.getCachedFileFolder(), filename);
+			return CachedFile.getCachedFile(this.getCachedFileFolder(), filename);
 		}
 
 		public Date getDownloadedTime() {
-			String downloadedTimeStr = this.jsonCachedFile.optString("downloadedTime", null);
-			if (downloadedTimeStr == null) {
-				return null;
-			}
-
-			Date downloadedTime = null;
-			try {
-				downloadedTime = dateFormat.parse(downloadedTimeStr);
-			} catch (ParseException e) {
-				LOGGER.log(Level.WARNING, "Can not parse the downloaded time \"{0}\": {1}",
-						new String[]{ downloadedTimeStr, Utils.getExceptionMessage(e) });
-				LOGGER.log(Level.FINE, "Stack trace: ", e);
-			}
-
-			return downloadedTime;
+			return this.downloadedTime < 0 ? null : new Date(this.downloadedTime);
+		}
+		// Epoch time in milliseconds, -1 if unknown
+		public long getDownloadedTimestamp() {
+			return this.downloadedTime;
 		}
 		public void setDownloadedTime(Date downloadedTime) throws JSONException {
-			this.jsonCachedFile.put("downloadedTime", dateFormat.format(downloadedTime));
+			this.downloadedTime = downloadedTime == null ? -1 : downloadedTime.getTime();
+			this.empty = false;
+			this.modified();
 		}
 
 		public Date getLastAccessDate() {
-			String dateStr = this.jsonCachedFile.optString("lastAccessDate", null);
-			if (dateStr == null) {
-				return null;
-			}
-
-			Date date = null;
-			try {
-				date = lastAccessDateFormat.parse(dateStr);
-			} catch (ParseException e) {
-				LOGGER.log(Level.WARNING, "Can not parse the last access time \"{0}\": {1}",
-						new String[]{ dateStr, Utils.getExceptionMessage(e) });
-				LOGGER.log(Level.FINE, "Stack trace: ", e);
-			}
-			return date;
+			return this.lastAccessDate < 0 ? null : new Date(this.lastAccessDate);
+		}
+		// Epoch time in milliseconds, -1 if unknown
+		public long getLastAccessTimestamp() {
+			return this.lastAccessDate;
 		}
-
 		// Set last access date to "Now"
 		public void setLastAccessDate() throws JSONException {
-			this.setLastAccessDate(new Date());
+			this.lastAccessDate = System.currentTimeMillis();
+			this.modified();
 		}
 		public void setLastAccessDate(Date date) throws JSONException {
-			this.setLastAccessDate(lastAccessDateFormat.format(date));
-		}
-		public void setLastAccessDate(String date) throws JSONException {
-			this.jsonCachedFile.put("lastAccessDate", date);
+			this.lastAccessDate = date == null ? -1 : date.getTime();
+			this.modified();
 		}
 
 		public int getExpiry() {
-			return this.jsonCachedFile.optInt("expiry", CACHE_TIMEOUT);
+			return this.expiry;
 		}
 		public void setExpiry(int expiry) throws JSONException {
-			this.jsonCachedFile.put("expiry", expiry);
+			this.expiry = expiry;
+			this.empty = false;
+			this.modified();
 		}
 
 		public boolean isMarkedForReDownload() {
-			return this.jsonCachedFile.optBoolean("markedForReDownload", false);
+			return this.markedForReDownload;
 		}
 		public void setMarkedForReDownload(boolean markedForReDownload) throws JSONException {
-			if (markedForReDownload) {
-				this.jsonCachedFile.put("markedForReDownload", true);
-			} else {
-				// Missing = false.
-				this.jsonCachedFile.remove("markedForReDownload");
-			}
+			this.markedForReDownload = markedForReDownload;
+			this.empty = false;
+			this.modified();
 		}
 
 		public Integer getHttpStatusCode() {
-			if (!this.jsonCachedFile.has("httpStatusCode")) {
-				return null;
-			}
-			return this.jsonCachedFile.optInt("httpStatusCode");
+			return this.httpStatusCode;
 		}
 		public void setHttpStatusCode(Integer statusCode) throws JSONException {
-			if (statusCode == null) {
-				this.jsonCachedFile.remove("httpStatusCode");
-			} else {
-				this.jsonCachedFile.put("httpStatusCode", statusCode);
-			}
+			this.httpStatusCode = statusCode;
+			this.empty = false;
+			this.modified();
 		}
 
 		public boolean isApproved() {
-			return this.jsonCachedFile.optBoolean("approved", false);
+			return this.approved;
 		}
 		public void setApproved(boolean approved) throws JSONException {
-			this.jsonCachedFile.put("approved", approved);
+			this.approved = approved;
+			this.empty = false;
+			this.modified();
 		}
 
 		/**
@@ -1528,49 +3132,113 @@ public class URLCache {
 		 * @return
 		 */
 		public String getRedirection() {
-			return this.jsonCachedFile.optString("redirection", null);
+			return this.redirection;
 		}
 		public void setRedirection(String url) throws JSONException {
-			this.jsonCachedFile.put("redirection", url);
+			this.redirection = url;
+			this.empty = false;
+			this.modified();
 		}
 
 		public boolean isMandatory() {
-			return this.jsonCachedFile.optBoolean("mandatory", false);
+			return this.mandatory;
 		}
-
 		/**
 		 * @param mandatory True to cancel the client generation if the file cause problem
 		 * @throws JSONException
 		 */
 		public void setMandatory(boolean mandatory) throws JSONException {
-			this.jsonCachedFile.put("mandatory", mandatory);
+			this.mandatory = mandatory;
+			this.empty = false;
+			this.modified();
 		}
 
 		public String getLatestErrorMessage() {
-			return this.jsonCachedFile.optString("errorMsg", null);
+			return this.errorMsg;
 		}
 		public void setLatestErrorMessage(String errorMsg) throws JSONException {
-			if (Utils.isBlank(errorMsg)) {
-				this.jsonCachedFile.remove("errorMsg");
-			} else {
-				this.jsonCachedFile.put("errorMsg", errorMsg);
+			this.errorMsg = Utils.isBlank(errorMsg) ? null : errorMsg;
+			this.empty = false;
+			this.modified();
+		}
+
+		public String getETag() {
+			return this.eTag;
+		}
+		public void setETag(String eTag) throws JSONException {
+			this.eTag = Utils.isBlank(eTag) ? null : eTag;
+			this.empty = false;
+			this.modified();
+		}
+
+		public String getLastModified() {
+			return this.lastModified;
+		}
+		public void setLastModified(String lastModified) throws JSONException {
+			this.lastModified = Utils.isBlank(lastModified) ? null : lastModified;
+			this.empty = false;
+			this.modified();
+		}
+
+		/**
+		 * Update the HTTP validators of the approved file, with the ones sent
+		 * with a 304 (Not Modified). The validators that are not sent are kept.
+		 */
+		public void setValidators(String eTag, String lastModified) throws JSONException {
+			if (Utils.isNotBlank(eTag)) {
+				this.setETag(eTag);
+			}
+			if (Utils.isNotBlank(lastModified)) {
+				this.setLastModified(lastModified);
 			}
 		}
 
-		public String getTemporaryFilename() {
-			JSONObject jsonTmpFile = this.jsonCachedFile.optJSONObject("tmpData");
-			if (jsonTmpFile == null) {
-				return null;
+		public int getFailureCount() {
+			return this.failureCount;
+		}
+		public long getRetryAfter() {
+			return this.retryAfter;
+		}
+
+		/**
+		 * Record a failed download. The URL is not re-downloaded before a delay,
+		 * which double after each consecutive failure.
+		 * @param now
+		 */
+		public void setFailure(long now) throws JSONException {
+			this.failureCount++;
+			this.retryAfter = now + getFailureBackoff(this.failureCount);
+			this.empty = false;
+			this.modified();
+		}
+
+		/**
+		 * Record a successful download; forget about the previous failures.
+		 */
+		public void setSuccess() throws JSONException {
+			if (this.failureCount > 0 || this.retryAfter >= 0) {
+				this.failureCount = 0;
+				this.retryAfter = -1;
+				this.empty = false;
+				this.modified();
 			}
-			return jsonTmpFile.optString("file", null);
+		}
+
+		public String getTemporaryFilename() {
+			return this.temporaryFilename;
 		}
 		public void setTemporaryFilename(String file) throws JSONException {
-			JSONObject jsonTmpFile = this.jsonCachedFile.optJSONObject("tmpData");
-			if (jsonTmpFile == null) {
-				jsonTmpFile = new JSONObject();
-				this.jsonCachedFile.put("tmpData", jsonTmpFile);
+			if (this.catalog != null) {
+				// The old temporary filename may still be referenced as the main file
+				if (this.temporaryFilename != null && !this.temporaryFilename.equals(this.filename)) {
+					this.catalog.unindexFilename(this.url, this.temporaryFilename);
+				}
+				this.catalog.indexFilename(this.url, file);
 			}
-			jsonTmpFile.put("file", file);
+			this.temporaryFilename = file;
+			this.temporaryData = true;
+			this.empty = false;
+			this.modified();
 		}
 
 		public File getTemporaryFile() {
@@ -1578,38 +3246,51 @@ public class URLCache {
 			if (temporaryFilename == null) {
 				return null;
 			}
-			return new File(this.getCachedFileFolder(), temporaryFilename);
+			return CachedFile.getCachedFile(this.getCachedFileFolder(), temporaryFilename);
 		}
 
 		public Integer getTemporaryHttpStatusCode() {
-			JSONObject jsonTmpFile = this.jsonCachedFile.optJSONObject("tmpData");
-			if (jsonTmpFile == null) {
-				return null;
-			}
-			if (!jsonTmpFile.has("httpStatusCode")) {
-				return null;
-			}
-			return jsonTmpFile.optInt("httpStatusCode");
+			return this.temporaryHttpStatusCode;
 		}
 		public void setTemporaryHttpStatusCode(Integer statusCode) throws JSONException {
-			JSONObject jsonTmpFile = this.jsonCachedFile.optJSONObject("tmpData");
-			if (jsonTmpFile == null) {
-				jsonTmpFile = new JSONObject();
-				this.jsonCachedFile.put("tmpData", jsonTmpFile);
-			}
-			if (statusCode == null) {
-				jsonTmpFile.remove("httpStatusCode");
-			} else {
-				jsonTmpFile.put("httpStatusCode", statusCode);
-			}
+			this.temporaryHttpStatusCode = statusCode;
+			this.temporaryData = true;
+			this.empty = false;
+			this.modified();
+		}
+
+		public String getTemporaryETag() {
+			return this.temporaryETag;
+		}
+		public String getTemporaryLastModified() {
+			return this.temporaryLastModified;
+		}
+		/**
+		 * Set the HTTP validators of the temporary file. They replace the validators
+		 * of the file when the temporary file is approved.
+		 */
+		public void setTemporaryValidators(String eTag, String lastModified) throws JSONException {
+			this.temporaryETag = Utils.isBlank(eTag) ? null : eTag;
+			this.temporaryLastModified = Utils.isBlank(lastModified) ? null : lastModified;
+			this.temporaryData = true;
+			this.empty = false;
+			this.modified();
 		}
 
 		public boolean hasTemporaryData() {
-			return this.jsonCachedFile.has("tmpData");
+			return this.temporaryData;
 		}
 
 		public void discardTemporaryData() {
-			this.jsonCachedFile.remove("tmpData");
+			if (this.catalog != null && this.temporaryFilename != null && !this.temporaryFilename.equals(this.filename)) {
+				this.catalog.unindexFilename(this.url, this.temporaryFilename);
+			}
+			this.temporaryData = false;
+			this.temporaryFilename = null;
+			this.temporaryHttpStatusCode = null;
+			this.temporaryETag = null;
+			this.temporaryLastModified = null;
+			this.modified();
 		}
 
 		/**
@@ -1617,19 +3298,22 @@ public class URLCache {
 		 * of replacing the current cached file with the last sent file.
 		 */
 		public void commit(File approvedFile) throws IOException, JSONException {
-			File oldFile = this.getFile();
+			String oldFilename = this.getFilename();
 
 			String tmpFilename = this.getTemporaryFilename();
 			Integer tmpHttpStatusCode = this.getTemporaryHttpStatusCode();
 			if (tmpFilename != null && approvedFile != null && tmpFilename.equals(approvedFile.getName())) {
 				this.setFilename(tmpFilename);
 				this.setHttpStatusCode(tmpHttpStatusCode);
+				this.setETag(this.getTemporaryETag());
+				this.setLastModified(this.getTemporaryLastModified());
 
 				this.discardTemporaryData();
 
-				// Clean the directory
-				if (oldFile != null && oldFile.exists()) {
-					oldFile.delete();
+				// Clean the directory. The new file may be the same as the old one (same content),
+				// and the old file may be used by other URLs.
+				if (oldFilename != null && !oldFilename.equals(tmpFilename)) {
+					this.deleteFileIfUnused(oldFilename);
 					this.cleanUpFilenames();
 				}
 			}
@@ -1681,7 +3365,12 @@ public class URLCache {
 					rollbackFile = unapprovedFile;
 				} else {
 					// Normal behaviour
-					unapprovedFile.delete();
+					String unapprovedFilename = unapprovedFile.getName();
+					if (unapprovedFilename.equals(this.getFilename())) {
+						this.setFilename(null);
+					}
+					// The file may be used by other URLs (same content)
+					this.deleteFileIfUnused(unapprovedFilename);
 					this.cleanUpFilenames();
 				}
 			}
@@ -1710,6 +3399,14 @@ public class URLCache {
 		}
 	}
 
+	/**
+	 * How the metadata records (MEST) of a host are found (see TC211Parser.parseURL).
+	 */
+	public enum MetadataUrlStrategy {
+		DIRECT, // The metadata URLs of the capabilities document return the records
+		GEONETWORK // The URLs have to be crafted (see TC211Parser.craftGeoNetworkMestUrl)
+	}
+
 	public enum Category {
 		ALL, // Used to clear all cache of a data source
 		CAPABILITIES_DOCUMENT, // Capabilities document (WMS, ncWMS), JSON document (ARC Gis), ...
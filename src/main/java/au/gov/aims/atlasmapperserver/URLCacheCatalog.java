@@ -0,0 +1,518 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory catalog of the URLCache; URL => CachedFile.
+ * The catalog maintain indexes by data source ID, category and filename, so the
+ * operations concerning a data source (or a file) do not have to go through the whole cache.
+ *
+ * The indexes are updated by the CachedFile setters, when the entry is in the catalog.
+ * The catalog also keep track of the modified entries, so only those need to be
+ * written to the journal when the cache map is saved.
+ * Like the CachedFile, the indexes of an entry should only be modified while holding the lock of its URL.
+ *
+ * The catalog also keep the status of the hosts which are not responding, and the metadata
+ * URL strategy that works with each host (see HostStatus), saved with the entries.
+ *
+ * This class is used by the URLCache class and the URLCacheTest class only.
+ */
+class URLCacheCatalog {
+	// ConcurrentHashMap<String url, CachedFile entry>
+	private final ConcurrentHashMap<String, URLCache.CachedFile> entries;
+
+	// Secondary indexes; key => set of URLs
+	private final Map<String, Set<String>> urlsByDataSourceId;
+	private final Map<URLCache.Category, Set<String>> urlsByCategory;
+	// Index of the files (and temporary files) of the entries
+	private final Map<String, Set<String>> urlsByFilename;
+
+	// URLs of the entries added, modified or removed since the last save
+	private final Set<String> modifiedURLs;
+
+	// ConcurrentHashMap<String host, HostStatus status>
+	private final ConcurrentHashMap<String, HostStatus> hostStatuses;
+	private final Set<String> modifiedHosts;
+
+	public URLCacheCatalog() {
+		this.entries = new ConcurrentHashMap<String, URLCache.CachedFile>();
+		this.urlsByDataSourceId = new HashMap<String, Set<String>>();
+		this.urlsByCategory = new EnumMap<URLCache.Category, Set<String>>(URLCache.Category.class);
+		this.urlsByFilename = new HashMap<String, Set<String>>();
+		this.modifiedURLs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.hostStatuses = new ConcurrentHashMap<String, HostStatus>();
+		this.modifiedHosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
+
+	public URLCache.CachedFile get(String url) {
+		if (url == null) {
+			return null;
+		}
+		return this.entries.get(url);
+	}
+
+	/**
+	 * Add the entry to the catalog and index it.
+	 * An entry can only be in the catalog once; use CachedFile.copy() to add the same entry for an other URL.
+	 * @param url
+	 * @param cachedFile
+	 */
+	public void put(String url, URLCache.CachedFile cachedFile) {
+		if (url == null || cachedFile == null) {
+			return;
+		}
+
+		URLCache.CachedFile oldCachedFile = this.entries.put(url, cachedFile);
+		if (oldCachedFile != null && oldCachedFile != cachedFile) {
+			this.unindex(url, oldCachedFile);
+			oldCachedFile.detach();
+		}
+
+		cachedFile.attach(this, url);
+		this.index(url, cachedFile);
+		this.setModified(url);
+	}
+
+	public URLCache.CachedFile remove(String url) {
+		if (url == null) {
+			return null;
+		}
+
+		URLCache.CachedFile cachedFile = this.entries.remove(url);
+		if (cachedFile != null) {
+			this.unindex(url, cachedFile);
+			cachedFile.detach();
+			this.setModified(url);
+		}
+		return cachedFile;
+	}
+
+	public boolean contains(String url) {
+		return url != null && this.entries.containsKey(url);
+	}
+
+	public int size() {
+		return this.entries.size();
+	}
+
+	public boolean isEmpty() {
+		return this.entries.isEmpty();
+	}
+
+	/**
+	 * @return A live view of the URLs of the catalog. The view is safe to iterate while
+	 *     the catalog is modified.
+	 */
+	public Set<String> getURLs() {
+		return this.entries.keySet();
+	}
+
+	/**
+	 * @return A copy of the set of URLs associated with the data source.
+	 */
+	public Set<String> getURLsByDataSourceId(String dataSourceId) {
+		return getFromIndex(this.urlsByDataSourceId, dataSourceId);
+	}
+
+	/**
+	 * @return A copy of the set of URLs of the given category.
+	 */
+	public Set<String> getURLsByCategory(URLCache.Category category) {
+		return getFromIndex(this.urlsByCategory, category);
+	}
+
+	/**
+	 * @return A copy of the set of URLs that refer to the file (as their file or temporary file).
+	 */
+	public Set<String> getURLsByFilename(String filename) {
+		return getFromIndex(this.urlsByFilename, filename);
+	}
+
+	/**
+	 * @return True if at least one entry refer to the file (as its file or temporary file).
+	 */
+	public boolean containsFilename(String filename) {
+		if (filename == null) {
+			return false;
+		}
+		synchronized (this.urlsByFilename) {
+			return this.urlsByFilename.containsKey(filename);
+		}
+	}
+
+	public void clear() {
+		for (String url : this.entries.keySet()) {
+			this.remove(url);
+		}
+		for (String host : this.hostStatuses.keySet()) {
+			this.hostStatuses.remove(host);
+			this.setHostModified(host);
+		}
+	}
+
+	/**
+	 * @param host
+	 * @return The status of the host. A new status is created if the host has never been seen before.
+	 */
+	public HostStatus getHostStatus(String host) {
+		if (host == null) {
+			return null;
+		}
+		HostStatus hostStatus = this.hostStatuses.get(host);
+		if (hostStatus == null) {
+			hostStatus = new HostStatus();
+			HostStatus currentHostStatus = this.hostStatuses.putIfAbsent(host, hostStatus);
+			if (currentHostStatus != null) {
+				hostStatus = currentHostStatus;
+			}
+		}
+		return hostStatus;
+	}
+
+	/**
+	 * @param host
+	 * @return The status of the host, or null if the host has never been seen before.
+	 */
+	public HostStatus findHostStatus(String host) {
+		if (host == null) {
+			return null;
+		}
+		return this.hostStatuses.get(host);
+	}
+
+	/**
+	 * Used to load the saved host statuses.
+	 */
+	protected void putHostStatus(String host, HostStatus hostStatus) {
+		if (host != null && hostStatus != null) {
+			this.hostStatuses.put(host, hostStatus);
+		}
+	}
+
+	/**
+	 * @return A live view of the hosts of the catalog.
+	 */
+	public Set<String> getHosts() {
+		return this.hostStatuses.keySet();
+	}
+
+	/**
+	 * Notify the catalog that the status of the host has changed and has to be saved.
+	 */
+	public void setHostModified(String host) {
+		if (host != null) {
+			this.modifiedHosts.add(host);
+		}
+	}
+
+	/**
+	 * Return the hosts modified since the last call and reset the list.
+	 * See takeModifiedURLs.
+	 */
+	public List<String> takeModifiedHosts() {
+		List<String> hosts = new ArrayList<String>();
+		Iterator<String> it = this.modifiedHosts.iterator();
+		while (it.hasNext()) {
+			hosts.add(it.next());
+			it.remove();
+		}
+		return hosts;
+	}
+
+	/**
+	 * Return the URLs modified since the last call and reset the list.
+	 * The entries has to be read after calling this method; if an entry is modified
+	 * meanwhile, it will be returned again by the next call.
+	 */
+	public List<String> takeModifiedURLs() {
+		List<String> urls = new ArrayList<String>();
+		Iterator<String> it = this.modifiedURLs.iterator();
+		while (it.hasNext()) {
+			urls.add(it.next());
+			it.remove();
+		}
+		return urls;
+	}
+
+	// Called by the CachedFile setters
+
+	protected void setModified(String url) {
+		if (url != null) {
+			this.modifiedURLs.add(url);
+		}
+	}
+
+	protected void indexDataSourceId(String url, String dataSourceId) {
+		addToIndex(this.urlsByDataSourceId, dataSourceId, url);
+	}
+	protected void unindexDataSourceId(String url, String dataSourceId) {
+		removeFromIndex(this.urlsByDataSourceId, dataSourceId, url);
+	}
+
+	protected void indexCategory(String url, URLCache.Category category) {
+		addToIndex(this.urlsByCategory, category, url);
+	}
+	protected void unindexCategory(String url, URLCache.Category category) {
+		removeFromIndex(this.urlsByCategory, category, url);
+	}
+
+	protected void indexFilename(String url, String filename) {
+		addToIndex(this.urlsByFilename, filename, url);
+	}
+	protected void unindexFilename(String url, String filename) {
+		removeFromIndex(this.urlsByFilename, filename, url);
+	}
+
+	private void index(String url, URLCache.CachedFile cachedFile) {
+		for (String dataSourceId : cachedFile.getDataSourceIds()) {
+			this.indexDataSourceId(url, dataSourceId);
+		}
+		this.indexCategory(url, cachedFile.getCategory());
+		this.indexFilename(url, cachedFile.getFilename());
+		this.indexFilename(url, cachedFile.getTemporaryFilename());
+	}
+
+	private void unindex(String url, URLCache.CachedFile cachedFile) {
+		for (String dataSourceId : cachedFile.getDataSourceIds()) {
+			this.unindexDataSourceId(url, dataSourceId);
+		}
+		this.unindexCategory(url, cachedFile.getCategory());
+		this.unindexFilename(url, cachedFile.getFilename());
+		this.unindexFilename(url, cachedFile.getTemporaryFilename());
+	}
+
+	// The indexes are small and quickly modified; each index is synchronized as a whole.
+	private static <K> void addToIndex(Map<K, Set<String>> index, K key, String url) {
+		if (key == null || url == null) {
+			return;
+		}
+		synchronized (index) {
+			Set<String> urls = index.get(key);
+			if (urls == null) {
+				urls = new HashSet<String>();
+				index.put(key, urls);
+			}
+			urls.add(url);
+		}
+	}
+
+	private static <K> void removeFromIndex(Map<K, Set<String>> index, K key, String url) {
+		if (key == null || url == null) {
+			return;
+		}
+		synchronized (index) {
+			Set<String> urls = index.get(key);
+			if (urls != null) {
+				urls.remove(url);
+				if (urls.isEmpty()) {
+					index.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Consecutive failures of the requests sent to a host. The requests to a host that failed
+	 * (connection refused, timeout, etc.) HOST_FAILURE_THRESHOLD times in a row are skipped
+	 * for a while; the delay double after each new failure (exponential backoff).
+	 * When the delay is over, a single request is sent to probe the host.
+	 *
+	 * The status also remember how the metadata records (MEST) of the host have been found
+	 * the last time (see TC211Parser.parseURL), since all the records of a host respond to the
+	 * same kind of URL.
+	 * {
+	 *     failureCount: 4,
+	 *     retryAfter: 1348459609125, // Epoch time, in milliseconds
+	 *     errorMsg: "Connection timed out",
+	 *     metadataUrlStrategy: "GEONETWORK"
+	 * }
+	 */
+	public static class HostStatus {
+		// Number of failures in a row before skipping the requests to the host
+		protected static final int HOST_FAILURE_THRESHOLD = 3;
+		// Time allowed for a probe request, before an other request can be sent to the host
+		protected static final long HOST_PROBE_TIMEOUT = 10 * URLCache.NB_MS_PER_MINUTE;
+
+		private int failureCount;
+		private long retryAfter; // Epoch time in ms, -1 if none
+		private String errorMsg;
+		private URLCache.MetadataUrlStrategy metadataUrlStrategy; // null if unknown
+
+		public HostStatus() {
+			this.failureCount = 0;
+			this.retryAfter = -1;
+			this.errorMsg = null;
+			this.metadataUrlStrategy = null;
+		}
+
+		public HostStatus(JSONObject json) {
+			this();
+			if (json != null) {
+				this.failureCount = json.optInt("failureCount", 0);
+				this.retryAfter = json.optLong("retryAfter", -1);
+				this.errorMsg = json.optString("errorMsg", null);
+
+				String metadataUrlStrategyStr = json.optString("metadataUrlStrategy", null);
+				if (metadataUrlStrategyStr != null) {
+					try {
+						this.metadataUrlStrategy = URLCache.MetadataUrlStrategy.valueOf(metadataUrlStrategyStr);
+					} catch (IllegalArgumentException ex) {
+						// Strategy from a newer version of the AtlasMapper; it will be learned again.
+						this.metadataUrlStrategy = null;
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return True if the host is skipped; it failed too many times.
+		 */
+		public synchronized boolean isFailing() {
+			return this.failureCount >= HOST_FAILURE_THRESHOLD;
+		}
+
+		/**
+		 * Check if a request can be sent to the host. When the host is failing and its delay is
+		 * over, the first request is allowed to probe the host; the following requests are
+		 * skipped until the probe request is done, or until HOST_PROBE_TIMEOUT.
+		 * @param now
+		 * @return True if a request can be sent to the host.
+		 */
+		public synchronized boolean acquire(long now) {
+			if (!this.isFailing()) {
+				return true;
+			}
+			if (now < this.retryAfter) {
+				return false;
+			}
+			// Probe
+			this.retryAfter = now + HOST_PROBE_TIMEOUT;
+			return true;
+		}
+
+		/**
+		 * The host returned a response.
+		 * @return True if the status has changed.
+		 */
+		public synchronized boolean success() {
+			if (this.failureCount == 0 && this.retryAfter < 0 && this.errorMsg == null) {
+				return false;
+			}
+			this.failureCount = 0;
+			this.retryAfter = -1;
+			this.errorMsg = null;
+			return true;
+		}
+
+		/**
+		 * The host did not respond.
+		 * @param now
+		 * @param errorMsg
+		 */
+		public synchronized void failure(long now, String errorMsg) {
+			this.failureCount++;
+			this.errorMsg = errorMsg;
+			if (this.isFailing()) {
+				this.retryAfter = now + URLCache.getFailureBackoff(this.failureCount - HOST_FAILURE_THRESHOLD + 1);
+			}
+		}
+
+		public synchronized int getFailureCount() {
+			return this.failureCount;
+		}
+
+		public synchronized long getRetryAfter() {
+			return this.retryAfter;
+		}
+
+		public synchronized String getErrorMessage() {
+			return this.errorMsg;
+		}
+
+		public synchronized URLCache.MetadataUrlStrategy getMetadataUrlStrategy() {
+			return this.metadataUrlStrategy;
+		}
+
+		/**
+		 * @param metadataUrlStrategy
+		 * @return True if the status has changed.
+		 */
+		public synchronized boolean setMetadataUrlStrategy(URLCache.MetadataUrlStrategy metadataUrlStrategy) {
+			if (this.metadataUrlStrategy == metadataUrlStrategy) {
+				return false;
+			}
+			this.metadataUrlStrategy = metadataUrlStrategy;
+			return true;
+		}
+
+		/**
+		 * @return The JSON representation of the status, or null if the host has no failures
+		 *     and no metadata URL strategy.
+		 */
+		public synchronized JSONObject toJSON() throws JSONException {
+			if (this.failureCount <= 0 && this.metadataUrlStrategy == null) {
+				return null;
+			}
+			JSONObject json = new JSONObject();
+			if (this.failureCount > 0) {
+				json.put("failureCount", this.failureCount);
+				if (this.retryAfter >= 0) {
+					json.put("retryAfter", this.retryAfter);
+				}
+				if (this.errorMsg != null) {
+					json.put("errorMsg", this.errorMsg);
+				}
+			}
+			if (this.metadataUrlStrategy != null) {
+				json.put("metadataUrlStrategy", this.metadataUrlStrategy.name());
+			}
+			return json;
+		}
+	}
+
+	private static <K> Set<String> getFromIndex(Map<K, Set<String>> index, K key) {
+		if (key == null) {
+			return new HashSet<String>();
+		}
+		synchronized (index) {
+			Set<String> urls = index.get(key);
+			if (urls == null) {
+				return new HashSet<String>();
+			}
+			return new HashSet<String>(urls);
+		}
+	}
+}
@@ -485,6 +485,84 @@ public class Utils {
 		return MessageDigest.getInstance("MD5").digest(data.getBytes());
 	}
 
+	public static byte[] sha1sum(File file) throws IOException, NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			if (in != null) {
+				try { in.close(); } catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Error occur while closing the file: {0}", Utils.getExceptionMessage(e));
+					LOGGER.log(Level.FINE, "Stack trace:", e);
+				}
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * @param json
+	 * @return The SHA-1 of the JSON object, in hexadecimal. The keys are sorted, so
+	 *     equal objects have the same hash regardless of the order of their keys.
+	 * @throws JSONException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static String jsonHash(JSONObject json) throws JSONException, NoSuchAlgorithmException {
+		if (json == null) {
+			return null;
+		}
+		StringBuilder canonicalJson = new StringBuilder();
+		appendCanonicalJSON(canonicalJson, json);
+
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		try {
+			return toHex(digest.digest(canonicalJson.toString().getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException ex) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static void appendCanonicalJSON(StringBuilder sb, Object value) throws JSONException {
+		if (value instanceof JSONObject) {
+			JSONObject jsonObject = (JSONObject)value;
+			SortedSet<String> keys = new TreeSet<String>();
+			Iterator<String> keysIt = jsonObject.keys();
+			while (keysIt.hasNext()) {
+				keys.add(keysIt.next());
+			}
+			sb.append('{');
+			boolean first = true;
+			for (String key : keys) {
+				if (!first) {
+					sb.append(',');
+				}
+				first = false;
+				sb.append(JSONObject.quote(key)).append(':');
+				appendCanonicalJSON(sb, jsonObject.opt(key));
+			}
+			sb.append('}');
+		} else if (value instanceof JSONArray) {
+			JSONArray jsonArray = (JSONArray)value;
+			sb.append('[');
+			for (int i=0; i<jsonArray.length(); i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				appendCanonicalJSON(sb, jsonArray.opt(i));
+			}
+			sb.append(']');
+		} else {
+			sb.append(JSONObject.valueToString(value));
+		}
+	}
+
 	public static String toHex(byte[] bytes) {
 		StringBuilder sb = new StringBuilder();
 		for (byte abyte : bytes) {
@@ -0,0 +1,122 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pools of threads used to harvest the data sources, their documents, their metadata, etc.
+ * The threads are daemon threads; they do not prevent the application server from shutting down.
+ *
+ * Usage, with workers taking their work from a shared queue:
+ *     try {
+ *         WorkerPool.run(worker, nbWorkers, "Harvester", "Waiting for the harvest...");
+ *     } catch (InterruptedException ex) {
+ *         queue.clear();
+ *         Thread.currentThread().interrupt();
+ *     }
+ *
+ * The workers stop by throwing a CancellationException when the job is cancelled
+ * (see RebuildJob.checkCancelled); it is thrown again by run, in the current thread.
+ */
+public class WorkerPool {
+	private static final Logger LOGGER = Logger.getLogger(WorkerPool.class.getName());
+
+	/**
+	 * @param nbThreads
+	 * @param threadName Name of the threads, followed by their number. Example: "MetadataHarvester" => "MetadataHarvester 1", "MetadataHarvester 2", ...
+	 * @return A pool with a fixed number of daemon threads.
+	 */
+	public static ExecutorService newFixedThreadPool(int nbThreads, final String threadName) {
+		return Executors.newFixedThreadPool(nbThreads, new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, threadName + " " + this.threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Run the worker on nbWorkers threads and wait for all of them to finish.
+	 * The worker is run in the current thread when there is only one worker.
+	 * @param worker
+	 * @param nbWorkers
+	 * @param threadName See newFixedThreadPool.
+	 * @param waitingMessage Message logged (FINE) every minute, while waiting for the workers.
+	 * @throws InterruptedException If the current thread get interrupted while waiting. The workers are
+	 *     interrupted, but they may still be running; the caller has to stop them (clear their queue, etc.).
+	 * @throws CancellationException If a worker has been cancelled. It is thrown once all the workers are done.
+	 */
+	public static void run(final Runnable worker, int nbWorkers, String threadName, String waitingMessage) throws InterruptedException {
+		if (nbWorkers <= 0) {
+			return;
+		}
+		if (nbWorkers == 1) {
+			worker.run();
+			return;
+		}
+
+		// The first cancellation of a worker; the other workers notice the cancellation by themselves.
+		final AtomicReference<CancellationException> cancellation = new AtomicReference<CancellationException>();
+		Runnable cancellableWorker = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					worker.run();
+				} catch (CancellationException ex) {
+					cancellation.compareAndSet(null, ex);
+				}
+			}
+		};
+
+		ExecutorService executor = newFixedThreadPool(nbWorkers, threadName);
+		for (int i=0; i<nbWorkers; i++) {
+			executor.execute(cancellableWorker);
+		}
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				LOGGER.log(Level.FINE, waitingMessage);
+			}
+		} catch (InterruptedException ex) {
+			executor.shutdownNow();
+			throw ex;
+		}
+
+		CancellationException cancellationEx = cancellation.get();
+		if (cancellationEx != null) {
+			throw cancellationEx;
+		}
+	}
+}
@@ -22,10 +22,16 @@
 package au.gov.aims.atlasmapperserver.dataSourceConfig;
 
 import au.gov.aims.atlasmapperserver.AbstractConfig;
+import au.gov.aims.atlasmapperserver.ClientConfig;
 import au.gov.aims.atlasmapperserver.ConfigManager;
+import au.gov.aims.atlasmapperserver.ProjectInfo;
+import au.gov.aims.atlasmapperserver.RebuildJob;
+import au.gov.aims.atlasmapperserver.RebuildJobManager;
+import au.gov.aims.atlasmapperserver.RefreshPlanner;
 import au.gov.aims.atlasmapperserver.URLCache;
 import au.gov.aims.atlasmapperserver.collection.BlackAndWhiteListFilter;
 import au.gov.aims.atlasmapperserver.Utils;
+import au.gov.aims.atlasmapperserver.WorkerPool;
 import au.gov.aims.atlasmapperserver.annotation.ConfigField;
 
 import java.io.BufferedWriter;
@@ -37,18 +43,28 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
 import java.net.URL;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
-import au.gov.aims.atlasmapperserver.collection.MultiKeyHashMap;
 import au.gov.aims.atlasmapperserver.jsonWrappers.client.DataSourceWrapper;
 import au.gov.aims.atlasmapperserver.jsonWrappers.client.LayerWrapper;
 import au.gov.aims.atlasmapperserver.layerConfig.AbstractLayerConfig;
@@ -68,6 +84,21 @@ import org.json.JSONTokener;
 public abstract class AbstractDataSourceConfig extends AbstractConfig implements Comparable<AbstractDataSourceConfig>, Cloneable {
 	private static final Logger LOGGER = Logger.getLogger(AbstractDataSourceConfig.class.getName());
 
+	// Number of data sources harvested at the same time by processAll, when not specified in the server config
+	public static final int DEFAULT_HARVEST_MAX_CONCURRENCY = 4;
+	// Number of data sources harvested at the same time on the same server by processAll
+	private static final int MAX_HARVESTS_PER_HOST = 1;
+
+	// Prevent the harvest of the metadata from overwriting a newer saved state (see harvestMetadata)
+	private static final Object SAVED_STATE_LOCK = new Object();
+
+	// Lock of each data source. Only one harvest of a data source is done at the time, whatever started it
+	// (rebuild of the data source, rebuild of all the data sources, scheduled refresh, harvest of the metadata).
+	// ConcurrentHashMap<String dataSourceId, ReentrantLock lock>
+	private static final ConcurrentHashMap<String, ReentrantLock> HARVEST_LOCKS = new ConcurrentHashMap<String, ReentrantLock>();
+	// Delay between the checks for cancellation while waiting for the harvest lock of a data source, in milliseconds
+	private static final long HARVEST_LOCK_CHECK_INTERVAL = 1000;
+
 	// Grids records must have an unmutable ID
 	@ConfigField
 	private Integer id;
@@ -113,6 +144,28 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 	@ConfigField
 	private Boolean activeDownload;
 
+	// Interval between the automatic refreshes of the data source, in minutes. Null to disable. See RefreshScheduler.
+	@ConfigField
+	private Integer refreshInterval;
+
+	// Maximum duration of a harvest of the data source, in seconds, both phases included. Null for no limit. See HarvestDeadline.
+	@ConfigField
+	private Integer harvestTimeout;
+
+	// Maximum duration of the first phase of the harvest (layers), in seconds. Null for no limit.
+	@ConfigField
+	private Integer layersHarvestTimeout;
+
+	// Maximum duration of the second phase of the harvest (metadata documents), in seconds. Null for no limit.
+	@ConfigField
+	private Integer metadataHarvestTimeout;
+
+	// Time budget of the harvest in progress; only set on the clones used to harvest the data source.
+	private HarvestDeadline harvestDeadline;
+
+	// Hash of the configuration of the harvest in progress (see getLayerCatalog); only set on the clones used to harvest the data source.
+	private String configHash;
+
 	@ConfigField
 	private Boolean showInLegend;
 
@@ -126,7 +179,14 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 		super(configManager);
 	}
 
-	public void save(DataSourceWrapper layerCatalog) throws JSONException, IOException {
+	/**
+	 * Save the harvested state of the data source.
+	 * @param layerCatalog
+	 * @return The hash of the saved state (see DataSourceWrapper.getStateHash).
+	 * @throws JSONException
+	 * @throws IOException
+	 */
+	public String save(DataSourceWrapper layerCatalog) throws JSONException, IOException {
 		File applicationFolder = this.getConfigManager().getApplicationFolder();
 
 		DataSourceWrapper dataSourceWrapper = new DataSourceWrapper(this.toJSonObject(true));
@@ -135,6 +195,18 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 		int nbLayers = layers == null ? 0 : layers.length();
 		dataSourceWrapper.setLayers(layers);
 
+		// Hash of the harvested state; the configuration and the layers. The errors, warnings and messages
+		// are not part of it; they are not used by the clients, and some contain times (rebuild time, backoff, etc.).
+		// It tells which clients have to be regenerated after a rebuild (see RefreshPlanner).
+		try {
+			dataSourceWrapper.setStateHash(Utils.jsonHash(dataSourceWrapper.getJSON()));
+		} catch (NoSuchAlgorithmException ex) {
+			// Unlikely to happen; the clients using this data source will always be regenerated
+			LOGGER.log(Level.WARNING, "Can not calculate the hash of the data source {0}: {1}",
+					new String[]{ this.dataSourceId, Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+		}
+
 		JSONArray errors = layerCatalog.getErrors();
 		int nbErrors = errors == null ? 0 : errors.length();
 
@@ -156,22 +228,38 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 			dataSourceWrapper.setWarnings(warnings);
 		}
 
+		// Not part of the state hash; they are used by the next harvest.
+		dataSourceWrapper.setConfigHash(layerCatalog.getConfigHash());
+		dataSourceWrapper.setLayerHashes(layerCatalog.getLayerHashes());
+		dataSourceWrapper.setLayerChanges(layerCatalog.getLayerChanges());
+
 		JSONArray messages = layerCatalog.getMessages();
 		if (messages != null && messages.length() > 0) {
 			dataSourceWrapper.setMessages(messages);
 		}
 		dataSourceWrapper.setStatus(status);
+		dataSourceWrapper.setMetadataPending(layerCatalog.isMetadataPending());
 
-		AbstractDataSourceConfig.write(applicationFolder, this.dataSourceId, dataSourceWrapper);
+		synchronized (SAVED_STATE_LOCK) {
+			AbstractDataSourceConfig.write(applicationFolder, this.dataSourceId, dataSourceWrapper);
+		}
+
+		return dataSourceWrapper.getStateHash();
 	}
 
+	/**
+	 * The saved state is written in a temporary file, then moved in place. The saved state
+	 * may be read while it's written (the metadata are harvested in background);
+	 * the readers must never see a partially written file.
+	 */
 	private static void write(File applicationFolder, String dataSourceId, DataSourceWrapper dataSourceWrapper) throws JSONException, IOException {
 		File dataSourceCatalogFile = FileFinder.getDataSourcesCatalogFile(applicationFolder, dataSourceId);
+		File tmpDataSourceCatalogFile = new File(dataSourceCatalogFile.getParentFile(), dataSourceCatalogFile.getName() + ".tmp");
 
 		Writer writer = null;
 		BufferedWriter bw = null;
 		try {
-			writer = new FileWriter(dataSourceCatalogFile);
+			writer = new FileWriter(tmpDataSourceCatalogFile);
 			bw = new BufferedWriter(writer);
 			String jsonStr = Utils.jsonToStr(dataSourceWrapper.getJSON());
 			if (Utils.isNotBlank(jsonStr)) {
@@ -195,6 +283,14 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 				}
 			}
 		}
+
+		// File.renameTo do not replace existing files on some platforms (Windows)
+		if (!tmpDataSourceCatalogFile.renameTo(dataSourceCatalogFile)) {
+			dataSourceCatalogFile.delete();
+			if (!tmpDataSourceCatalogFile.renameTo(dataSourceCatalogFile)) {
+				throw new IOException("Can not replace the data source catalog file " + dataSourceCatalogFile.getAbsolutePath());
+			}
+		}
 	}
 
 	public static DataSourceWrapper load(File applicationFolder, String dataSourceId) throws FileNotFoundException, JSONException {
@@ -228,12 +324,14 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 	public void setModified(boolean modified) throws IOException, JSONException {
 		File applicationFolder = this.getConfigManager().getApplicationFolder();
 		// Load the old saved state
-		DataSourceWrapper dataSourceWrapper = AbstractDataSourceConfig.load(applicationFolder, this.dataSourceId);
-		// Change its status to MODIFIED
-		if (dataSourceWrapper != null && modified != dataSourceWrapper.isModified()) {
-			dataSourceWrapper.setModified(modified);
-			// Save the old saved state with the status MODIFIED
-			AbstractDataSourceConfig.write(applicationFolder, this.dataSourceId, dataSourceWrapper);
+		synchronized (SAVED_STATE_LOCK) {
+			DataSourceWrapper dataSourceWrapper = AbstractDataSourceConfig.load(applicationFolder, this.dataSourceId);
+			// Change its status to MODIFIED
+			if (dataSourceWrapper != null && modified != dataSourceWrapper.isModified()) {
+				dataSourceWrapper.setModified(modified);
+				// Save the old saved state with the status MODIFIED
+				AbstractDataSourceConfig.write(applicationFolder, this.dataSourceId, dataSourceWrapper);
+			}
 		}
 	}
 
@@ -246,73 +344,167 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 		}
 	}
 
-	public static JSONObject processAll(ConfigManager configManager, boolean redownloadBrokenFiles, boolean clearCapabilitiesCache, boolean clearMetadataCache) throws Exception {
-		JSONObject errors = new JSONObject();
+	/**
+	 * Rebuild all the data sources. The independent data sources are harvested
+	 * concurrently by a bounded pool of workers (see ConfigManager.getHarvestMaxConcurrency),
+	 * with no more than MAX_HARVESTS_PER_HOST data sources harvested at the same time
+	 * on the same server (see DataSourceHarvestQueue).
+	 * The failure of a data source do not affect the others; it is reported in the
+	 * errors of that data source. The URL cache map is saved once, at the end.
+	 * @return The errors, warnings and messages of each data source.
+	 * @throws Exception
+	 */
+	public static JSONObject processAll(ConfigManager configManager, final boolean redownloadBrokenFiles, final boolean clearCapabilitiesCache, final boolean clearMetadataCache) throws Exception {
+		final JSONObject errors = new JSONObject();
+		File applicationFolder = configManager.getApplicationFolder();
 
-		MultiKeyHashMap<Integer, String, AbstractDataSourceConfig> dataSources = configManager.getDataSourceConfigs();
-		AbstractDataSourceConfig dataSource = null;
-		JSONObject dataSourceErrors = null;
-		for (Map.Entry<Integer, AbstractDataSourceConfig> dataSourceEntry : dataSources.entrySet()) {
-			dataSource = dataSourceEntry.getValue();
-			dataSourceErrors = dataSource.process(redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache);
-
-			// Merge errors
-			// Before:
-			// {
-			//     "errors": [errors...],
-			//     "warnings": [warnings...],
-			//     "messages": [messages...]
-			// }
-			//
-			// After:
-			// {
-			//     "errors": { "dataSourceId": [errors...] },
-			//     "warnings": { "dataSourceId": [warnings...] },
-			//     "messages": { "dataSourceId": [messages...] }
-			// }
-			if (dataSourceErrors != null) {
-				Object errorsObj = dataSourceErrors.opt("errors");
-				Object warningsObj = dataSourceErrors.opt("warnings");
-				Object messagesObj = dataSourceErrors.opt("messages");
-				if (errorsObj != null) {
-					JSONObject jsonErrors = errors.optJSONObject("errors");
-					if (jsonErrors == null) {
-						jsonErrors = new JSONObject();
-						errors.put("errors", jsonErrors);
-					}
-					jsonErrors.put(dataSource.getDataSourceId(), errorsObj);
-				}
-				if (warningsObj != null) {
-					JSONObject jsonWarnings = errors.optJSONObject("warnings");
-					if (jsonWarnings == null) {
-						jsonWarnings = new JSONObject();
-						errors.put("warnings", jsonWarnings);
-					}
-					jsonWarnings.put(dataSource.getDataSourceId(), warningsObj);
-				}
-				if (messagesObj != null) {
-					JSONObject jsonMessages = errors.optJSONObject("messages");
-					if (jsonMessages == null) {
-						jsonMessages = new JSONObject();
-						errors.put("messages", jsonMessages);
+		URLCache.reloadDiskCacheMapIfNeeded(applicationFolder);
+
+		Collection<AbstractDataSourceConfig> dataSources = configManager.getDataSourceConfigs().values();
+		final DataSourceHarvestQueue queue = new DataSourceHarvestQueue(dataSources, MAX_HARVESTS_PER_HOST);
+
+		Integer maxConcurrency = configManager.getHarvestMaxConcurrency();
+		int nbWorkers = Math.min(
+				(maxConcurrency == null || maxConcurrency <= 0) ? DEFAULT_HARVEST_MAX_CONCURRENCY : maxConcurrency,
+				dataSources.size());
+
+		Runnable worker = RebuildJob.inCurrentJob(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					AbstractDataSourceConfig dataSource;
+					while ((dataSource = queue.take()) != null) {
+						String dataSourceId = dataSource.getDataSourceId();
+						JSONObject dataSourceErrors;
+						try {
+							RebuildJob.checkCancelled();
+							dataSourceErrors = dataSource.process(redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache, false);
+						} catch (CancellationException ex) {
+							// Release the workers waiting for a data source; WorkerPool.run reports the cancellation
+							queue.close();
+							throw ex;
+						} catch (Exception ex) {
+							LOGGER.log(Level.WARNING, "Error occurred while rebuilding the data source {0}: {1}",
+									new String[]{ dataSourceId, Utils.getExceptionMessage(ex) });
+							LOGGER.log(Level.FINE, "Stack trace:", ex);
+							dataSourceErrors = new JSONObject();
+							dataSourceErrors.put("errors", new JSONArray().put(
+									"Error occurred while rebuilding the data source: " + Utils.getExceptionMessage(ex)));
+						} finally {
+							queue.done(dataSource);
+						}
+
+						synchronized (errors) {
+							mergeErrors(errors, dataSourceId, dataSourceErrors);
+						}
 					}
-					jsonMessages.put(dataSource.getDataSourceId(), messagesObj);
+				} catch (CancellationException ex) {
+					throw ex;
+				} catch (Exception ex) {
+					// InterruptedException, or a JSONException while reporting the errors
+					LOGGER.log(Level.SEVERE, "Data source rebuild worker stopped: {0}", Utils.getExceptionMessage(ex));
+					LOGGER.log(Level.FINE, "Stack trace:", ex);
 				}
 			}
+		});
+
+		try {
+			WorkerPool.run(worker, nbWorkers, "DataSourceHarvester", "Waiting for the data sources to be rebuilt...");
+		} catch (InterruptedException ex) {
+			queue.close();
+			throw ex;
+		} finally {
+			// Save the URL cache map once, for all the data sources
+			URLCache.saveDiskCacheMap(applicationFolder);
+			// Keep the disk cache in its budget, without delaying the response
+			URLCache.scheduleEviction(configManager);
 		}
 
 		return errors;
 	}
 
+	/**
+	 * Merge the errors of a data source into the errors of processAll.
+	 * Before:
+	 * {
+	 *     "errors": [errors...],
+	 *     "warnings": [warnings...],
+	 *     "messages": [messages...]
+	 * }
+	 *
+	 * After:
+	 * {
+	 *     "errors": { "dataSourceId": [errors...] },
+	 *     "warnings": { "dataSourceId": [warnings...] },
+	 *     "messages": { "dataSourceId": [messages...] }
+	 * }
+	 */
+	private static void mergeErrors(JSONObject errors, String dataSourceId, JSONObject dataSourceErrors) throws JSONException {
+		if (dataSourceErrors != null) {
+			Object errorsObj = dataSourceErrors.opt("errors");
+			Object warningsObj = dataSourceErrors.opt("warnings");
+			Object messagesObj = dataSourceErrors.opt("messages");
+			if (errorsObj != null) {
+				JSONObject jsonErrors = errors.optJSONObject("errors");
+				if (jsonErrors == null) {
+					jsonErrors = new JSONObject();
+					errors.put("errors", jsonErrors);
+				}
+				jsonErrors.put(dataSourceId, errorsObj);
+			}
+			if (warningsObj != null) {
+				JSONObject jsonWarnings = errors.optJSONObject("warnings");
+				if (jsonWarnings == null) {
+					jsonWarnings = new JSONObject();
+					errors.put("warnings", jsonWarnings);
+				}
+				jsonWarnings.put(dataSourceId, warningsObj);
+			}
+			if (messagesObj != null) {
+				JSONObject jsonMessages = errors.optJSONObject("messages");
+				if (jsonMessages == null) {
+					jsonMessages = new JSONObject();
+					errors.put("messages", jsonMessages);
+				}
+				jsonMessages.put(dataSourceId, messagesObj);
+			}
+		}
+	}
+
 	/**
 	 * 1. Clone myself
 	 * 2. Download / parse the capabilities doc
 	 * 3. Set the layers and capabilities overrides into the clone
 	 * 4. Save the state into a file
+	 * 5. Harvest the metadata documents in background, if needed
+	 *
+	 * The layers are built from the capabilities document and the metadata documents (TC211) already
+	 * in the cache, so the data source can be used as soon as its capabilities document is parsed.
+	 * The metadata documents which are missing or outdated are harvested afterward, in a background
+	 * job (see harvestMetadata), which saves the data source again with the descriptions, download
+	 * links and bounding boxes found in the metadata, then regenerates the clients that were using
+	 * the first state.
+	 * The data sources with "active download" are harvested with their metadata documents, in one phase.
 	 * @return
 	 * @throws Exception
 	 */
 	public JSONObject process(boolean redownloadBrokenFiles, boolean clearCapabilitiesCache, boolean clearMetadataCache) throws Exception {
+		return this.process(redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache, true);
+	}
+
+	/**
+	 * @param saveDiskCacheMap False to let the caller save the URL cache map (see processAll).
+	 */
+	private JSONObject process(boolean redownloadBrokenFiles, boolean clearCapabilitiesCache, boolean clearMetadataCache, boolean saveDiskCacheMap) throws Exception {
+		ReentrantLock harvestLock = this.acquireHarvestLock();
+		try {
+			return this.processLocked(redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache, saveDiskCacheMap);
+		} finally {
+			harvestLock.unlock();
+		}
+	}
+
+	private JSONObject processLocked(boolean redownloadBrokenFiles, boolean clearCapabilitiesCache, boolean clearMetadataCache, boolean saveDiskCacheMap) throws Exception {
 		// startDate: Used to log the elapse time
 		Date startDate = new Date();
 
@@ -331,12 +523,19 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 			URLCache.markCacheForReDownload(this.getConfigManager(), this, false, URLCache.Category.BRUTEFORCE_MEST_RECORD);
 		}
 
+		// The documents of an "active download" data source are re-downloaded by every harvest;
+		// its metadata documents would always be outdated. It is harvested in one phase.
+		boolean harvestMetadata = this.activeDownload != null && this.activeDownload;
+
 		// 1. Clone myself
 		AbstractDataSourceConfig clone = (AbstractDataSourceConfig) this.clone();
+		clone.setHarvestDeadline(harvestMetadata ?
+				new HarvestDeadline(this.harvestTimeout, 0, null) :
+				new HarvestDeadline(this.harvestTimeout, 0, this.layersHarvestTimeout));
 
 		// 2. Download / parse the capabilities doc
 		// 3. Set the layers and capabilities overrides into the clone
-		DataSourceWrapper layerCatalog = clone.getLayerCatalog(clearCapabilitiesCache, clearMetadataCache);
+		DataSourceWrapper layerCatalog = clone.getLayerCatalog(clearCapabilitiesCache, clearMetadataCache, harvestMetadata);
 
 		// Create the elapse time message
 		Date endDate = new Date();
@@ -348,25 +547,170 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 				this.elapseTimeFormat.format(elapseTimeMin) + " min" :
 				this.elapseTimeFormat.format(elapseTimeSec) + " sec"));
 
-		// 4. Save the data source state into a file
-		clone.save(layerCatalog);
+		boolean metadataPending = layerCatalog.isMetadataPending();
+		if (metadataPending) {
+			layerCatalog.addMessage("Some metadata documents are missing or outdated. " +
+					"They are harvested in background; the data source will be updated when they are available.");
+		}
+
+		// 4. Save the data source state into a file, unless the rebuild has been cancelled
+		RebuildJob.checkCancelled();
+		String stateHash = clone.save(layerCatalog);
 
 		JSONObject errors = new JSONObject();
 		errors.put("errors", layerCatalog.getErrors());
 		errors.put("warnings", layerCatalog.getWarnings());
 		errors.put("messages", layerCatalog.getMessages());
 
-		URLCache.saveDiskCacheMap(this.getConfigManager().getApplicationFolder());
+		if (saveDiskCacheMap) {
+			URLCache.saveDiskCacheMap(this.getConfigManager().getApplicationFolder());
+			// Keep the disk cache in its budget, without delaying the response
+			URLCache.scheduleEviction(this.getConfigManager());
+		}
+
+		// 5. Harvest the metadata documents in background
+		if (metadataPending) {
+			RebuildJobManager.getInstance().submitMetadataHarvest(clone, stateHash, elapseTimeMs);
+		}
+
+		return errors;
+	}
+
+	/**
+	 * Second phase of the harvest (see process): harvest the data source again, downloading
+	 * the metadata documents, and save it if it has not been modified since the first phase.
+	 * The clients generated with the state of the first phase are regenerated.
+	 * @param stateHash The hash of the state saved by the first phase.
+	 * @param elapsedTime Duration of the first phase, in milliseconds (see getHarvestTimeout).
+	 * @return The errors, warnings and messages of the data source.
+	 * @throws Exception
+	 */
+	public JSONObject harvestMetadata(String stateHash, long elapsedTime) throws Exception {
+		ReentrantLock harvestLock = this.acquireHarvestLock();
+		try {
+			return this.harvestMetadataLocked(stateHash, elapsedTime);
+		} finally {
+			harvestLock.unlock();
+		}
+	}
+
+	private JSONObject harvestMetadataLocked(String stateHash, long elapsedTime) throws Exception {
+		// startDate: Used to log the elapse time
+		Date startDate = new Date();
+		File applicationFolder = this.getConfigManager().getApplicationFolder();
+
+		AbstractDataSourceConfig clone = (AbstractDataSourceConfig) this.clone();
+		clone.setHarvestDeadline(new HarvestDeadline(this.harvestTimeout, elapsedTime, this.metadataHarvestTimeout));
+		DataSourceWrapper layerCatalog = clone.getLayerCatalog(false, false, true);
+
+		// Create the elapse time message
+		Date endDate = new Date();
+		long elapseTimeMs = endDate.getTime() - startDate.getTime();
+		double elapseTimeSec = elapseTimeMs / 1000.0;
+		double elapseTimeMin = elapseTimeSec / 60.0;
+
+		layerCatalog.addMessage("Metadata harvest time: " + (elapseTimeMin >= 1 ?
+				this.elapseTimeFormat.format(elapseTimeMin) + " min" :
+				this.elapseTimeFormat.format(elapseTimeSec) + " sec"));
+
+		RebuildJob.checkCancelled();
+		String newStateHash = null;
+		synchronized (SAVED_STATE_LOCK) {
+			// The data source may have been rebuilt or modified while its metadata were harvested
+			DataSourceWrapper savedState = AbstractDataSourceConfig.load(applicationFolder, this.dataSourceId);
+			if (savedState != null && !savedState.isModified() &&
+					stateHash != null && stateHash.equals(savedState.getStateHash())) {
+				newStateHash = clone.save(layerCatalog);
+			}
+		}
+
+		URLCache.saveDiskCacheMap(applicationFolder);
+		URLCache.scheduleEviction(this.getConfigManager());
+
+		if (newStateHash == null) {
+			LOGGER.log(Level.INFO, "The data source {0} has changed during the harvest of its metadata; the result is discarded.", this.dataSourceId);
+			layerCatalog.addWarning("The data source has changed during the harvest of its metadata; the result has been discarded.");
+		} else if (!newStateHash.equals(stateHash)) {
+			// Republish the clients which are using the first state
+			for (ClientConfig clientConfig : this.getClientsGeneratedWith(stateHash)) {
+				LOGGER.log(Level.INFO, "Regenerate the client {0} after the harvest of the metadata of the data source {1}",
+						new String[]{ clientConfig.getClientId(), this.dataSourceId });
+				RebuildJobManager.getInstance().submitClientGeneration(clientConfig, false);
+			}
+		}
 
+		JSONObject errors = new JSONObject();
+		errors.put("errors", layerCatalog.getErrors());
+		errors.put("warnings", layerCatalog.getWarnings());
+		errors.put("messages", layerCatalog.getMessages());
 		return errors;
 	}
 
+	/**
+	 * @param stateHash Hash of a saved state of this data source.
+	 * @return The enabled clients using this data source, which have been generated with that state.
+	 */
+	List<ClientConfig> getClientsGeneratedWith(String stateHash) throws IOException, JSONException {
+		List<ClientConfig> clientConfigs = new ArrayList<ClientConfig>();
+		if (stateHash == null) {
+			return clientConfigs;
+		}
+
+		RefreshPlanner refreshPlanner = new RefreshPlanner(this.getConfigManager());
+		for (String clientId : refreshPlanner.getDependentClientIds(Collections.singleton(this.dataSourceId))) {
+			ClientConfig clientConfig = this.getConfigManager().getClientConfig(clientId);
+			if (clientConfig != null && stateHash.equals(refreshPlanner.getGeneratedStateHash(clientConfig, this.dataSourceId))) {
+				clientConfigs.add(clientConfig);
+			}
+		}
+		return clientConfigs;
+	}
+
+	/**
+	 * Wait until no other thread is harvesting this data source, and lock it.
+	 * The lock has to be released in a finally block. It is reentrant.
+	 * @return The lock of the data source, locked by the current thread.
+	 * @throws CancellationException If the job of the current thread is cancelled while waiting.
+	 * @throws InterruptedException
+	 */
+	private ReentrantLock acquireHarvestLock() throws InterruptedException {
+		String lockKey = this.dataSourceId == null ? "" : this.dataSourceId;
+		ReentrantLock harvestLock = HARVEST_LOCKS.get(lockKey);
+		if (harvestLock == null) {
+			ReentrantLock newHarvestLock = new ReentrantLock();
+			harvestLock = HARVEST_LOCKS.putIfAbsent(lockKey, newHarvestLock);
+			if (harvestLock == null) {
+				harvestLock = newHarvestLock;
+			}
+		}
+
+		RebuildJob.checkCancelled();
+		if (!harvestLock.tryLock()) {
+			LOGGER.log(Level.INFO, "The data source {0} is already being harvested; waiting for it to finish.", this.dataSourceId);
+			while (!harvestLock.tryLock(HARVEST_LOCK_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+				RebuildJob.checkCancelled();
+			}
+		}
+		return harvestLock;
+	}
+
+	/**
+	 * @return True if a thread is harvesting this data source (see acquireHarvestLock).
+	 */
+	public boolean isHarvesting() {
+		ReentrantLock harvestLock = HARVEST_LOCKS.get(this.dataSourceId == null ? "" : this.dataSourceId);
+		return harvestLock != null && harvestLock.isLocked();
+	}
+
 	// LayerCatalog - Before data source overrides
-	private DataSourceWrapper getRawLayerCatalog(boolean redownloadPrimaryFiles, boolean redownloadSecondaryFiles) throws Exception {
+	private DataSourceWrapper getRawLayerCatalog(boolean redownloadPrimaryFiles, boolean redownloadSecondaryFiles, boolean harvestMetadata,
+			JSONObject previousLayers, JSONObject previousLayerHashes) throws Exception {
 		DataSourceWrapper rawLayerCatalog = null;
 
 		AbstractLayerGenerator layerGenerator = this.createLayerGenerator();
 		if (layerGenerator != null) {
+			layerGenerator.setHarvestMetadata(harvestMetadata);
+			layerGenerator.setPreviousLayers(previousLayers, previousLayerHashes);
 			rawLayerCatalog = layerGenerator.generateLayerCatalog(this, redownloadPrimaryFiles, redownloadSecondaryFiles);
 		}
 
@@ -376,11 +720,41 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 	// LayerCatalog - After data source overrides
 
 	public DataSourceWrapper getLayerCatalog(boolean redownloadPrimaryFiles, boolean redownloadSecondaryFiles) throws Exception {
+		return this.getLayerCatalog(redownloadPrimaryFiles, redownloadSecondaryFiles, true);
+	}
+
+	/**
+	 * The layers which inputs have not changed since the previous saved state (see
+	 * AbstractLayerGenerator.reusePreviousLayer) are taken from it, with their overrides,
+	 * unless the data source has been reconfigured since. The layers added, modified and deleted
+	 * since the previous saved state are listed in the catalog (see DataSourceWrapper.getLayerChanges).
+	 * @param harvestMetadata False to only use the metadata documents found in the cache
+	 *     (see AbstractLayerGenerator.setHarvestMetadata).
+	 */
+	public DataSourceWrapper getLayerCatalog(boolean redownloadPrimaryFiles, boolean redownloadSecondaryFiles, boolean harvestMetadata) throws Exception {
+		// The layer generators modify the data source (service URL, etc.); the hash has to be calculated before
+		// the first harvest. It's kept for the harvest of the metadata, which use the clone of the first harvest.
+		if (this.configHash == null) {
+			this.configHash = this.calculateConfigHash();
+		}
+
+		DataSourceWrapper previousState = this.loadPreviousState();
+		JSONObject previousLayers = previousState == null ? null : previousState.getLayers();
+		// The layers of the previous saved state can only be reused if they have been built with the same configuration
+		JSONObject previousLayerHashes = null;
+		if (previousState != null && this.configHash != null && this.configHash.equals(previousState.getConfigHash())) {
+			previousLayerHashes = previousState.getLayerHashes();
+		}
+
 		// LayerCatalog before overrides
-		DataSourceWrapper rawLayerCatalog = this.getRawLayerCatalog(redownloadPrimaryFiles, redownloadSecondaryFiles);
+		DataSourceWrapper rawLayerCatalog = this.getRawLayerCatalog(redownloadPrimaryFiles, redownloadSecondaryFiles, harvestMetadata,
+				previousLayers, previousLayerHashes);
+		JSONObject layerHashes = rawLayerCatalog.getLayerHashes();
 
 		// Map of layers, after overrides, used to create the final layer catalog
 		HashMap<String, LayerWrapper> layersMap = new HashMap<String, LayerWrapper>();
+		// IDs of the layers taken from the previous saved state
+		Set<String> reusedLayerIds = new HashSet<String>();
 
 		JSONSortedObject globalOverrides = this.globalManualOverride;
 
@@ -391,11 +765,18 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 				Iterator<String> layersKeys = layers.keys();
 				while (layersKeys.hasNext()) {
 					String rawLayerId = layersKeys.next();
-					LayerWrapper layerWrapper = new LayerWrapper(layers.optJSONObject(rawLayerId));
-					if (layerWrapper != null) {
-						layersMap.put(
-								rawLayerId,
-								AbstractLayerConfig.applyGlobalOverrides(rawLayerId, layerWrapper, globalOverrides));
+					JSONObject previousLayer = getReusableLayer(rawLayerId, layerHashes, previousLayerHashes, previousLayers);
+					if (previousLayer != null) {
+						// The overrides have already been applied to it
+						layersMap.put(rawLayerId, new LayerWrapper(previousLayer));
+						reusedLayerIds.add(rawLayerId);
+					} else {
+						LayerWrapper layerWrapper = new LayerWrapper(layers.optJSONObject(rawLayerId));
+						if (layerWrapper != null) {
+							layersMap.put(
+									rawLayerId,
+									AbstractLayerConfig.applyGlobalOverrides(rawLayerId, layerWrapper, globalOverrides));
+						}
 					}
 				}
 			}
@@ -490,6 +871,9 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 		layerCatalog.addErrors(rawLayerCatalog.getErrors());
 		layerCatalog.addWarnings(rawLayerCatalog.getWarnings());
 		layerCatalog.addMessages(rawLayerCatalog.getMessages());
+		layerCatalog.setMetadataPending(rawLayerCatalog.isMetadataPending());
+		layerCatalog.setConfigHash(this.configHash);
+		layerCatalog.setLayerHashes(layerHashes);
 
 		JSONObject layers = layerCatalog.getLayers();
 		int nbLayers = layers == null ? 0 : layers.length();
@@ -499,9 +883,120 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 		//		" and " + nbCachedLayers + " cached layer" + (nbCachedLayers > 1 ? "s" : ""));
 		layerCatalog.addMessage("The data source contains " + nbLayers + " layer" + (nbLayers > 1 ? "s" : ""));
 
+		JSONObject layerChanges = getLayerChanges(previousLayers, layers);
+		layerCatalog.setLayerChanges(layerChanges);
+		if (previousState != null) {
+			layerCatalog.addMessage("Changes since the previous harvest: " +
+					layerChanges.getJSONArray("added").length() + " added, " +
+					layerChanges.getJSONArray("modified").length() + " modified, " +
+					layerChanges.getJSONArray("deleted").length() + " deleted; " +
+					reusedLayerIds.size() + " unchanged layer" + (reusedLayerIds.size() > 1 ? "s" : "") + " reused");
+		}
+
 		return layerCatalog;
 	}
 
+	/**
+	 * @param layerId
+	 * @param layerHashes The hash of the inputs of the harvested layers (see AbstractLayerGenerator.reusePreviousLayer).
+	 * @param previousLayerHashes The hash of the inputs of the layers of the previous saved state, or null if they can not be reused.
+	 * @param previousLayers The layers of the previous saved state, after overrides.
+	 * @return The layer of the previous saved state, if its inputs have not changed since. Null otherwise.
+	 */
+	private static JSONObject getReusableLayer(String layerId, JSONObject layerHashes, JSONObject previousLayerHashes, JSONObject previousLayers) {
+		if (layerHashes == null || previousLayerHashes == null || previousLayers == null) {
+			return null;
+		}
+		String layerHash = layerHashes.optString(layerId, null);
+		if (layerHash == null || !layerHash.equals(previousLayerHashes.optString(layerId, null))) {
+			return null;
+		}
+		return previousLayers.optJSONObject(layerId);
+	}
+
+	/**
+	 * @param previousLayers The layers of the previous saved state, or null if the data source has never been harvested.
+	 * @param layers The harvested layers, after overrides.
+	 * @return The IDs of the layers added, modified and deleted since the previous saved state (see DataSourceWrapper.getLayerChanges).
+	 * @throws JSONException
+	 * @throws NoSuchAlgorithmException
+	 */
+	static JSONObject getLayerChanges(JSONObject previousLayers, JSONObject layers)
+			throws JSONException, NoSuchAlgorithmException {
+
+		// Sorted, to get the same changes in the same order for the same harvest
+		SortedSet<String> added = new TreeSet<String>();
+		SortedSet<String> modified = new TreeSet<String>();
+		SortedSet<String> deleted = new TreeSet<String>();
+
+		if (layers != null) {
+			Iterator<String> layerIds = layers.keys();
+			while (layerIds.hasNext()) {
+				String layerId = layerIds.next();
+				JSONObject previousLayer = previousLayers == null ? null : previousLayers.optJSONObject(layerId);
+				if (previousLayer == null) {
+					added.add(layerId);
+				} else {
+					String layerHash = Utils.jsonHash(layers.optJSONObject(layerId));
+					if (layerHash == null || !layerHash.equals(Utils.jsonHash(previousLayer))) {
+						modified.add(layerId);
+					}
+				}
+			}
+		}
+
+		if (previousLayers != null) {
+			Iterator<String> previousLayerIds = previousLayers.keys();
+			while (previousLayerIds.hasNext()) {
+				String previousLayerId = previousLayerIds.next();
+				if (layers == null || !layers.has(previousLayerId)) {
+					deleted.add(previousLayerId);
+				}
+			}
+		}
+
+		JSONObject layerChanges = new JSONObject();
+		layerChanges.put("added", new JSONArray(added));
+		layerChanges.put("modified", new JSONArray(modified));
+		layerChanges.put("deleted", new JSONArray(deleted));
+		return layerChanges;
+	}
+
+	/**
+	 * @return The hash of the configuration of the data source, or null if it can not be calculated.
+	 *     The layers also depend on the version of the AtlasMapper.
+	 */
+	private String calculateConfigHash() {
+		try {
+			JSONObject jsonConfig = super.toJSonObject();
+			jsonConfig.put("atlasMapperVersion", ProjectInfo.getVersion());
+			return Utils.jsonHash(jsonConfig);
+		} catch (Exception ex) {
+			// Unlikely to happen; the layers of the previous saved state will not be reused
+			LOGGER.log(Level.WARNING, "Can not calculate the hash of the configuration of the data source {0}: {1}",
+					new String[]{ this.dataSourceId, Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * @return The saved state of the data source, or null if it has never been harvested or if it can not be loaded.
+	 */
+	private DataSourceWrapper loadPreviousState() {
+		File applicationFolder = this.getConfigManager().getApplicationFolder();
+		try {
+			synchronized (SAVED_STATE_LOCK) {
+				return AbstractDataSourceConfig.load(applicationFolder, this.dataSourceId);
+			}
+		} catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Can not load the saved state of the data source {0}: {1}",
+					new String[]{ this.dataSourceId, Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+			return null;
+		}
+	}
+
 	@Override
 	public void setJSONObjectKey(String key) {
 		if (Utils.isBlank(this.dataSourceId)) {
@@ -668,6 +1163,49 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 		this.activeDownload = activeDownload;
 	}
 
+	public Integer getRefreshInterval() {
+		return this.refreshInterval;
+	}
+
+	public void setRefreshInterval(Integer refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	public Integer getHarvestTimeout() {
+		return this.harvestTimeout;
+	}
+
+	public void setHarvestTimeout(Integer harvestTimeout) {
+		this.harvestTimeout = harvestTimeout;
+	}
+
+	public Integer getLayersHarvestTimeout() {
+		return this.layersHarvestTimeout;
+	}
+
+	public void setLayersHarvestTimeout(Integer layersHarvestTimeout) {
+		this.layersHarvestTimeout = layersHarvestTimeout;
+	}
+
+	public Integer getMetadataHarvestTimeout() {
+		return this.metadataHarvestTimeout;
+	}
+
+	public void setMetadataHarvestTimeout(Integer metadataHarvestTimeout) {
+		this.metadataHarvestTimeout = metadataHarvestTimeout;
+	}
+
+	/**
+	 * @return The time budget of the harvest in progress, or null if the data source is not being harvested.
+	 */
+	public HarvestDeadline getHarvestDeadline() {
+		return this.harvestDeadline;
+	}
+
+	public void setHarvestDeadline(HarvestDeadline harvestDeadline) {
+		this.harvestDeadline = harvestDeadline;
+	}
+
 	public Boolean isShowInLegend() {
 		return showInLegend;
 	}
@@ -752,6 +1290,12 @@ public abstract class AbstractDataSourceConfig extends AbstractConfig implements
 			// Comments are only useful for the admin interface.
 			dataSourceWrapper.setComment(null);
 
+			// The refresh interval and the harvest timeouts are only used by the server.
+			dataSourceWrapper.setRefreshInterval(null);
+			dataSourceWrapper.setHarvestTimeout(null);
+			dataSourceWrapper.setLayersHarvestTimeout(null);
+			dataSourceWrapper.setMetadataHarvestTimeout(null);
+
 			// Base layers flag are set on layers at this stage. The client do not need those list.
 			dataSourceWrapper.setBaseLayers((JSONArray)null);
 			dataSourceWrapper.setOverlayLayers((JSONArray)null);
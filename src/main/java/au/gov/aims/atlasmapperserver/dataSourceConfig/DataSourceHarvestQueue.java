@@ -0,0 +1,141 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package au.gov.aims.atlasmapperserver.dataSourceConfig;
+
+import au.gov.aims.atlasmapperserver.URLCache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Queue of the data sources waiting to be harvested by the workers of
+ * AbstractDataSourceConfig.processAll.
+ *
+ * The data sources are grouped by host (the host of their service URL). The hosts
+ * are served in turn (round robin), and a host is never harvested by more than
+ * maxPerHost workers at the same time, so a server hosting many data sources
+ * is not hammered while the other servers are waiting.
+ * The data sources without service URL (Google, Bing, etc.) are not limited.
+ */
+class DataSourceHarvestQueue {
+	// LinkedHashMap<String host, LinkedList<AbstractDataSourceConfig> pending data sources>
+	// The order of the keys is the order in which the hosts are served.
+	private final LinkedHashMap<String, LinkedList<AbstractDataSourceConfig>> pendingDataSources;
+	// HashMap<String host, Integer number of data sources being harvested>
+	private final Map<String, Integer> runningCount;
+	private final int maxPerHost;
+	private boolean closed;
+
+	public DataSourceHarvestQueue(Collection<AbstractDataSourceConfig> dataSources, int maxPerHost) {
+		this.pendingDataSources = new LinkedHashMap<String, LinkedList<AbstractDataSourceConfig>>();
+		this.runningCount = new HashMap<String, Integer>();
+		this.maxPerHost = maxPerHost < 1 ? 1 : maxPerHost;
+		this.closed = false;
+
+		if (dataSources != null) {
+			for (AbstractDataSourceConfig dataSource : dataSources) {
+				String host = getHost(dataSource);
+				LinkedList<AbstractDataSourceConfig> hostDataSources = this.pendingDataSources.get(host);
+				if (hostDataSources == null) {
+					hostDataSources = new LinkedList<AbstractDataSourceConfig>();
+					this.pendingDataSources.put(host, hostDataSources);
+				}
+				hostDataSources.add(dataSource);
+			}
+		}
+	}
+
+	/**
+	 * Wait until a data source can be harvested without exceeding the limit of its host.
+	 * The worker has to call done when the harvest of the data source is finished.
+	 * @return The next data source to harvest, or null when the queue is empty or closed.
+	 * @throws InterruptedException
+	 */
+	public synchronized AbstractDataSourceConfig take() throws InterruptedException {
+		while (!this.closed && !this.pendingDataSources.isEmpty()) {
+			Iterator<Map.Entry<String, LinkedList<AbstractDataSourceConfig>>> it = this.pendingDataSources.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, LinkedList<AbstractDataSourceConfig>> hostEntry = it.next();
+				String host = hostEntry.getKey();
+				if (host == null || this.getRunningCount(host) < this.maxPerHost) {
+					LinkedList<AbstractDataSourceConfig> hostDataSources = hostEntry.getValue();
+					AbstractDataSourceConfig dataSource = hostDataSources.removeFirst();
+
+					// Move the host at the end of the queue, to give a chance to the other hosts
+					it.remove();
+					if (!hostDataSources.isEmpty()) {
+						this.pendingDataSources.put(host, hostDataSources);
+					}
+
+					if (host != null) {
+						this.runningCount.put(host, this.getRunningCount(host) + 1);
+					}
+					return dataSource;
+				}
+			}
+
+			// All the remaining hosts are busy
+			this.wait();
+		}
+		return null;
+	}
+
+	/**
+	 * Release the slot taken by the data source on its host.
+	 * @param dataSource A data source returned by take.
+	 */
+	public synchronized void done(AbstractDataSourceConfig dataSource) {
+		String host = getHost(dataSource);
+		if (host != null) {
+			int count = this.getRunningCount(host) - 1;
+			if (count > 0) {
+				this.runningCount.put(host, count);
+			} else {
+				this.runningCount.remove(host);
+			}
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Stop giving data sources to the workers (used when the rebuild is cancelled).
+	 */
+	public synchronized void close() {
+		this.closed = true;
+		this.notifyAll();
+	}
+
+	private int getRunningCount(String host) {
+		Integer count = this.runningCount.get(host);
+		return count == null ? 0 : count;
+	}
+
+	private static String getHost(AbstractDataSourceConfig dataSource) {
+		String serviceUrl = dataSource.getServiceUrl();
+		return serviceUrl == null ? null : URLCache.getHost(serviceUrl);
+	}
+}
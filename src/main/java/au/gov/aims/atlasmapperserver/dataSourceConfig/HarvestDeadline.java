@@ -0,0 +1,93 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver.dataSourceConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Time budget of a phase of the harvest of a data source (see AbstractDataSourceConfig.process).
+ * Once the budget is spent, the URL cache stops downloading documents for the data source and
+ * returns the cached version of the documents instead (see URLCache.getURLFile and HarvestDeadlineException);
+ * the harvest publish what it has, and the documents that could not be updated are listed in the rebuild report.
+ *
+ * The budget of a phase is the smallest of the time left for the whole harvest and the
+ * time allowed for the phase. This class is used by many threads at once.
+ */
+public class HarvestDeadline {
+	private static final long NB_MS_PER_SECOND = 1000;
+
+	// Epoch time in ms, or Long.MAX_VALUE for no limit
+	private final long expiryTime;
+
+	// URLs of the documents for which the cached version has been used
+	private final Set<String> staleUrls;
+	// URLs of the documents which could not be harvested; there is no cached version
+	private final Set<String> skippedUrls;
+
+	/**
+	 * @param overallTimeout Maximum duration of the whole harvest, all phases included, in seconds.
+	 *     Null or less than 1 for no limit.
+	 * @param elapsedTime Time spent by the previous phases of the harvest, in milliseconds.
+	 * @param phaseTimeout Maximum duration of the phase, in seconds. Null or less than 1 for no limit.
+	 */
+	public HarvestDeadline(Integer overallTimeout, long elapsedTime, Integer phaseTimeout) {
+		long budget = Long.MAX_VALUE;
+		if (overallTimeout != null && overallTimeout > 0) {
+			budget = Math.max(0, overallTimeout * NB_MS_PER_SECOND - elapsedTime);
+		}
+		if (phaseTimeout != null && phaseTimeout > 0) {
+			budget = Math.min(budget, phaseTimeout * NB_MS_PER_SECOND);
+		}
+		this.expiryTime = budget == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + budget;
+
+		this.staleUrls = Collections.synchronizedSet(new LinkedHashSet<String>());
+		this.skippedUrls = Collections.synchronizedSet(new LinkedHashSet<String>());
+	}
+
+	public boolean isExpired() {
+		return this.expiryTime != Long.MAX_VALUE && System.currentTimeMillis() >= this.expiryTime;
+	}
+
+	public void addStaleUrl(String urlStr) {
+		this.staleUrls.add(urlStr);
+	}
+
+	public void addSkippedUrl(String urlStr) {
+		this.skippedUrls.add(urlStr);
+	}
+
+	public List<String> getStaleUrls() {
+		synchronized (this.staleUrls) {
+			return new ArrayList<String>(this.staleUrls);
+		}
+	}
+
+	public List<String> getSkippedUrls() {
+		synchronized (this.skippedUrls) {
+			return new ArrayList<String>(this.skippedUrls);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver.dataSourceConfig;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Thrown by URLCache.getURLFile when the harvest of the data source is out of time (see HarvestDeadline);
+ * the URL has not been downloaded. The exception carries the cached file of the URL, which has already
+ * been approved, or null if the URL is not in the cache.
+ * The cached file must NOT be committed nor rolled back; nothing has been downloaded, there is nothing
+ * to approve, and the state of the cache entry (broken, marked for re-download, etc.) has to be
+ * left as it is for the next harvest.
+ */
+public class HarvestDeadlineException extends IOException {
+	private final String url;
+	private final File cachedFile;
+
+	public HarvestDeadlineException(String url, File cachedFile) {
+		super("The harvest is out of time, the URL has not been downloaded: " + url);
+		this.url = url;
+		this.cachedFile = cachedFile;
+	}
+
+	public String getUrl() {
+		return this.url;
+	}
+
+	/**
+	 * @return The approved cached file of the URL, or null if the URL has never been successfully downloaded.
+	 */
+	public File getCachedFile() {
+		return this.cachedFile;
+	}
+}
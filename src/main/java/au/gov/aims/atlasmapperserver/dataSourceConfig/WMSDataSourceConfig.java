@@ -69,6 +69,11 @@ public class WMSDataSourceConfig extends AbstractDataSourceConfig {
 	@ConfigField
 	private String cacheWmsVersion;
 
+	// Number of metadata documents (TC211) downloaded at the same time while harvesting the layers.
+	// Null for the default value. See AbstractWMSLayerGenerator.getMetadataDocuments.
+	@ConfigField
+	private Integer metadataMaxConcurrency;
+
 	public WMSDataSourceConfig(ConfigManager configManager) {
 		super(configManager);
 	}
@@ -196,12 +201,22 @@ public class WMSDataSourceConfig extends AbstractDataSourceConfig {
 		this.cacheWmsVersion = cacheWmsVersion;
 	}
 
+	public Integer getMetadataMaxConcurrency() {
+		return this.metadataMaxConcurrency;
+	}
+
+	public void setMetadataMaxConcurrency(Integer metadataMaxConcurrency) {
+		this.metadataMaxConcurrency = metadataMaxConcurrency;
+	}
+
 	// Generate the config to be display in the admin page, or saved as a data source saved state
 	@Override
 	public JSONObject toJSonObject(boolean forSavedState) throws JSONException {
 		DataSourceWrapper dataSourceWrapper = new DataSourceWrapper(super.toJSonObject(forSavedState));
 		if (forSavedState) {
 			dataSourceWrapper.setGetMapUrl(null);
+			// The metadata concurrency is only used by the server.
+			dataSourceWrapper.setMetadataMaxConcurrency(null);
 		}
 		return dataSourceWrapper.getJSON();
 	}
@@ -251,6 +251,105 @@ public class DataSourceWrapper extends AbstractWrapper {
 		this.setValue("comment", comment);
 	}
 
+	public String getStateHash() {
+		return this.json.optString("stateHash", null);
+	}
+	public void setStateHash(String stateHash) throws JSONException {
+		this.setValue("stateHash", stateHash);
+	}
+
+	// True when the layers have been published before all their metadata documents
+	// have been harvested (see AbstractDataSourceConfig.process)
+	public boolean isMetadataPending() {
+		return this.json.optBoolean("metadataPending", false);
+	}
+	public void setMetadataPending(boolean metadataPending) throws JSONException {
+		if (metadataPending) {
+			this.setValue("metadataPending", true);
+		} else {
+			this.json.remove("metadataPending");
+		}
+	}
+
+	// Hash of the configuration used to harvest the layers; the layers of a saved state
+	// can only be reused by a harvest done with the same configuration.
+	public String getConfigHash() {
+		return this.json.optString("configHash", null);
+	}
+	public void setConfigHash(String configHash) throws JSONException {
+		this.setValue("configHash", configHash);
+	}
+
+	// Hash of the inputs of each layer (see AbstractLayerGenerator.reusePreviousLayer):
+	//     { "<layer ID>": "<hash>", ... }
+	// A layer which has the same hash as in the previous saved state is taken as-is from it
+	// (see AbstractDataSourceConfig.getLayerCatalog).
+	public JSONObject getLayerHashes() {
+		return this.json.optJSONObject("layerHashes");
+	}
+	public void setLayerHashes(JSONObject layerHashes) throws JSONException {
+		this.setValue("layerHashes", layerHashes);
+	}
+
+	// Layers which have changed since the previous saved state:
+	//     { "added": [ "<layer ID>", ... ], "modified": [ ... ], "deleted": [ ... ] }
+	public JSONObject getLayerChanges() {
+		return this.json.optJSONObject("layerChanges");
+	}
+	public void setLayerChanges(JSONObject layerChanges) throws JSONException {
+		this.setValue("layerChanges", layerChanges);
+	}
+
+	public Integer getRefreshInterval() {
+		if (this.json.isNull("refreshInterval")) {
+			return null;
+		}
+		return this.json.optInt("refreshInterval");
+	}
+	public void setRefreshInterval(Integer refreshInterval) throws JSONException {
+		this.setValue("refreshInterval", refreshInterval);
+	}
+
+	public Integer getHarvestTimeout() {
+		if (this.json.isNull("harvestTimeout")) {
+			return null;
+		}
+		return this.json.optInt("harvestTimeout");
+	}
+	public void setHarvestTimeout(Integer harvestTimeout) throws JSONException {
+		this.setValue("harvestTimeout", harvestTimeout);
+	}
+
+	public Integer getLayersHarvestTimeout() {
+		if (this.json.isNull("layersHarvestTimeout")) {
+			return null;
+		}
+		return this.json.optInt("layersHarvestTimeout");
+	}
+	public void setLayersHarvestTimeout(Integer layersHarvestTimeout) throws JSONException {
+		this.setValue("layersHarvestTimeout", layersHarvestTimeout);
+	}
+
+	public Integer getMetadataHarvestTimeout() {
+		if (this.json.isNull("metadataHarvestTimeout")) {
+			return null;
+		}
+		return this.json.optInt("metadataHarvestTimeout");
+	}
+	public void setMetadataHarvestTimeout(Integer metadataHarvestTimeout) throws JSONException {
+		this.setValue("metadataHarvestTimeout", metadataHarvestTimeout);
+	}
+
+	public Integer getMetadataMaxConcurrency() {
+		if (this.json.isNull("metadataMaxConcurrency")) {
+			return null;
+		}
+		return this.json.optInt("metadataMaxConcurrency");
+	}
+	public void setMetadataMaxConcurrency(Integer metadataMaxConcurrency) throws JSONException {
+		this.setValue("metadataMaxConcurrency", metadataMaxConcurrency);
+	}
+
 	public JSONObject getLegendParameters() {
 		return this.json.optJSONObject("legendParameters");
 	}
@@ -411,6 +510,12 @@ public class DataSourceWrapper extends AbstractWrapper {
 		dataSourceClone.setBlackAndWhiteListedLayers(null);
 		dataSourceClone.setLastHarvested(null);
 		dataSourceClone.setComment(null);
+		dataSourceClone.setRefreshInterval(null);
+		dataSourceClone.setStateHash(null);
+		dataSourceClone.setMetadataPending(false);
+		dataSourceClone.setConfigHash(null);
+		dataSourceClone.setLayerHashes(null);
+		dataSourceClone.setLayerChanges(null);
 
 		return dataSourceClone.getJSON();
 	}
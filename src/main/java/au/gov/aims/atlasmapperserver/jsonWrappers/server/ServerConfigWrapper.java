@@ -46,6 +46,148 @@ public class ServerConfigWrapper extends AbstractWrapper {
 		}
 	}
 
+	// Disk cache budget, in bytes. Null for unlimited.
+	public Long getDiskCacheMaxSize() {
+		return this.getDiskCacheMaxSize(null);
+	}
+	public Long getDiskCacheMaxSize(Long defaultValue) {
+		if (this.json.isNull("diskCacheMaxSize")) {
+			return defaultValue;
+		}
+		return this.json.optLong("diskCacheMaxSize");
+	}
+	public void setDiskCacheMaxSize(Long diskCacheMaxSize) throws JSONException {
+		if (diskCacheMaxSize == null && !this.json.isNull("diskCacheMaxSize")) {
+			this.json.remove("diskCacheMaxSize");
+		} else {
+			this.json.put("diskCacheMaxSize", diskCacheMaxSize);
+		}
+	}
+
+	// Disk cache budget, in number of files. Null for unlimited.
+	public Integer getDiskCacheMaxFiles() {
+		return this.getDiskCacheMaxFiles(null);
+	}
+	public Integer getDiskCacheMaxFiles(Integer defaultValue) {
+		if (this.json.isNull("diskCacheMaxFiles")) {
+			return defaultValue;
+		}
+		return this.json.optInt("diskCacheMaxFiles");
+	}
+	public void setDiskCacheMaxFiles(Integer diskCacheMaxFiles) throws JSONException {
+		if (diskCacheMaxFiles == null && !this.json.isNull("diskCacheMaxFiles")) {
+			this.json.remove("diskCacheMaxFiles");
+		} else {
+			this.json.put("diskCacheMaxFiles", diskCacheMaxFiles);
+		}
+	}
+
+	// HTTP transport (see HttpTransport). Timeouts in seconds; null for the default value.
+	public Integer getHttpConnectTimeout() {
+		return this.getHttpConnectTimeout(null);
+	}
+	public Integer getHttpConnectTimeout(Integer defaultValue) {
+		if (this.json.isNull("httpConnectTimeout")) {
+			return defaultValue;
+		}
+		return this.json.optInt("httpConnectTimeout");
+	}
+	public void setHttpConnectTimeout(Integer httpConnectTimeout) throws JSONException {
+		if (httpConnectTimeout == null && !this.json.isNull("httpConnectTimeout")) {
+			this.json.remove("httpConnectTimeout");
+		} else {
+			this.json.put("httpConnectTimeout", httpConnectTimeout);
+		}
+	}
+
+	public Integer getHttpReadTimeout() {
+		return this.getHttpReadTimeout(null);
+	}
+	public Integer getHttpReadTimeout(Integer defaultValue) {
+		if (this.json.isNull("httpReadTimeout")) {
+			return defaultValue;
+		}
+		return this.json.optInt("httpReadTimeout");
+	}
+	public void setHttpReadTimeout(Integer httpReadTimeout) throws JSONException {
+		if (httpReadTimeout == null && !this.json.isNull("httpReadTimeout")) {
+			this.json.remove("httpReadTimeout");
+		} else {
+			this.json.put("httpReadTimeout", httpReadTimeout);
+		}
+	}
+
+	// Maximum number of simultaneous connections to a host, for the harvest and for the proxy.
+	public Integer getHarvestMaxConnectionsPerHost() {
+		return this.getHarvestMaxConnectionsPerHost(null);
+	}
+	public Integer getHarvestMaxConnectionsPerHost(Integer defaultValue) {
+		if (this.json.isNull("harvestMaxConnectionsPerHost")) {
+			return defaultValue;
+		}
+		return this.json.optInt("harvestMaxConnectionsPerHost");
+	}
+	public void setHarvestMaxConnectionsPerHost(Integer harvestMaxConnectionsPerHost) throws JSONException {
+		if (harvestMaxConnectionsPerHost == null && !this.json.isNull("harvestMaxConnectionsPerHost")) {
+			this.json.remove("harvestMaxConnectionsPerHost");
+		} else {
+			this.json.put("harvestMaxConnectionsPerHost", harvestMaxConnectionsPerHost);
+		}
+	}
+
+	public Integer getProxyMaxConnectionsPerHost() {
+		return this.getProxyMaxConnectionsPerHost(null);
+	}
+	public Integer getProxyMaxConnectionsPerHost(Integer defaultValue) {
+		if (this.json.isNull("proxyMaxConnectionsPerHost")) {
+			return defaultValue;
+		}
+		return this.json.optInt("proxyMaxConnectionsPerHost");
+	}
+	public void setProxyMaxConnectionsPerHost(Integer proxyMaxConnectionsPerHost) throws JSONException {
+		if (proxyMaxConnectionsPerHost == null && !this.json.isNull("proxyMaxConnectionsPerHost")) {
+			this.json.remove("proxyMaxConnectionsPerHost");
+		} else {
+			this.json.put("proxyMaxConnectionsPerHost", proxyMaxConnectionsPerHost);
+		}
+	}
+
+	// Maximum number of data sources refreshed at the same time by the RefreshScheduler. Null for the default value.
+	public Integer getRefreshMaxConcurrency() {
+		return this.getRefreshMaxConcurrency(null);
+	}
+	public Integer getRefreshMaxConcurrency(Integer defaultValue) {
+		if (this.json.isNull("refreshMaxConcurrency")) {
+			return defaultValue;
+		}
+		return this.json.optInt("refreshMaxConcurrency");
+	}
+	public void setRefreshMaxConcurrency(Integer refreshMaxConcurrency) throws JSONException {
+		if (refreshMaxConcurrency == null && !this.json.isNull("refreshMaxConcurrency")) {
+			this.json.remove("refreshMaxConcurrency");
+		} else {
+			this.json.put("refreshMaxConcurrency", refreshMaxConcurrency);
+		}
+	}
+
+	// Maximum number of data sources harvested at the same time by a rebuild of all data sources. Null for the default value.
+	public Integer getHarvestMaxConcurrency() {
+		return this.getHarvestMaxConcurrency(null);
+	}
+	public Integer getHarvestMaxConcurrency(Integer defaultValue) {
+		if (this.json.isNull("harvestMaxConcurrency")) {
+			return defaultValue;
+		}
+		return this.json.optInt("harvestMaxConcurrency");
+	}
+	public void setHarvestMaxConcurrency(Integer harvestMaxConcurrency) throws JSONException {
+		if (harvestMaxConcurrency == null && !this.json.isNull("harvestMaxConcurrency")) {
+			this.json.remove("harvestMaxConcurrency");
+		} else {
+			this.json.put("harvestMaxConcurrency", harvestMaxConcurrency);
+		}
+	}
+
 	public Double getVersion() {
 		return this.getVersion(null);
 	}
@@ -22,9 +22,23 @@
 package au.gov.aims.atlasmapperserver.layerConfig;
 
 import au.gov.aims.atlasmapperserver.ConfigManager;
+import au.gov.aims.atlasmapperserver.annotation.ConfigField;
+import org.json.JSONObject;
 
 public class NcWMSLayerConfig extends WMSLayerConfig {
+	// Compact list of the times available for the layer (see layerGenerator.TimeDimension)
+	@ConfigField
+	private JSONObject timeDimension;
+
 	public NcWMSLayerConfig(ConfigManager configManager) {
 		super(configManager);
 	}
+
+	public JSONObject getTimeDimension() {
+		return this.timeDimension;
+	}
+
+	public void setTimeDimension(JSONObject timeDimension) {
+		this.timeDimension = timeDimension;
+	}
 }
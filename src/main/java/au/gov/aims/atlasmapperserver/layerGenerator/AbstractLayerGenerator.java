@@ -22,22 +22,102 @@
 package au.gov.aims.atlasmapperserver.layerGenerator;
 
 import au.gov.aims.atlasmapperserver.Errors;
+import au.gov.aims.atlasmapperserver.RebuildJob;
 import au.gov.aims.atlasmapperserver.URLCache;
+import au.gov.aims.atlasmapperserver.Utils;
 import au.gov.aims.atlasmapperserver.dataSourceConfig.AbstractDataSourceConfig;
+import au.gov.aims.atlasmapperserver.dataSourceConfig.HarvestDeadline;
 import au.gov.aims.atlasmapperserver.jsonWrappers.client.DataSourceWrapper;
 import au.gov.aims.atlasmapperserver.jsonWrappers.client.LayerWrapper;
 import au.gov.aims.atlasmapperserver.layerConfig.AbstractLayerConfig;
 import au.gov.aims.atlasmapperserver.layerConfig.LayerCatalog;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public abstract class AbstractLayerGenerator<L extends AbstractLayerConfig, D extends AbstractDataSourceConfig> {
+	private static final Logger LOGGER = Logger.getLogger(AbstractLayerGenerator.class.getName());
+
+	// Maximum number of URLs listed in the warnings of the harvest time limit
+	private static final int MAX_REPORTED_URLS = 20;
+
 	protected long instanceTimestamp = -1;
 
+	// False to build the layers using only the metadata documents found in the cache (see setHarvestMetadata)
+	protected boolean harvestMetadata = true;
+	// True if some metadata documents were missing or outdated in the cache
+	private volatile boolean metadataPending = false;
+
+	// Layers of the previous saved state, after overrides, and the hash of their inputs (see setPreviousLayers)
+	private JSONObject previousLayers = null;
+	private JSONObject previousLayerHashes = null;
+	// Hash of the inputs of the layers, for the next harvest (see reusePreviousLayer)
+	private final Map<String, String> layerHashes = new HashMap<String, String>();
+	// Layers taken as-is from the previous saved state
+	private final Map<String, LayerWrapper> reusedLayers = new HashMap<String, LayerWrapper>();
+
+	/**
+	 * @param harvestMetadata False to build the layers without downloading any metadata document;
+	 *     the documents found in the cache are used, even if they have expired. The generators
+	 *     flag the catalog as "metadata pending" when a document has to be downloaded
+	 *     (see DataSourceWrapper.isMetadataPending). Used for the first phase of the harvest
+	 *     (see AbstractDataSourceConfig.process).
+	 */
+	public void setHarvestMetadata(boolean harvestMetadata) {
+		this.harvestMetadata = harvestMetadata;
+	}
+
+	// This method may be called by many threads at once
+	protected void setMetadataPending() {
+		this.metadataPending = true;
+	}
+
+	/**
+	 * @param previousLayers The layers of the previous saved state, after overrides.
+	 * @param previousLayerHashes The hash of the inputs of those layers, or null if they
+	 *     can not be reused (see AbstractDataSourceConfig.getLayerCatalog).
+	 */
+	public void setPreviousLayers(JSONObject previousLayers, JSONObject previousLayerHashes) {
+		this.previousLayers = previousLayers;
+		this.previousLayerHashes = previousLayerHashes;
+	}
+
+	/**
+	 * Record the hash of the inputs of a layer (its fragment of the capabilities document,
+	 * its metadata record, etc.), calculated before building it.
+	 * @param layerId The ID of the layer, as it would be built.
+	 * @param inputHash
+	 * @return The layer of the previous saved state, if its inputs have not changed since;
+	 *     the layer do not have to be built. Null otherwise.
+	 */
+	protected LayerWrapper reusePreviousLayer(String layerId, String inputHash) {
+		if (layerId == null || inputHash == null) {
+			return null;
+		}
+		this.layerHashes.put(layerId, inputHash);
+
+		if (this.previousLayers == null || this.previousLayerHashes == null ||
+				!inputHash.equals(this.previousLayerHashes.optString(layerId, null))) {
+			return null;
+		}
+		JSONObject previousLayer = this.previousLayers.optJSONObject(layerId);
+		if (previousLayer == null) {
+			return null;
+		}
+		LayerWrapper layerWrapper = new LayerWrapper(previousLayer);
+		this.reusedLayers.put(layerId, layerWrapper);
+		return layerWrapper;
+	}
+
 	protected abstract String getUniqueLayerId(L layer, D dataSourceConfig);
 
 	public DataSourceWrapper generateLayerCatalog(D dataSourceConfig, boolean redownloadPrimaryFiles, boolean redownloadSecondaryFiles) throws IOException, JSONException {
@@ -46,7 +126,10 @@ public abstract class AbstractLayerGenerator<L extends AbstractLayerConfig, D ex
 		Date startDate = new Date();
 
 		LayerCatalog rawLayerCatalog = this.generateRawLayerCatalog(dataSourceConfig, redownloadPrimaryFiles, redownloadSecondaryFiles);
+		RebuildJob.addLayers(rawLayerCatalog.getLayers().size() + this.reusedLayers.size());
 
+		// The metadata documents are deleted even when they are not harvested; the ones
+		// used by the layers are touched when they are read from the cache.
 		List<URLCache.Category> categories = new ArrayList<URLCache.Category>(3);
 		categories.add(URLCache.Category.CAPABILITIES_DOCUMENT);
 		categories.add(URLCache.Category.MEST_RECORD);
@@ -58,14 +141,61 @@ public abstract class AbstractLayerGenerator<L extends AbstractLayerConfig, D ex
 		DataSourceWrapper catalogWrapper = new DataSourceWrapper();
 		catalogWrapper.addAllErrors(dataSourceErrors);
 		catalogWrapper.addAllErrors(rawLayerCatalog.getErrors());
+		catalogWrapper.setMetadataPending(this.metadataPending);
+
+		HarvestDeadline harvestDeadline = dataSourceConfig.getHarvestDeadline();
+		if (harvestDeadline != null) {
+			List<String> staleUrls = harvestDeadline.getStaleUrls();
+			if (!staleUrls.isEmpty()) {
+				catalogWrapper.addWarning("The harvest time limit has been reached; the cached version of " +
+						staleUrls.size() + " document" + (staleUrls.size() > 1 ? "s" : "") + " has been used: " + formatUrls(staleUrls));
+			}
+			List<String> skippedUrls = harvestDeadline.getSkippedUrls();
+			if (!skippedUrls.isEmpty()) {
+				catalogWrapper.addWarning("The harvest time limit has been reached; " +
+						skippedUrls.size() + " document" + (skippedUrls.size() > 1 ? "s" : "") + " could not be harvested: " + formatUrls(skippedUrls));
+			}
+		}
 		for (AbstractLayerConfig layer : rawLayerCatalog.getLayers()) {
-			LayerWrapper layerWrapper = new LayerWrapper(layer.toJSonObject());
-			catalogWrapper.addLayer(layer.getLayerId(), layerWrapper);
+			JSONObject jsonLayer = layer.toJSonObject();
+			catalogWrapper.addLayer(layer.getLayerId(), new LayerWrapper(jsonLayer));
+
+			// The generators which do not hash the inputs of their layers build them from a few
+			// values of their document; the layer, before overrides, is its own input.
+			if (!this.layerHashes.containsKey(layer.getLayerId())) {
+				try {
+					this.layerHashes.put(layer.getLayerId(), Utils.jsonHash(jsonLayer));
+				} catch (NoSuchAlgorithmException ex) {
+					// Unlikely to happen; the layer will be rebuilt by the next harvest
+					LOGGER.log(Level.WARNING, "Can not calculate the hash of the layer {0}: {1}",
+							new String[]{ layer.getLayerId(), Utils.getExceptionMessage(ex) });
+					LOGGER.log(Level.FINE, "Stack trace:", ex);
+				}
+			}
+		}
+		for (Map.Entry<String, LayerWrapper> reusedLayer : this.reusedLayers.entrySet()) {
+			catalogWrapper.addLayer(reusedLayer.getKey(), reusedLayer.getValue());
 		}
+		catalogWrapper.setLayerHashes(new JSONObject(this.layerHashes));
 
 		return catalogWrapper;
 	}
 
+	private static String formatUrls(List<String> urls) {
+		StringBuilder sb = new StringBuilder();
+		int nbUrls = Math.min(urls.size(), MAX_REPORTED_URLS);
+		for (int i=0; i<nbUrls; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(urls.get(i));
+		}
+		if (urls.size() > nbUrls) {
+			sb.append(" and ").append(urls.size() - nbUrls).append(" more");
+		}
+		return sb.toString();
+	}
+
 	// TODO Maybe return a DataSourceWrapper?
 	// Redownload parameters are ignored by most data sources, but some use it (like KML)
 	protected abstract LayerCatalog generateRawLayerCatalog(D dataSourceConfig, boolean redownloadPrimaryFiles, boolean redownloadSecondaryFiles);
@@ -22,8 +22,10 @@
 package au.gov.aims.atlasmapperserver.layerGenerator;
 
 import au.gov.aims.atlasmapperserver.ConfigManager;
+import au.gov.aims.atlasmapperserver.RebuildJob;
 import au.gov.aims.atlasmapperserver.URLCache;
 import au.gov.aims.atlasmapperserver.Utils;
+import au.gov.aims.atlasmapperserver.WorkerPool;
 import au.gov.aims.atlasmapperserver.dataSourceConfig.WMSDataSourceConfig;
 import au.gov.aims.atlasmapperserver.layerConfig.LayerCatalog;
 import au.gov.aims.atlasmapperserver.layerConfig.LayerStyleConfig;
@@ -39,7 +41,9 @@ import org.geotools.data.ows.StyleImpl;
 import org.geotools.data.ows.WMSCapabilities;
 import org.geotools.data.ows.WMSRequest;
 import org.geotools.data.wms.xml.MetadataURL;
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.json.JSONSortedObject;
 import org.opengis.util.InternationalString;
 
@@ -48,10 +52,14 @@ import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -88,6 +96,9 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 	//     http://portal.opengeospatial.org/files/?artifact_id=14416
 	protected String wmsVersion = "1.1.1";
 
+	// Number of metadata documents downloaded at the same time, when not specified in the data source config
+	public static final int DEFAULT_METADATA_MAX_CONCURRENCY = 8;
+
 	/**
 	 * WMS Server already has a unique layer ID for each layers. Nothing to do here.
 	 * @param layer
@@ -140,15 +151,6 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 				//     GeoTools probably craft the URL. It's not very useful.
 				//this.stylesUrl = this.getOperationUrl(wmsRequestCapabilities.getGetStyles());
 			}
-
-			layersMap = this.getLayersInfoFromCaps(wmsCapabilities, dataSourceClone);
-
-			// Set default style of each layer
-			if (layersMap != null && !layersMap.isEmpty()) {
-				for (L layer : layersMap.values()) {
-					this.setDefaultLayerStyle(configManager, layer);
-				}
-			}
 		}
 		if (wmsServiceUrl == null && dataSourceServiceUrlStr != null) {
 			try {
@@ -159,10 +161,11 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 		}
 
 		Collection<L> layers = null;
-		if (layersMap != null && !layersMap.isEmpty()) {
-			if (dataSourceClone.isWebCacheEnable() != null && dataSourceClone.isWebCacheEnable() && wmsServiceUrl != null) {
-				layers = new ArrayList<L>(layersMap.size());
-				Map<String, L> cachedLayers = null;
+		if (wmsCapabilities != null) {
+			// The cache flags of the layers are part of their inputs; the WMTS document is parsed first.
+			boolean webCacheEnable = dataSourceClone.isWebCacheEnable() != null && dataSourceClone.isWebCacheEnable() && wmsServiceUrl != null;
+			Map<String, L> cachedLayers = null;
+			if (webCacheEnable) {
 				try {
 					cachedLayers = this.generateRawCachedLayerConfigs(dataSourceClone, wmsServiceUrl, layerCatalog);
 				} catch (Exception ex) {
@@ -174,37 +177,41 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 				// Fallback to 1.1.1, it's very well supported.
 				dataSourceClone.setCacheWmsVersion("1.1.1");
 
-				// Set cached flags
-				boolean fallback = false;
-				for (Map.Entry<String, L> layerEntry : layersMap.entrySet()) {
-					boolean cached = false;
-					L layer = layerEntry.getValue();
-					if (cachedLayers == null) {
-						// Empty list means no cached layers
-						// NULL means WMTS service not available. GeoServer 2.1.X use to have that problem...
-						// Fallback (GeoServer 2.1.X)  - assume GeoWebCache support cache for all layers, default style only
-						fallback = true;
-						cached = true;
-						this.setLayerStylesCacheFlag(layer.getStyles(), null);
-					} else if (cachedLayers.containsKey(layerEntry.getKey())) {
-						L cachedLayer = cachedLayers.get(layerEntry.getKey());
-						if (cachedLayer != null) {
-							cached = true;
-							this.setLayerStylesCacheFlag(layer.getStyles(), cachedLayer.getStyles());
-						}
-					}
-					layer.setCached(cached);
-
-					layers.add(layer);
-				}
-
-				if (fallback) {
+				if (cachedLayers == null) {
 					layerCatalog.addWarning("Could not find a valid WMTS capability document. " +
 							"Assuming all layers are cached. If the caching feature do not work properly, " +
 							"disable it in the data source configuration.");
 				}
-			} else {
-				// The cache is disabled, just get the layer list direct from the map.
+			}
+
+			// Only the new and modified layers are built; the others are taken from the previous saved state.
+			layersMap = this.getLayersInfoFromCaps(wmsCapabilities, dataSourceClone,
+					this.getWebCacheInputs(webCacheEnable, cachedLayers));
+
+			if (layersMap != null && !layersMap.isEmpty()) {
+				for (L layer : layersMap.values()) {
+					// Set default style of each layer
+					this.setDefaultLayerStyle(configManager, layer);
+
+					// Set cached flags
+					if (webCacheEnable) {
+						boolean cached = false;
+						if (cachedLayers == null) {
+							// Empty list means no cached layers
+							// NULL means WMTS service not available. GeoServer 2.1.X use to have that problem...
+							// Fallback (GeoServer 2.1.X)  - assume GeoWebCache support cache for all layers, default style only
+							cached = true;
+							this.setLayerStylesCacheFlag(layer.getStyles(), null);
+						} else if (cachedLayers.containsKey(layer.getLayerId())) {
+							L cachedLayer = cachedLayers.get(layer.getLayerId());
+							if (cachedLayer != null) {
+								cached = true;
+								this.setLayerStylesCacheFlag(layer.getStyles(), cachedLayer.getStyles());
+							}
+						}
+						layer.setCached(cached);
+					}
+				}
 				layers = layersMap.values();
 			}
 		}
@@ -258,7 +265,7 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 			if (rootLayer != null) {
 				// The boolean at the end is use to ignore the root from the capabilities document. It can be added (change to false) if some users think it's useful to see the root...
 				// NOTE: There should be no metadata document in GWC
-				this._propagateLayersInfoMapFromGeoToolRootLayer(layerConfigs, rootLayer, new LinkedList<String>(), dataSourceClone, true);
+				this._propagateLayersInfoMapFromGeoToolRootLayer(layerConfigs, rootLayer, new LinkedList<String>(), dataSourceClone, null, false, null, true);
 			}
 		}
 
@@ -448,13 +455,17 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 	}
 
 	/**
+	 * The layers which have not changed since the previous saved state are not built
+	 * (see AbstractLayerGenerator.reusePreviousLayer); they are not in the returned map.
 	 * @param wmsCapabilities
 	 * @param dataSourceClone
-	 * @return
+	 * @param webCacheInputs The cache flags of the layers (see getWebCacheInputs), or null if the web cache is disabled.
+	 * @return The new and modified layers.
 	 */
-	private Map<String, L> getLayersInfoFromCaps(
+	Map<String, L> getLayersInfoFromCaps(
 			WMSCapabilities wmsCapabilities,
-			D dataSourceClone // Data source of layers (to link the layer to its data source)
+			D dataSourceClone, // Data source of layers (to link the layer to its data source)
+			JSONObject webCacheInputs
 	) {
 		if (wmsCapabilities == null) {
 			return null;
@@ -465,11 +476,49 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 
 		Map<String, L> layerConfigs = new HashMap<String, L>();
 		// The boolean at the end is use to ignore the root from the capabilities document. It can be added (change to false) if some users think it's useful to see the root...
-		this._propagateLayersInfoMapFromGeoToolRootLayer(layerConfigs, rootLayer, new LinkedList<String>(), dataSourceClone, true);
+		this._propagateLayersInfoMapFromGeoToolRootLayer(layerConfigs, rootLayer, new LinkedList<String>(), dataSourceClone,
+				this.getMetadataDocuments(rootLayer, dataSourceClone), true, webCacheInputs, true);
 
 		return layerConfigs;
 	}
 
+	/**
+	 * @param webCacheEnable
+	 * @param cachedLayers The layers of the WMTS document, or null if it is not available.
+	 * @return The information used to set the cache flags of the layers, or null if the web cache is disabled:
+	 *     { "available": true, "layers": { "<layer ID>": [ "<cached style name>", ... ], ... } }
+	 */
+	private JSONObject getWebCacheInputs(boolean webCacheEnable, Map<String, L> cachedLayers) {
+		if (!webCacheEnable) {
+			return null;
+		}
+
+		JSONObject webCacheInputs = new JSONObject();
+		try {
+			webCacheInputs.put("available", cachedLayers != null);
+			if (cachedLayers != null) {
+				JSONObject cachedLayerStyles = new JSONObject();
+				for (Map.Entry<String, L> cachedLayerEntry : cachedLayers.entrySet()) {
+					JSONArray styleNames = new JSONArray();
+					L cachedLayer = cachedLayerEntry.getValue();
+					if (cachedLayer != null && cachedLayer.getStyles() != null) {
+						for (LayerStyleConfig cachedStyle : cachedLayer.getStyles()) {
+							styleNames.put(cachedStyle.getName());
+						}
+					}
+					cachedLayerStyles.put(cachedLayerEntry.getKey(), styleNames);
+				}
+				webCacheInputs.put("layers", cachedLayerStyles);
+			}
+		} catch(JSONException ex) {
+			// I don't think that exception can even occur. The inputs of the layers would not
+			// contain their cache flags; they would differ from the previous ones, so the layers are built.
+			LOGGER.log(Level.SEVERE, "Can not add an attribute to a JSON Object", ex);
+			return null;
+		}
+		return webCacheInputs;
+	}
+
 	/**
 	 * Set default layer style - This method is overriden in some sub-classes.
 	 *     See: WMSLayerGenerator.java
@@ -504,6 +553,9 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 			Layer layer,
 			List<String> treePath,
 			D dataSourceClone,
+			Map<Layer, TC211Document> metadataDocuments,
+			boolean reusePreviousLayers, // False to build all the layers (WMTS document)
+			JSONObject webCacheInputs,
 			boolean isRoot) {
 
 		if (layer == null) {
@@ -530,7 +582,8 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 			}
 
 			for (Layer childLayer : children) {
-				this._propagateLayersInfoMapFromGeoToolRootLayer(layerConfigs, childLayer, childrenTreePath, dataSourceClone, false);
+				this._propagateLayersInfoMapFromGeoToolRootLayer(layerConfigs, childLayer, childrenTreePath, dataSourceClone, metadataDocuments,
+						reusePreviousLayers, webCacheInputs, false);
 			}
 		} else {
 			// The layer do not have any children, so it is a real layer
@@ -546,7 +599,13 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 				}
 			}
 
-			L layerConfig = this.layerToLayerConfig(layer, treePathBuf.toString(), dataSourceClone);
+			TC211Document tc211Document = metadataDocuments == null ? null : metadataDocuments.get(layer);
+			if (reusePreviousLayers && this.reuseLayer(layer, treePathBuf.toString(), dataSourceClone, tc211Document, webCacheInputs)) {
+				// The layer has not changed since the previous harvest
+				return;
+			}
+
+			L layerConfig = this.layerToLayerConfig(layer, treePathBuf.toString(), dataSourceClone, tc211Document);
 			if (layerConfig != null) {
 				layerConfigs.put(layerConfig.getLayerId(), layerConfig);
 			}
@@ -554,88 +613,352 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 	}
 
 	/**
-	 * Convert a GeoTool Layer into a AtlasMapper Layer
+	 * Hash the inputs of a layer, before building it.
 	 * @param layer
 	 * @param treePath
 	 * @param dataSourceClone
-	 * @return
+	 * @param tc211Document The metadata document of the layer (see getMetadataDocuments), or null.
+	 * @param webCacheInputs The cache flags of the layers (see getWebCacheInputs), or null if the web cache is disabled.
+	 * @return True if the layer has been taken from the previous saved state (see AbstractLayerGenerator.reusePreviousLayer).
 	 */
-	private L layerToLayerConfig(
-			Layer layer,
-			String treePath,
-			D dataSourceClone) {
+	private boolean reuseLayer(Layer layer, String treePath, D dataSourceClone, TC211Document tc211Document, JSONObject webCacheInputs) {
+		String layerName = layer.getName();
+		if (Utils.isBlank(layerName)) {
+			return false;
+		}
 
+		// The ID of the layer, as set by layerToLayerConfig
 		L layerConfig = this.createLayerConfig(dataSourceClone.getConfigManager());
+		layerConfig.setLayerId(layerName);
+		this.ensureUniqueLayerId(layerConfig, dataSourceClone);
+		String layerId = layerConfig.getLayerId();
+
+		try {
+			JSONObject inputs = this.getLayerInputs(layer, treePath, tc211Document);
+			if (webCacheInputs != null) {
+				JSONObject layerWebCacheInputs = new JSONObject();
+				layerWebCacheInputs.put("available", webCacheInputs.optBoolean("available"));
+				JSONObject cachedLayerStyles = webCacheInputs.optJSONObject("layers");
+				if (cachedLayerStyles != null) {
+					layerWebCacheInputs.put("styles", cachedLayerStyles.opt(layerId));
+				}
+				inputs.put("webCache", layerWebCacheInputs);
+			}
+			return this.reusePreviousLayer(layerId, Utils.jsonHash(inputs)) != null;
+		} catch (Exception ex) {
+			// Unlikely to happen; the layer is built
+			LOGGER.log(Level.WARNING, "Can not calculate the hash of the layer {0} of the data source [{1}]: {2}",
+					new String[]{ layerName, dataSourceClone.getDataSourceName(), Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Return the inputs of a layer; its fragment of the capabilities document and its metadata
+	 * record - This method is overriden in some sub-classes.
+	 *     See: NcWMSLayerGenerator.java
+	 * It has to contain everything used to build the layer (see layerToLayerConfig and setLayerSpecificInfo);
+	 * the layer is only built again when its inputs change.
+	 * @param layer
+	 * @param treePath
+	 * @param tc211Document The metadata document of the layer, or null.
+	 * @return
+	 * @throws JSONException
+	 */
+	protected JSONObject getLayerInputs(Layer layer, String treePath, TC211Document tc211Document) throws JSONException {
+		JSONObject inputs = new JSONObject();
+		inputs.put("name", layer.getName());
+		inputs.put("title", layer.getTitle());
+		inputs.put("abstract", layer.get_abstract());
+		inputs.put("queryable", layer.isQueryable());
+		inputs.put("treePath", treePath);
+
+		List<StyleImpl> styleImpls = layer.getStyles();
+		if (styleImpls != null) {
+			JSONArray styles = new JSONArray();
+			for (StyleImpl styleImpl : styleImpls) {
+				JSONObject style = new JSONObject();
+				style.put("name", styleImpl.getName());
+				style.put("title", styleImpl.getTitle() == null ? null : styleImpl.getTitle().toString());
+				style.put("abstract", styleImpl.getAbstract() == null ? null : styleImpl.getAbstract().toString());
+				styles.put(style);
+			}
+			inputs.put("styles", styles);
+		}
+
+		CRSEnvelope boundingBox = layer.getLatLonBoundingBox();
+		if (boundingBox != null) {
+			inputs.put("boundingBox", toJSONArray(new double[]{
+					boundingBox.getMinX(), boundingBox.getMinY(),
+					boundingBox.getMaxX(), boundingBox.getMaxY()
+			}));
+		}
+
+		if (tc211Document != null) {
+			JSONObject metadata = new JSONObject();
+			metadata.put("uri", tc211Document.getUri());
+			metadata.put("abstract", tc211Document.getAbstract());
+			metadata.put("boundingBox", toJSONArray(tc211Document.getBoundingBox()));
+			List<TC211Document.Link> links = tc211Document.getLinks();
+			if (links != null) {
+				JSONArray jsonLinks = new JSONArray();
+				for (TC211Document.Link link : links) {
+					JSONObject jsonLink = new JSONObject();
+					jsonLink.put("url", link.getUrl());
+					jsonLink.put("protocol", link.getProtocolStr());
+					jsonLink.put("name", link.getName());
+					jsonLink.put("description", link.getDescription());
+					jsonLinks.put(jsonLink);
+				}
+				metadata.put("links", jsonLinks);
+			}
+			inputs.put("metadata", metadata);
+		}
+
+		return inputs;
+	}
+
+	private static JSONArray toJSONArray(double[] values) throws JSONException {
+		if (values == null) {
+			return null;
+		}
+		JSONArray jsonArray = new JSONArray();
+		for (double value : values) {
+			jsonArray.put(value);
+		}
+		return jsonArray;
+	}
 
+	/**
+	 * Download and parse the metadata documents (TC211) of all the layers, using a bounded pool
+	 * of threads (see WMSDataSourceConfig.getMetadataMaxConcurrency). Each layer has to be
+	 * linked to its metadata document, which can take a round trip or more per layer; harvesting
+	 * them one at the time is very slow for services providing thousands of layers.
+	 * When the metadata are not harvested (see AbstractLayerGenerator.setHarvestMetadata),
+	 * the documents are only read from the cache.
+	 * An unexpected error with the metadata of a layer is logged; the layer is published without metadata.
+	 * @param rootLayer
+	 * @param dataSourceClone
+	 * @return The metadata document of each layer which has one.
+	 */
+	Map<Layer, TC211Document> getMetadataDocuments(Layer rootLayer, final D dataSourceClone) {
+		// The GeoTools Layer equals method compare the layer names; use the instances as keys.
+		final Map<Layer, TC211Document> metadataDocuments = Collections.synchronizedMap(new IdentityHashMap<Layer, TC211Document>());
+
+		final ConcurrentLinkedQueue<Layer> pendingLayers = new ConcurrentLinkedQueue<Layer>();
+		this._collectLayersWithMetadata(pendingLayers, rootLayer);
+		if (pendingLayers.isEmpty()) {
+			return metadataDocuments;
+		}
+
+		Integer maxConcurrency = dataSourceClone.getMetadataMaxConcurrency();
+		int nbWorkers = Math.min(
+				(maxConcurrency == null || maxConcurrency <= 0) ? DEFAULT_METADATA_MAX_CONCURRENCY : maxConcurrency,
+				pendingLayers.size());
+
+		// A cancelled worker stops; WorkerPool.run reports the cancellation
+		Runnable worker = RebuildJob.inCurrentJob(new Runnable() {
+			@Override
+			public void run() {
+				Layer layer;
+				while ((layer = pendingLayers.poll()) != null) {
+					RebuildJob.checkCancelled();
+					TC211Document tc211Document = null;
+					try {
+						tc211Document = AbstractWMSLayerGenerator.this.getMetadataDocument(layer, dataSourceClone);
+					} catch (CancellationException ex) {
+						throw ex;
+					} catch (RuntimeException ex) {
+						// The layer is published without its metadata; the other layers are not affected
+						LOGGER.log(Level.WARNING, "Unexpected error while harvesting the metadata document of the layer {0} of the data source [{1}]: {2}",
+								new String[]{ layer.getName(), dataSourceClone.getDataSourceName(), Utils.getExceptionMessage(ex) });
+						LOGGER.log(Level.FINE, "Stack trace:", ex);
+					}
+					if (tc211Document != null) {
+						metadataDocuments.put(layer, tc211Document);
+					}
+				}
+			}
+		});
+
+		try {
+			WorkerPool.run(worker, nbWorkers, "MetadataHarvester",
+					"Waiting for the metadata documents of the data source [" + dataSourceClone.getDataSourceName() + "]...");
+		} catch (InterruptedException ex) {
+			pendingLayers.clear();
+			Thread.currentThread().interrupt();
+		}
+
+		return metadataDocuments;
+	}
+
+	// Find the layers which will be converted into AtlasMapper layers (see _propagateLayersInfoMapFromGeoToolRootLayer)
+	// and which have metadata URLs.
+	private void _collectLayersWithMetadata(Collection<Layer> layers, Layer layer) {
+		if (layer == null) {
+			return;
+		}
+
+		List<Layer> children = layer.getLayerChildren();
+		if (children != null && !children.isEmpty()) {
+			for (Layer childLayer : children) {
+				this._collectLayersWithMetadata(layers, childLayer);
+			}
+		} else {
+			List<MetadataURL> metadataUrls = layer.getMetadataURL();
+			if (Utils.isNotBlank(layer.getName()) && metadataUrls != null && !metadataUrls.isEmpty()) {
+				layers.add(layer);
+			}
+		}
+	}
+
+	/**
+	 * Find the metadata document (TC211) of a layer, from the metadata URLs found in the capabilities document.
+	 * This method is called concurrently for many layers (see getMetadataDocuments).
+	 * When the metadata are not harvested, the document is read from the cache and
+	 * the catalog is flagged as "metadata pending" if it has to be downloaded.
+	 * @param layer
+	 * @param dataSourceClone
+	 * @return The metadata document, or null if none of the metadata URLs provides a valid document.
+	 */
+	protected TC211Document getMetadataDocument(Layer layer, D dataSourceClone) {
 		String layerName = layer.getName();
-		if (Utils.isBlank(layerName)) {
-			LOGGER.log(Level.WARNING, "The Capabilities Document of the data source [{0}] contains layers without name (other than the root layer).", dataSourceClone.getDataSourceName());
+		List<MetadataURL> metadataUrls = layer.getMetadataURL();
+		if (metadataUrls == null || metadataUrls.isEmpty()) {
 			return null;
 		}
 
 		TC211Document tc211Document = null;
-		List<MetadataURL> metadataUrls = layer.getMetadataURL();
-		if (metadataUrls != null && !metadataUrls.isEmpty()) {
-			for (MetadataURL metadataUrl : metadataUrls) {
-				if (tc211Document == null && "TC211".equalsIgnoreCase(metadataUrl.getType()) && "text/xml".equalsIgnoreCase(metadataUrl.getFormat())) {
-					URL url = metadataUrl.getUrl();
-					if (url != null) {
-						try {
-							tc211Document = TC211Parser.parseURL(dataSourceClone.getConfigManager(), dataSourceClone, url, false, true);
-							if (tc211Document == null || tc211Document.isEmpty()) { tc211Document = null; }
-						} catch (Exception e) {
-							LOGGER.log(Level.SEVERE, "Unexpected exception while parsing the metadata document URL: {0}\n" +
-									"The information provided by the GetCapabilities document indicate that the file is a " +
-									"TC211 text/xml file, which seems to not be the case: {1}",
-									new String[] { url.toString(), Utils.getExceptionMessage(e) });
-							LOGGER.log(Level.FINE, "Stack trace: ", e);
+		URL tc211DocumentUrl = null;
+		for (MetadataURL metadataUrl : metadataUrls) {
+			if (tc211Document == null && "TC211".equalsIgnoreCase(metadataUrl.getType()) && "text/xml".equalsIgnoreCase(metadataUrl.getFormat())) {
+				URL url = metadataUrl.getUrl();
+				if (url != null) {
+					try {
+						tc211Document = this.parseMetadataURL(dataSourceClone, url, true);
+						if (tc211Document == null || tc211Document.isEmpty()) {
+							tc211Document = null;
+						} else {
+							tc211DocumentUrl = url;
 						}
+					} catch (Exception e) {
+						LOGGER.log(Level.SEVERE, "Unexpected exception while parsing the metadata document URL: {0}\n" +
+								"The information provided by the GetCapabilities document indicate that the file is a " +
+								"TC211 text/xml file, which seems to not be the case: {1}",
+								new String[] { url.toString(), Utils.getExceptionMessage(e) });
+						LOGGER.log(Level.FINE, "Stack trace: ", e);
 					}
 				}
 			}
+		}
 
-			// There is metadata URL, but none of the one set with TC211 text/xml format are suitable.
-			// Sometime, there is valid metadata URL but they have been entered incorrectly.
-			// Brute force through all metadata URL and cross fingers to find one that will provide some usable info.
-			if (tc211Document == null) {
-				LOGGER.log(Level.FINE, "BRUTE FORCE: Could not find a valid TC211 text/xml metadata document for layer {0} of {1}. Try them all whatever their specified mime type.",
-						new String[]{ layerName, dataSourceClone.getDataSourceName() });
-				MetadataURL validMetadataUrl = null;
-				for (MetadataURL metadataUrl : metadataUrls) {
-					if (tc211Document == null) {
-						URL url = metadataUrl.getUrl();
-						if (url != null) {
-							try {
-								tc211Document = TC211Parser.parseURL(dataSourceClone.getConfigManager(), dataSourceClone, url, false, false);
-								if (tc211Document != null && !tc211Document.isEmpty()) {
-									validMetadataUrl = metadataUrl;
-								} else {
-									LOGGER.log(Level.FINE, "FAILURE: Invalid metadata document: {0}\n      Identified as \"{1} - {2}\"", new String[]{
-											url.toString(),
-											metadataUrl.getType(),
-											metadataUrl.getFormat()
-									});
-									tc211Document = null;
-								}
-							} catch (Exception ex) {
-								LOGGER.log(Level.FINE, "FAILURE: Invalid metadata document: {0}\n      Identified as \"{1} - {2}\"\n      Exception message: {3}", new String[]{
+		// There is metadata URL, but none of the one set with TC211 text/xml format are suitable.
+		// Sometime, there is valid metadata URL but they have been entered incorrectly.
+		// Brute force through all metadata URL and cross fingers to find one that will provide some usable info.
+		if (tc211Document == null) {
+			LOGGER.log(Level.FINE, "BRUTE FORCE: Could not find a valid TC211 text/xml metadata document for layer {0} of {1}. Try them all whatever their specified mime type.",
+					new String[]{ layerName, dataSourceClone.getDataSourceName() });
+			MetadataURL validMetadataUrl = null;
+			for (MetadataURL metadataUrl : metadataUrls) {
+				if (tc211Document == null) {
+					URL url = metadataUrl.getUrl();
+					if (url != null) {
+						try {
+							tc211Document = this.parseMetadataURL(dataSourceClone, url, false);
+							if (tc211Document != null && !tc211Document.isEmpty()) {
+								validMetadataUrl = metadataUrl;
+								tc211DocumentUrl = url;
+							} else {
+								LOGGER.log(Level.FINE, "FAILURE: Invalid metadata document: {0}\n      Identified as \"{1} - {2}\"", new String[]{
 										url.toString(),
 										metadataUrl.getType(),
-										metadataUrl.getFormat(),
-										ex.getMessage()
+										metadataUrl.getFormat()
 								});
+								tc211Document = null;
 							}
+						} catch (Exception ex) {
+							LOGGER.log(Level.FINE, "FAILURE: Invalid metadata document: {0}\n      Identified as \"{1} - {2}\"\n      Exception message: {3}", new String[]{
+									url.toString(),
+									metadataUrl.getType(),
+									metadataUrl.getFormat(),
+									ex.getMessage()
+							});
 						}
 					}
 				}
-				if (tc211Document != null && validMetadataUrl != null) {
-					LOGGER.log(Level.FINE, "SUCCESS: Valid metadata document: {0}\n      Identified as \"{1} - {2}\"", new String[]{
-							validMetadataUrl.getUrl().toString(),
-							validMetadataUrl.getType(),
-							validMetadataUrl.getFormat()
-					});
+			}
+			if (tc211Document != null && validMetadataUrl != null) {
+				LOGGER.log(Level.FINE, "SUCCESS: Valid metadata document: {0}\n      Identified as \"{1} - {2}\"", new String[]{
+						validMetadataUrl.getUrl().toString(),
+						validMetadataUrl.getType(),
+						validMetadataUrl.getFormat()
+				});
+			}
+		}
+
+		if (!this.harvestMetadata && this.isMetadataOutdated(dataSourceClone, metadataUrls, tc211DocumentUrl)) {
+			this.setMetadataPending();
+		}
+
+		return tc211Document;
+	}
+
+	private TC211Document parseMetadataURL(D dataSourceClone, URL url, boolean validMimeType) throws Exception {
+		if (this.harvestMetadata) {
+			return TC211Parser.parseURL(dataSourceClone.getConfigManager(), dataSourceClone, url, false, validMimeType);
+		}
+		return TC211Parser.parseCachedURL(dataSourceClone.getConfigManager(), url);
+	}
+
+	/**
+	 * @param dataSourceClone
+	 * @param metadataUrls The metadata URLs of a layer.
+	 * @param tc211DocumentUrl The URL of the document found in the cache, if any.
+	 * @return True if the harvest of the metadata would download something for this layer.
+	 */
+	private boolean isMetadataOutdated(D dataSourceClone, List<MetadataURL> metadataUrls, URL tc211DocumentUrl) {
+		ConfigManager configManager = dataSourceClone.getConfigManager();
+		try {
+			if (tc211DocumentUrl != null) {
+				return !TC211Parser.isCachedURLUpToDate(configManager, dataSourceClone, tc211DocumentUrl);
+			}
+			// No document found; the harvest would try all the URLs
+			for (MetadataURL metadataUrl : metadataUrls) {
+				URL url = metadataUrl.getUrl();
+				if (url != null && !TC211Parser.isCachedURLUpToDate(configManager, dataSourceClone, url)) {
+					return true;
 				}
 			}
+		} catch (Exception ex) {
+			LOGGER.log(Level.WARNING, "Can not verify the cache of the metadata documents of the data source [{0}]: {1}",
+					new String[]{ dataSourceClone.getDataSourceName(), Utils.getExceptionMessage(ex) });
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Convert a GeoTool Layer into a AtlasMapper Layer
+	 * @param layer
+	 * @param treePath
+	 * @param dataSourceClone
+	 * @param tc211Document The metadata document of the layer (see getMetadataDocuments), or null.
+	 * @return
+	 */
+	private L layerToLayerConfig(
+			Layer layer,
+			String treePath,
+			D dataSourceClone,
+			TC211Document tc211Document) {
+
+		L layerConfig = this.createLayerConfig(dataSourceClone.getConfigManager());
+
+		String layerName = layer.getName();
+		if (Utils.isBlank(layerName)) {
+			LOGGER.log(Level.WARNING, "The Capabilities Document of the data source [{0}] contains layers without name (other than the root layer).", dataSourceClone.getDataSourceName());
+			return null;
 		}
 
 		layerConfig.setLayerId(layerName);
@@ -732,11 +1055,30 @@ public abstract class AbstractWMSLayerGenerator<L extends WMSLayerConfig, D exte
 					boundingBox.getMaxX(), boundingBox.getMaxY()
 			};
 			layerConfig.setLayerBoundingBox(boundingBoxArray);
+		} else if (tc211Document != null) {
+			// Use the geographic extent of the metadata document, if the capabilities document do not provide one
+			double[] metadataBoundingBox = tc211Document.getBoundingBox();
+			if (metadataBoundingBox != null) {
+				layerConfig.setLayerBoundingBox(metadataBoundingBox);
+			}
 		}
 
+		this.setLayerSpecificInfo(layerConfig, layer, dataSourceClone);
+
 		return layerConfig;
 	}
 
+	/**
+	 * Set the information of the capabilities document which are only used
+	 * by some type of layers - This method is overriden in some sub-classes.
+	 *     See: NcWMSLayerGenerator.java
+	 * Default behaviour is to do nothing.
+	 * @param layerConfig
+	 * @param layer
+	 * @param dataSourceClone
+	 */
+	protected void setLayerSpecificInfo(L layerConfig, Layer layer, D dataSourceClone) {}
+
 	private TC211Document.Link getMetadataLayerLink(TC211Document tc211Document, String layerName) {
 		if (tc211Document != null) {
 			List<TC211Document.Link> links = tc211Document.getLinks();
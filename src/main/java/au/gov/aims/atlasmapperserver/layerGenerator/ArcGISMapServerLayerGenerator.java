@@ -21,9 +21,11 @@
 
 package au.gov.aims.atlasmapperserver.layerGenerator;
 
+import au.gov.aims.atlasmapperserver.RebuildJob;
 import au.gov.aims.atlasmapperserver.URLCache;
 import au.gov.aims.atlasmapperserver.dataSourceConfig.ArcGISMapServerDataSourceConfig;
 import au.gov.aims.atlasmapperserver.Utils;
+import au.gov.aims.atlasmapperserver.WorkerPool;
 import au.gov.aims.atlasmapperserver.layerConfig.AbstractLayerConfig;
 import au.gov.aims.atlasmapperserver.layerConfig.ArcGISCacheLayerConfig;
 import au.gov.aims.atlasmapperserver.layerConfig.ArcGISMapServerLayerConfig;
@@ -38,8 +40,15 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,6 +58,19 @@ import java.util.logging.Logger;
 public class ArcGISMapServerLayerGenerator extends AbstractLayerGenerator<AbstractLayerConfig, ArcGISMapServerDataSourceConfig> {
 	private static final Logger LOGGER = Logger.getLogger(ArcGISMapServerLayerGenerator.class.getName());
 
+	// Maximum number of JSON documents requested at the same time to the ArcGIS server (see prefetchJSON)
+	private static final int MAX_CONCURRENT_REQUESTS = 4;
+	// The "All Layers and Tables" resource, which describes all the layers of a service in one document,
+	// is available since ArcGIS 10.
+	private static final String ALL_LAYERS_RESOURCE = "layers";
+	private static final double ALL_LAYERS_MIN_VERSION = 10;
+	// Placeholder for the documents being downloaded by prefetchJSON; ConcurrentHashMap do not accept null values.
+	private static final JSONObject NO_DOCUMENT = new JSONObject();
+
+	// JSON documents of the ArcGIS server, downloaded before building the layers (see prefetchJSON)
+	// ConcurrentHashMap<String url, JSONObject document>
+	private final ConcurrentHashMap<String, JSONObject> documents = new ConcurrentHashMap<String, JSONObject>();
+
 	/**
 	 * ArcGIS server have a LOT of layer ID duplications. The server assume that the client
 	 * will call the layers using distinct URLs for each folders. The path has to be added
@@ -95,6 +117,7 @@ public class ArcGISMapServerLayerGenerator extends AbstractLayerGenerator<Abstra
 
 		// Fill the Map of layers
 		try {
+			this.prefetchJSON(dataSourceConfig);
 			this.parseJSON(layers, null, null, null, dataSourceConfig);
 
 			layerCatalog.addLayers(layers.values());
@@ -153,6 +176,215 @@ public class ArcGISMapServerLayerGenerator extends AbstractLayerGenerator<Abstra
 		return urlStr;
 	}
 
+	/**
+	 * Download all the JSON documents of the ArcGIS server needed to build the layers (see parseJSON).
+	 * The tree of folders, services and layers is crawled one level at the time; the documents of
+	 * a level are downloaded concurrently, using a bounded pool of threads. The layers are then built
+	 * from the downloaded documents, in the same order as before, so the catalog do not depend on the
+	 * order in which the documents were received.
+	 * @param dataSourceConfig
+	 * @throws Exception
+	 */
+	private void prefetchJSON(final ArcGISMapServerDataSourceConfig dataSourceConfig) throws Exception {
+		if (dataSourceConfig.getServiceUrl() == null) {
+			// parseJSON will report the problem
+			return;
+		}
+
+		ExecutorService executor = WorkerPool.newFixedThreadPool(MAX_CONCURRENT_REQUESTS, "ArcGISHarvester");
+
+		try {
+			List<PrefetchTask> level = new ArrayList<PrefetchTask>();
+			level.add(new PrefetchTask(null, null, null, dataSourceConfig));
+			while (!level.isEmpty()) {
+				RebuildJob.checkCancelled();
+
+				List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(level.size());
+				for (PrefetchTask task : level) {
+					tasks.add(Executors.callable(RebuildJob.inCurrentJob(task)));
+				}
+				executor.invokeAll(tasks);
+
+				List<PrefetchTask> nextLevel = new ArrayList<PrefetchTask>();
+				for (PrefetchTask task : level) {
+					if (task.error instanceof CancellationException) {
+						throw (CancellationException)task.error;
+					}
+					nextLevel.addAll(task.children);
+				}
+				level = nextLevel;
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Download the documents of all the layers of a service in one request, using the
+	 * "All Layers and Tables" resource (/MapServer/layers) of ArcGIS 10 and later, instead
+	 * of requesting the document of each layer.
+	 * @param jsonService The document of the service.
+	 * @param arcGISPath
+	 * @param type
+	 * @param dataSourceConfig
+	 * @return The IDs of the layers found in the "All Layers" document. An empty set if
+	 *     the server do not support it, or if the request failed.
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	private Set<String> prefetchAllLayers(JSONObject jsonService, String arcGISPath, String type, ArcGISMapServerDataSourceConfig dataSourceConfig) throws IOException, JSONException {
+		Set<String> layerIds = new HashSet<String>();
+		if (!this.isServiceSupported(type) || jsonService.optDouble("currentVersion", 0) < ALL_LAYERS_MIN_VERSION) {
+			return layerIds;
+		}
+
+		// Not mandatory; the layers are requested one by one if this request fails
+		JSONObject jsonAllLayers = URLCache.getJSONResponse(
+				dataSourceConfig.getConfigManager(),
+				dataSourceConfig,
+				getJSONUrl(dataSourceConfig.getServiceUrl(), arcGISPath, type, ALL_LAYERS_RESOURCE),
+				URLCache.Category.CAPABILITIES_DOCUMENT,
+				false
+		);
+
+		JSONArray jsonLayers = jsonAllLayers == null ? null : jsonAllLayers.optJSONArray("layers");
+		if (jsonLayers != null) {
+			for (int i = 0; i < jsonLayers.length(); i++) {
+				JSONObject jsonLayer = jsonLayers.optJSONObject(i);
+				String layerId = jsonLayer == null ? null : jsonLayer.optString("id", null);
+				if (Utils.isNotBlank(layerId)) {
+					// Same as the document returned by the URL of the layer
+					this.documents.putIfAbsent(getJSONUrl(dataSourceConfig.getServiceUrl(), arcGISPath, type, layerId), jsonLayer);
+					layerIds.add(layerId);
+				}
+			}
+		}
+
+		return layerIds;
+	}
+
+	/**
+	 * @param urlStr
+	 * @param dataSourceConfig
+	 * @return The document downloaded by prefetchJSON, or the document returned by the URL cache if it was not downloaded.
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	private JSONObject getJSONResponse(String urlStr, ArcGISMapServerDataSourceConfig dataSourceConfig) throws IOException, JSONException {
+		JSONObject json = this.documents.get(urlStr);
+		if (json == null || json == NO_DOCUMENT) {
+			json = URLCache.getJSONResponse(
+					dataSourceConfig.getConfigManager(),
+					dataSourceConfig,
+					urlStr,
+					URLCache.Category.CAPABILITIES_DOCUMENT,
+					true
+			);
+		}
+		return json;
+	}
+
+	/**
+	 * Download the document of a folder, a service or a layer, and find the documents of its children.
+	 * The children are found the same way parseJSON does.
+	 */
+	private class PrefetchTask implements Runnable {
+		private final String arcGISPath;
+		private final String type;
+		// ID of the layer, or null for a folder / service
+		private final String layerId;
+		private final ArcGISMapServerDataSourceConfig dataSourceConfig;
+
+		private final List<PrefetchTask> children = new ArrayList<PrefetchTask>();
+		private Exception error = null;
+
+		public PrefetchTask(String arcGISPath, String type, String layerId, ArcGISMapServerDataSourceConfig dataSourceConfig) {
+			this.arcGISPath = arcGISPath;
+			this.type = type;
+			this.layerId = layerId;
+			this.dataSourceConfig = dataSourceConfig;
+		}
+
+		@Override
+		public void run() {
+			ArcGISMapServerLayerGenerator generator = ArcGISMapServerLayerGenerator.this;
+			String urlStr = null;
+			try {
+				String serviceUrl = this.dataSourceConfig.getServiceUrl();
+				String documentUrlStr = generator.getJSONUrl(serviceUrl, this.arcGISPath, this.type, this.layerId);
+
+				// The documents of the services are requested twice by parseJSON
+				if (generator.documents.putIfAbsent(documentUrlStr, NO_DOCUMENT) != null) {
+					return;
+				}
+				urlStr = documentUrlStr;
+
+				RebuildJob.checkCancelled();
+				JSONObject json = URLCache.getJSONResponse(
+						this.dataSourceConfig.getConfigManager(),
+						this.dataSourceConfig,
+						urlStr,
+						URLCache.Category.CAPABILITIES_DOCUMENT,
+						true
+				);
+				if (json == null) {
+					// parseJSON will request the document again; the URL cache do not download it twice.
+					generator.documents.remove(urlStr, NO_DOCUMENT);
+					return;
+				}
+				generator.documents.put(urlStr, json);
+
+				// The documents of the layers have no children
+				if (this.layerId != null) {
+					return;
+				}
+
+				JSONArray jsonLayers = json.optJSONArray("layers");
+				if (jsonLayers != null) {
+					// The layers missing from the "All Layers" document are requested one by one
+					Set<String> prefetchedLayerIds = generator.prefetchAllLayers(json, this.arcGISPath, this.type, this.dataSourceConfig);
+					for (int i = 0; i < jsonLayers.length(); i++) {
+						JSONObject jsonLayer = jsonLayers.optJSONObject(i);
+						String childLayerId = jsonLayer == null ? null : jsonLayer.optString("id", null);
+						if (Utils.isNotBlank(childLayerId) && !prefetchedLayerIds.contains(childLayerId)) {
+							this.children.add(new PrefetchTask(this.arcGISPath, this.type, childLayerId, this.dataSourceConfig));
+						}
+					}
+				}
+
+				JSONArray jsonFolders = json.optJSONArray("folders");
+				if (jsonFolders != null) {
+					for (int i = 0; i < jsonFolders.length(); i++) {
+						String childArcGISPath = generator.getArcGISPath(jsonFolders.optString(i, null), this.dataSourceConfig);
+						if (Utils.isNotBlank(childArcGISPath)) {
+							this.children.add(new PrefetchTask(childArcGISPath, null, null, this.dataSourceConfig));
+						}
+					}
+				}
+
+				JSONArray jsonServices = json.optJSONArray("services");
+				if (jsonServices != null) {
+					for (int i = 0; i < jsonServices.length(); i++) {
+						JSONObject jsonService = jsonServices.optJSONObject(i);
+						String childArcGISPath = generator.getArcGISPath(jsonService.optString("name", null), this.dataSourceConfig);
+						String childType = jsonService.optString("type", null);
+						if (childType == null || generator.isServiceSupported(childType)) {
+							this.children.add(new PrefetchTask(childArcGISPath, childType, null, this.dataSourceConfig));
+						}
+					}
+				}
+			} catch (Exception ex) {
+				// The document will be requested again by parseJSON, which will report the error.
+				if (urlStr != null) {
+					generator.documents.remove(urlStr);
+				}
+				LOGGER.log(Level.FINE, "Error occurred while downloading the ArcGIS documents of the data source [{0}]: {1}",
+						new String[]{ this.dataSourceConfig.getDataSourceName(), Utils.getExceptionMessage(ex) });
+				this.error = ex;
+			}
+		}
+	}
+
 	private List<AbstractLayerConfig> parseJSON(
 			Map<String, AbstractLayerConfig> allLayers,
 			String treePath,
@@ -169,13 +401,9 @@ public class ArcGISMapServerLayerGenerator extends AbstractLayerGenerator<Abstra
 			throw new IllegalArgumentException("The data source [" + dataSourceConfig.getDataSourceName() + "] as no service URL.");
 		}
 
-		JSONObject json = URLCache.getJSONResponse(
-				dataSourceConfig.getConfigManager(),
-				dataSourceConfig,
+		JSONObject json = this.getJSONResponse(
 				getJSONUrl(dataSourceConfig.getServiceUrl(), arcGISPath, type),
-				URLCache.Category.CAPABILITIES_DOCUMENT,
-				true
-		);
+				dataSourceConfig);
 
 		List<AbstractLayerConfig> children = new ArrayList<AbstractLayerConfig>();
 		if (json != null) {
@@ -194,13 +422,9 @@ public class ArcGISMapServerLayerGenerator extends AbstractLayerGenerator<Abstra
 						String groupId = jsonLayer.optString("id", null);
 						JSONObject jsonGroupExtra = null;
 						if (Utils.isNotBlank(groupId)) {
-							jsonGroupExtra = URLCache.getJSONResponse(
-									dataSourceConfig.getConfigManager(),
-									dataSourceConfig,
+							jsonGroupExtra = this.getJSONResponse(
 									getJSONUrl(dataSourceConfig.getServiceUrl(), arcGISPath, type, groupId),
-									URLCache.Category.CAPABILITIES_DOCUMENT,
-									true
-							);
+									dataSourceConfig);
 						}
 
 						GroupLayerConfig groupLayer = this.getGroupLayerConfig(jsonLayer, jsonGroupExtra, jsonChildren, dataSourceConfig);
@@ -215,13 +439,9 @@ public class ArcGISMapServerLayerGenerator extends AbstractLayerGenerator<Abstra
 						String layerId = jsonLayer.optString("id", null);
 						JSONObject jsonLayerExtra = null;
 						if (Utils.isNotBlank(layerId)) {
-							jsonLayerExtra = URLCache.getJSONResponse(
-									dataSourceConfig.getConfigManager(),
-									dataSourceConfig,
+							jsonLayerExtra = this.getJSONResponse(
 									getJSONUrl(dataSourceConfig.getServiceUrl(), arcGISPath, type, layerId),
-									URLCache.Category.CAPABILITIES_DOCUMENT,
-									true
-							);
+									dataSourceConfig);
 						}
 
 						ArcGISMapServerLayerConfig arcGISLayer = this.getLayerConfig(jsonLayer, jsonLayerExtra, dataSourceConfig);
@@ -247,7 +467,16 @@ public class ArcGISMapServerLayerGenerator extends AbstractLayerGenerator<Abstra
 				}
 
 				// Set children layer ID properly and remove layers that are children of an other layer
-				List<AbstractLayerConfig> childrenToRemove = new ArrayList<AbstractLayerConfig>();
+				// Map<String rawLayerId, AbstractLayerConfig layer>
+				Map<String, AbstractLayerConfig> childrenByRawId = new HashMap<String, AbstractLayerConfig>();
+				for (AbstractLayerConfig layer : children) {
+					String rawLayerId = layer.getLayerName();
+					if (rawLayerId != null && !childrenByRawId.containsKey(rawLayerId)) {
+						childrenByRawId.put(rawLayerId, layer);
+					}
+				}
+
+				Set<AbstractLayerConfig> childrenToRemove = new HashSet<AbstractLayerConfig>();
 				for (AbstractLayerConfig layer : children) {
 					String[] subLayerIds = null;
 					if (layer instanceof GroupLayerConfig) {
@@ -256,21 +485,18 @@ public class ArcGISMapServerLayerGenerator extends AbstractLayerGenerator<Abstra
 
 					if (subLayerIds != null && subLayerIds.length > 0) {
 						for (int i=0; i<subLayerIds.length; i++) {
-							String searchId = subLayerIds[i];
-							for (AbstractLayerConfig foundLayer : children) {
-								String foundLayerId = foundLayer.getLayerName();
-								if (foundLayerId != null && foundLayerId.equals(searchId)) {
-									subLayerIds[i] = foundLayer.getLayerId();
-									// The child is a child of a sub layer, not a child of the upper group.
-									// It has to be removed, but not now. There is currently 2 iterations on that list.
-									childrenToRemove.add(foundLayer);
-								}
+							AbstractLayerConfig foundLayer = childrenByRawId.get(subLayerIds[i]);
+							if (foundLayer != null) {
+								subLayerIds[i] = foundLayer.getLayerId();
+								// The child is a child of a sub layer, not a child of the upper group.
+								// It has to be removed, but not now. There is currently 2 iterations on that list.
+								childrenToRemove.add(foundLayer);
 							}
 						}
 					}
 				}
-				for (AbstractLayerConfig childToRemove : childrenToRemove) {
-					children.remove(childToRemove);
+				if (!childrenToRemove.isEmpty()) {
+					children.removeAll(childrenToRemove);
 				}
 			}
 
@@ -297,13 +523,9 @@ public class ArcGISMapServerLayerGenerator extends AbstractLayerGenerator<Abstra
 					// Request more info about the folder (Max extent, description, etc.)
 					JSONObject jsonServiceExtra = null;
 					if (this.isServiceSupported(childType)) {
-						jsonServiceExtra = URLCache.getJSONResponse(
-								dataSourceConfig.getConfigManager(),
-								dataSourceConfig,
+						jsonServiceExtra = this.getJSONResponse(
 								getJSONUrl(dataSourceConfig.getServiceUrl(), childArcGISPath, childType),
-								URLCache.Category.CAPABILITIES_DOCUMENT,
-								true
-						);
+								dataSourceConfig);
 					}
 
 					List<AbstractLayerConfig> subChildren = this.parseJSON(allLayers, treePath, childArcGISPath, childType, dataSourceConfig);
@@ -21,18 +21,32 @@
 
 package au.gov.aims.atlasmapperserver.layerGenerator;
 
+import au.gov.aims.atlasmapperserver.RebuildJob;
 import au.gov.aims.atlasmapperserver.URLCache;
 import au.gov.aims.atlasmapperserver.Utils;
+import au.gov.aims.atlasmapperserver.WorkerPool;
 import au.gov.aims.atlasmapperserver.dataSourceConfig.KMLDataSourceConfig;
 import au.gov.aims.atlasmapperserver.layerConfig.KMLLayerConfig;
 import au.gov.aims.atlasmapperserver.layerConfig.LayerCatalog;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class KMLLayerGenerator extends AbstractLayerGenerator<KMLLayerConfig, KMLDataSourceConfig> {
+	private static final Logger LOGGER = Logger.getLogger(KMLLayerGenerator.class.getName());
+
+	// Number of KML URLs checked at the same time
+	private static final int URL_VALIDATION_MAX_CONCURRENCY = 8;
+
 	/**
 	 * We thrust the Admin to choose Unique IDs for all it's KMLs. Nothing to do here.
 	 * @param layer
@@ -54,6 +68,11 @@ public class KMLLayerGenerator extends AbstractLayerGenerator<KMLLayerConfig, KM
 		LayerCatalog layerCatalog = new LayerCatalog();
 
 		JSONArray kmlData = dataSourceConfig.getKmlData();
+
+		// Check all the KML URLs at once. The statuses checked by a recent rebuild are reused,
+		// unless the admin requested the files to be re-downloaded.
+		Map<String, URLCache.ResponseStatus> responseStatuses = this.getResponseStatuses(kmlData, dataSourceConfig, redownloadPrimaryFiles);
+
 		if (kmlData != null && kmlData.length() > 0) {
 			for (int i=0, len=kmlData.length(); i<len; i++) {
 				JSONObject kmlInfo = kmlData.optJSONObject(i);
@@ -86,30 +105,23 @@ public class KMLLayerGenerator extends AbstractLayerGenerator<KMLLayerConfig, KM
 						}
 
 						if (url != null) {
-							if (redownloadPrimaryFiles) {
-								URLCache.ResponseStatus responseStatus = URLCache.getResponseStatus(url.toString());
-								Integer statusCode = responseStatus.getStatusCode();
-								if (responseStatus.getErrorMessage() != null) {
-									layerCatalog.addWarning("Invalid entry for KML id [" + kmlId + "]: The KML url [" + urlStr + "] is not accessible. Please look for typos.\n" + responseStatus.getErrorMessage());
+							URLCache.ResponseStatus responseStatus = responseStatuses.get(url.toString());
+							Integer statusCode = responseStatus == null ? null : responseStatus.getStatusCode();
+							if (responseStatus != null && responseStatus.getErrorMessage() != null) {
+								layerCatalog.addWarning("Invalid entry for KML id [" + kmlId + "]: The KML url [" + urlStr + "] is not accessible. Please look for typos.\n" + responseStatus.getErrorMessage());
+							} else {
+								if (statusCode == null) {
+									// This should not happen; the statusCode is never null when there is no error message.
+									layerCatalog.addWarning("Invalid entry for KML id [" + kmlId + "]: The KML url [" + urlStr + "] could not be downloaded.");
 								} else {
-									if (statusCode == null) {
-										// This should not happen; the statusCode is never null when there is no error message.
-										layerCatalog.addWarning("Invalid entry for KML id [" + kmlId + "]: The KML url [" + urlStr + "] could not be downloaded.");
+									if (statusCode >= 200 && statusCode < 300) {
+										layer.setKmlUrl(url.toString());
+										// Add the layer only if its configuration is valid
+										layerCatalog.addLayer(layer);
 									} else {
-										if (statusCode >= 200 && statusCode < 300) {
-											layer.setKmlUrl(url.toString());
-											// Add the layer only if its configuration is valid
-											layerCatalog.addLayer(layer);
-										} else {
-											layerCatalog.addWarning("Invalid entry for KML id [" + kmlId + "]: The KML url [" + urlStr + "] returned the status code [" + statusCode + "].");
-										}
+										layerCatalog.addWarning("Invalid entry for KML id [" + kmlId + "]: The KML url [" + urlStr + "] returned the status code [" + statusCode + "].");
 									}
 								}
-							} else {
-								layer.setKmlUrl(url.toString());
-
-								// Add the layer only if its configuration is valid
-								layerCatalog.addLayer(layer);
 							}
 						}
 					}
@@ -119,4 +131,63 @@ public class KMLLayerGenerator extends AbstractLayerGenerator<KMLLayerConfig, KM
 
 		return layerCatalog;
 	}
+
+	/**
+	 * Check the KML URLs using a bounded pool of threads. The KML documents are not downloaded
+	 * (see URLCache.getResponseStatus) and the statuses are reused for a while
+	 * (see URLCache.getCachedResponseStatus).
+	 * @param kmlData
+	 * @param dataSourceConfig
+	 * @param forceCheck True to check the URLs even if their statuses are cached (the admin requested the files to be re-downloaded).
+	 * @return The status of each valid KML URL.
+	 */
+	private Map<String, URLCache.ResponseStatus> getResponseStatuses(JSONArray kmlData, KMLDataSourceConfig dataSourceConfig, final boolean forceCheck) {
+		final Map<String, URLCache.ResponseStatus> responseStatuses =
+				Collections.synchronizedMap(new HashMap<String, URLCache.ResponseStatus>());
+		if (kmlData == null || kmlData.length() <= 0) {
+			return responseStatuses;
+		}
+
+		// The invalid URLs are reported by generateRawLayerCatalog
+		Set<String> urls = new LinkedHashSet<String>();
+		for (int i=0, len=kmlData.length(); i<len; i++) {
+			JSONObject kmlInfo = kmlData.optJSONObject(i);
+			String urlStr = kmlInfo == null ? null : kmlInfo.optString("url", null);
+			if (Utils.isNotBlank(urlStr)) {
+				try {
+					urls.add(Utils.toURL(urlStr).toString());
+				} catch(Exception ex) {
+					LOGGER.log(Level.FINE, "Invalid KML URL [{0}]: {1}", new String[]{ urlStr, Utils.getExceptionMessage(ex) });
+				}
+			}
+		}
+		if (urls.isEmpty()) {
+			return responseStatuses;
+		}
+
+		final ConcurrentLinkedQueue<String> pendingUrls = new ConcurrentLinkedQueue<String>(urls);
+		int nbWorkers = Math.min(URL_VALIDATION_MAX_CONCURRENCY, pendingUrls.size());
+
+		// A cancelled worker stops; WorkerPool.run reports the cancellation
+		Runnable worker = RebuildJob.inCurrentJob(new Runnable() {
+			@Override
+			public void run() {
+				String urlStr;
+				while ((urlStr = pendingUrls.poll()) != null) {
+					RebuildJob.checkCancelled();
+					responseStatuses.put(urlStr, URLCache.getCachedResponseStatus(urlStr, forceCheck));
+				}
+			}
+		});
+
+		try {
+			WorkerPool.run(worker, nbWorkers, "KMLValidator",
+					"Waiting for the validation of the KML URLs of the data source [" + dataSourceConfig.getDataSourceName() + "]...");
+		} catch (InterruptedException ex) {
+			pendingUrls.clear();
+			Thread.currentThread().interrupt();
+		}
+
+		return responseStatuses;
+	}
 }
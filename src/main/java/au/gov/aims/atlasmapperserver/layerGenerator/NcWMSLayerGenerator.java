@@ -22,9 +22,17 @@
 package au.gov.aims.atlasmapperserver.layerGenerator;
 
 import au.gov.aims.atlasmapperserver.ConfigManager;
+import au.gov.aims.atlasmapperserver.Utils;
 import au.gov.aims.atlasmapperserver.dataSourceConfig.NcWMSDataSourceConfig;
 import au.gov.aims.atlasmapperserver.layerConfig.NcWMSLayerConfig;
+import au.gov.aims.atlasmapperserver.xml.TC211.TC211Document;
+import org.geotools.data.ows.Extent;
+import org.geotools.data.ows.Layer;
+import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class NcWMSLayerGenerator extends AbstractWMSLayerGenerator<NcWMSLayerConfig, NcWMSDataSourceConfig> {
@@ -34,4 +42,59 @@ public class NcWMSLayerGenerator extends AbstractWMSLayerGenerator<NcWMSLayerCon
 	protected NcWMSLayerConfig createLayerConfig(ConfigManager configManager) {
 		return new NcWMSLayerConfig(configManager);
 	}
+
+	/**
+	 * The ncWMS client layer use the time dimension to show the available dates,
+	 * without sending GetMetadata requests (see NCWMS.js).
+	 */
+	@Override
+	protected void setLayerSpecificInfo(NcWMSLayerConfig layerConfig, Layer layer, NcWMSDataSourceConfig dataSourceClone) {
+		Extent timeExtent = this.getTimeExtent(layer);
+		if (timeExtent != null) {
+			try {
+				layerConfig.setTimeDimension(TimeDimension.toJSON(timeExtent.getDefaultValue(), timeExtent.getValue()));
+			} catch (Exception ex) {
+				LOGGER.log(Level.WARNING, "Invalid time dimension for the layer [{0}] of the data source [{1}]: {2}",
+						new String[]{ layer.getName(), dataSourceClone.getDataSourceName(), Utils.getExceptionMessage(ex) });
+				LOGGER.log(Level.FINE, "Stack trace:", ex);
+			}
+		}
+	}
+
+	/**
+	 * The time dimension is part of the inputs of the layer (see setLayerSpecificInfo).
+	 */
+	@Override
+	protected JSONObject getLayerInputs(Layer layer, String treePath, TC211Document tc211Document) throws JSONException {
+		JSONObject inputs = super.getLayerInputs(layer, treePath, tc211Document);
+		Extent timeExtent = this.getTimeExtent(layer);
+		if (timeExtent != null) {
+			JSONObject timeInputs = new JSONObject();
+			timeInputs.put("default", timeExtent.getDefaultValue());
+			timeInputs.put("value", timeExtent.getValue());
+			inputs.put("time", timeInputs);
+		}
+		return inputs;
+	}
+
+	/**
+	 * The dimensions are inherited from the parent layers.
+	 * @param layer
+	 * @return The time extent of the layer, or null if the layer has no time dimension.
+	 */
+	private Extent getTimeExtent(Layer layer) {
+		Layer currentLayer = layer;
+		while (currentLayer != null) {
+			Map<String, Extent> extents = currentLayer.getExtents();
+			if (extents != null) {
+				for (Map.Entry<String, Extent> extentEntry : extents.entrySet()) {
+					if (TimeDimension.DIMENSION_NAME.equalsIgnoreCase(extentEntry.getKey())) {
+						return extentEntry.getValue();
+					}
+				}
+			}
+			currentLayer = currentLayer.getParent();
+		}
+		return null;
+	}
 }
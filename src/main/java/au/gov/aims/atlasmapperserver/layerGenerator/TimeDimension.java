@@ -0,0 +1,288 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package au.gov.aims.atlasmapperserver.layerGenerator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compact representation of the time dimension of a WMS / ncWMS layer.
+ * ncWMS servers list every timestep of a layer in the capabilities document, as a
+ * comma separated list; for thousands of timesteps, it bloats the saved state of the
+ * data source and the layers sent to the browsers. The regular sequences of timesteps
+ * are replaced with intervals, using the WMS notation (start/end/period); the timesteps
+ * which are not part of a sequence are listed as they are. The client expands it when
+ * the dates of the layer are requested (see OpenLayers.Layer.ux.NCWMS).
+ *
+ * {
+ *     "default": "2013-01-03T00:00:00.000Z",
+ *     "intervals": [ "2013-01-01T00:00:00.000Z/2013-01-03T00:00:00.000Z/P1D", ... ],
+ *     "values": [ "2013-02-07T00:00:00.000Z", ... ]
+ * }
+ */
+public class TimeDimension {
+	public static final String DIMENSION_NAME = "time";
+
+	// Minimum number of timesteps in a sequence; shorter sequences are listed as they are
+	private static final int MIN_INTERVAL_TIMESTEPS = 3;
+
+	private static final long NB_MS_PER_SECOND = 1000;
+	private static final long NB_MS_PER_MINUTE = 60 * NB_MS_PER_SECOND;
+	private static final long NB_MS_PER_HOUR = 60 * NB_MS_PER_MINUTE;
+	private static final long NB_MS_PER_DAY = 24 * NB_MS_PER_HOUR;
+
+	// ISO 8601 date or date time, as used in the WMS capabilities documents. Example: 2013-01-12T14:00:00.000Z
+	private static final Pattern ISO_TIME_PATTERN = Pattern.compile(
+			"(-?\\d{4})-(\\d{1,2})-(\\d{1,2})(?:[T ](\\d{1,2}):(\\d{2})(?::(\\d{2})(?:[.,](\\d+))?)?)?\\s*(Z|[+-]\\d{2}(?::?\\d{2})?)?");
+
+	/**
+	 * @param defaultValue The default time of the layer, as found in the capabilities document. May be null.
+	 * @param values The time extent of the layer, as found in the capabilities document: a
+	 *     comma separated list of times and / or intervals (start/end/period).
+	 * @return The compact time dimension, or null if there is no time in the extent.
+	 * @throws JSONException
+	 */
+	public static JSONObject toJSON(String defaultValue, String values) throws JSONException {
+		if (values == null || values.trim().isEmpty()) {
+			return null;
+		}
+
+		JSONArray intervals = new JSONArray();
+		JSONArray timestepValues = new JSONArray();
+
+		// Sorted and without duplicates; Map<Long epochTime, String time>
+		TreeMap<Long, String> timesteps = new TreeMap<Long, String>();
+		for (String value : values.split(",")) {
+			value = value.trim();
+			if (!value.isEmpty()) {
+				if (value.indexOf('/') >= 0) {
+					// Already compact
+					intervals.put(value);
+				} else {
+					Long time = parseTime(value);
+					if (time == null) {
+						// Can not be compacted (example: "current")
+						timestepValues.put(value);
+					} else if (!timesteps.containsKey(time)) {
+						timesteps.put(time, value);
+					}
+				}
+			}
+		}
+
+		List<Map.Entry<Long, String>> sortedTimesteps = new ArrayList<Map.Entry<Long, String>>(timesteps.entrySet());
+		int nbTimesteps = sortedTimesteps.size();
+		int start = 0;
+		while (start < nbTimesteps) {
+			// Find the longest sequence of timesteps with the same period, starting at "start"
+			int end = start;
+			if (start + 1 < nbTimesteps) {
+				long startTime = sortedTimesteps.get(start).getKey();
+				long period = sortedTimesteps.get(start + 1).getKey() - startTime;
+				end = start + 1;
+				while (end + 1 < nbTimesteps &&
+						sortedTimesteps.get(end + 1).getKey() - sortedTimesteps.get(end).getKey() == period) {
+					end++;
+				}
+				String periodStr = toPeriod(period);
+
+				// Monthly and yearly timesteps do not have a constant period in milliseconds
+				int monthStep = getMonthStep(startTime, sortedTimesteps.get(start + 1).getKey());
+				if (monthStep > 0) {
+					int monthEnd = start + 1;
+					while (monthEnd + 1 < nbTimesteps &&
+							addMonths(startTime, (monthEnd + 1 - start) * monthStep) == sortedTimesteps.get(monthEnd + 1).getKey()) {
+						monthEnd++;
+					}
+					if (monthEnd > end) {
+						end = monthEnd;
+						periodStr = toMonthPeriod(monthStep);
+					}
+				}
+
+				if (end - start + 1 >= MIN_INTERVAL_TIMESTEPS) {
+					intervals.put(sortedTimesteps.get(start).getValue() + "/" +
+							sortedTimesteps.get(end).getValue() + "/" +
+							periodStr);
+					start = end + 1;
+					continue;
+				}
+			}
+
+			timestepValues.put(sortedTimesteps.get(start).getValue());
+			start++;
+		}
+
+		if (intervals.length() == 0 && timestepValues.length() == 0) {
+			return null;
+		}
+
+		JSONObject json = new JSONObject();
+		if (defaultValue != null && !defaultValue.trim().isEmpty()) {
+			json.put("default", defaultValue.trim());
+		}
+		if (intervals.length() > 0) {
+			json.put("intervals", intervals);
+		}
+		if (timestepValues.length() > 0) {
+			json.put("values", timestepValues);
+		}
+		return json;
+	}
+
+	/**
+	 * @param timeStr ISO 8601 date or date time. The time is in UTC when it has no time zone.
+	 * @return The epoch time in milliseconds, or null if the string is not a valid time.
+	 */
+	public static Long parseTime(String timeStr) {
+		if (timeStr == null) {
+			return null;
+		}
+		Matcher matcher = ISO_TIME_PATTERN.matcher(timeStr.trim());
+		if (!matcher.matches()) {
+			return null;
+		}
+
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.clear();
+		calendar.set(
+				Integer.parseInt(matcher.group(1)),
+				Integer.parseInt(matcher.group(2)) - 1,
+				Integer.parseInt(matcher.group(3)),
+				matcher.group(4) == null ? 0 : Integer.parseInt(matcher.group(4)),
+				matcher.group(5) == null ? 0 : Integer.parseInt(matcher.group(5)),
+				matcher.group(6) == null ? 0 : Integer.parseInt(matcher.group(6)));
+
+		long time = calendar.getTimeInMillis();
+
+		String fraction = matcher.group(7);
+		if (fraction != null) {
+			// Milliseconds precision
+			time += Math.round(Double.parseDouble("0." + fraction) * NB_MS_PER_SECOND);
+		}
+
+		String timeZone = matcher.group(8);
+		if (timeZone != null && !"Z".equals(timeZone)) {
+			String offset = timeZone.replace(":", "");
+			int hours = Integer.parseInt(offset.substring(1, 3));
+			int minutes = offset.length() > 3 ? Integer.parseInt(offset.substring(3, 5)) : 0;
+			long offsetMs = hours * NB_MS_PER_HOUR + minutes * NB_MS_PER_MINUTE;
+			time += offset.charAt(0) == '-' ? offsetMs : -offsetMs;
+		}
+
+		return time;
+	}
+
+	/**
+	 * @param time1 Epoch time in milliseconds.
+	 * @param time2 Epoch time in milliseconds, after time1.
+	 * @return The number of months from time1 to time2 if time2 is time1 plus a whole number
+	 *     of months (same day of the month and same time of the day, in UTC). 0 otherwise.
+	 */
+	private static int getMonthStep(long time1, long time2) {
+		Calendar calendar1 = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar1.setTimeInMillis(time1);
+		Calendar calendar2 = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar2.setTimeInMillis(time2);
+
+		int months = (calendar2.get(Calendar.YEAR) - calendar1.get(Calendar.YEAR)) * 12 +
+				calendar2.get(Calendar.MONTH) - calendar1.get(Calendar.MONTH);
+		if (months <= 0 || addMonths(time1, months) != time2) {
+			return 0;
+		}
+		return months;
+	}
+
+	/**
+	 * Add months to a time, the same way the client does when it expands the intervals:
+	 * the day of the month which do not exist overflow in the following month (Jan 31 + 1 month = Mar 3).
+	 * @param time Epoch time in milliseconds.
+	 * @param months
+	 * @return The epoch time in milliseconds.
+	 */
+	private static long addMonths(long time, int months) {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.MONTH, calendar.get(Calendar.MONTH) + months);
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * @param months Number of months.
+	 * @return The ISO 8601 duration. Example: "P1M", "P3M", "P1Y"
+	 */
+	public static String toMonthPeriod(int months) {
+		if (months % 12 == 0) {
+			return "P" + (months / 12) + "Y";
+		}
+		return "P" + months + "M";
+	}
+
+	/**
+	 * @param period Duration in milliseconds.
+	 * @return The ISO 8601 duration. Example: "P1D", "PT6H", "PT1H30M", "PT0.5S"
+	 */
+	public static String toPeriod(long period) {
+		StringBuilder sb = new StringBuilder("P");
+
+		long days = period / NB_MS_PER_DAY;
+		long rest = period % NB_MS_PER_DAY;
+		if (days > 0) {
+			sb.append(days).append("D");
+		}
+
+		if (rest > 0 || days == 0) {
+			sb.append("T");
+			long hours = rest / NB_MS_PER_HOUR;
+			rest = rest % NB_MS_PER_HOUR;
+			long minutes = rest / NB_MS_PER_MINUTE;
+			rest = rest % NB_MS_PER_MINUTE;
+			long seconds = rest / NB_MS_PER_SECOND;
+			long milliseconds = rest % NB_MS_PER_SECOND;
+
+			if (hours > 0) {
+				sb.append(hours).append("H");
+			}
+			if (minutes > 0) {
+				sb.append(minutes).append("M");
+			}
+			if (milliseconds > 0) {
+				sb.append(seconds).append(".").append(String.format("%03d", milliseconds)).append("S");
+			} else if (seconds > 0 || (hours == 0 && minutes == 0)) {
+				sb.append(seconds).append("S");
+			}
+		}
+
+		return sb.toString();
+	}
+}
@@ -99,6 +99,8 @@ public class FileFinder {
 	private static final String DATA_DIR_PROPERTY = "{WEBAPP-NAME}_DATA_DIR";
 
 	private static final String DATASOURCES_FOLDER = "datasources";
+	// Inputs of the last generation of each clients (see RefreshPlanner)
+	private static final String CLIENTS_GENERATION_STATE_FOLDER = "clientsGenerationState";
 
 	private static final String CLIENTS_FOLDER = "clients";
 	private static final String CLIENT_CONFIG_FOLDER = "config";
@@ -113,6 +115,7 @@ public class FileFinder {
 
 	private static final String DISK_CACHE_FOLDER = "cache";
 	private static final String DISK_CACHE_FILE = "cacheMap.json";
+	private static final String DISK_CACHE_JOURNAL_FILE = "cacheMap.journal";
 
 	public static void init(ServletContext context) {
 		printDataDirProperty(context);
@@ -142,6 +145,17 @@ public class FileFinder {
 		return diskCacheFile;
 	}
 
+	/**
+	 * Journal of the modifications made to the disk cache map since its last snapshot.
+	 * One JSON record per line.
+	 */
+	public static File getDiskCacheJournalFile(File applicationFolder) throws IOException {
+		File diskCacheJournalFile = new File(getDiskCacheFolder(applicationFolder), DISK_CACHE_JOURNAL_FILE);
+		diskCacheJournalFile.createNewFile();
+
+		return diskCacheJournalFile;
+	}
+
 	public static File getPublicFile(ServletContext context, String fileRelativePath) {
 		if (context == null || Utils.isBlank(fileRelativePath)) {
 			return null;
@@ -404,6 +418,14 @@ public class FileFinder {
 		return new File(dataSourceFolder, safeFileName(dataSourceID) + ".json");
 	}
 
+	public static File getClientGenerationStateFile(File applicationFolder, String clientID) {
+		File clientsStateFolder = new File(applicationFolder, CLIENTS_GENERATION_STATE_FOLDER);
+		if (!clientsStateFolder.exists()) {
+			clientsStateFolder.mkdirs();
+		}
+		return new File(clientsStateFolder, safeFileName(clientID) + ".json");
+	}
+
 	public static String safeFileName(String rawFileName) {
 		if (Utils.isBlank(rawFileName)) {
 			return null;
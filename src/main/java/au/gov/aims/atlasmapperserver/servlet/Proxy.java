@@ -25,8 +25,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -43,6 +41,7 @@ import au.gov.aims.atlasmapperserver.ClientConfig;
 import au.gov.aims.atlasmapperserver.ConfigHelper;
 import au.gov.aims.atlasmapperserver.ConfigManager;
 import au.gov.aims.atlasmapperserver.ConfigType;
+import au.gov.aims.atlasmapperserver.HttpTransport;
 import au.gov.aims.atlasmapperserver.ServletUtils;
 import au.gov.aims.atlasmapperserver.Utils;
 import au.gov.aims.atlasmapperserver.dataSourceConfig.AbstractDataSourceConfig;
@@ -54,16 +53,7 @@ import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.conn.ssl.TrustStrategy;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.PoolingClientConnectionManager;
-import org.apache.http.impl.conn.SchemeRegistryFactory;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -81,38 +71,6 @@ public class Proxy extends HttpServlet {
 	private static final Logger LOGGER = Logger.getLogger(Proxy.class.getName());
 	private static final String URL_PARAM = "url";
 
-	// NOTE: The URL Cache has a very similar http client
-	private static HttpClient httpClient = null;
-	static {
-		SchemeRegistry schemeRegistry = SchemeRegistryFactory.createDefault();
-		// Try to set the SSL scheme factory: Accept all SSL certificates
-		try {
-			SSLSocketFactory sslSocketFactory = new SSLSocketFactory(
-				// All certificates are trusted
-				new TrustStrategy() {
-					public boolean isTrusted(final X509Certificate[] chain, String authType) throws CertificateException {
-						return true;
-					}
-				},
-				// Do not check if the hostname match the certificate
-				new AllowAllHostnameVerifier()
-			);
-
-			Scheme httpsScheme = new Scheme("https", 443, sslSocketFactory);
-			schemeRegistry.register(httpsScheme);
-		} catch(Exception ex) {
-			LOGGER.log(Level.SEVERE, "Can not initiate the SSLSocketFactory, needed to accept all SSL self signed certificates.", ex);
-		}
-
-		// Set a pool of multiple connections so more than one client can be generated simultaneously
-		// See: http://stackoverflow.com/questions/12799006/how-to-solve-error-invalid-use-of-basicclientconnmanager-make-sure-to-release
-		PoolingClientConnectionManager cxMgr = new PoolingClientConnectionManager(schemeRegistry);
-		cxMgr.setMaxTotal(100);
-		cxMgr.setDefaultMaxPerRoute(20);
-
-		httpClient = new DefaultHttpClient(cxMgr);
-	}
-
 	// Cached list of allowed hosts, for each clients
 	private static Map<String, Set<String>> generatedClientsAllowedHostCache = null;
 
@@ -356,9 +314,12 @@ public class Proxy extends HttpServlet {
 					} else if (protocol.equals("http") || protocol.equals("https")) {
 						HttpGet httpGet = new HttpGet(url.toURI());
 						HttpEntity entity = null;
+						// True when the response has been sent; the connection can be reused.
+						boolean reusable = false;
 
 						try {
-							HttpResponse httpClientResponse = httpClient.execute(httpGet);
+							// The proxy has its own pool of connections; it's not affected by the harvest of the data sources.
+							HttpResponse httpClientResponse = HttpTransport.getProxyTransport().getHttpClient().execute(httpGet);
 							StatusLine httpStatus = httpClientResponse.getStatusLine();
 							int responseCode = -1;
 							if (httpStatus != null) {
@@ -366,9 +327,9 @@ public class Proxy extends HttpServlet {
 							}
 							response.setStatus(responseCode);
 
+							// The entity is streamed
+							entity = httpClientResponse.getEntity();
 							if (responseCode < 400) {
-								// The entity is streamed
-								entity = httpClientResponse.getEntity();
 								String contentType = null;
 								if (entity != null) {
 									Header header = entity.getContentType();
@@ -430,13 +391,11 @@ public class Proxy extends HttpServlet {
 
 								ServletUtils.sendResponse(response, responseTxt);
 							}
+							reusable = true;
 						} finally {
-							if (httpGet != null) {
-								// Cancel the connection, if it's still alive
-								httpGet.abort();
-								// Close connections
-								httpGet.reset();
-							}
+							// Return the connection to the pool, or close it if something went wrong
+							// (the browser may have closed the connection before the end of the response)
+							HttpTransport.release(httpGet, entity, reusable);
 						}
 					} else {
 						response.setContentType("text/plain");
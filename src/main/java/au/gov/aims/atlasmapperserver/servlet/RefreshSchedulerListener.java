@@ -0,0 +1,57 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package au.gov.aims.atlasmapperserver.servlet;
+
+import au.gov.aims.atlasmapperserver.ConfigHelper;
+import au.gov.aims.atlasmapperserver.RefreshScheduler;
+import au.gov.aims.atlasmapperserver.Utils;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Start the data source refresh scheduler with the application, and stop it when the application stop.
+ *
+ * Usage: (web.xml)
+ *     <listener>
+ *       <listener-class>au.gov.aims.atlasmapperserver.servlet.RefreshSchedulerListener</listener-class>
+ *     </listener>
+ */
+public class RefreshSchedulerListener implements ServletContextListener {
+	private static final Logger LOGGER = Logger.getLogger(RefreshSchedulerListener.class.getName());
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		try {
+			RefreshScheduler.start(ConfigHelper.getConfigManager(event.getServletContext()));
+		} catch (Exception ex) {
+			LOGGER.log(Level.SEVERE, "Can not start the data source refresh scheduler: {0}", Utils.getExceptionMessage(ex));
+			LOGGER.log(Level.FINE, "Stack trace:", ex);
+		}
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		RefreshScheduler.stop();
+	}
+}
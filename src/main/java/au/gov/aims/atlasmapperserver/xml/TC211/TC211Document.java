@@ -90,6 +90,39 @@ public class TC211Document {
 		this.polygons.add(polygon);
 	}
 
+	/**
+	 * @return The extent of the points and polygons of the document, as [minX, minY, maxX, maxY]
+	 *     (same as AbstractLayerConfig.getLayerBoundingBox), or null if the document do not have any.
+	 */
+	public double[] getBoundingBox() {
+		List<Point> allPoints = new ArrayList<Point>();
+		if (this.points != null) {
+			allPoints.addAll(this.points);
+		}
+		if (this.polygons != null) {
+			for (Polygon polygon : this.polygons) {
+				if (polygon != null && polygon.getPoints() != null) {
+					allPoints.addAll(polygon.getPoints());
+				}
+			}
+		}
+
+		double[] boundingBox = null;
+		for (Point point : allPoints) {
+			if (point != null) {
+				if (boundingBox == null) {
+					boundingBox = new double[]{ point.getLon(), point.getLat(), point.getLon(), point.getLat() };
+				} else {
+					boundingBox[0] = Math.min(boundingBox[0], point.getLon());
+					boundingBox[1] = Math.min(boundingBox[1], point.getLat());
+					boundingBox[2] = Math.max(boundingBox[2], point.getLon());
+					boundingBox[3] = Math.max(boundingBox[3], point.getLat());
+				}
+			}
+		}
+		return boundingBox;
+	}
+
 	@Override
 	public String toString() {
 		String linksStr = "";
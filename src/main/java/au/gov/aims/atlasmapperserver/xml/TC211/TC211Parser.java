@@ -21,11 +21,16 @@
 package au.gov.aims.atlasmapperserver.xml.TC211;
 
 import au.gov.aims.atlasmapperserver.ConfigManager;
+import au.gov.aims.atlasmapperserver.ParsedDocumentCache;
+import au.gov.aims.atlasmapperserver.RebuildJob;
+import au.gov.aims.atlasmapperserver.SingleFlight;
 import au.gov.aims.atlasmapperserver.URLCache;
 import au.gov.aims.atlasmapperserver.Utils;
 import au.gov.aims.atlasmapperserver.dataSourceConfig.AbstractDataSourceConfig;
+import au.gov.aims.atlasmapperserver.dataSourceConfig.HarvestDeadlineException;
 import au.gov.aims.atlasmapperserver.jsonWrappers.client.LayerWrapper;
 import org.json.JSONException;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -63,30 +68,69 @@ public class TC211Parser {
 			throws SAXException, ParserConfigurationException, IOException, JSONException {
 
 		String urlStr = url.toString();
-		File cachedDocumentFile = null;
+		URLCache.Category category = validMimeType ? URLCache.Category.MEST_RECORD : URLCache.Category.BRUTEFORCE_MEST_RECORD;
 
-		TC211Document tc211Document = null;
+		// If the URL do not return a document, assuming the MEST service is GeoNetwork, a better URL can be crafted
+		URL craftedUrl = null;
 		try {
-			cachedDocumentFile = URLCache.getURLFile(
-					configManager,
-					dataSource,
-					urlStr,
-					validMimeType ? URLCache.Category.MEST_RECORD : URLCache.Category.BRUTEFORCE_MEST_RECORD,
-					mandatory);
-			tc211Document = parseFile(cachedDocumentFile, urlStr);
+			craftedUrl = craftGeoNetworkMestUrl(url);
+		} catch (Exception ex) {
+			// This should not happen
+			LOGGER.log(Level.WARNING, "Unexpected error occurred while crafting a GeoNetwork URL", ex);
+		}
+		String craftedUrlStr = craftedUrl == null ? null : craftedUrl.toString();
+
+		// All the records of a host respond to the same kind of URL. Start with the one that worked
+		// for the previous records of the host, to avoid sending a request that will most likely fail.
+		URLCache.MetadataUrlStrategy strategy = craftedUrlStr == null ? null :
+				URLCache.getMetadataUrlStrategy(configManager, urlStr);
+
+		TC211Document tc211Document = null;
+		if (strategy == URLCache.MetadataUrlStrategy.GEONETWORK) {
+			tc211Document = parseCraftedURL(configManager, dataSource, urlStr, craftedUrlStr, category, mandatory);
 			if (tc211Document == null) {
-				File rollbackFile = URLCache.rollbackURLFile(configManager, cachedDocumentFile, urlStr, "Invalid TC211 document");
-				tc211Document = parseFile(rollbackFile, urlStr);
-			} else {
-				URLCache.commitURLFile(configManager, cachedDocumentFile, urlStr);
+				tc211Document = parseDirectURL(configManager, dataSource, urlStr, category, mandatory);
+				if (tc211Document != null) {
+					URLCache.setMetadataUrlStrategy(configManager, urlStr, URLCache.MetadataUrlStrategy.DIRECT);
+				}
 			}
-		} catch (Exception ex) {
-			// Parsing a file that has already been accepted - Very unlikely to throw an exception here
-			File rollbackFile = URLCache.rollbackURLFile(configManager, cachedDocumentFile, urlStr, ex);
-			tc211Document = parseFile(rollbackFile, urlStr);
+		} else {
+			tc211Document = parseDirectURL(configManager, dataSource, urlStr, category, mandatory);
+			if (craftedUrlStr != null) {
+				if (tc211Document != null) {
+					URLCache.setMetadataUrlStrategy(configManager, urlStr, URLCache.MetadataUrlStrategy.DIRECT);
+				} else {
+					tc211Document = parseCraftedURL(configManager, dataSource, urlStr, craftedUrlStr, category, mandatory);
+					if (tc211Document != null) {
+						URLCache.setMetadataUrlStrategy(configManager, urlStr, URLCache.MetadataUrlStrategy.GEONETWORK);
+					}
+				}
+			}
+		}
+
+		if (tc211Document != null) {
+			RebuildJob.addMetadataRecord();
 		}
 
-		// Still no document? Assuming the MEST service is GeoNetwork, try to craft a better URL
+		return tc211Document;
+	}
+
+	/**
+	 * Same as parseURL, but never download anything: parse the record already in the cache,
+	 * if any (see URLCache.getCachedURLFile). The record may have expired.
+	 * @param configManager Config manager associated to that URL, for caching purpose
+	 * @param url Url of the document to parse
+	 * @return The cached record, or null if the record is not in the cache.
+	 * @throws SAXException
+	 * @throws ParserConfigurationException
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public static TC211Document parseCachedURL(ConfigManager configManager, URL url)
+			throws SAXException, ParserConfigurationException, IOException, JSONException {
+
+		String urlStr = url.toString();
+		TC211Document tc211Document = parseFile(URLCache.getCachedURLFile(configManager, urlStr), urlStr);
 		if (tc211Document == null) {
 			URL craftedUrl = null;
 			try {
@@ -97,35 +141,91 @@ public class TC211Parser {
 			}
 			if (craftedUrl != null) {
 				String craftedUrlStr = craftedUrl.toString();
-				try {
-
-					cachedDocumentFile = URLCache.getURLFile(
-							configManager,
-							dataSource,
-							craftedUrlStr,
-							validMimeType ? URLCache.Category.MEST_RECORD : URLCache.Category.BRUTEFORCE_MEST_RECORD,
-							mandatory);
-					tc211Document = parseFile(cachedDocumentFile, craftedUrlStr);
-					if (tc211Document == null) {
-						File rollbackFile = URLCache.rollbackURLFile(configManager, cachedDocumentFile, craftedUrlStr, "Invalid TC211 document");
-						tc211Document = parseFile(rollbackFile, craftedUrlStr);
-					} else {
-						// NOTE: The capabilities document refer to a MEST document, but the URL is not
-						//     an actual TC211 MEST record. Using some basic URL crafting, the AtlasMapper
-						//     managed to find a URL that returns a valid MEST record. Therefore, the
-						//     invalid URL should be linked (redirection) to the valid crafted one,
-						//     so the application will not try to re-download the HTML one again.
-						URLCache.setRedirection(configManager, urlStr, craftedUrlStr);
-						URLCache.commitURLFile(configManager, cachedDocumentFile, craftedUrlStr);
-					}
-				} catch (Exception ex) {
-					// Parsing a file that has already been accepted - Very unlikely to throw an exception here
-					File rollbackFile = URLCache.rollbackURLFile(configManager, cachedDocumentFile, craftedUrlStr, "Invalid TC211 document");
-					tc211Document = parseFile(rollbackFile, craftedUrlStr);
-				}
+				tc211Document = parseFile(URLCache.getCachedURLFile(configManager, craftedUrlStr), craftedUrlStr);
+			}
+		}
+		return tc211Document;
+	}
+
+	/**
+	 * @param configManager
+	 * @param dataSource
+	 * @param url Url of the document
+	 * @return True if the record of the URL, or of its crafted GeoNetwork URL, is in the cache and has not expired;
+	 *     parseURL would return the same result as parseCachedURL.
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public static boolean isCachedURLUpToDate(ConfigManager configManager, AbstractDataSourceConfig dataSource, URL url)
+			throws IOException, JSONException {
+
+		if (URLCache.isURLFileUpToDate(configManager, dataSource, url.toString())) {
+			return true;
+		}
+
+		URL craftedUrl = null;
+		try {
+			craftedUrl = craftGeoNetworkMestUrl(url);
+		} catch (Exception ex) {
+			// This should not happen
+			LOGGER.log(Level.WARNING, "Unexpected error occurred while crafting a GeoNetwork URL", ex);
+		}
+		return craftedUrl != null && URLCache.isURLFileUpToDate(configManager, dataSource, craftedUrl.toString());
+	}
+
+	private static TC211Document parseDirectURL(ConfigManager configManager, AbstractDataSourceConfig dataSource, String urlStr, URLCache.Category category, boolean mandatory)
+			throws SAXException, ParserConfigurationException, IOException, JSONException {
+
+		File cachedDocumentFile = null;
+		TC211Document tc211Document = null;
+		try {
+			cachedDocumentFile = URLCache.getURLFile(configManager, dataSource, urlStr, category, mandatory);
+			tc211Document = parseFile(cachedDocumentFile, urlStr);
+			if (tc211Document == null) {
+				File rollbackFile = URLCache.rollbackURLFile(configManager, cachedDocumentFile, urlStr, "Invalid TC211 document");
+				tc211Document = parseFile(rollbackFile, urlStr);
+			} else {
+				URLCache.commitURLFile(configManager, cachedDocumentFile, urlStr);
 			}
+		} catch (HarvestDeadlineException ex) {
+			// Out of time; the cached file is used as it is
+			tc211Document = parseFile(ex.getCachedFile(), urlStr);
+		} catch (Exception ex) {
+			// Parsing a file that has already been accepted - Very unlikely to throw an exception here
+			File rollbackFile = URLCache.rollbackURLFile(configManager, cachedDocumentFile, urlStr, ex);
+			tc211Document = parseFile(rollbackFile, urlStr);
 		}
+		return tc211Document;
+	}
 
+	private static TC211Document parseCraftedURL(ConfigManager configManager, AbstractDataSourceConfig dataSource, String urlStr, String craftedUrlStr, URLCache.Category category, boolean mandatory)
+			throws SAXException, ParserConfigurationException, IOException, JSONException {
+
+		File cachedDocumentFile = null;
+		TC211Document tc211Document = null;
+		try {
+			cachedDocumentFile = URLCache.getURLFile(configManager, dataSource, craftedUrlStr, category, mandatory);
+			tc211Document = parseFile(cachedDocumentFile, craftedUrlStr);
+			if (tc211Document == null) {
+				File rollbackFile = URLCache.rollbackURLFile(configManager, cachedDocumentFile, craftedUrlStr, "Invalid TC211 document");
+				tc211Document = parseFile(rollbackFile, craftedUrlStr);
+			} else {
+				// NOTE: The capabilities document refer to a MEST document, but the URL is not
+				//     an actual TC211 MEST record. Using some basic URL crafting, the AtlasMapper
+				//     managed to find a URL that returns a valid MEST record. Therefore, the
+				//     invalid URL should be linked (redirection) to the valid crafted one,
+				//     so the application will not try to re-download the HTML one again.
+				URLCache.setRedirection(configManager, urlStr, craftedUrlStr);
+				URLCache.commitURLFile(configManager, cachedDocumentFile, craftedUrlStr);
+			}
+		} catch (HarvestDeadlineException ex) {
+			// Out of time; the cached file is used as it is
+			tc211Document = parseFile(ex.getCachedFile(), craftedUrlStr);
+		} catch (Exception ex) {
+			// Parsing a file that has already been accepted - Very unlikely to throw an exception here
+			File rollbackFile = URLCache.rollbackURLFile(configManager, cachedDocumentFile, craftedUrlStr, "Invalid TC211 document");
+			tc211Document = parseFile(rollbackFile, craftedUrlStr);
+		}
 		return tc211Document;
 	}
 
@@ -205,7 +305,7 @@ public class TC211Parser {
 	}
 
 	/**
-	 * NOT Cached
+	 * Cached in memory (see ParsedDocumentCache); the returned document must not be modified.
 	 * @param file
 	 * @param location
 	 * @return
@@ -221,14 +321,47 @@ public class TC211Parser {
 			return null;
 		}
 
+		ParsedDocumentCache parsedDocumentCache = ParsedDocumentCache.getInstance();
+		SingleFlight.Flight flight = parsedDocumentCache.joinParse(TC211Document.class, file, location);
+		try {
+			TC211Document doc = parsedDocumentCache.get(TC211Document.class, file, location);
+			if (doc == null) {
+				doc = parseUncachedFile(file, location);
+				parsedDocumentCache.put(TC211Document.class, file, location, doc);
+			}
+			return doc;
+		} finally {
+			flight.end();
+		}
+	}
+
+	private static TC211Document parseUncachedFile(File file, String location)
+			throws SAXException, ParserConfigurationException, IOException, JSONException {
+
 		SAXParser saxParser = getSAXParser();
 
 		TC211Document doc = new TC211Document(location);
 		TC211Handler handler = new TC211Handler(doc);
 
-		saxParser.parse(file, handler);
+		// The cached files may be compressed
+		InputStream inputStream = null;
+		try {
+			inputStream = URLCache.getInputStream(file);
+			InputSource inputSource = new InputSource(inputStream);
+			// Used to resolve relative references, as when the file is parsed directly
+			inputSource.setSystemId(file.toURI().toString());
+			saxParser.parse(inputSource, handler);
+		} finally {
+			if (inputStream != null) {
+				inputStream.close();
+			}
+		}
+
+		if (doc.isEmpty()) {
+			return null;
+		}
 
-		return doc.isEmpty() ? null : doc;
+		return doc;
 	}
 
 	/**
@@ -0,0 +1,491 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package au.gov.aims.atlasmapperserver.xml.WMS;
+
+import org.geotools.data.ows.CRSEnvelope;
+import org.geotools.data.ows.Dimension;
+import org.geotools.data.ows.Extent;
+import org.geotools.data.ows.Layer;
+import org.geotools.data.ows.OperationType;
+import org.geotools.data.ows.Service;
+import org.geotools.data.ows.StyleImpl;
+import org.geotools.data.ows.WMSCapabilities;
+import org.geotools.data.ows.WMSRequest;
+import org.geotools.data.wms.xml.MetadataURL;
+import org.geotools.ows.ServiceException;
+import org.geotools.util.SimpleInternationalString;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handler used to stream the WMS capabilities document (version 1.1.1 and 1.3.0).
+ * The GeoTools DocumentFactory builds the complete object graph of the document,
+ * including the list of CRS of every layer; for large GeoServer capabilities documents,
+ * it requires hundreds of MB of memory. This handler only extracts the info used by
+ * the AtlasMapper (see AbstractWMSLayerGenerator):
+ *    Version (WMS_Capabilities@version)
+ *    Service
+ *        Name, Title, Abstract
+ *    Request
+ *        Operation URLs (GetCapabilities, GetMap, GetFeatureInfo, GetLegendGraphic > DCPType > HTTP > Get > OnlineResource)
+ *    Layers (Capability > Layer, recursively)
+ *        Layer queryable (Layer@queryable)
+ *        Layer name, title and abstract (Layer > Name, Title, Abstract)
+ *        Bounding box (Layer > LatLonBoundingBox, or Layer > EX_GeographicBoundingBox)
+ *        Styles
+ *            Style name, title and abstract (Layer > Style > Name, Title, Abstract)
+ *        Metadata URLs (Layer > MetadataURL@type, Format and OnlineResource)
+ *        Dimensions (Layer > Dimension and Layer > Extent)
+ * The CRS / SRS lists and the BoundingBox of each CRS are ignored.
+ */
+public class WMSCapabilitiesHandler extends DefaultHandler {
+	private static final Logger LOGGER = Logger.getLogger(WMSCapabilitiesHandler.class.getName());
+
+	private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+
+	private static final String WMS_1_1_1_ROOT = "WMT_MS_Capabilities";
+	private static final String WMS_1_3_0_ROOT = "WMS_Capabilities";
+	private static final String SERVICE_EXCEPTION_REPORT = "ServiceExceptionReport";
+	private static final String SERVICE_EXCEPTION = "ServiceException";
+	private static final String SERVICE = "Service";
+	private static final String CAPABILITY = "Capability";
+	private static final String REQUEST = "Request";
+	private static final String GET = "Get";
+	private static final String ONLINE_RESOURCE = "OnlineResource";
+	private static final String LAYER = "Layer";
+	private static final String NAME = "Name";
+	private static final String TITLE = "Title";
+	private static final String ABSTRACT = "Abstract";
+	private static final String STYLE = "Style";
+	private static final String METADATA_URL = "MetadataURL";
+	private static final String FORMAT = "Format";
+	private static final String LATLON_BOUNDING_BOX = "LatLonBoundingBox"; // WMS 1.1.1
+	private static final String GEOGRAPHIC_BOUNDING_BOX = "EX_GeographicBoundingBox"; // WMS 1.3.0
+	private static final String WEST_BOUND = "westBoundLongitude";
+	private static final String EAST_BOUND = "eastBoundLongitude";
+	private static final String SOUTH_BOUND = "southBoundLatitude";
+	private static final String NORTH_BOUND = "northBoundLatitude";
+	private static final String DIMENSION = "Dimension";
+	private static final String EXTENT = "Extent"; // WMS 1.1.1
+
+	private static final String GET_CAPABILITIES = "GetCapabilities";
+	private static final String GET_MAP = "GetMap";
+	private static final String GET_FEATURE_INFO = "GetFeatureInfo";
+	private static final String GET_LEGEND_GRAPHIC = "GetLegendGraphic";
+
+	private WMSCapabilities capabilities;
+	private boolean serviceExceptionReport;
+	private StringBuilder serviceExceptionMessage;
+
+	private Service service;
+	private WMSRequest request;
+	private OperationType operation;
+
+	// The layers currently opened (the parents of the current layer and the current layer)
+	private Stack<LayerBuilder> layers;
+	private StyleImpl style;
+	private String metadataUrlType;
+	private String metadataUrlFormat;
+	private String metadataUrlHref;
+	private double[] geographicBoundingBox;
+	private Attributes dimensionAttributes;
+
+	// Local names of the elements currently opened
+	private Stack<String> xmlPath;
+	private StringBuilder collectedChars;
+
+	public WMSCapabilitiesHandler(WMSCapabilities capabilities) {
+		super();
+		this.capabilities = capabilities;
+		this.serviceExceptionReport = false;
+		this.layers = new Stack<LayerBuilder>();
+		this.xmlPath = new Stack<String>();
+	}
+
+	@Override
+	public void startElement(
+			String uri,
+			String localName,
+			String qName,
+			Attributes attributes) throws SAXException {
+
+		String name = getLocalName(localName, qName);
+		String parentName = this.xmlPath.isEmpty() ? null : this.xmlPath.peek();
+		this.xmlPath.push(name);
+		// Only the text of the elements of interest is collected; the text of the CRS lists is ignored.
+		this.collectedChars = null;
+
+		if (parentName == null) {
+			// Root element: WMT_MS_Capabilities (1.1.1), WMS_Capabilities (1.3.0) or ServiceExceptionReport
+			if (SERVICE_EXCEPTION_REPORT.equals(name)) {
+				this.serviceExceptionReport = true;
+				this.serviceExceptionMessage = new StringBuilder();
+			} else if (WMS_1_1_1_ROOT.equals(name) || WMS_1_3_0_ROOT.equals(name)) {
+				this.capabilities.setVersion(attributes.getValue("version"));
+			} else {
+				// HTML error page, or any other XML document
+				throw new SAXException("The document is not a WMS capabilities document. Root element: " + name);
+			}
+
+		} else if (this.serviceExceptionReport) {
+			if (SERVICE_EXCEPTION.equals(name)) {
+				this.collectedChars = new StringBuilder();
+			}
+
+		} else if (LAYER.equals(name)) {
+			if (CAPABILITY.equals(parentName) || LAYER.equals(parentName)) {
+				Layer layer = new Layer();
+				layer.setQueryable(isTrue(attributes.getValue("queryable")));
+				if (this.layers.isEmpty()) {
+					this.capabilities.setLayer(layer);
+				} else {
+					Layer parentLayer = this.layers.peek().layer;
+					layer.setParent(parentLayer);
+					parentLayer.addChildren(layer);
+				}
+				this.layers.push(new LayerBuilder(layer));
+			}
+
+		} else if (LAYER.equals(parentName)) {
+			// Elements of interest inside the Layer element
+			if (NAME.equals(name) || TITLE.equals(name) || ABSTRACT.equals(name)) {
+				this.collectedChars = new StringBuilder();
+			} else if (STYLE.equals(name)) {
+				this.style = new StyleImpl();
+			} else if (METADATA_URL.equals(name)) {
+				this.metadataUrlType = attributes.getValue("type");
+				this.metadataUrlFormat = null;
+				this.metadataUrlHref = null;
+			} else if (LATLON_BOUNDING_BOX.equals(name)) {
+				this.setLatLonBoundingBox(
+						parseDouble(attributes.getValue("minx")), parseDouble(attributes.getValue("miny")),
+						parseDouble(attributes.getValue("maxx")), parseDouble(attributes.getValue("maxy")));
+			} else if (GEOGRAPHIC_BOUNDING_BOX.equals(name)) {
+				this.geographicBoundingBox = new double[] { Double.NaN, Double.NaN, Double.NaN, Double.NaN };
+			} else if (DIMENSION.equals(name) || EXTENT.equals(name)) {
+				// The attributes object is reused by the parser; it has to be copied.
+				this.dimensionAttributes = new AttributesImpl(attributes);
+				this.collectedChars = new StringBuilder();
+			}
+
+		} else if (STYLE.equals(parentName)) {
+			if (this.style != null && (NAME.equals(name) || TITLE.equals(name) || ABSTRACT.equals(name))) {
+				this.collectedChars = new StringBuilder();
+			}
+
+		} else if (METADATA_URL.equals(parentName)) {
+			if (FORMAT.equals(name)) {
+				this.collectedChars = new StringBuilder();
+			} else if (ONLINE_RESOURCE.equals(name)) {
+				this.metadataUrlHref = getHref(attributes);
+			}
+
+		} else if (GEOGRAPHIC_BOUNDING_BOX.equals(parentName)) {
+			this.collectedChars = new StringBuilder();
+
+		} else if (SERVICE.equals(parentName)) {
+			if (NAME.equals(name) || TITLE.equals(name) || ABSTRACT.equals(name)) {
+				this.collectedChars = new StringBuilder();
+			}
+
+		} else if (SERVICE.equals(name)) {
+			this.service = new Service();
+			this.capabilities.setService(this.service);
+
+		} else if (REQUEST.equals(name)) {
+			if (CAPABILITY.equals(parentName)) {
+				this.request = new WMSRequest();
+				this.capabilities.setRequest(this.request);
+			}
+
+		} else if (REQUEST.equals(parentName)) {
+			if (this.request != null) {
+				this.operation = new OperationType();
+				if (GET_CAPABILITIES.equals(name)) {
+					this.request.setGetCapabilities(this.operation);
+				} else if (GET_MAP.equals(name)) {
+					this.request.setGetMap(this.operation);
+				} else if (GET_FEATURE_INFO.equals(name)) {
+					this.request.setGetFeatureInfo(this.operation);
+				} else if (GET_LEGEND_GRAPHIC.equals(name)) {
+					this.request.setGetLegendGraphic(this.operation);
+				} else {
+					this.operation = null;
+				}
+			}
+
+		} else if (ONLINE_RESOURCE.equals(name) && GET.equals(parentName)) {
+			// Path equals: Capability > Request > [Operation] > DCPType > HTTP > Get > OnlineResource
+			if (this.operation != null && this.operation.getGet() == null) {
+				this.operation.setGet(toURL(getHref(attributes)));
+			}
+		}
+	}
+
+	@Override
+	public void endElement(
+			String uri,
+			String localName,
+			String qName) throws SAXException {
+
+		String name = this.xmlPath.pop();
+		String parentName = this.xmlPath.isEmpty() ? null : this.xmlPath.peek();
+		String text = this.collectedChars == null ? null : this.collectedChars.toString().trim();
+		this.collectedChars = null;
+
+		if (parentName == null) {
+			if (this.serviceExceptionReport) {
+				throw new ServiceException(this.serviceExceptionMessage.toString().trim());
+			}
+
+		} else if (this.serviceExceptionReport) {
+			if (text != null) {
+				if (this.serviceExceptionMessage.length() > 0) {
+					this.serviceExceptionMessage.append("\n");
+				}
+				this.serviceExceptionMessage.append(text);
+			}
+
+		} else if (LAYER.equals(name)) {
+			if (!this.layers.isEmpty() && (CAPABILITY.equals(parentName) || LAYER.equals(parentName))) {
+				this.layers.pop().build();
+			}
+
+		} else if (LAYER.equals(parentName)) {
+			if (this.layers.isEmpty()) {
+				return;
+			}
+			LayerBuilder layerBuilder = this.layers.peek();
+			if (NAME.equals(name)) {
+				layerBuilder.layer.setName(emptyToNull(text));
+			} else if (TITLE.equals(name)) {
+				layerBuilder.layer.setTitle(text);
+			} else if (ABSTRACT.equals(name)) {
+				layerBuilder.layer.set_abstract(text);
+			} else if (STYLE.equals(name)) {
+				if (this.style != null && this.style.getName() != null) {
+					layerBuilder.styles.add(this.style);
+				}
+				this.style = null;
+			} else if (METADATA_URL.equals(name)) {
+				URL url = toURL(this.metadataUrlHref);
+				if (url != null) {
+					layerBuilder.metadataUrls.add(new MetadataURL(url, this.metadataUrlFormat, this.metadataUrlType));
+				}
+			} else if (GEOGRAPHIC_BOUNDING_BOX.equals(name)) {
+				if (this.geographicBoundingBox != null) {
+					this.setLatLonBoundingBox(
+							this.geographicBoundingBox[0], this.geographicBoundingBox[1],
+							this.geographicBoundingBox[2], this.geographicBoundingBox[3]);
+				}
+				this.geographicBoundingBox = null;
+			} else if (DIMENSION.equals(name)) {
+				layerBuilder.addDimension(this.dimensionAttributes, text);
+				this.dimensionAttributes = null;
+			} else if (EXTENT.equals(name)) {
+				layerBuilder.addExtent(this.dimensionAttributes, text);
+				this.dimensionAttributes = null;
+			}
+
+		} else if (STYLE.equals(parentName)) {
+			if (this.style != null && text != null) {
+				if (NAME.equals(name)) {
+					this.style.setName(emptyToNull(text));
+				} else if (TITLE.equals(name)) {
+					this.style.setTitle(new SimpleInternationalString(text));
+				} else if (ABSTRACT.equals(name)) {
+					this.style.setAbstract(new SimpleInternationalString(text));
+				}
+			}
+
+		} else if (METADATA_URL.equals(parentName)) {
+			if (FORMAT.equals(name)) {
+				this.metadataUrlFormat = text;
+			}
+
+		} else if (GEOGRAPHIC_BOUNDING_BOX.equals(parentName)) {
+			if (this.geographicBoundingBox != null) {
+				if (WEST_BOUND.equals(name)) {
+					this.geographicBoundingBox[0] = parseDouble(text);
+				} else if (SOUTH_BOUND.equals(name)) {
+					this.geographicBoundingBox[1] = parseDouble(text);
+				} else if (EAST_BOUND.equals(name)) {
+					this.geographicBoundingBox[2] = parseDouble(text);
+				} else if (NORTH_BOUND.equals(name)) {
+					this.geographicBoundingBox[3] = parseDouble(text);
+				}
+			}
+
+		} else if (SERVICE.equals(parentName)) {
+			if (this.service != null) {
+				if (NAME.equals(name)) {
+					this.service.setName(text);
+				} else if (TITLE.equals(name)) {
+					this.service.setTitle(text);
+				} else if (ABSTRACT.equals(name)) {
+					this.service.set_abstract(text);
+				}
+			}
+
+		} else if (REQUEST.equals(parentName)) {
+			this.operation = null;
+		}
+	}
+
+	@Override
+	public void characters(
+			char ch[],
+			int start,
+			int length) throws SAXException {
+
+		if (this.collectedChars != null) {
+			this.collectedChars.append(ch, start, length);
+		}
+	}
+
+	private void setLatLonBoundingBox(double minX, double minY, double maxX, double maxY) {
+		if (!this.layers.isEmpty() && !Double.isNaN(minX) && !Double.isNaN(minY) && !Double.isNaN(maxX) && !Double.isNaN(maxY)) {
+			this.layers.peek().layer.setLatLonBoundingBox(new CRSEnvelope("EPSG:4326", minX, minY, maxX, maxY));
+		}
+	}
+
+	private static String getLocalName(String localName, String qName) {
+		if (localName != null && !localName.isEmpty()) {
+			return localName;
+		}
+		// The parser is not namespace aware
+		int colonIndex = qName.indexOf(':');
+		return colonIndex < 0 ? qName : qName.substring(colonIndex + 1);
+	}
+
+	private static String getHref(Attributes attributes) {
+		String href = attributes.getValue(XLINK_NAMESPACE, "href");
+		if (href == null) {
+			href = attributes.getValue("xlink:href");
+		}
+		return href;
+	}
+
+	private static URL toURL(String urlStr) {
+		if (urlStr == null || urlStr.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return new URL(urlStr.trim());
+		} catch (MalformedURLException ex) {
+			LOGGER.log(Level.WARNING, "Invalid URL found in the capabilities document: {0}", urlStr);
+			return null;
+		}
+	}
+
+	private static double parseDouble(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return Double.NaN;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException ex) {
+			return Double.NaN;
+		}
+	}
+
+	// WMS 1.1.1 use "0" / "1", WMS 1.3.0 also allows "false" / "true"
+	private static boolean isTrue(String value) {
+		return value != null && ("1".equals(value.trim()) || "true".equalsIgnoreCase(value.trim()));
+	}
+
+	private static String emptyToNull(String value) {
+		return (value == null || value.isEmpty()) ? null : value;
+	}
+
+	/**
+	 * The lists of a layer are set when the layer is closed.
+	 */
+	private static class LayerBuilder {
+		public final Layer layer;
+		public final List<StyleImpl> styles;
+		public final List<MetadataURL> metadataUrls;
+		// Map<String dimensionName, Dimension dimension>
+		public final Map<String, Dimension> dimensions;
+		// Map<String dimensionName, Extent extent>
+		public final Map<String, Extent> extents;
+
+		public LayerBuilder(Layer layer) {
+			this.layer = layer;
+			this.styles = new ArrayList<StyleImpl>();
+			this.metadataUrls = new ArrayList<MetadataURL>();
+			this.dimensions = new HashMap<String, Dimension>();
+			this.extents = new HashMap<String, Extent>();
+		}
+
+		// WMS 1.3.0: the values are in the Dimension element. WMS 1.1.1: the Dimension element has no values.
+		public void addDimension(Attributes attributes, String values) {
+			String name = attributes == null ? null : attributes.getValue("name");
+			if (name == null || name.isEmpty()) {
+				return;
+			}
+			Dimension dimension = new Dimension(name, attributes.getValue("units"));
+			dimension.setUnitSymbol(attributes.getValue("unitSymbol"));
+			dimension.setCurrent(isTrue(attributes.getValue("current")));
+			this.dimensions.put(name, dimension);
+			if (values != null && !values.isEmpty()) {
+				this.addExtent(attributes, values);
+			}
+		}
+
+		public void addExtent(Attributes attributes, String values) {
+			String name = attributes == null ? null : attributes.getValue("name");
+			if (name == null || name.isEmpty()) {
+				return;
+			}
+			Extent extent = new Extent(name, attributes.getValue("default"), values);
+			extent.setMultipleValues(isTrue(attributes.getValue("multipleValues")));
+			this.extents.put(name, extent);
+		}
+
+		public void build() {
+			this.layer.setStyles(this.styles);
+			this.layer.setMetadataURL(this.metadataUrls);
+			for (Map.Entry<String, Extent> extentEntry : this.extents.entrySet()) {
+				Dimension dimension = this.dimensions.get(extentEntry.getKey());
+				if (dimension != null) {
+					dimension.setExtent(extentEntry.getValue());
+				}
+			}
+			this.layer.setDimensions(this.dimensions);
+			this.layer.setExtents(this.extents);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package au.gov.aims.atlasmapperserver.xml.WMS;
+
+import org.geotools.data.ows.WMSCapabilities;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream the WMS capabilities documents, instead of building the complete
+ * object graph of the document (see WMSCapabilitiesHandler).
+ * The parsed documents are cached by URLCache.getWMSCapabilitiesResponse.
+ */
+public class WMSCapabilitiesParser {
+
+	private static SAXParser getSAXParser() throws SAXException, SAXNotRecognizedException, ParserConfigurationException {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		// The WMS 1.3.0 elements may be prefixed
+		factory.setNamespaceAware(true);
+
+		// Disabling DTD loading & validation (WMS 1.1.1 documents reference a DTD)
+		factory.setFeature("http://apache.org/xml/features/validation/schema", false);
+		factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+		return factory.newSAXParser();
+	}
+
+	/**
+	 * NOT Cached
+	 * @param inputStream
+	 * @param location For debugging purpose
+	 * @return
+	 * @throws SAXException If the document is not a WMS capabilities document, or if it's a service exception report (org.geotools.ows.ServiceException).
+	 * @throws ParserConfigurationException
+	 * @throws IOException
+	 */
+	public static WMSCapabilities parseInputStream(InputStream inputStream, String location)
+			throws SAXException, ParserConfigurationException, IOException {
+
+		if (inputStream == null) {
+			throw new IllegalArgumentException("Can not parse null XML stream. " + location);
+		}
+
+		SAXParser saxParser = getSAXParser();
+
+		WMSCapabilities capabilities = new WMSCapabilities();
+		WMSCapabilitiesHandler handler = new WMSCapabilitiesHandler(capabilities);
+
+		InputSource inputSource = new InputSource(inputStream);
+		if (location != null) {
+			// Used to resolve relative references
+			inputSource.setSystemId(location);
+		}
+		saxParser.parse(inputSource, handler);
+
+		return capabilities;
+	}
+}
@@ -21,9 +21,13 @@
 package au.gov.aims.atlasmapperserver.xml.WMTS;
 
 import au.gov.aims.atlasmapperserver.ConfigManager;
+import au.gov.aims.atlasmapperserver.ParsedDocumentCache;
+import au.gov.aims.atlasmapperserver.SingleFlight;
 import au.gov.aims.atlasmapperserver.URLCache;
 import au.gov.aims.atlasmapperserver.dataSourceConfig.AbstractDataSourceConfig;
+import au.gov.aims.atlasmapperserver.dataSourceConfig.HarvestDeadlineException;
 import org.json.JSONException;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXNotRecognizedException;
 
@@ -67,6 +71,9 @@ public class WMTSParser {
 			} else {
 				URLCache.commitURLFile(configManager, cachedDocumentFile, urlStr);
 			}
+		} catch (HarvestDeadlineException ex) {
+			// Out of time; the cached file is used as it is
+			wmtsDocument = parseFile(ex.getCachedFile(), urlStr);
 		} catch (Exception ex) {
 			File rollbackFile = URLCache.rollbackURLFile(configManager, cachedDocumentFile, urlStr, ex);
 			wmtsDocument = parseFile(rollbackFile, urlStr);
@@ -86,7 +93,7 @@ public class WMTSParser {
 	}
 
 	/**
-	 * NOT Cached
+	 * Cached in memory (see ParsedDocumentCache); the returned document must not be modified.
 	 * @param file
 	 * @param location For debugging purpose
 	 * @return
@@ -102,12 +109,41 @@ public class WMTSParser {
 			return null;
 		}
 
+		ParsedDocumentCache parsedDocumentCache = ParsedDocumentCache.getInstance();
+		SingleFlight.Flight flight = parsedDocumentCache.joinParse(WMTSDocument.class, file, location);
+		try {
+			WMTSDocument doc = parsedDocumentCache.get(WMTSDocument.class, file, location);
+			if (doc == null) {
+				doc = parseUncachedFile(file, location);
+				parsedDocumentCache.put(WMTSDocument.class, file, location, doc);
+			}
+			return doc;
+		} finally {
+			flight.end();
+		}
+	}
+
+	private static WMTSDocument parseUncachedFile(File file, String location)
+			throws SAXException, ParserConfigurationException, IOException, JSONException {
+
 		SAXParser saxParser = getSAXParser();
 
 		WMTSDocument doc = new WMTSDocument(location);
 		WMTSHandler handler = new WMTSHandler(doc);
 
-		saxParser.parse(file, handler);
+		// The cached files may be compressed
+		InputStream inputStream = null;
+		try {
+			inputStream = URLCache.getInputStream(file);
+			InputSource inputSource = new InputSource(inputStream);
+			// Used to resolve relative references, as when the file is parsed directly
+			inputSource.setSystemId(file.toURI().toString());
+			saxParser.parse(inputSource, handler);
+		} finally {
+			if (inputStream != null) {
+				inputStream.close();
+			}
+		}
 
 		if (doc.getLayer() == null) {
 			return null;
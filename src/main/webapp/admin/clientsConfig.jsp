@@ -35,6 +35,8 @@
 <%@page import="au.gov.aims.atlasmapperserver.ActionType"%>
 <%@page import="java.util.Map" %>
 <%@page import="au.gov.aims.atlasmapperserver.Errors" %>
+<%@page import="au.gov.aims.atlasmapperserver.RebuildJob" %>
+<%@page import="au.gov.aims.atlasmapperserver.RebuildJobManager" %>
 <%@page contentType="application/json" pageEncoding="UTF-8"%>
 <%
 	Logger LOGGER = Logger.getLogger("clientsConfig.jsp");
@@ -45,6 +47,9 @@
 	String clientId = request.getParameter("clientId");
 	String idStr = request.getParameter("id");
 	String completeStr = request.getParameter("complete");
+	// Run the generation in a background job and return immediately
+	boolean async = Boolean.parseBoolean(request.getParameter("async"));
+	String jobId = request.getParameter("jobId");
 
 	JSONObject jsonObj = new JSONObject();
 
@@ -231,6 +236,14 @@
 									response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 									jsonObj.put("success", false);
 									jsonObj.put("errors", new JSONArray().put("Client number ["+id+"] not found."));
+								} else if (async) {
+									RebuildJob job = RebuildJobManager.getInstance().submitClientGeneration(foundClientConfig, complete);
+									response.setStatus(HttpServletResponse.SC_OK);
+									jsonObj.put("message", "Config generation started");
+									jsonObj.put("clientName", foundClientConfig.getClientName());
+									jsonObj.put("clientId", foundClientConfig.getClientId());
+									jsonObj.put("job", job.toJSON());
+									jsonObj.put("success", true);
 								} else {
 									Errors errors = foundClientConfig.process(complete);
 									JSONObject jsonErrors = errors.toJSON();
@@ -260,16 +273,24 @@
 					try {
 						boolean complete = Boolean.parseBoolean(completeStr);
 
-						Map<String, Errors> errors = configManager.generateAllClients(complete);
-						JSONObject jsonErrors = Errors.toJSON(errors);
-						response.setStatus(HttpServletResponse.SC_OK);
-						jsonObj.put("message", "Config saved for all clients");
-						if (jsonErrors != null) {
-							jsonObj.put("errors", jsonErrors.opt("errors"));
-							jsonObj.put("warnings", jsonErrors.opt("warnings"));
-							jsonObj.put("messages", jsonErrors.opt("messages"));
+						if (async) {
+							RebuildJob job = RebuildJobManager.getInstance().submitAllClientsGeneration(configManager, complete);
+							response.setStatus(HttpServletResponse.SC_OK);
+							jsonObj.put("message", "Config generation started for all clients");
+							jsonObj.put("job", job.toJSON());
+							jsonObj.put("success", true);
+						} else {
+							Map<String, Errors> errors = configManager.generateAllClients(complete);
+							JSONObject jsonErrors = Errors.toJSON(errors);
+							response.setStatus(HttpServletResponse.SC_OK);
+							jsonObj.put("message", "Config saved for all clients");
+							if (jsonErrors != null) {
+								jsonObj.put("errors", jsonErrors.opt("errors"));
+								jsonObj.put("warnings", jsonErrors.opt("warnings"));
+								jsonObj.put("messages", jsonErrors.opt("messages"));
+							}
+							jsonObj.put("success", !jsonObj.has("errors"));
 						}
-						jsonObj.put("success", !jsonObj.has("errors"));
 					} catch (Exception e) {
 						LOGGER.log(Level.SEVERE, "An error occurred while generating the Client configurations: {0}", Utils.getExceptionMessage(e));
 						LOGGER.log(Level.WARNING, "Stack trace: ", e);
@@ -279,6 +300,28 @@
 					}
 					break;
 
+				case JOBSTATUS:
+				case JOBCANCEL:
+					if (Utils.isBlank(jobId)) {
+						response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+						jsonObj.put("success", false);
+						jsonObj.put("errors", new JSONArray().put("Missing parameter [jobId]."));
+					} else {
+						RebuildJob job = action == ActionType.JOBCANCEL ?
+								RebuildJobManager.getInstance().cancel(jobId) :
+								RebuildJobManager.getInstance().getJob(jobId);
+						if (job == null) {
+							response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+							jsonObj.put("success", false);
+							jsonObj.put("errors", new JSONArray().put("Job ["+jobId+"] not found."));
+						} else {
+							response.setStatus(HttpServletResponse.SC_OK);
+							jsonObj.put("job", job.toJSON());
+							jsonObj.put("success", true);
+						}
+					}
+					break;
+
 				default:
 					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 					jsonObj.put("success", false);
@@ -33,6 +33,8 @@
 <%@page import="org.json.JSONObject"%>
 <%@page import="au.gov.aims.atlasmapperserver.ConfigManager"%>
 <%@page import="au.gov.aims.atlasmapperserver.ActionType"%>
+<%@page import="au.gov.aims.atlasmapperserver.RebuildJob"%>
+<%@page import="au.gov.aims.atlasmapperserver.RebuildJobManager"%>
 <%@page contentType="application/json" pageEncoding="UTF-8"%>
 <%
 	Logger LOGGER = Logger.getLogger("dataSourcesConfig.jsp");
@@ -45,6 +47,9 @@
 	String redownloadBrokenFilesStr = request.getParameter("redownloadBrokenFiles");
 	String clearCapabilitiesCacheStr = request.getParameter("clearCapCache");
 	String clearMetadataCacheStr = request.getParameter("clearMestCache");
+	// Run the rebuild in a background job and return immediately
+	boolean async = Boolean.parseBoolean(request.getParameter("async"));
+	String jobId = request.getParameter("jobId");
 
 	JSONObject jsonObj = new JSONObject();
 
@@ -217,15 +222,23 @@
 								jsonObj.put("errors", new JSONArray().put("Invalid id."));
 							} else {
 								AbstractDataSourceConfig foundDataSourceConfig = configManager.getDataSourceConfig(id);
-								JSONObject jsonErrors = foundDataSourceConfig.process(redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache);
-								response.setStatus(HttpServletResponse.SC_OK);
-								jsonObj.put("message", "Data source rebuilded");
-								if (jsonErrors != null) {
-									jsonObj.put("errors", jsonErrors.opt("errors"));
-									jsonObj.put("warnings", jsonErrors.opt("warnings"));
-									jsonObj.put("messages", jsonErrors.opt("messages"));
+								if (async) {
+									RebuildJob job = RebuildJobManager.getInstance().submitDataSourceRebuild(foundDataSourceConfig, redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache);
+									response.setStatus(HttpServletResponse.SC_OK);
+									jsonObj.put("message", "Data source rebuild started");
+									jsonObj.put("job", job.toJSON());
+									jsonObj.put("success", true);
+								} else {
+									JSONObject jsonErrors = foundDataSourceConfig.process(redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache);
+									response.setStatus(HttpServletResponse.SC_OK);
+									jsonObj.put("message", "Data source rebuilded");
+									if (jsonErrors != null) {
+										jsonObj.put("errors", jsonErrors.opt("errors"));
+										jsonObj.put("warnings", jsonErrors.opt("warnings"));
+										jsonObj.put("messages", jsonErrors.opt("messages"));
+									}
+									jsonObj.put("success", !jsonObj.has("errors"));
 								}
-								jsonObj.put("success", !jsonObj.has("errors"));
 							}
 						}
 					} catch (Exception e) {
@@ -270,16 +283,24 @@
 							}
 						}
 
-						// TODO
-						JSONObject jsonErrors = AbstractDataSourceConfig.processAll(configManager, redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache);
-						response.setStatus(HttpServletResponse.SC_OK);
-						jsonObj.put("message", "Data source rebuilded");
-						if (jsonErrors != null) {
-							jsonObj.put("errors", jsonErrors.opt("errors"));
-							jsonObj.put("warnings", jsonErrors.opt("warnings"));
-							jsonObj.put("messages", jsonErrors.opt("messages"));
+						if (async) {
+							RebuildJob job = RebuildJobManager.getInstance().submitAllDataSourcesRebuild(configManager, redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache);
+							response.setStatus(HttpServletResponse.SC_OK);
+							jsonObj.put("message", "Data sources rebuild started");
+							jsonObj.put("job", job.toJSON());
+							jsonObj.put("success", true);
+						} else {
+							// TODO
+							JSONObject jsonErrors = AbstractDataSourceConfig.processAll(configManager, redownloadBrokenFiles, clearCapabilitiesCache, clearMetadataCache);
+							response.setStatus(HttpServletResponse.SC_OK);
+							jsonObj.put("message", "Data source rebuilded");
+							if (jsonErrors != null) {
+								jsonObj.put("errors", jsonErrors.opt("errors"));
+								jsonObj.put("warnings", jsonErrors.opt("warnings"));
+								jsonObj.put("messages", jsonErrors.opt("messages"));
+							}
+							jsonObj.put("success", !jsonObj.has("errors"));
 						}
-						jsonObj.put("success", !jsonObj.has("errors"));
 					} catch (Exception e) {
 						LOGGER.log(Level.SEVERE, "An error occurred while rebuilding a data source: {0}", Utils.getExceptionMessage(e));
 						LOGGER.log(Level.WARNING, "Stack trace: ", e);
@@ -289,6 +310,28 @@
 					}
 					break;
 
+				case JOBSTATUS:
+				case JOBCANCEL:
+					if (Utils.isBlank(jobId)) {
+						response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+						jsonObj.put("success", false);
+						jsonObj.put("errors", new JSONArray().put("Missing parameter [jobId]."));
+					} else {
+						RebuildJob job = action == ActionType.JOBCANCEL ?
+								RebuildJobManager.getInstance().cancel(jobId) :
+								RebuildJobManager.getInstance().getJob(jobId);
+						if (job == null) {
+							response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+							jsonObj.put("success", false);
+							jsonObj.put("errors", new JSONArray().put("Job ["+jobId+"] not found."));
+						} else {
+							response.setStatus(HttpServletResponse.SC_OK);
+							jsonObj.put("job", job.toJSON());
+							jsonObj.put("success", true);
+						}
+					}
+					break;
+
 				default:
 					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
 					jsonObj.put("success", false);
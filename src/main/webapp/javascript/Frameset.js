@@ -38,6 +38,8 @@ Ext.define('Frameset', {
 
 	statusBar: null,
 	statusWindow: null,
+	// Delay between the status requests of a background job, in milliseconds
+	jobStatusDelay: 2000,
 
 	initComponent: function() {
 		var contentItems = [];
@@ -363,6 +365,89 @@ Ext.define('Frameset', {
 		});
 	},
 
+	/**
+	 * Send a request which starts a background job (rebuild of data sources, generation of clients),
+	 * then request the status of the job until it's finished, displaying its progress in the
+	 * saving message window. The config is the same as the config of Ext.Ajax.request;
+	 * the success callback receives the result of the job, as if it was the response of the request.
+	 */
+	jobRequest: function(config) {
+		var that = this;
+		var requestConfig = Ext.apply({}, config);
+		requestConfig.params = Ext.apply({'async': true}, config.params);
+		requestConfig.success = function(response) {
+			var responseObj = null;
+			if (response && response.responseText) {
+				try {
+					responseObj = Ext.decode(response.responseText);
+				} catch (err) {}
+			}
+			if (responseObj && responseObj.job) {
+				that.waitForJob(config.url, responseObj.job, config.success, config.failure);
+			} else {
+				config.success(response);
+			}
+		};
+		Ext.Ajax.request(requestConfig);
+	},
+
+	waitForJob: function(url, job, success, failure) {
+		var that = this;
+		var requestStatus = function() {
+			Ext.Ajax.request({
+				url: url,
+				params: {
+					'action': 'JOBSTATUS',
+					'jobId': job.id
+				},
+				success: function(response) {
+					var responseObj = null;
+					if (response && response.responseText) {
+						try {
+							responseObj = Ext.decode(response.responseText);
+						} catch (err) {}
+					}
+					var updatedJob = responseObj ? responseObj.job : null;
+					if (!updatedJob) {
+						failure(response);
+					} else if (updatedJob.state === 'QUEUED' || updatedJob.state === 'RUNNING') {
+						that.setJobProgress(updatedJob);
+						Ext.defer(requestStatus, that.jobStatusDelay);
+					} else {
+						var result = updatedJob.result;
+						if (!result) {
+							result = {
+								success: false,
+								errors: [updatedJob.state === 'CANCELLED' ? 'The job has been cancelled.' : updatedJob.error]
+							};
+						}
+						success({
+							status: response.status,
+							responseText: Ext.encode(result)
+						});
+					}
+				},
+				failure: failure
+			});
+		};
+		requestStatus();
+	},
+
+	setJobProgress: function(job) {
+		if (this.statusWindow && this.statusWindow.isVisible()) {
+			var text = 'Please wait...';
+			if (job.state === 'QUEUED') {
+				text = 'Waiting for other jobs to finish...';
+			} else if (job.progress) {
+				text = 'Please wait...<br/>' +
+					job.progress.layers + ' layer(s), ' +
+					job.progress.metadataRecords + ' metadata record(s), ' +
+					Ext.util.Format.fileSize(job.progress.downloadedBytes) + ' downloaded.';
+			}
+			this.statusWindow.updateText(text);
+		}
+	},
+
 	setSavedMessage: function(msg, delay, windowTitle) {
 		this.beforeShow();
 
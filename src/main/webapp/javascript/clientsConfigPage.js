@@ -1160,8 +1160,8 @@ Ext.define('Writer.ClientConfigGrid', {
 					'Complete regeneration of <i>'+clientName+'</i>...' :
 					'Regenerating <i>'+clientName+'</i> configuration files and index pages...');
 
-		// Request the data and update the window when we receive it
-		Ext.Ajax.request({
+		// The generation is done in a background job; the progress is displayed while waiting.
+		frameset.jobRequest({
 			url: 'clientsConfig.jsp',
 			timeout: timeoutPerClient,
 			params: {
@@ -1281,8 +1281,8 @@ Ext.define('Writer.ClientConfigGrid', {
 					'Regenerating all files of all clients...' :
 					'Regenerating all configuration files...');
 
-		// Request the data and update the window when we receive it
-		Ext.Ajax.request({
+		// The generation is done in a background job; the progress is displayed while waiting.
+		frameset.jobRequest({
 			url: 'clientsConfig.jsp',
 			timeout: timeoutPerClient * nbClients,
 			params: {
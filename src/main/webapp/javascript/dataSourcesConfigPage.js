@@ -346,6 +346,61 @@ Ext.define('Writer.LayerServerConfigForm', {
 			name: 'activeDownload',
 			xtype: 'checkboxfield'
 		}
+		var refreshInterval = {
+			fieldLabel: 'Refresh interval',
+			qtipHtml: 'Number of minutes between the automatic refreshes of the data source. The clients using the data source are regenerated after each refresh. Leave this field blank to only refresh the data source manually.<br/>Example: 1440 for a daily refresh.',
+			name: 'refreshInterval',
+			xtype: 'numberfield',
+			allowDecimals: false,
+			minValue: 1,
+			// Remove spinner buttons, and arrow key and mouse wheel listeners
+			hideTrigger: true,
+			keyNavEnabled: false
+		};
+		var metadataMaxConcurrency = {
+			fieldLabel: 'Metadata download concurrency',
+			qtipHtml: 'Number of metadata documents (TC211) downloaded at the same time while rebuilding the data source. Leave this field blank to use the default value (8). Lower this value if the metadata server can not handle many simultaneous requests.',
+			name: 'metadataMaxConcurrency',
+			xtype: 'numberfield',
+			allowDecimals: false,
+			minValue: 1,
+			// Remove spinner buttons, and arrow key and mouse wheel listeners
+			hideTrigger: true,
+			keyNavEnabled: false
+		};
+		var harvestTimeout = {
+			fieldLabel: 'Harvest time limit',
+			qtipHtml: 'Maximum number of seconds spent rebuilding the data source, metadata included. When the time is over, the documents which are not downloaded yet are taken from the cache, and listed in the warnings of the rebuild. Leave this field blank for no limit.',
+			name: 'harvestTimeout',
+			xtype: 'numberfield',
+			allowDecimals: false,
+			minValue: 1,
+			// Remove spinner buttons, and arrow key and mouse wheel listeners
+			hideTrigger: true,
+			keyNavEnabled: false
+		};
+		var layersHarvestTimeout = {
+			fieldLabel: 'Layers harvest time limit',
+			qtipHtml: 'Maximum number of seconds spent harvesting the layers of the data source, before the harvest of the metadata. When the time is over, the documents which are not downloaded yet are taken from the cache. Leave this field blank for no limit.',
+			name: 'layersHarvestTimeout',
+			xtype: 'numberfield',
+			allowDecimals: false,
+			minValue: 1,
+			// Remove spinner buttons, and arrow key and mouse wheel listeners
+			hideTrigger: true,
+			keyNavEnabled: false
+		};
+		var metadataHarvestTimeout = {
+			fieldLabel: 'Metadata harvest time limit',
+			qtipHtml: 'Maximum number of seconds spent harvesting the metadata documents (TC211) of the layers. When the time is over, the metadata documents which are not downloaded yet are taken from the cache. Leave this field blank for no limit.',
+			name: 'metadataHarvestTimeout',
+			xtype: 'numberfield',
+			allowDecimals: false,
+			minValue: 1,
+			// Remove spinner buttons, and arrow key and mouse wheel listeners
+			hideTrigger: true,
+			keyNavEnabled: false
+		};
 		var showInLegend = {
 			qtipHtml: 'Uncheck this box to disable the legend for all layers provided by this data source. This mean that the layers will not have its legend displayed in the AtlasMapper clients, and they will not have a check box in the layer <em>Options</em> to show its legend.',
 			boxLabel: 'Show layers in legend',
@@ -507,6 +562,11 @@ Ext.define('Writer.LayerServerConfigForm', {
 				advancedItems.push(webCacheSupportedParameters);
 				advancedItems.push(getMapUrl);
 				advancedItems.push(featureRequestsUrl);
+				advancedItems.push(metadataMaxConcurrency);
+				advancedItems.push(harvestTimeout);
+				advancedItems.push(layersHarvestTimeout);
+				advancedItems.push(metadataHarvestTimeout);
+				advancedItems.push(refreshInterval);
 				break;
 
 			case 'NCWMS':
@@ -523,6 +583,11 @@ Ext.define('Writer.LayerServerConfigForm', {
 				//advancedItems.push(extraWmsServiceUrls);
 				advancedItems.push(getMapUrl);
 				advancedItems.push(featureRequestsUrl);
+				advancedItems.push(metadataMaxConcurrency);
+				advancedItems.push(harvestTimeout);
+				advancedItems.push(layersHarvestTimeout);
+				advancedItems.push(metadataHarvestTimeout);
+				advancedItems.push(refreshInterval);
 				break;
 
 			case 'WMTS':
@@ -539,6 +604,11 @@ Ext.define('Writer.LayerServerConfigForm', {
 				//advancedItems.push(extraWmsServiceUrls);
 				advancedItems.push(getMapUrl);
 				advancedItems.push(featureRequestsUrl);
+				advancedItems.push(metadataMaxConcurrency);
+				advancedItems.push(harvestTimeout);
+				advancedItems.push(layersHarvestTimeout);
+				advancedItems.push(metadataHarvestTimeout);
+				advancedItems.push(refreshInterval);
 				break;
 
 			case 'KML':
@@ -546,6 +616,7 @@ Ext.define('Writer.LayerServerConfigForm', {
 				items.push(kmlData);
 
 				advancedItems.push(globalManualOverride);
+				advancedItems.push(refreshInterval);
 				break;
 
 			case 'GOOGLE':
@@ -575,6 +646,9 @@ Ext.define('Writer.LayerServerConfigForm', {
 				advancedItems.push(legendUrl);
 				advancedItems.push(forcePNG24);
 				advancedItems.push(ignoredArcGISPath);
+				advancedItems.push(harvestTimeout);
+				advancedItems.push(layersHarvestTimeout);
+				advancedItems.push(refreshInterval);
 				break;
 
 			case 'XYZ':
@@ -1257,7 +1331,8 @@ Ext.define('Writer.LayerServerConfigGrid', {
 								}
 							}
 
-							Ext.Ajax.request({
+							// The rebuild is done in a background job; the progress is displayed while waiting.
+							frameset.jobRequest({
 								url: 'dataSourcesConfig.jsp',
 								timeout: timeout,
 								params: ajaxParams,
@@ -1600,6 +1675,11 @@ Ext.define('Writer.LayerServerConfig', {
 		'overlayLayers',
 		'globalManualOverride',
 		{name: 'activeDownload', type: 'boolean', defaultValue: false},
+		{name: 'refreshInterval', type: 'int', useNull: true},
+		{name: 'metadataMaxConcurrency', type: 'int', useNull: true},
+		{name: 'harvestTimeout', type: 'int', useNull: true},
+		{name: 'layersHarvestTimeout', type: 'int', useNull: true},
+		{name: 'metadataHarvestTimeout', type: 'int', useNull: true},
 		{name: 'showInLegend', type: 'boolean', defaultValue: false},
 		{name: 'forcePNG24', type: 'boolean', defaultValue: false},
 		'ignoredArcGISPath',
@@ -24,39 +24,62 @@
 
  * This API can be used to execute task on a periodical basis (from the crom for example).
  * NOTE: It can only be called from localhost, to avoid obvious DOS attack.
+ * NOTE: The data sources can also be refreshed periodically by the server itself,
+ *     by setting their "Refresh interval" (see RefreshScheduler).
  *
  * REFRESH
  *     http://localhost:8080/atlasmapper/localhost/api.jsp?action=REFRESH&dataSourceIds=<COMA_SEPARATED_LIST_OF_DATA_SOURCE_ID>&clientIds=<COMA_SEPARATED_LIST_OF_CLIENT_ID>
  *
  *     NOTES:
  *         * Despite the order of the URL parameters, the data sources are always refreshed before the clients.
+ *         * Only the clients having an input (client configuration or data source) which has changed since
+ *             their last generation are regenerated. The enabled clients using the refreshed data sources are
+ *             checked even if they are not listed, so the clients do not need to be listed to be kept up to date.
+ *             Add "force=true" to regenerate the listed clients even if they are up to date.
  *         * Requests to this service may takes some time to response. It's recommended to set a very long timeout
- *             with the client used to do the request.
+ *             with the client used to do the request, or to use "async=true".
  *             Examples (1 hour timeout):
  *                 curl --max-time 3600 "http://localhost:8080/atlasmapper/localhost/api.jsp?action=REFRESH&..."
  *                 wget --timeout=3600 "http://localhost:8080/atlasmapper/localhost/api.jsp?action=REFRESH&..."
  *
  *     Examples:
- *         To refresh the cache for the data sources ID "ea" and "imos":
+ *         To refresh the cache for the data sources ID "ea" and "imos" (and regenerate the clients using them, if they have changed):
  *             http://localhost:8080/atlasmapper/localhost/api.jsp?action=REFRESH&dataSourceIds=ea,imos
  *
- *         To regenerate the clients ID "demo" and "maps":
- *             http://localhost:8080/atlasmapper/localhost/api.jsp?action=REFRESH&clientIds=demo,maps
+ *         To regenerate the clients ID "demo" and "maps", even if they are up to date:
+ *             http://localhost:8080/atlasmapper/localhost/api.jsp?action=REFRESH&clientIds=demo,maps&force=true
  *
  *         To refresh the cache for the data source "ea" and regenerate the client "demo":
  *             http://localhost:8080/atlasmapper/localhost/api.jsp?action=REFRESH&dataSourceIds=ea&clientIds=demo
+ *
+ *         To start the refresh in a background job, and return immediately:
+ *             http://localhost:8080/atlasmapper/localhost/api.jsp?action=REFRESH&dataSourceIds=ea&clientIds=demo&async=true
+ *         The response contains the job, with its ID. See STATUS.
+ *
+ * STATUS
+ *     http://localhost:8080/atlasmapper/localhost/api.jsp?action=STATUS&jobId=<JOB_ID>
+ *
+ *     Return the state of the job (QUEUED, RUNNING, DONE, FAILED or CANCELLED), its progress
+ *     (number of layers harvested, metadata records fetched and bytes downloaded) and,
+ *     once the job is DONE, its result (the response of the synchronous REFRESH).
+ *     The jobs started from the admin pages (rebuild of data sources, generation of clients) can also be requested.
+ *
+ * CANCEL
+ *     http://localhost:8080/atlasmapper/localhost/api.jsp?action=CANCEL&jobId=<JOB_ID>
+ *
+ *     Request the cancellation of the job and return immediately. The job stops before its next download;
+ *     the data sources and clients are not modified by a cancelled job.
 
 NOTE: The strange arrangement of the import is to avoid unnecessary empty lines at the top of the generated file.
 --%><%@
 page import="au.gov.aims.atlasmapperserver.Utils" %><%@
 page import="au.gov.aims.atlasmapperserver.APIActionType"%><%@
-page import="au.gov.aims.atlasmapperserver.dataSourceConfig.AbstractDataSourceConfig" %><%@
 page import="au.gov.aims.atlasmapperserver.ConfigManager" %><%@
 page import="au.gov.aims.atlasmapperserver.ConfigHelper" %><%@
-page import="au.gov.aims.atlasmapperserver.ClientConfig" %><%@
 page import="org.json.JSONObject" %><%@
 page import="org.json.JSONArray" %><%@
-page import="au.gov.aims.atlasmapperserver.Errors" %><%@
+page import="au.gov.aims.atlasmapperserver.RebuildJob" %><%@
+page import="au.gov.aims.atlasmapperserver.RebuildJobManager" %><%@
 page contentType="application/json" pageEncoding="UTF-8"%><%
 
 	ConfigManager configManager = ConfigHelper.getConfigManager(this.getServletConfig().getServletContext());
@@ -64,6 +87,11 @@ page contentType="application/json" pageEncoding="UTF-8"%><%
 	String actionStr = request.getParameter("action");
 	String clientIds = request.getParameter("clientIds");
 	String dataSourceIds = request.getParameter("dataSourceIds");
+	// Run the refresh in a background job and return immediately
+	boolean async = Boolean.parseBoolean(request.getParameter("async"));
+	// Regenerate the listed clients even if they are up to date
+	boolean force = Boolean.parseBoolean(request.getParameter("force"));
+	String jobId = request.getParameter("jobId");
 
 	JSONObject jsonObj = new JSONObject();
 
@@ -80,68 +108,55 @@ page contentType="application/json" pageEncoding="UTF-8"%><%
 		} else {
 			switch(action) {
 				case REFRESH:
-					JSONObject errors = new JSONObject();
-					JSONObject warnings = new JSONObject();
-					JSONObject messages = new JSONObject();
+					String[] dataSourceIdsArray = (dataSourceIds != null && !dataSourceIds.isEmpty()) ? dataSourceIds.split(",") : null;
+					String[] clientIdsArray = (clientIds != null && !clientIds.isEmpty()) ? clientIds.split(",") : null;
 
-					// Refresh data sources cache first
-					if (dataSourceIds != null && !dataSourceIds.isEmpty()) {
-						String[] dataSourceIdsArray = dataSourceIds.split(",");
-						for (String dataSourceId : dataSourceIdsArray) {
-							AbstractDataSourceConfig dataSource = configManager.getDataSourceConfig(dataSourceId);
-							if (dataSource == null) {
-								// Invalid data source ID
-								JSONArray jsonError = new JSONArray();
-								jsonError.put("Invalid data source ID: ["+dataSourceId+"]");
-								errors.put(dataSourceId, jsonError);
-							} else {
-								// Refresh cache and merging error messages
-								JSONObject jsonErrors = dataSource.process(
-										true, // redownloadBrokenFiles
-										true, // clearCapabilitiesCache
-										false // clearMetadataCache
-								);
-								errors.put(dataSourceId, jsonErrors.opt("errors"));
-								warnings.put(dataSourceId, jsonErrors.opt("warnings"));
-								messages.put(dataSourceId, jsonErrors.opt("messages"));
-							}
-						}
-					}
+					if (async) {
+						RebuildJob job = RebuildJobManager.getInstance().submitRefresh(configManager, dataSourceIdsArray, clientIdsArray, force);
+						response.setStatus(HttpServletResponse.SC_OK);
+						jsonObj.put("message", "Refresh started");
+						jsonObj.put("job", job.toJSON());
+						jsonObj.put("success", true);
+					} else {
+						// Refresh data sources cache first, then regenerate the outdated clients
+						JSONObject jsonErrors = configManager.refresh(dataSourceIdsArray, clientIdsArray, force);
 
-					// Refresh (regenerate) clients
-					if (clientIds != null && !clientIds.isEmpty()) {
-						String[] clientIdsArray = clientIds.split(",");
-						for (String clientId : clientIdsArray) {
-							ClientConfig client = configManager.getClientConfig(clientId);
-							if (client == null) {
-								// Invalid client ID
-								JSONArray jsonError = new JSONArray();
-								jsonError.put("Invalid client ID: ["+clientId+"]");
-								errors.put(clientId, jsonError);
-							} else {
-								// Regenerate client and merging error messages
-								Errors errorsObj = client.process(false);
-								JSONObject jsonErrors = errorsObj.toJSON();
-								errors.put(clientId, jsonErrors.opt("errors"));
-								warnings.put(clientId, jsonErrors.opt("warnings"));
-								messages.put(clientId, jsonErrors.opt("messages"));
-							}
+						response.setStatus(HttpServletResponse.SC_OK);
+						jsonObj.put("message", "Config Generated");
+						if (jsonErrors.has("errors")) {
+							jsonObj.put("errors", jsonErrors.opt("errors"));
+						}
+						if (jsonErrors.has("warnings")) {
+							jsonObj.put("warnings", jsonErrors.opt("warnings"));
 						}
+						if (jsonErrors.has("messages")) {
+							jsonObj.put("messages", jsonErrors.opt("messages"));
+						}
+						jsonObj.put("success", !jsonObj.has("errors"));
 					}
 
-					response.setStatus(HttpServletResponse.SC_OK);
-					jsonObj.put("message", "Config Generated");
-					if (errors != null && errors.length() > 0) {
-						jsonObj.put("errors", errors);
-					}
-					if (warnings != null && warnings.length() > 0) {
-						jsonObj.put("warnings", warnings);
-					}
-					if (messages != null && messages.length() > 0) {
-						jsonObj.put("messages", messages);
-					}
-					jsonObj.put("success", !jsonObj.has("errors"));
+					break;
 
+				case STATUS:
+				case CANCEL:
+					if (Utils.isBlank(jobId)) {
+						response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+						jsonObj.put("success", false);
+						jsonObj.put("errors", new JSONArray().put("Missing parameter [jobId]."));
+					} else {
+						RebuildJob job = action == APIActionType.CANCEL ?
+								RebuildJobManager.getInstance().cancel(jobId) :
+								RebuildJobManager.getInstance().getJob(jobId);
+						if (job == null) {
+							response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+							jsonObj.put("success", false);
+							jsonObj.put("errors", new JSONArray().put("Job [" + jobId + "] not found."));
+						} else {
+							response.setStatus(HttpServletResponse.SC_OK);
+							jsonObj.put("job", job.toJSON());
+							jsonObj.put("success", true);
+						}
+					}
 					break;
 
 				default:
@@ -0,0 +1,111 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class ParsedDocumentCacheTest extends TestCase {
+
+	public void testGetPut() throws IOException {
+		File file = createFile(100);
+		try {
+			ParsedDocumentCache cache = new ParsedDocumentCache(1000);
+			String document = "Parsed document";
+
+			assertNull(cache.get(String.class, file, "http://www.url.com/"));
+			cache.put(String.class, file, "http://www.url.com/", document);
+
+			assertSame(document, cache.get(String.class, file, "http://www.url.com/"));
+			assertEquals(100, cache.getWeight());
+
+			// Same file, other location or other kind of document
+			assertNull(cache.get(String.class, file, "http://www.other.com/"));
+			assertNull(cache.get(StringBuilder.class, file, "http://www.url.com/"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testModifiedFile() throws IOException {
+		File file = createFile(100);
+		try {
+			ParsedDocumentCache cache = new ParsedDocumentCache(1000);
+			cache.put(String.class, file, null, "Parsed document");
+
+			writeFile(file, 200);
+			assertNull(cache.get(String.class, file, null));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testEviction() throws IOException {
+		File file1 = createFile(400);
+		File file2 = createFile(400);
+		File file3 = createFile(400);
+		File bigFile = createFile(2000);
+		try {
+			ParsedDocumentCache cache = new ParsedDocumentCache(1000);
+			cache.put(String.class, file1, null, "Document 1");
+			cache.put(String.class, file2, null, "Document 2");
+
+			// Access the first document, the second one is now the least recently used
+			assertNotNull(cache.get(String.class, file1, null));
+
+			cache.put(String.class, file3, null, "Document 3");
+			assertEquals(2, cache.size());
+			assertEquals(800, cache.getWeight());
+			assertNotNull(cache.get(String.class, file1, null));
+			assertNull(cache.get(String.class, file2, null));
+			assertNotNull(cache.get(String.class, file3, null));
+
+			// Too big to be cached
+			cache.put(String.class, bigFile, null, "Big document");
+			assertNull(cache.get(String.class, bigFile, null));
+			assertEquals(2, cache.size());
+		} finally {
+			file1.delete();
+			file2.delete();
+			file3.delete();
+			bigFile.delete();
+		}
+	}
+
+	private static File createFile(int size) throws IOException {
+		File file = File.createTempFile("parsedDocumentCacheTest_", ".bin");
+		writeFile(file, size);
+		return file;
+	}
+
+	private static void writeFile(File file, int size) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[size]);
+		} finally {
+			out.close();
+		}
+	}
+}
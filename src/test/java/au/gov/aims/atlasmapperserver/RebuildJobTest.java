@@ -0,0 +1,99 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RebuildJobTest extends TestCase {
+
+	public void testProgressAndResult() throws Exception {
+		RebuildJob job = new RebuildJob("test:progress", "Test") {
+			@Override
+			protected JSONObject execute() throws Exception {
+				RebuildJob.addLayers(3);
+				RebuildJob.addMetadataRecord();
+				RebuildJob.addDownloadedBytes(1024);
+				return new JSONObject().put("success", true);
+			}
+		};
+		assertEquals(RebuildJob.State.QUEUED, job.getState());
+
+		job.run();
+
+		assertEquals(RebuildJob.State.DONE, job.getState());
+		JSONObject jsonJob = job.toJSON();
+		JSONObject progress = jsonJob.getJSONObject("progress");
+		assertEquals(3, progress.getInt("layers"));
+		assertEquals(1, progress.getInt("metadataRecords"));
+		assertEquals(1024, progress.getLong("downloadedBytes"));
+		assertTrue(jsonJob.getJSONObject("result").getBoolean("success"));
+
+		// The progress of the code running outside a job is ignored
+		assertNull(RebuildJob.getCurrentJob());
+		RebuildJob.addLayers(3);
+		RebuildJob.checkCancelled();
+	}
+
+	public void testCancel() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		final boolean[] saved = { false };
+
+		RebuildJob job = RebuildJobManager.getInstance().submit(new RebuildJob("test:cancel", "Test") {
+			@Override
+			protected JSONObject execute() throws Exception {
+				started.countDown();
+				cancelled.await();
+				RebuildJob.checkCancelled();
+				saved[0] = true;
+				return new JSONObject();
+			}
+		});
+
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertEquals(RebuildJob.State.RUNNING, job.getState());
+
+		// A job already running for the same key is returned instead of starting a new one
+		RebuildJob duplicateJob = RebuildJobManager.getInstance().submit(new RebuildJob("test:cancel", "Test") {
+			@Override
+			protected JSONObject execute() throws Exception {
+				return new JSONObject();
+			}
+		});
+		assertSame(job, duplicateJob);
+
+		assertSame(job, RebuildJobManager.getInstance().cancel(job.getId()));
+		cancelled.countDown();
+
+		long timeout = System.currentTimeMillis() + 10000;
+		while (!job.isFinished() && System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+		}
+		assertEquals(RebuildJob.State.CANCELLED, job.getState());
+		assertFalse(saved[0]);
+		assertNull(RebuildJobManager.getInstance().getJob("unknown"));
+	}
+}
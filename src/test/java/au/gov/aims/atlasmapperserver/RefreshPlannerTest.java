@@ -0,0 +1,107 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import au.gov.aims.atlasmapperserver.dataSourceConfig.XYZDataSourceConfig;
+import au.gov.aims.atlasmapperserver.jsonWrappers.client.DataSourceWrapper;
+import au.gov.aims.atlasmapperserver.servlet.FileFinder;
+import junit.framework.TestCase;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.List;
+
+public class RefreshPlannerTest extends TestCase {
+
+	/**
+	 * The errors and warnings of a data source often contain times, like the time until which
+	 * the requests to a server are skipped. A rebuild which only changes those messages
+	 * must not outdate the clients.
+	 */
+	public void testErrorsDoNotOutdateClients() throws Exception {
+		ConfigManager configManager = new ConfigManager(null, null);
+		configManager.setApplicationFolder(new File(System.getProperty("java.io.tmpdir"), "atlasmapper-test-refreshPlanner"));
+		File applicationFolder = configManager.getApplicationFolder();
+
+		XYZDataSourceConfig dataSource = new XYZDataSourceConfig(configManager);
+		dataSource.setDataSourceId("ea");
+		dataSource.setDataSourceName("e-Atlas");
+		dataSource.setLayerType("XYZ");
+		dataSource.deleteCachedState();
+
+		ClientConfig clientConfig = new ClientConfig(configManager);
+		clientConfig.setClientId("refreshPlanner");
+		clientConfig.setDataSources(new JSONArray().put("ea"));
+		FileFinder.getClientGenerationStateFile(applicationFolder, "refreshPlanner").delete();
+
+		RefreshPlanner refreshPlanner = new RefreshPlanner(configManager);
+
+		// 1st harvest, with an error and a warning
+		DataSourceWrapper layerCatalog = createLayerCatalog("Reefs");
+		layerCatalog.addError("The server is not responding. Its requests are skipped until 10:00:00");
+		layerCatalog.addWarning("The harvest is out of time (started at 09:00:00)");
+		layerCatalog.addMessage("Rebuild time: 12 sec");
+		String stateHash = dataSource.save(layerCatalog);
+		assertNotNull(stateHash);
+
+		// Generation of the client
+		FileFinder.getAtlasMapperClientConfigFolder(applicationFolder, clientConfig, true);
+		JSONObject inputs = refreshPlanner.getClientInputs(clientConfig);
+		assertEquals(stateHash, inputs.getJSONObject("dataSources").getString("ea"));
+		refreshPlanner.saveGenerationInputs(clientConfig, inputs);
+		assertEquals(0, refreshPlanner.getOutdatedReasons(clientConfig).size());
+		assertEquals(stateHash, refreshPlanner.getGeneratedStateHash(clientConfig, "ea"));
+
+		// 2nd harvest, same layers with different errors, warnings and messages
+		layerCatalog = createLayerCatalog("Reefs");
+		layerCatalog.addError("The server is not responding. Its requests are skipped until 11:00:00");
+		layerCatalog.addWarning("The harvest is out of time (started at 10:00:00)");
+		layerCatalog.addWarning("An other warning");
+		layerCatalog.addMessage("Rebuild time: 13 sec");
+		assertEquals(stateHash, dataSource.save(layerCatalog));
+		assertEquals(0, refreshPlanner.getOutdatedReasons(clientConfig).size());
+
+		// The saved state still has the messages
+		DataSourceWrapper savedState = XYZDataSourceConfig.load(applicationFolder, "ea");
+		assertEquals(1, savedState.getErrors().length());
+		assertEquals(2, savedState.getWarnings().length());
+
+		// 3rd harvest, without errors
+		assertEquals(stateHash, dataSource.save(createLayerCatalog("Reefs")));
+		assertEquals(0, refreshPlanner.getOutdatedReasons(clientConfig).size());
+
+		// 4th harvest, a layer has changed
+		String newStateHash = dataSource.save(createLayerCatalog("Coral reefs"));
+		assertFalse(stateHash.equals(newStateHash));
+		List<String> reasons = refreshPlanner.getOutdatedReasons(clientConfig);
+		assertEquals(1, reasons.size());
+		assertEquals("The data source [ea] has changed.", reasons.get(0));
+	}
+
+	private static DataSourceWrapper createLayerCatalog(String title) throws Exception {
+		DataSourceWrapper layerCatalog = new DataSourceWrapper();
+		layerCatalog.setLayers(new JSONObject()
+				.put("reefs", new JSONObject().put("title", title)));
+		return layerCatalog;
+	}
+}
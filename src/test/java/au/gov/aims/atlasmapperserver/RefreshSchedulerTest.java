@@ -0,0 +1,162 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import au.gov.aims.atlasmapperserver.servlet.FileFinder;
+import junit.framework.TestCase;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RefreshSchedulerTest extends TestCase {
+	private static final long INTERVAL_MS = 60 * URLCache.NB_MS_PER_MINUTE;
+	private static final long MAX_JITTER_MS = (long)(INTERVAL_MS * RefreshScheduler.JITTER_RATIO);
+
+	// Epoch time of the last harvest of the "hourly" data source, rounded to the second for the file systems
+	private static final long LAST_HARVEST_TIME = 1350000000000L;
+
+	public void testJitter() throws Exception {
+		RefreshScheduler scheduler = new RefreshScheduler(createConfigManager());
+
+		long minDelay = Long.MAX_VALUE, maxDelay = Long.MIN_VALUE;
+		for (int i=0; i<1000; i++) {
+			long delay = scheduler.getDelay(60);
+			assertTrue(delay >= INTERVAL_MS);
+			assertTrue(delay <= INTERVAL_MS + MAX_JITTER_MS);
+			minDelay = Math.min(minDelay, delay);
+			maxDelay = Math.max(maxDelay, delay);
+		}
+
+		// The data sources having the same interval are not all refreshed at the same time
+		assertTrue(maxDelay - minDelay > MAX_JITTER_MS / 2);
+	}
+
+	public void testDueTime() throws Exception {
+		final List<String> queuedRefreshes = new ArrayList<String>();
+		RefreshScheduler scheduler = new RefreshScheduler(createConfigManager()) {
+			@Override
+			void queueRefresh(String dataSourceId) {
+				queuedRefreshes.add(dataSourceId);
+			}
+		};
+
+		// The next refresh is calculated from the last harvest. The data source which has never been harvested is due.
+		scheduler.check(LAST_HARVEST_TIME);
+		assertEquals(1, queuedRefreshes.size());
+		assertEquals("new", queuedRefreshes.get(0));
+		queuedRefreshes.clear();
+
+		Long nextRefreshTime = scheduler.getNextRefreshTime("hourly");
+		assertNotNull(nextRefreshTime);
+		assertTrue(nextRefreshTime >= LAST_HARVEST_TIME + INTERVAL_MS);
+		assertTrue(nextRefreshTime <= LAST_HARVEST_TIME + INTERVAL_MS + MAX_JITTER_MS);
+
+		// The data sources without refresh interval are never scheduled
+		assertNull(scheduler.getNextRefreshTime("noInterval"));
+		assertNull(scheduler.getNextRefreshTime("zeroInterval"));
+
+		// Not due yet
+		scheduler.check(nextRefreshTime - 1);
+		assertTrue(queuedRefreshes.isEmpty());
+		assertEquals(nextRefreshTime, scheduler.getNextRefreshTime("hourly"));
+
+		// Due
+		scheduler.check(nextRefreshTime);
+		assertEquals(1, queuedRefreshes.size());
+		assertEquals("hourly", queuedRefreshes.get(0));
+		queuedRefreshes.clear();
+
+		// The next refresh is calculated from the time of the check
+		long newNextRefreshTime = scheduler.getNextRefreshTime("hourly");
+		assertTrue(newNextRefreshTime >= nextRefreshTime + INTERVAL_MS);
+		assertTrue(newNextRefreshTime <= nextRefreshTime + INTERVAL_MS + MAX_JITTER_MS);
+
+		// Due again, but the data sources are not queued twice while their refresh is running
+		long later = newNextRefreshTime + INTERVAL_MS + MAX_JITTER_MS;
+		scheduler.check(later);
+		assertTrue(queuedRefreshes.isEmpty());
+
+		scheduler.refreshDone("hourly");
+		scheduler.refreshDone("new");
+		scheduler.check(later);
+		assertEquals(2, queuedRefreshes.size());
+		assertTrue(queuedRefreshes.contains("hourly"));
+		assertTrue(queuedRefreshes.contains("new"));
+	}
+
+	/**
+	 * Data sources:
+	 *     hourly: refreshed every hour
+	 *     new: refreshed every hour, never harvested
+	 *     noInterval: never refreshed
+	 *     zeroInterval: never refreshed
+	 */
+	private static ConfigManager createConfigManager() throws Exception {
+		File applicationFolder = new File(System.getProperty("java.io.tmpdir"), "atlasmapper-test-refreshScheduler");
+		applicationFolder.mkdirs();
+		File serverConfigFile = new File(applicationFolder, "server.conf");
+		JSONArray dataSources = new JSONArray()
+				.put(createDataSourceJSON(1, "hourly", 60))
+				.put(createDataSourceJSON(2, "new", 60))
+				.put(createDataSourceJSON(3, "noInterval", null))
+				.put(createDataSourceJSON(4, "zeroInterval", 0));
+		Writer writer = new FileWriter(serverConfigFile);
+		try {
+			writer.write(new JSONObject().put("version", 1.0).put("dataSources", dataSources).toString());
+		} finally {
+			writer.close();
+		}
+
+		ConfigManager configManager = new ConfigManager(serverConfigFile, null);
+		configManager.setApplicationFolder(applicationFolder);
+
+		File hourlyCatalogFile = FileFinder.getDataSourcesCatalogFile(applicationFolder, "hourly");
+		hourlyCatalogFile.getParentFile().mkdirs();
+		writer = new FileWriter(hourlyCatalogFile);
+		try {
+			writer.write("{}");
+		} finally {
+			writer.close();
+		}
+		assertTrue(hourlyCatalogFile.setLastModified(LAST_HARVEST_TIME));
+		FileFinder.getDataSourcesCatalogFile(applicationFolder, "new").delete();
+
+		return configManager;
+	}
+
+	private static JSONObject createDataSourceJSON(int id, String dataSourceId, Integer refreshInterval) throws Exception {
+		JSONObject dataSource = new JSONObject()
+				.put("id", id)
+				.put("dataSourceId", dataSourceId)
+				.put("dataSourceName", dataSourceId)
+				.put("layerType", "XYZ");
+		if (refreshInterval != null) {
+			dataSource.put("refreshInterval", refreshInterval);
+		}
+		return dataSource;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest extends TestCase {
+
+	public void testConcurrentFlights() throws Exception {
+		final SingleFlight singleFlight = new SingleFlight();
+		final AtomicInteger workCount = new AtomicInteger(0);
+		final AtomicInteger waitCount = new AtomicInteger(0);
+		final CountDownLatch leaderStarted = new CountDownLatch(1);
+		final CountDownLatch releaseLeader = new CountDownLatch(1);
+		// The failures of the threads; they are reported by the test thread
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+		Thread leader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					SingleFlight.Flight flight = singleFlight.join("url");
+					try {
+						assertTrue(flight.isLeader());
+						workCount.incrementAndGet();
+						leaderStarted.countDown();
+						assertTrue(releaseLeader.await(10, TimeUnit.SECONDS));
+					} finally {
+						flight.end();
+					}
+				} catch (Throwable ex) {
+					errors.add(ex);
+				}
+			}
+		};
+		leader.start();
+		assertTrue(leaderStarted.await(10, TimeUnit.SECONDS));
+
+		final CountDownLatch followersStarted = new CountDownLatch(5);
+		Thread[] followers = new Thread[5];
+		for (int i=0; i<followers.length; i++) {
+			followers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						followersStarted.countDown();
+						SingleFlight.Flight flight = singleFlight.join("url");
+						try {
+							if (flight.isLeader()) {
+								workCount.incrementAndGet();
+							} else {
+								waitCount.incrementAndGet();
+							}
+						} finally {
+							flight.end();
+						}
+					} catch (Throwable ex) {
+						errors.add(ex);
+					}
+				}
+			};
+			followers[i].start();
+		}
+
+		// The followers are waiting for the leader
+		assertTrue(followersStarted.await(10, TimeUnit.SECONDS));
+		for (Thread follower : followers) {
+			awaitWaiting(follower);
+		}
+		assertEquals(0, waitCount.get());
+
+		releaseLeader.countDown();
+		leader.join(10000);
+		assertFalse(leader.isAlive());
+		for (Thread follower : followers) {
+			follower.join(10000);
+			assertFalse(follower.isAlive());
+		}
+		if (!errors.isEmpty()) {
+			AssertionFailedError failure = new AssertionFailedError(errors.size() + " thread(s) failed: " + errors.get(0));
+			failure.initCause(errors.get(0));
+			throw failure;
+		}
+
+		assertEquals(1, workCount.get());
+		assertEquals(followers.length, waitCount.get());
+
+		// The flight has ended; the next one has a new leader
+		SingleFlight.Flight flight = singleFlight.join("url");
+		try {
+			assertTrue(flight.isLeader());
+		} finally {
+			flight.end();
+		}
+	}
+
+	public void testReentrantFlight() throws Exception {
+		SingleFlight singleFlight = new SingleFlight();
+		SingleFlight.Flight flight = singleFlight.join("url");
+		try {
+			assertTrue(flight.isLeader());
+
+			// Must not wait for itself
+			SingleFlight.Flight innerFlight = singleFlight.join("url");
+			try {
+				assertFalse(innerFlight.isLeader());
+			} finally {
+				innerFlight.end();
+			}
+		} finally {
+			flight.end();
+		}
+	}
+
+	/**
+	 * Wait for the thread to be blocked, waiting for an other thread.
+	 */
+	private static void awaitWaiting(Thread thread) {
+		long timeout = System.currentTimeMillis() + 10000;
+		while (thread.getState() != Thread.State.WAITING) {
+			assertTrue(thread.getName() + " is not waiting", thread.isAlive() && System.currentTimeMillis() < timeout);
+			Thread.yield();
+		}
+	}
+}
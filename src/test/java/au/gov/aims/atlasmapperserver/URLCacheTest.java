@@ -103,12 +103,20 @@
  */
 package au.gov.aims.atlasmapperserver;
 
+import au.gov.aims.atlasmapperserver.dataSourceConfig.HarvestDeadline;
+import au.gov.aims.atlasmapperserver.dataSourceConfig.HarvestDeadlineException;
 import au.gov.aims.atlasmapperserver.dataSourceConfig.WMSDataSourceConfig;
+import au.gov.aims.atlasmapperserver.servlet.FileFinder;
 import au.gov.aims.atlasmapperserver.xml.TC211.TC211Document;
 import au.gov.aims.atlasmapperserver.xml.TC211.TC211Parser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.AssertionFailedError;
 import junit.framework.TestCase;
 import org.geotools.data.ows.WMSCapabilities;
 import org.geotools.xml.handlers.SimpleElementHandler;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.xml.sax.SAXException;
@@ -117,17 +125,23 @@ import javax.xml.parsers.ParserConfigurationException;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.URLDecoder;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 // TODO UPDATE TESTS - THE CACHE LOGIC HAS CHANGED - NOW ENTIRELY MANAGED BY THE USER, NO MORE TIMEOUT
 public class URLCacheTest extends TestCase {
@@ -443,8 +457,8 @@ public class URLCacheTest extends TestCase {
 			// Re-request the file - the timeout has expired, it must re-download the file
 			File file2 = URLCache.getURLFile(configManager, null, urlStr, URLCache.Category.CAPABILITIES_DOCUMENT, false);
 
-			// Ensure the returned file is NOT the cached file
-			assertFalse(file1.equals(file2));
+			// The content did not change; identical files are only stored once
+			assertEquals(file1, file2);
 
 			// Validate the downloaded info
 			String content = readFile(file2);
@@ -470,7 +484,7 @@ public class URLCacheTest extends TestCase {
 			assertNull(cachedFile.getLatestErrorMessage());
 			assertTrue(cachedFile.isApproved());
 
-			assertFalse(file1.exists());
+			assertTrue(file1.exists());
 			assertTrue(file2.exists());
 			assertEquals(1, URLCache.countFile(getTestApplicationFolder()));
 
@@ -505,8 +519,8 @@ public class URLCacheTest extends TestCase {
 			// Re-request the file - the timeout has expired, it must re-download the file
 			File file2 = URLCache.getURLFile(configManager, null, urlStr, URLCache.Category.CAPABILITIES_DOCUMENT, false);
 
-			// Ensure the returned file is NOT the cached file
-			assertFalse(file1.equals(file2));
+			// The content did not change; identical files are only stored once
+			assertEquals(file1, file2);
 
 			// Validate the downloaded info
 			String content = readFile(file2);
@@ -535,8 +549,9 @@ public class URLCacheTest extends TestCase {
 			assertNotNull(cachedFile.getLatestErrorMessage());
 			assertTrue(cachedFile.isApproved());
 
+			// file2 is file1, which is approved; it's not deleted
 			assertTrue(file1.exists());
-			assertFalse(file2.exists());
+			assertTrue(file2.exists());
 			assertTrue(file3.exists());
 			assertEquals(1, URLCache.countFile(getTestApplicationFolder()));
 
@@ -569,7 +584,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// The URL will always succeed. We need to change the URL in order to make the 2nd request fail.
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(invalidUrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(invalidUrlStr, cachedFile.copy());
 
 
 			// Re-request the file - the timeout has expired, it must re-download the file
@@ -629,7 +644,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// The URL will always succeed. We need to change the URL in order to make the 2nd request fail.
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(invalidUrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(invalidUrlStr, cachedFile.copy());
 
 
 			// Re-request the file - the timeout has expired, it must re-download the file
@@ -940,7 +955,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// The URL will always succeed. We need to change the URL in order to make the 2nd request fail.
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(invalidUrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(invalidUrlStr, cachedFile.copy());
 
 
 			// Re-request the file - the timeout has expired, it must re-download the file
@@ -1006,7 +1021,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// The URL will always succeed. We need to change the URL in order to make the 2nd request fail.
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(invalidUrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(invalidUrlStr, cachedFile.copy());
 
 
 			// Re-request the file - the timeout has expired, it must re-download the file
@@ -1198,7 +1213,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// The URL will always fail. We need to change the URL in order to make the 2nd request succeed.
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(validUrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(validUrlStr, cachedFile.copy());
 
 
 			// Re-request the file - the timeout has expired, it must re-download the file
@@ -1268,7 +1283,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// The URL will always fail. We need to change the URL in order to make the 2nd request succeed.
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(validUrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(validUrlStr, cachedFile.copy());
 
 
 			// Re-request the file - the timeout has expired, it must re-download the file
@@ -1489,7 +1504,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// Change URL - duplicate the cache info to the valid URL
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(capUrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(capUrlStr, cachedFile.copy());
 
 
 			// Download the file for the 1st time
@@ -1545,7 +1560,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// Change URL - duplicate the cache info to the valid URL
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(hundredMbUrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(hundredMbUrlStr, cachedFile.copy());
 
 
 			// The file is too big, auto-rollback, return previous file.
@@ -1600,9 +1615,9 @@ public class URLCacheTest extends TestCase {
 			assertNotNull(newCapFile);
 			assertNotNull(newCap);
 
-			assertFalse(capFile.equals(newCapFile));
+			// The content did not change; identical files are only stored once
+			assertEquals(capFile, newCapFile);
 
-			assertFalse(capFile.exists());
 			assertTrue(newCapFile.exists());
 			assertEquals(1, URLCache.countFile(getTestApplicationFolder()));
 
@@ -1635,7 +1650,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// Change URL - duplicate the cache info to the valid URL
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(capUrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(capUrlStr, cachedFile.copy());
 
 
 			// Download the file for the 2nd time (not broken this time)
@@ -1680,7 +1695,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// Change URL - duplicate the cache info to the valid URL
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(brokenCapUrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(brokenCapUrlStr, cachedFile.copy());
 
 
 			// Download the file for the 2nd time
@@ -1726,7 +1741,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// Change URL - duplicate the cache info to the valid URL
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(xmlTC211UrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(xmlTC211UrlStr, cachedFile.copy());
 
 
 			// Download the file for the 2nd time (not broken this time)
@@ -1770,7 +1785,7 @@ public class URLCacheTest extends TestCase {
 			assertEquals(0, cachedFile.getExpiry());
 
 			// Change URL - duplicate the cache info to the valid URL
-			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(htmlTC211UrlStr, cachedFile.toJSON());
+			URLCache.getDiskCacheMap(getTestApplicationFolder()).put(htmlTC211UrlStr, cachedFile.copy());
 
 
 			TC211Document previousTC211Document = TC211Parser.parseURL(configManager, null, new URL(htmlTC211UrlStr), false, true);
@@ -1931,7 +1946,7 @@ public class URLCacheTest extends TestCase {
 			URLCache.deleteCache(configManager, false);
 			URLCache.saveDiskCacheMap(configManager.getApplicationFolder());
 
-			JSONObject cache;
+			URLCacheCatalog cache;
 			URLCache.CachedFile entry;
 
 			List<URLCache.Category> categories = new ArrayList<URLCache.Category>();
@@ -1961,7 +1976,7 @@ public class URLCacheTest extends TestCase {
 
 			// Ensure the cache is empty at this point
 			cache = URLCache.getDiskCacheMap(configManager.getApplicationFolder());
-			assertEquals(cache.length(), 0);
+			assertEquals(cache.size(), 0);
 
 			// Create some entries in the cache
 			Date startDate1 = new Date();
@@ -1972,17 +1987,17 @@ public class URLCacheTest extends TestCase {
 
 			// Ensure that the cache now contains the 3 elements
 			cache = URLCache.getDiskCacheMap(configManager.getApplicationFolder());
-			assertEquals(cache.length(), 3);
+			assertEquals(cache.size(), 3);
 
-			entry = new URLCache.CachedFile(otherCapabilitiesDoc, cache.optJSONObject(otherCapDocUrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherCapDocUrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 
-			entry = new URLCache.CachedFile(otherMestRecord1, cache.optJSONObject(otherMestRecord1UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherMestRecord1UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 
-			entry = new URLCache.CachedFile(otherMestRecord2, cache.optJSONObject(otherMestRecord2UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherMestRecord2UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 
@@ -2000,36 +2015,36 @@ public class URLCacheTest extends TestCase {
 
 			// Verify that all entries are in the cache
 			cache = URLCache.getDiskCacheMap(configManager.getApplicationFolder());
-			assertEquals(cache.length(), 7);
+			assertEquals(cache.size(), 7);
 
-			entry = new URLCache.CachedFile(otherCapabilitiesDoc, cache.optJSONObject(otherCapDocUrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherCapDocUrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 			assertTrue(entry.getLastAccessDate().getTime() < startDate2.getTime());
 
-			entry = new URLCache.CachedFile(otherMestRecord1, cache.optJSONObject(otherMestRecord1UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherMestRecord1UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 			assertTrue(entry.getLastAccessDate().getTime() < startDate2.getTime());
 
-			entry = new URLCache.CachedFile(otherMestRecord2, cache.optJSONObject(otherMestRecord2UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherMestRecord2UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 			assertTrue(entry.getLastAccessDate().getTime() < startDate2.getTime());
 
-			entry = new URLCache.CachedFile(oldCapabilitiesDoc, cache.optJSONObject(oldCapDocUrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), oldCapDocUrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate2.getTime());
 
-			entry = new URLCache.CachedFile(capabilitiesDoc, cache.optJSONObject(capDocUrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), capDocUrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate2.getTime());
 
-			entry = new URLCache.CachedFile(mestRecord1, cache.optJSONObject(mestRecord1UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), mestRecord1UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate2.getTime());
 
-			entry = new URLCache.CachedFile(mestRecord2, cache.optJSONObject(mestRecord2UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), mestRecord2UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate2.getTime());
 
@@ -2040,36 +2055,36 @@ public class URLCacheTest extends TestCase {
 
 			// Verify that all entries are still in the cache
 			cache = URLCache.getDiskCacheMap(configManager.getApplicationFolder());
-			assertEquals(cache.length(), 7);
+			assertEquals(cache.size(), 7);
 
-			entry = new URLCache.CachedFile(otherCapabilitiesDoc, cache.optJSONObject(otherCapDocUrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherCapDocUrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 			assertTrue(entry.getLastAccessDate().getTime() < startDate2.getTime());
 
-			entry = new URLCache.CachedFile(otherMestRecord1, cache.optJSONObject(otherMestRecord1UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherMestRecord1UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 			assertTrue(entry.getLastAccessDate().getTime() < startDate2.getTime());
 
-			entry = new URLCache.CachedFile(otherMestRecord2, cache.optJSONObject(otherMestRecord2UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherMestRecord2UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 			assertTrue(entry.getLastAccessDate().getTime() < startDate2.getTime());
 
-			entry = new URLCache.CachedFile(oldCapabilitiesDoc, cache.optJSONObject(oldCapDocUrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), oldCapDocUrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate2.getTime());
 
-			entry = new URLCache.CachedFile(capabilitiesDoc, cache.optJSONObject(capDocUrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), capDocUrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate2.getTime());
 
-			entry = new URLCache.CachedFile(mestRecord1, cache.optJSONObject(mestRecord1UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), mestRecord1UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate2.getTime());
 
-			entry = new URLCache.CachedFile(mestRecord2, cache.optJSONObject(mestRecord2UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), mestRecord2UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate2.getTime());
 
@@ -2093,45 +2108,856 @@ public class URLCacheTest extends TestCase {
 
 			// Verify that old entries still in used are still there, new entry as been added and old entry has been deleted.
 			cache = URLCache.getDiskCacheMap(configManager.getApplicationFolder());
-			assertEquals(cache.length(), 7);
+			assertEquals(cache.size(), 7);
 
-			entry = new URLCache.CachedFile(otherCapabilitiesDoc, cache.optJSONObject(otherCapDocUrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherCapDocUrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 			assertTrue(entry.getLastAccessDate().getTime() < startDate2.getTime());
 
-			entry = new URLCache.CachedFile(otherMestRecord1, cache.optJSONObject(otherMestRecord1UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherMestRecord1UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 			assertTrue(entry.getLastAccessDate().getTime() < startDate2.getTime());
 
-			entry = new URLCache.CachedFile(otherMestRecord2, cache.optJSONObject(otherMestRecord2UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), otherMestRecord2UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate1.getTime());
 			assertTrue(entry.getLastAccessDate().getTime() < startDate2.getTime());
 
-			assertNull(cache.optJSONObject(oldCapDocUrlStr));
+			assertNull(cache.get(oldCapDocUrlStr));
 
-			entry = new URLCache.CachedFile(newCapabilitiesDoc, cache.optJSONObject(newCapDocUrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), newCapDocUrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate3.getTime());
 
-			entry = new URLCache.CachedFile(capabilitiesDoc, cache.optJSONObject(capDocUrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), capDocUrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate3.getTime());
 
-			entry = new URLCache.CachedFile(mestRecord1, cache.optJSONObject(mestRecord1UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), mestRecord1UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate3.getTime());
 
-			entry = new URLCache.CachedFile(mestRecord2, cache.optJSONObject(mestRecord2UrlStr));
+			entry = URLCache.getCachedFile(configManager.getApplicationFolder(), mestRecord2UrlStr);
 			assertNotNull(entry.toJSON());
 			assertTrue(entry.getLastAccessDate().getTime() >= startDate3.getTime());
 		}
 	}
 
+	public void testEviction() throws IOException, JSONException {
+		if (this.serviceExists()) {
+			ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			URLCache.deleteCache(configManager, false);
+			URLCache.saveDiskCacheMap(applicationFolder);
+
+			String capDocUrlStr = HTTPMOCKUP_SERVICE_URL + "?content=capabilitiesDocument";
+			String mestRecordUrlStr = HTTPMOCKUP_SERVICE_URL + "?content=mestRecord";
+			String bruteforceMestRecordUrlStr = HTTPMOCKUP_SERVICE_URL + "?content=bruteforceMestRecord";
+			String recentMestRecordUrlStr = HTTPMOCKUP_SERVICE_URL + "?content=recentMestRecord";
+
+			File capDocFile = URLCache.getURLFile(configManager, null, capDocUrlStr, URLCache.Category.CAPABILITIES_DOCUMENT, true);
+			URLCache.commitURLFile(configManager, capDocFile, capDocUrlStr);
+			File mestRecordFile = URLCache.getURLFile(configManager, null, mestRecordUrlStr, URLCache.Category.MEST_RECORD, false);
+			URLCache.commitURLFile(configManager, mestRecordFile, mestRecordUrlStr);
+			File bruteforceMestRecordFile = URLCache.getURLFile(configManager, null, bruteforceMestRecordUrlStr, URLCache.Category.BRUTEFORCE_MEST_RECORD, false);
+			URLCache.commitURLFile(configManager, bruteforceMestRecordFile, bruteforceMestRecordUrlStr);
+			File recentMestRecordFile = URLCache.getURLFile(configManager, null, recentMestRecordUrlStr, URLCache.Category.MEST_RECORD, false);
+			URLCache.commitURLFile(configManager, recentMestRecordFile, recentMestRecordUrlStr);
+			assertEquals(4, URLCache.countFile(applicationFolder));
+
+			// The MEST record has been accessed more recently than the capabilities document,
+			// but the capabilities document is mandatory.
+			long now = System.currentTimeMillis();
+			URLCache.getCachedFile(applicationFolder, capDocUrlStr).setLastAccessDate(new Date(now - 4 * URLCache.EVICTION_MIN_IDLE_TIME));
+			URLCache.getCachedFile(applicationFolder, mestRecordUrlStr).setLastAccessDate(new Date(now - 3 * URLCache.EVICTION_MIN_IDLE_TIME));
+			URLCache.getCachedFile(applicationFolder, bruteforceMestRecordUrlStr).setLastAccessDate(new Date(now - 2 * URLCache.EVICTION_MIN_IDLE_TIME));
+
+			// Within budget
+			assertEquals(0, URLCache.evictEntries(applicationFolder, null, 4));
+			assertEquals(4, URLCache.countFile(applicationFolder));
+
+			// The brute force MEST record goes first, even if it's more recent.
+			assertEquals(1, URLCache.evictEntries(applicationFolder, null, 3));
+			assertEquals(3, URLCache.countFile(applicationFolder));
+			assertFalse(bruteforceMestRecordFile.exists());
+			assertTrue(URLCache.getCachedFile(applicationFolder, bruteforceMestRecordUrlStr).isEmpty());
+
+			// The mandatory capabilities document and the entries that has been used recently are never evicted
+			assertEquals(1, URLCache.evictEntries(applicationFolder, 0L, 0));
+			assertEquals(2, URLCache.countFile(applicationFolder));
+			assertFalse(mestRecordFile.exists());
+			assertTrue(capDocFile.exists());
+			assertTrue(recentMestRecordFile.exists());
+			assertFalse(URLCache.getCachedFile(applicationFolder, capDocUrlStr).isEmpty());
+			assertFalse(URLCache.getCachedFile(applicationFolder, recentMestRecordUrlStr).isEmpty());
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		}
+	}
+
+	public void testNegativeCache() throws IOException, JSONException {
+		if (this.serviceExists()) {
+			ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			URLCache.deleteCache(configManager, false);
+			URLCache.saveDiskCacheMap(applicationFolder);
+
+			long now = System.currentTimeMillis();
+			String host = URLCache.getHost(NONE_EXISTING_URL);
+			URLCacheCatalog catalog = URLCache.getDiskCacheMap(applicationFolder);
+
+			// The host fail a few times before its requests get skipped
+			for (int i=0; i<URLCacheCatalog.HostStatus.HOST_FAILURE_THRESHOLD; i++) {
+				String urlStr = NONE_EXISTING_URL + "?request=" + i;
+				assertNull(URLCache.getURLFile(configManager, null, urlStr, URLCache.Category.CAPABILITIES_DOCUMENT, false));
+
+				URLCache.CachedFile cachedFile = URLCache.getCachedFile(applicationFolder, urlStr);
+				assertEquals(1, cachedFile.getFailureCount());
+				assertTrue(cachedFile.getRetryAfter() >= now + URLCache.FAILURE_BACKOFF_BASE);
+			}
+			assertTrue(catalog.findHostStatus(host).isFailing());
+
+			// Skipped; no request is sent
+			String skippedUrlStr = NONE_EXISTING_URL + "?request=skipped";
+			assertNull(URLCache.getURLFile(configManager, null, skippedUrlStr, URLCache.Category.CAPABILITIES_DOCUMENT, false));
+			URLCache.CachedFile skippedCachedFile = URLCache.getCachedFile(applicationFolder, skippedUrlStr);
+			assertTrue(skippedCachedFile.getLatestErrorMessage().startsWith("The host " + host + " is not responding"));
+			assertEquals(0, skippedCachedFile.getFailureCount());
+
+			// The other hosts are not affected
+			String validUrlStr = HTTPMOCKUP_SERVICE_URL + "?content=capabilitiesDocument";
+			assertNotNull(URLCache.getURLFile(configManager, null, validUrlStr, URLCache.Category.CAPABILITIES_DOCUMENT, false));
+
+			// The backoff double after each failure
+			assertEquals(URLCache.FAILURE_BACKOFF_BASE, URLCache.getFailureBackoff(1));
+			assertEquals(4 * URLCache.FAILURE_BACKOFF_BASE, URLCache.getFailureBackoff(3));
+			assertEquals(URLCache.FAILURE_BACKOFF_MAX, URLCache.getFailureBackoff(100));
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		}
+	}
+
+	public void testMetadataUrlStrategy() throws IOException, JSONException {
+		ConfigManager configManager = getConfigManager();
+		File applicationFolder = configManager.getApplicationFolder();
+		URLCache.deleteCache(configManager, false);
+		URLCache.saveDiskCacheMap(applicationFolder);
+
+		String recordUrlStr = "http://www.cmar.csiro.au/geonetwork/srv/en/metadata.show?id=44003";
+		String otherRecordUrlStr = "http://www.cmar.csiro.au/geonetwork/srv/en/metadata.show?id=44004";
+		assertNull(URLCache.getMetadataUrlStrategy(configManager, recordUrlStr));
+
+		// The strategy is shared by all the records of the host
+		URLCache.setMetadataUrlStrategy(configManager, recordUrlStr, URLCache.MetadataUrlStrategy.GEONETWORK);
+		assertEquals(URLCache.MetadataUrlStrategy.GEONETWORK, URLCache.getMetadataUrlStrategy(configManager, otherRecordUrlStr));
+		assertNull(URLCache.getMetadataUrlStrategy(configManager, "http://www.google.com/metadata.show?id=44003"));
+
+		// It is saved with the status of the host, which is not failing
+		URLCacheCatalog.HostStatus hostStatus = URLCache.getDiskCacheMap(applicationFolder).findHostStatus(URLCache.getHost(recordUrlStr));
+		assertFalse(hostStatus.isFailing());
+		JSONObject jsonHostStatus = hostStatus.toJSON();
+		assertNotNull(jsonHostStatus);
+		assertFalse(jsonHostStatus.has("failureCount"));
+		assertEquals(URLCache.MetadataUrlStrategy.GEONETWORK, new URLCacheCatalog.HostStatus(jsonHostStatus).getMetadataUrlStrategy());
+
+		URLCache.setMetadataUrlStrategy(configManager, otherRecordUrlStr, URLCache.MetadataUrlStrategy.DIRECT);
+		assertEquals(URLCache.MetadataUrlStrategy.DIRECT, URLCache.getMetadataUrlStrategy(configManager, recordUrlStr));
+
+		URLCache.saveDiskCacheMap(applicationFolder);
+	}
+
+	public void testCachedURLFile() throws IOException, JSONException {
+		if (this.serviceExists()) {
+			ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			URLCache.deleteCache(configManager, false);
+			URLCache.saveDiskCacheMap(applicationFolder);
+
+			String urlStr = HTTPMOCKUP_SERVICE_URL + "?content=abcd";
+			String redirectedUrlStr = HTTPMOCKUP_SERVICE_URL + "?content=redirected";
+
+			// Nothing is downloaded
+			assertNull(URLCache.getCachedURLFile(configManager, urlStr));
+			assertFalse(URLCache.isURLFileUpToDate(configManager, null, urlStr));
+			assertTrue(URLCache.getCachedFile(applicationFolder, urlStr).isEmpty());
+
+			// The file is only returned once it has been approved
+			File file = URLCache.getURLFile(configManager, null, urlStr, URLCache.Category.MEST_RECORD, false);
+			assertNull(URLCache.getCachedURLFile(configManager, urlStr));
+			assertTrue(URLCache.isURLFileUpToDate(configManager, null, urlStr));
+			URLCache.commitURLFile(configManager, file, urlStr);
+			assertEquals(file, URLCache.getCachedURLFile(configManager, urlStr));
+
+			// The redirections are followed
+			URLCache.getURLFile(configManager, null, redirectedUrlStr, URLCache.Category.MEST_RECORD, false);
+			URLCache.setRedirection(configManager, redirectedUrlStr, urlStr);
+			assertEquals(file, URLCache.getCachedURLFile(configManager, redirectedUrlStr));
+			assertTrue(URLCache.isURLFileUpToDate(configManager, null, redirectedUrlStr));
+
+			// The expired file is still returned, but it is not up to date anymore
+			URLCache.getCachedFile(applicationFolder, urlStr).setExpiry(0);
+			assertEquals(file, URLCache.getCachedURLFile(configManager, redirectedUrlStr));
+			assertFalse(URLCache.isURLFileUpToDate(configManager, null, redirectedUrlStr));
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		}
+	}
+
+	public void testHarvestDeadline() throws IOException, JSONException {
+		if (this.serviceExists()) {
+			ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			URLCache.deleteCache(configManager, false);
+			URLCache.saveDiskCacheMap(applicationFolder);
 
+			String upToDateUrlStr = HTTPMOCKUP_SERVICE_URL + "?content=upToDate";
+			String expiredUrlStr = HTTPMOCKUP_SERVICE_URL + "?content=expired";
+			String newUrlStr = HTTPMOCKUP_SERVICE_URL + "?content=new";
 
+			WMSDataSourceConfig dataSource = new WMSDataSourceConfig(configManager);
+			dataSource.setDataSourceId("test");
+
+			File upToDateFile = URLCache.getURLFile(configManager, dataSource, upToDateUrlStr, URLCache.Category.MEST_RECORD, false);
+			URLCache.commitURLFile(configManager, upToDateFile, upToDateUrlStr);
+			File expiredFile = URLCache.getURLFile(configManager, dataSource, expiredUrlStr, URLCache.Category.MEST_RECORD, false);
+			URLCache.commitURLFile(configManager, expiredFile, expiredUrlStr);
+			URLCache.getCachedFile(applicationFolder, expiredUrlStr).setExpiry(0);
+			Date expiredDownloadTime = URLCache.getCachedFile(applicationFolder, expiredUrlStr).getDownloadedTime();
+
+			// Not expired
+			assertFalse(new HarvestDeadline(null, 0, null).isExpired());
+			assertFalse(new HarvestDeadline(60, 1000, 60).isExpired());
+
+			// The first phase of the harvest has used all the time of the harvest
+			HarvestDeadline harvestDeadline = new HarvestDeadline(60, 60000, null);
+			assertTrue(harvestDeadline.isExpired());
+			dataSource.setHarvestDeadline(harvestDeadline);
+
+			assertEquals(upToDateFile, URLCache.getURLFile(configManager, dataSource, upToDateUrlStr, URLCache.Category.MEST_RECORD, false));
+			// The expired file is not downloaded again
+			try {
+				URLCache.getURLFile(configManager, dataSource, expiredUrlStr, URLCache.Category.MEST_RECORD, false);
+				fail("The harvest is out of time, the expired file should not be downloaded.");
+			} catch (HarvestDeadlineException ex) {
+				assertEquals(expiredFile, ex.getCachedFile());
+			}
+			assertEquals(expiredDownloadTime, URLCache.getCachedFile(applicationFolder, expiredUrlStr).getDownloadedTime());
+			// The new file is not downloaded
+			try {
+				URLCache.getURLFile(configManager, dataSource, newUrlStr, URLCache.Category.MEST_RECORD, false);
+				fail("The harvest is out of time, the new file should not be downloaded.");
+			} catch (HarvestDeadlineException ex) {
+				assertNull(ex.getCachedFile());
+			}
+			assertTrue(URLCache.getCachedFile(applicationFolder, newUrlStr).isEmpty());
+
+			assertEquals(1, harvestDeadline.getStaleUrls().size());
+			assertEquals(expiredUrlStr, harvestDeadline.getStaleUrls().get(0));
+			assertEquals(1, harvestDeadline.getSkippedUrls().size());
+			assertEquals(newUrlStr, harvestDeadline.getSkippedUrls().get(0));
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		}
+	}
+
+	/**
+	 * A broken entry, marked for re-download, is requested after the deadline.
+	 * Nothing is downloaded, and the entry has to stay broken; it must not get approved
+	 * by the parsers (see URLCache.getJSONResponse).
+	 */
+	public void testHarvestDeadlineBrokenEntry() throws IOException, JSONException {
+		if (this.serviceExists()) {
+			ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			URLCache.deleteCache(configManager, false);
+			URLCache.saveDiskCacheMap(applicationFolder);
+
+			String brokenUrlStr = NONE_EXISTING_URL;
+
+			WMSDataSourceConfig dataSource = new WMSDataSourceConfig(configManager);
+			dataSource.setDataSourceId("test");
+
+			// Broken entry
+			File brokenFile = URLCache.getURLFile(configManager, dataSource, brokenUrlStr, URLCache.Category.CAPABILITIES_DOCUMENT, false);
+			assertNull(brokenFile);
+			URLCache.rollbackURLFile(configManager, brokenFile, brokenUrlStr, "Server not found");
+			URLCache.CachedFile brokenEntry = URLCache.getCachedFile(applicationFolder, brokenUrlStr);
+			assertFalse(brokenEntry.isApproved());
+			brokenEntry.setMarkedForReDownload(true);
+			Date brokenDownloadTime = brokenEntry.getDownloadedTime();
+
+			dataSource.setHarvestDeadline(new HarvestDeadline(60, 60000, null));
+
+			assertNull(URLCache.getJSONResponse(configManager, dataSource, brokenUrlStr, URLCache.Category.CAPABILITIES_DOCUMENT, false));
+
+			brokenEntry = URLCache.getCachedFile(applicationFolder, brokenUrlStr);
+			assertFalse(brokenEntry.isApproved());
+			assertFalse(URLCache.isRecursiveApproved(applicationFolder, brokenEntry));
+			assertTrue(brokenEntry.isMarkedForReDownload());
+			assertEquals(brokenDownloadTime, brokenEntry.getDownloadedTime());
+			assertEquals(1, dataSource.getHarvestDeadline().getSkippedUrls().size());
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		}
+	}
+
+
+	/**
+	 * The file is downloaded (200), then re-validated (304) using the validators
+	 * of the 1st download. The HttpMockup service do not support validators;
+	 * this test use a tiny HTTP server instead.
+	 */
+	public void testConditionalRequest() throws IOException, JSONException {
+		final String eTag = "\"v1\"";
+		final String lastModified = "Mon, 01 Oct 2012 00:00:00 GMT";
+		final String newLastModified = "Tue, 02 Oct 2012 00:00:00 GMT";
+		final List<String> receivedETags = new ArrayList<String>();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+				synchronized (receivedETags) {
+					receivedETags.add(ifNoneMatch);
+				}
+				exchange.getResponseHeaders().set("ETag", eTag);
+				if (eTag.equals(ifNoneMatch)) {
+					// The content has not changed, but its Last-Modified date has
+					exchange.getResponseHeaders().set("Last-Modified", newLastModified);
+					exchange.sendResponseHeaders(304, -1);
+				} else {
+					byte[] content = "abcd".getBytes();
+					exchange.getResponseHeaders().set("Last-Modified", lastModified);
+					exchange.sendResponseHeaders(200, content.length);
+					exchange.getResponseBody().write(content);
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+
+		try {
+			ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			URLCache.deleteCache(configManager, false);
+			URLCache.saveDiskCacheMap(applicationFolder);
+
+			String urlStr = "http://localhost:" + server.getAddress().getPort() + "/conditional";
+
+			// 1st download - 200
+			File file1 = URLCache.getURLFile(configManager, null, urlStr, URLCache.Category.CAPABILITIES_DOCUMENT, false);
+			URLCache.commitURLFile(configManager, file1, urlStr);
+			URLCache.CachedFile cachedFile = URLCache.getCachedFile(applicationFolder, urlStr);
+			assertEquals(eTag, cachedFile.getETag());
+			assertEquals(lastModified, cachedFile.getLastModified());
+
+			// Re-download - 304
+			cachedFile.setExpiry(0);
+			File file2 = URLCache.getURLFile(configManager, null, urlStr, URLCache.Category.CAPABILITIES_DOCUMENT, false);
+			URLCache.commitURLFile(configManager, file2, urlStr);
+
+			assertEquals(2, receivedETags.size());
+			assertNull(receivedETags.get(0));
+			assertEquals(eTag, receivedETags.get(1));
+
+			// The approved file is reused, with the validators sent with the 304
+			assertEquals(file1, file2);
+			assertEquals("abcd", readFile(file2));
+			cachedFile = URLCache.getCachedFile(applicationFolder, urlStr);
+			assertTrue(cachedFile.isApproved());
+			assertFalse(cachedFile.hasTemporaryData());
+			assertNull(cachedFile.getLatestErrorMessage());
+			assertEquals(SC_OK, cachedFile.getHttpStatusCode());
+			assertEquals(eTag, cachedFile.getETag());
+			assertEquals(newLastModified, cachedFile.getLastModified());
+			assertEquals(1, URLCache.countFile(applicationFolder));
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	public void testResponseStatus() throws IOException {
+		// List of "METHOD /path Range"
+		final List<String> requests = new ArrayList<String>();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String method = exchange.getRequestMethod();
+				String path = exchange.getRequestURI().getPath();
+				synchronized (requests) {
+					requests.add(method + " " + path + " " + exchange.getRequestHeaders().getFirst("Range"));
+				}
+
+				if ("HEAD".equals(method)) {
+					int statusCode = 200;
+					if ("/noHead".equals(path)) {
+						statusCode = 405;
+					} else if ("/headNotImplemented".equals(path)) {
+						statusCode = 501;
+					} else if ("/missing".equals(path)) {
+						statusCode = 404;
+					} else if ("/error".equals(path)) {
+						statusCode = 500;
+					}
+					exchange.sendResponseHeaders(statusCode, -1);
+				} else {
+					byte[] content = "a".getBytes();
+					exchange.getResponseHeaders().set("Content-Range", "bytes 0-0/4");
+					exchange.sendResponseHeaders(206, content.length);
+					exchange.getResponseBody().write(content);
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+
+		try {
+			String baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+			// HEAD request only
+			URLCache.ResponseStatus responseStatus = URLCache.getResponseStatus(baseUrl + "/ok");
+			assertEquals(Integer.valueOf(200), responseStatus.getStatusCode());
+			assertTrue(responseStatus.isSuccess());
+			assertNull(responseStatus.getErrorMessage());
+
+			// HEAD not allowed, fallback to a ranged GET
+			responseStatus = URLCache.getResponseStatus(baseUrl + "/noHead");
+			assertEquals(Integer.valueOf(206), responseStatus.getStatusCode());
+			assertTrue(responseStatus.isSuccess());
+
+			// HEAD not implemented, fallback to a ranged GET
+			responseStatus = URLCache.getResponseStatus(baseUrl + "/headNotImplemented");
+			assertEquals(Integer.valueOf(206), responseStatus.getStatusCode());
+
+			// The other errors are returned without trying a GET request
+			responseStatus = URLCache.getResponseStatus(baseUrl + "/missing");
+			assertEquals(Integer.valueOf(404), responseStatus.getStatusCode());
+			assertTrue(responseStatus.isPageNotFound());
+
+			responseStatus = URLCache.getResponseStatus(baseUrl + "/error");
+			assertEquals(Integer.valueOf(500), responseStatus.getStatusCode());
+			assertFalse(responseStatus.isSuccess());
+
+			List<String> expectedRequests = new ArrayList<String>();
+			expectedRequests.add("HEAD /ok null");
+			expectedRequests.add("HEAD /noHead null");
+			expectedRequests.add("GET /noHead bytes=0-0");
+			expectedRequests.add("HEAD /headNotImplemented null");
+			expectedRequests.add("GET /headNotImplemented bytes=0-0");
+			expectedRequests.add("HEAD /missing null");
+			expectedRequests.add("HEAD /error null");
+			assertEquals(expectedRequests, requests);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	public void testCachedResponseStatusTimeout() throws IOException {
+		final int[] nbRequests = { 0 };
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				synchronized (nbRequests) {
+					nbRequests[0]++;
+				}
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+
+		try {
+			String urlStr = "http://localhost:" + server.getAddress().getPort() + "/ttl";
+
+			URLCache.ResponseStatus responseStatus = URLCache.getCachedResponseStatus(urlStr, false);
+			assertTrue(responseStatus.isSuccess());
+			assertEquals(1, nbRequests[0]);
+
+			// Reused
+			assertSame(responseStatus, URLCache.getCachedResponseStatus(urlStr, false));
+			URLCache.ageCachedResponseStatus(urlStr, URLCache.RESPONSE_STATUS_CACHE_TIMEOUT - URLCache.NB_MS_PER_MINUTE);
+			assertSame(responseStatus, URLCache.getCachedResponseStatus(urlStr, false));
+			assertEquals(1, nbRequests[0]);
+
+			// Timed out
+			URLCache.ageCachedResponseStatus(urlStr, URLCache.NB_MS_PER_MINUTE);
+			URLCache.ResponseStatus newResponseStatus = URLCache.getCachedResponseStatus(urlStr, false);
+			assertNotSame(responseStatus, newResponseStatus);
+			assertEquals(2, nbRequests[0]);
+			assertSame(newResponseStatus, URLCache.getCachedResponseStatus(urlStr, false));
+			assertEquals(2, nbRequests[0]);
+
+			// Forced check; the new status replace the cached one
+			responseStatus = URLCache.getCachedResponseStatus(urlStr, true);
+			assertNotSame(newResponseStatus, responseStatus);
+			assertEquals(3, nbRequests[0]);
+			assertSame(responseStatus, URLCache.getCachedResponseStatus(urlStr, false));
+			assertEquals(3, nbRequests[0]);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+
+
+
+
+	/**
+	 * The modifications saved after the snapshot are appended to the journal.
+	 * They are replayed when the cache map is loaded again, after a restart.
+	 */
+	public void testJournalReplay() throws IOException, JSONException {
+		HttpServer server = startContentServer();
+		try {
+			ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			File snapshotFile = FileFinder.getDiskCacheFile(applicationFolder);
+			File journalFile = FileFinder.getDiskCacheJournalFile(applicationFolder);
+
+			String baseUrl = "http://localhost:" + server.getAddress().getPort();
+			String url1 = baseUrl + "/journal1";
+			String url2 = baseUrl + "/journal2";
+			String url3 = baseUrl + "/journal3";
+
+			WMSDataSourceConfig dataSource = new WMSDataSourceConfig(configManager);
+			dataSource.setDataSourceId("journal");
+
+			// The cache has been reset; the save write a snapshot
+			URLCache.deleteCache(configManager, false);
+			URLCache.commitURLFile(configManager, URLCache.getURLFile(configManager, null, url1, URLCache.Category.CAPABILITIES_DOCUMENT, false), url1);
+			URLCache.commitURLFile(configManager, URLCache.getURLFile(configManager, dataSource, url2, URLCache.Category.CAPABILITIES_DOCUMENT, false), url2);
+			URLCache.saveDiskCacheMap(applicationFolder);
+			assertEquals(0, journalFile.length());
+			assertTrue(readFile(snapshotFile).contains(url1));
+
+			// The next modifications are appended to the journal
+			URLCache.commitURLFile(configManager, URLCache.getURLFile(configManager, null, url3, URLCache.Category.CAPABILITIES_DOCUMENT, false), url3);
+			URLCache.deleteCache(configManager, dataSource);
+			URLCache.saveDiskCacheMap(applicationFolder);
+			assertTrue(journalFile.length() > 0);
+			assertFalse(readFile(snapshotFile).contains(url3));
+			assertTrue(readFile(snapshotFile).contains(url2));
+
+			// Restart
+			URLCache.unloadDiskCacheMap();
+
+			URLCache.CachedFile cachedFile1 = URLCache.getCachedFile(applicationFolder, url1);
+			assertNotNull(cachedFile1);
+			assertTrue(cachedFile1.isApproved());
+			assertEquals("/journal1", readFile(cachedFile1.getFile()));
+
+			URLCache.CachedFile cachedFile3 = URLCache.getCachedFile(applicationFolder, url3);
+			assertNotNull(cachedFile3);
+			assertTrue(cachedFile3.isApproved());
+			assertEquals("/journal3", readFile(cachedFile3.getFile()));
+
+			// The removal is also replayed
+			assertTrue(URLCache.getCachedFile(applicationFolder, url2).isEmpty());
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * The application crashed while writing the last record of the journal. The
+	 * previous records are replayed, the torn record is ignored and the journal is compacted.
+	 */
+	public void testTornJournalRecord() throws IOException, JSONException {
+		HttpServer server = startContentServer();
+		try {
+			ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			File snapshotFile = FileFinder.getDiskCacheFile(applicationFolder);
+			File journalFile = FileFinder.getDiskCacheJournalFile(applicationFolder);
+
+			String baseUrl = "http://localhost:" + server.getAddress().getPort();
+			String url1 = baseUrl + "/torn1";
+			String url2 = baseUrl + "/torn2";
+			String tornUrl = baseUrl + "/tornRecord";
+			String url3 = baseUrl + "/torn3";
+
+			URLCache.deleteCache(configManager, false);
+			URLCache.commitURLFile(configManager, URLCache.getURLFile(configManager, null, url1, URLCache.Category.CAPABILITIES_DOCUMENT, false), url1);
+			URLCache.saveDiskCacheMap(applicationFolder);
+
+			URLCache.commitURLFile(configManager, URLCache.getURLFile(configManager, null, url2, URLCache.Category.CAPABILITIES_DOCUMENT, false), url2);
+			URLCache.saveDiskCacheMap(applicationFolder);
+			assertTrue(journalFile.length() > 0);
+
+			// Half written record, without its end of line
+			FileOutputStream out = new FileOutputStream(journalFile, true);
+			try {
+				out.write(("{\"url\":\"" + tornUrl + "\",\"entry\":{\"approvedFile\":\"to").getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+
+			// Restart
+			URLCache.unloadDiskCacheMap();
+
+			assertTrue(URLCache.getCachedFile(applicationFolder, url1).isApproved());
+			assertTrue(URLCache.getCachedFile(applicationFolder, url2).isApproved());
+			assertTrue(URLCache.getCachedFile(applicationFolder, tornUrl).isEmpty());
+
+			// The journal has been compacted into the snapshot
+			assertEquals(0, journalFile.length());
+			String snapshot = readFile(snapshotFile);
+			assertTrue(snapshot.contains(url1));
+			assertTrue(snapshot.contains(url2));
+			assertFalse(snapshot.contains(tornUrl));
+
+			// New records can be appended to the journal, and replayed
+			URLCache.commitURLFile(configManager, URLCache.getURLFile(configManager, null, url3, URLCache.Category.CAPABILITIES_DOCUMENT, false), url3);
+			URLCache.saveDiskCacheMap(applicationFolder);
+			assertTrue(journalFile.length() > 0);
+
+			URLCache.unloadDiskCacheMap();
+			assertTrue(URLCache.getCachedFile(applicationFolder, url2).isApproved());
+			URLCache.CachedFile cachedFile3 = URLCache.getCachedFile(applicationFolder, url3);
+			assertTrue(cachedFile3.isApproved());
+			assertEquals("/torn3", readFile(cachedFile3.getFile()));
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Many threads download and commit the same URLs, and different URLs, at the same time.
+	 * Each thread has to get the content of its URL, and the cache map must contain
+	 * one approved entry per URL.
+	 */
+	public void testConcurrentRequests() throws Exception {
+		final int nbThreads = 16;
+		final int nbSharedUrls = 4;
+		final int nbRequestsPerThread = 10;
+
+		HttpServer server = startContentServer();
+		try {
+			final ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			URLCache.deleteCache(configManager, false);
+			URLCache.saveDiskCacheMap(applicationFolder);
+
+			final String baseUrl = "http://localhost:" + server.getAddress().getPort();
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i=0; i<nbThreads; i++) {
+				final int threadIndex = i;
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						try {
+							start.await();
+							for (int j=0; j<nbRequestsPerThread; j++) {
+								// Same URLs as the other threads
+								String sharedPath = "/shared" + ((threadIndex + j) % nbSharedUrls);
+								assertEquals(sharedPath, request(baseUrl + sharedPath));
+
+								// URL requested by this thread only
+								String path = "/thread" + threadIndex + "_" + j;
+								assertEquals(path, request(baseUrl + path));
+							}
+						} catch (Throwable ex) {
+							errors.add(ex);
+						}
+					}
+
+					private String request(String urlStr) throws IOException, JSONException {
+						File file = URLCache.getURLFile(configManager, null, urlStr, URLCache.Category.CAPABILITIES_DOCUMENT, false);
+						String content = readFile(file);
+						URLCache.commitURLFile(configManager, file, urlStr);
+						return content;
+					}
+				}, "URLCacheTest " + i);
+				threads.add(thread);
+				thread.start();
+			}
+
+			start.countDown();
+			for (Thread thread : threads) {
+				thread.join(60000);
+				assertFalse(thread.getName() + " is still running", thread.isAlive());
+			}
+			if (!errors.isEmpty()) {
+				AssertionFailedError failure = new AssertionFailedError(errors.size() + " thread(s) failed: " + errors.get(0));
+				failure.initCause(errors.get(0));
+				throw failure;
+			}
+
+			URLCacheCatalog catalog = URLCache.getDiskCacheMap(applicationFolder);
+			assertEquals(nbSharedUrls + nbThreads * nbRequestsPerThread, catalog.size());
+			assertEquals(nbSharedUrls + nbThreads * nbRequestsPerThread, URLCache.countFile(applicationFolder));
+			for (int i=0; i<nbSharedUrls; i++) {
+				URLCache.CachedFile cachedFile = URLCache.getCachedFile(applicationFolder, baseUrl + "/shared" + i);
+				assertTrue(cachedFile.isApproved());
+				assertFalse(cachedFile.hasTemporaryData());
+				assertEquals("/shared" + i, readFile(cachedFile.getFile()));
+			}
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Identical files downloaded from different URLs are stored once. The file is
+	 * kept as long as one of the URLs refers to it.
+	 */
+	public void testSharedContent() throws IOException, JSONException {
+		HttpServer server = startContentServer();
+		try {
+			ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			URLCache.deleteCache(configManager, false);
+			URLCache.saveDiskCacheMap(applicationFolder);
+
+			String baseUrl = "http://localhost:" + server.getAddress().getPort();
+			String url1 = baseUrl + "/shared1?content=sharedContent";
+			String url2 = baseUrl + "/shared2?content=sharedContent";
+			String otherUrl = baseUrl + "/other?content=otherContent";
+
+			WMSDataSourceConfig dataSource1 = new WMSDataSourceConfig(configManager);
+			dataSource1.setDataSourceId("shared1");
+			WMSDataSourceConfig dataSource2 = new WMSDataSourceConfig(configManager);
+			dataSource2.setDataSourceId("shared2");
+
+			File file1 = URLCache.getURLFile(configManager, dataSource1, url1, URLCache.Category.CAPABILITIES_DOCUMENT, false);
+			URLCache.commitURLFile(configManager, file1, url1);
+			File file2 = URLCache.getURLFile(configManager, dataSource2, url2, URLCache.Category.CAPABILITIES_DOCUMENT, false);
+			URLCache.commitURLFile(configManager, file2, url2);
+			File otherFile = URLCache.getURLFile(configManager, dataSource1, otherUrl, URLCache.Category.CAPABILITIES_DOCUMENT, false);
+			URLCache.commitURLFile(configManager, otherFile, otherUrl);
+
+			assertEquals(file1, file2);
+			assertFalse(file1.equals(otherFile));
+			assertEquals(URLCache.getCachedFile(applicationFolder, url1).getFilename(), URLCache.getCachedFile(applicationFolder, url2).getFilename());
+			assertEquals(2, URLCache.countFile(applicationFolder));
+
+			// Delete the 1st URL; the file is still used by the 2nd one
+			URLCache.deleteCache(configManager, dataSource1);
+			assertTrue(URLCache.getCachedFile(applicationFolder, url1).isEmpty());
+			assertTrue(URLCache.getCachedFile(applicationFolder, otherUrl).isEmpty());
+			assertFalse(otherFile.exists());
+
+			URLCache.CachedFile cachedFile2 = URLCache.getCachedFile(applicationFolder, url2);
+			assertTrue(cachedFile2.isApproved());
+			assertEquals(file2, cachedFile2.getFile());
+			assertTrue(file2.exists());
+			assertEquals("sharedContent", readFile(file2));
+			assertEquals(1, URLCache.countFile(applicationFolder));
+
+			// The orphan files purge, run when the cache map is loaded, also keep it
+			URLCache.saveDiskCacheMap(applicationFolder);
+			URLCache.unloadDiskCacheMap();
+			assertEquals("sharedContent", readFile(URLCache.getCachedFile(applicationFolder, url2).getFile()));
+			assertEquals(1, URLCache.countFile(applicationFolder));
+
+			// Delete the 2nd URL; the file is not used anymore
+			URLCache.deleteCache(configManager, dataSource2);
+			assertFalse(file2.exists());
+			assertEquals(0, URLCache.countFile(applicationFolder));
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * The big files are compressed in the cache folder, and decompressed when they are read.
+	 * The server send the file compressed (Content-Encoding: gzip) when the client accept it.
+	 */
+	public void testCompressedFile() throws IOException, JSONException {
+		JSONArray jsonLayers = new JSONArray();
+		for (int i=0; jsonLayers.toString().length() < 4 * URLCache.COMPRESSION_THRESHOLD; i++) {
+			jsonLayers.put(new JSONObject().put("id", i).put("name", "Layer " + i));
+		}
+		final byte[] bigContent = new JSONObject().put("layers", jsonLayers).toString().getBytes("UTF-8");
+		final byte[] smallContent = "{\"layers\":[]}".getBytes("UTF-8");
+		final List<String> acceptEncodings = new ArrayList<String>();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				synchronized (acceptEncodings) {
+					acceptEncodings.add(acceptEncoding);
+				}
+				String path = exchange.getRequestURI().getPath();
+				byte[] content = "/small".equals(path) ? smallContent : bigContent;
+				if ("/bigGzip".equals(path) && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+					exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+					exchange.sendResponseHeaders(200, 0);
+					GZIPOutputStream out = new GZIPOutputStream(exchange.getResponseBody());
+					out.write(content);
+					out.finish();
+				} else {
+					exchange.sendResponseHeaders(200, content.length);
+					exchange.getResponseBody().write(content);
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+
+		try {
+			ConfigManager configManager = getConfigManager();
+			File applicationFolder = configManager.getApplicationFolder();
+			URLCache.deleteCache(configManager, false);
+			URLCache.saveDiskCacheMap(applicationFolder);
+
+			String baseUrl = "http://localhost:" + server.getAddress().getPort();
+			String bigUrl = baseUrl + "/big";
+			String bigGzipUrl = baseUrl + "/bigGzip";
+			String smallUrl = baseUrl + "/small";
+
+			File bigFile = URLCache.getURLFile(configManager, null, bigUrl, URLCache.Category.CAPABILITIES_DOCUMENT, false);
+			URLCache.commitURLFile(configManager, bigFile, bigUrl);
+			File smallFile = URLCache.getURLFile(configManager, null, smallUrl, URLCache.Category.CAPABILITIES_DOCUMENT, false);
+			URLCache.commitURLFile(configManager, smallFile, smallUrl);
+
+			// The big file is compressed, the small one is not
+			assertTrue(isGzipFile(bigFile));
+			assertTrue(bigFile.length() < bigContent.length);
+			assertEquals(bigContent.length, URLCache.getContentLength(bigFile));
+			assertEquals(new String(bigContent, "UTF-8"), readCachedFile(bigFile));
+
+			assertFalse(isGzipFile(smallFile));
+			assertEquals(smallContent.length, smallFile.length());
+			assertEquals(smallContent.length, URLCache.getContentLength(smallFile));
+			assertEquals(new String(smallContent, "UTF-8"), readCachedFile(smallFile));
+
+			// Compressed transfer. The file is decompressed while downloaded, then compressed again
+			// in the cache; it's the same content, stored in the same file.
+			JSONObject json = URLCache.getJSONResponse(configManager, null, bigGzipUrl, URLCache.Category.CAPABILITIES_DOCUMENT, false);
+			assertNotNull(json);
+			assertEquals(jsonLayers.length(), json.getJSONArray("layers").length());
+			assertEquals("Layer 10", json.getJSONArray("layers").getJSONObject(10).getString("name"));
+			assertEquals(bigFile, URLCache.getCachedFile(applicationFolder, bigGzipUrl).getFile());
+			assertEquals(2, URLCache.countFile(applicationFolder));
+
+			assertEquals(3, acceptEncodings.size());
+			for (String acceptEncoding : acceptEncodings) {
+				assertTrue(acceptEncoding.contains("gzip"));
+			}
+
+			URLCache.saveDiskCacheMap(applicationFolder);
+		} finally {
+			server.stop(0);
+		}
+	}
 
 	/**
 	 * This method show an error message when the HttpMockup service is not installed.
@@ -2213,6 +3039,32 @@ public class URLCacheTest extends TestCase {
 		return this.serviceExists;
 	}
 
+	/**
+	 * Start a tiny HTTP server returning the "content" parameter of the requested URL,
+	 * like the HttpMockup service, or the path of the URL when there is no content parameter.
+	 * Example:
+	 *     http://localhost:port/abcd => "/abcd"
+	 *     http://localhost:port/abcd?content=efgh => "efgh"
+	 */
+	private static HttpServer startContentServer() throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String contentStr = exchange.getRequestURI().getPath();
+				String query = exchange.getRequestURI().getRawQuery();
+				if (query != null && query.startsWith("content=")) {
+					contentStr = URLDecoder.decode(query.substring("content=".length()), "UTF-8");
+				}
+				byte[] content = contentStr.getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, content.length);
+				exchange.getResponseBody().write(content);
+				exchange.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+
 	private static String readFile(File file) throws IOException {
 		if (file == null || !file.exists()) {
 			return null;
@@ -2242,6 +3094,29 @@ public class URLCacheTest extends TestCase {
 		return content;
 	}
 
+	private static boolean isGzipFile(File file) throws IOException {
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			return inputStream.read() == 0x1f && inputStream.read() == 0x8b;
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Read a file of the cache, decompressing it if needed.
+	 */
+	private static String readCachedFile(File file) throws IOException {
+		InputStream inputStream = URLCache.getInputStream(file);
+		try {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			Utils.binaryCopy(inputStream, outputStream);
+			return outputStream.toString("UTF-8");
+		} finally {
+			inputStream.close();
+		}
+	}
+
 	private static File getTestApplicationFolder() {
 		String tmpFolderPath = System.getProperty("java.io.tmpdir");
 		File tmpFolder = new File(tmpFolderPath);
@@ -27,6 +27,8 @@ import java.util.Date;
 import java.util.SortedSet;
 
 import junit.framework.TestCase;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 /**
  *
@@ -234,4 +236,21 @@ public class UtilsTest extends TestCase {
 		newStr = Utils.getHighlightChunk(positions, str, 10);
 		assertEquals("Hello W...", newStr);
 	}
+
+	public void testJsonHash() throws Exception {
+		JSONObject json = new JSONObject()
+				.put("id", "ea")
+				.put("layers", new JSONObject().put("a", 1).put("b", new JSONArray().put("x").put("y")));
+		JSONObject sameJson = new JSONObject()
+				.put("layers", new JSONObject().put("b", new JSONArray().put("x").put("y")).put("a", 1))
+				.put("id", "ea");
+		JSONObject otherJson = new JSONObject()
+				.put("id", "ea")
+				.put("layers", new JSONObject().put("a", 1).put("b", new JSONArray().put("y").put("x")));
+
+		// The order of the keys do not matter, the order of the arrays do
+		assertEquals(Utils.jsonHash(json), Utils.jsonHash(sameJson));
+		assertFalse(Utils.jsonHash(json).equals(Utils.jsonHash(otherJson)));
+		assertNull(Utils.jsonHash(null));
+	}
 }
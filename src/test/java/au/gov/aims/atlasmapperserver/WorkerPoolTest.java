@@ -0,0 +1,136 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WorkerPoolTest extends TestCase {
+
+	public void testRun() throws Exception {
+		final int nbWorkers = 4;
+		final ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<Integer>();
+		for (int i=0; i<100; i++) {
+			queue.add(i);
+		}
+		final AtomicInteger sum = new AtomicInteger(0);
+		final Set<String> threadNames = new HashSet<String>();
+		// All the workers run at the same time
+		final CountDownLatch started = new CountDownLatch(nbWorkers);
+
+		WorkerPool.run(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (threadNames) {
+					threadNames.add(Thread.currentThread().getName());
+				}
+				assertTrue(Thread.currentThread().isDaemon());
+				started.countDown();
+				try {
+					assertTrue(started.await(10, TimeUnit.SECONDS));
+				} catch (InterruptedException ex) {
+					return;
+				}
+				Integer value;
+				while ((value = queue.poll()) != null) {
+					sum.addAndGet(value);
+				}
+			}
+		}, nbWorkers, "Worker", "Waiting for the workers...");
+
+		assertTrue(queue.isEmpty());
+		assertEquals(4950, sum.get());
+
+		Set<String> expectedThreadNames = new HashSet<String>();
+		for (int i=1; i<=nbWorkers; i++) {
+			expectedThreadNames.add("Worker " + i);
+		}
+		assertEquals(expectedThreadNames, threadNames);
+	}
+
+	public void testRunInCurrentThread() throws Exception {
+		final Thread currentThread = Thread.currentThread();
+		final Thread[] workerThread = { null };
+
+		WorkerPool.run(new Runnable() {
+			@Override
+			public void run() {
+				workerThread[0] = Thread.currentThread();
+			}
+		}, 1, "Worker", "Waiting for the worker...");
+		assertSame(currentThread, workerThread[0]);
+
+		// No worker
+		workerThread[0] = null;
+		WorkerPool.run(new Runnable() {
+			@Override
+			public void run() {
+				workerThread[0] = Thread.currentThread();
+			}
+		}, 0, "Worker", "Waiting for the worker...");
+		assertNull(workerThread[0]);
+	}
+
+	/**
+	 * A cancelled worker stops; the cancellation is thrown once, after all the workers are done.
+	 */
+	public void testCancelledWorker() throws Exception {
+		final int nbWorkers = 4;
+		final ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<Integer>();
+		for (int i=0; i<100; i++) {
+			queue.add(i);
+		}
+		final AtomicInteger nbProcessed = new AtomicInteger(0);
+		final AtomicInteger nbCancelledWorkers = new AtomicInteger(0);
+
+		try {
+			WorkerPool.run(new Runnable() {
+				@Override
+				public void run() {
+					Integer value;
+					while ((value = queue.poll()) != null) {
+						if (value >= 50) {
+							nbCancelledWorkers.incrementAndGet();
+							throw new CancellationException("Cancelled at " + value);
+						}
+						nbProcessed.incrementAndGet();
+					}
+				}
+			}, nbWorkers, "Worker", "Waiting for the workers...");
+			fail("The cancellation of the workers was not reported.");
+		} catch (CancellationException ex) {
+			// Expected
+		}
+
+		// All the workers has been cancelled; none of them is still running
+		assertEquals(50, nbProcessed.get());
+		assertEquals(nbWorkers, nbCancelledWorkers.get());
+		assertEquals(100 - 50 - nbWorkers, queue.size());
+	}
+}
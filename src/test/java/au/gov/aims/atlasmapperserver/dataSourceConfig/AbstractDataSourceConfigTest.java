@@ -0,0 +1,553 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package au.gov.aims.atlasmapperserver.dataSourceConfig;
+
+import au.gov.aims.atlasmapperserver.ClientConfig;
+import au.gov.aims.atlasmapperserver.ConfigManager;
+import au.gov.aims.atlasmapperserver.RefreshPlanner;
+import au.gov.aims.atlasmapperserver.jsonWrappers.client.DataSourceWrapper;
+import au.gov.aims.atlasmapperserver.jsonWrappers.client.LayerWrapper;
+import au.gov.aims.atlasmapperserver.layerConfig.LayerCatalog;
+import au.gov.aims.atlasmapperserver.layerConfig.XYZLayerConfig;
+import au.gov.aims.atlasmapperserver.layerGenerator.AbstractLayerGenerator;
+import au.gov.aims.atlasmapperserver.layerGenerator.XYZLayerGenerator;
+import junit.framework.TestCase;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONSortedObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AbstractDataSourceConfigTest extends TestCase {
+
+	/**
+	 * A data source is never harvested by two threads at the same time, whatever started
+	 * the harvest (rebuild, rebuild of all data sources, scheduled refresh, harvest of the metadata).
+	 */
+	public void testHarvestsAreSerialised() throws Exception {
+		final TestDataSourceConfig dataSource = createDataSource("serialised");
+		final CountDownLatch firstHarvestStarted = new CountDownLatch(1);
+		final CountDownLatch releaseFirstHarvest = new CountDownLatch(1);
+		final AtomicInteger harvestCount = new AtomicInteger(0);
+		final AtomicInteger runningHarvests = new AtomicInteger(0);
+		final AtomicInteger maxRunningHarvests = new AtomicInteger(0);
+
+		dataSource.setHarvester(new Harvester() {
+			@Override
+			public LayerCatalog harvest(TestLayerGenerator generator, boolean harvestMetadata) throws Exception {
+				int running = runningHarvests.incrementAndGet();
+				synchronized (maxRunningHarvests) {
+					maxRunningHarvests.set(Math.max(maxRunningHarvests.get(), running));
+				}
+				try {
+					if (harvestCount.incrementAndGet() == 1) {
+						firstHarvestStarted.countDown();
+						assertTrue(releaseFirstHarvest.await(10, TimeUnit.SECONDS));
+					}
+					return createLayerCatalog(dataSource.getConfigManager(), "Reefs");
+				} finally {
+					runningHarvests.decrementAndGet();
+				}
+			}
+		});
+
+		ErrorCollector errors = new ErrorCollector();
+		Thread rebuild = errors.start(new Harvest() {
+			@Override
+			public void run() throws Exception {
+				dataSource.process(false, false, false);
+			}
+		});
+		assertTrue(firstHarvestStarted.await(10, TimeUnit.SECONDS));
+		assertTrue(dataSource.isHarvesting());
+
+		Thread secondRebuild = errors.start(new Harvest() {
+			@Override
+			public void run() throws Exception {
+				dataSource.process(false, false, false);
+			}
+		});
+		Thread metadataHarvest = errors.start(new Harvest() {
+			@Override
+			public void run() throws Exception {
+				dataSource.harvestMetadata(null, 0);
+			}
+		});
+
+		// Both threads are waiting for the first harvest to finish
+		waitUntilBlocked(secondRebuild);
+		waitUntilBlocked(metadataHarvest);
+		assertEquals(1, harvestCount.get());
+
+		releaseFirstHarvest.countDown();
+		rebuild.join(10000);
+		secondRebuild.join(10000);
+		metadataHarvest.join(10000);
+		errors.assertNoError();
+
+		assertEquals(3, harvestCount.get());
+		assertEquals(1, maxRunningHarvests.get());
+		assertFalse(dataSource.isHarvesting());
+	}
+
+	/**
+	 * The first phase only uses the metadata documents found in the cache. When some are missing,
+	 * the data source is saved without them, and its metadata are harvested in background.
+	 */
+	public void testTwoPhaseHarvest() throws Exception {
+		final TestDataSourceConfig dataSource = createDataSource("twoPhases");
+		final File applicationFolder = dataSource.getConfigManager().getApplicationFolder();
+		final CountDownLatch releaseSecondPhase = new CountDownLatch(1);
+		final List<Boolean> phases = Collections.synchronizedList(new ArrayList<Boolean>());
+
+		dataSource.setHarvester(new Harvester() {
+			@Override
+			public LayerCatalog harvest(TestLayerGenerator generator, boolean harvestMetadata) throws Exception {
+				phases.add(harvestMetadata);
+				if (!harvestMetadata) {
+					// The cache is empty
+					generator.markMetadataPending();
+					return createLayerCatalog(dataSource.getConfigManager(), "Reefs");
+				}
+				assertTrue(releaseSecondPhase.await(10, TimeUnit.SECONDS));
+				return createLayerCatalog(dataSource.getConfigManager(), "Reefs", "Islands");
+			}
+		});
+
+		dataSource.process(false, false, false);
+
+		// The first state is saved, waiting for the metadata
+		DataSourceWrapper firstState = AbstractDataSourceConfig.load(applicationFolder, "twoPhases");
+		assertTrue(firstState.isMetadataPending());
+		assertEquals(1, firstState.getLayers().length());
+		assertNotNull(firstState.getStateHash());
+		assertTrue(firstState.getMessages().toString().contains("harvested in background"));
+
+		// The second phase is running in background
+		releaseSecondPhase.countDown();
+		DataSourceWrapper secondState = waitUntilMetadataHarvested(applicationFolder, "twoPhases");
+		assertEquals(2, secondState.getLayers().length());
+		assertFalse(firstState.getStateHash().equals(secondState.getStateHash()));
+
+		assertEquals(2, phases.size());
+		assertFalse(phases.get(0));
+		assertTrue(phases.get(1));
+	}
+
+	/**
+	 * The documents of an "active download" data source are always re-downloaded;
+	 * it is harvested once, with its metadata.
+	 */
+	public void testActiveDownloadHarvestedInOnePhase() throws Exception {
+		final TestDataSourceConfig dataSource = createDataSource("activeDownload");
+		dataSource.setActiveDownload(true);
+		final List<Boolean> phases = Collections.synchronizedList(new ArrayList<Boolean>());
+
+		dataSource.setHarvester(new Harvester() {
+			@Override
+			public LayerCatalog harvest(TestLayerGenerator generator, boolean harvestMetadata) throws Exception {
+				phases.add(harvestMetadata);
+				return createLayerCatalog(dataSource.getConfigManager(), "Reefs");
+			}
+		});
+
+		dataSource.process(false, false, false);
+
+		DataSourceWrapper savedState = AbstractDataSourceConfig.load(dataSource.getConfigManager().getApplicationFolder(), "activeDownload");
+		assertFalse(savedState.isMetadataPending());
+		assertEquals(1, phases.size());
+		assertTrue(phases.get(0));
+	}
+
+	/**
+	 * The result of the harvest of the metadata is only saved if the data source has not
+	 * been saved since the first phase; otherwise it would overwrite a newer state.
+	 */
+	public void testHarvestMetadata() throws Exception {
+		final TestDataSourceConfig dataSource = createDataSource("harvestMetadata");
+		final File applicationFolder = dataSource.getConfigManager().getApplicationFolder();
+		final List<String> titles = Collections.synchronizedList(new ArrayList<String>());
+		titles.add("Reefs");
+
+		dataSource.setHarvester(new Harvester() {
+			@Override
+			public LayerCatalog harvest(TestLayerGenerator generator, boolean harvestMetadata) throws Exception {
+				return createLayerCatalog(dataSource.getConfigManager(), titles.toArray(new String[titles.size()]));
+			}
+		});
+
+		dataSource.process(false, false, false);
+		String stateHash = AbstractDataSourceConfig.load(applicationFolder, "harvestMetadata").getStateHash();
+		assertNotNull(stateHash);
+
+		titles.add("Islands");
+
+		// The data source has been saved again since the first phase; the result is discarded
+		JSONObject errors = dataSource.harvestMetadata("outdatedStateHash", 0);
+		assertTrue(errors.getJSONArray("warnings").toString().contains("discarded"));
+		DataSourceWrapper savedState = AbstractDataSourceConfig.load(applicationFolder, "harvestMetadata");
+		assertEquals(stateHash, savedState.getStateHash());
+		assertEquals(1, savedState.getLayers().length());
+
+		// Same state as the first phase; the result is saved
+		errors = dataSource.harvestMetadata(stateHash, 0);
+		assertFalse(String.valueOf(errors.opt("warnings")).contains("discarded"));
+		savedState = AbstractDataSourceConfig.load(applicationFolder, "harvestMetadata");
+		assertFalse(stateHash.equals(savedState.getStateHash()));
+		assertEquals(2, savedState.getLayers().length());
+		assertFalse(savedState.isMetadataPending());
+	}
+
+	/**
+	 * After the harvest of the metadata, the clients generated with the state
+	 * of the first phase are regenerated.
+	 */
+	public void testClientsGeneratedWith() throws Exception {
+		File applicationFolder = new File(System.getProperty("java.io.tmpdir"), "atlasmapper-test-clientsGeneratedWith");
+		applicationFolder.mkdirs();
+		File serverConfigFile = new File(applicationFolder, "server.conf");
+		JSONArray clients = new JSONArray()
+				.put(createClientJSON(1, "generated", true, "ea"))
+				.put(createClientJSON(2, "outdated", true, "ea"))
+				.put(createClientJSON(3, "disabled", false, "ea"))
+				.put(createClientJSON(4, "other", true, "other"));
+		Writer writer = new FileWriter(serverConfigFile);
+		try {
+			writer.write(new JSONObject().put("version", 1.0).put("clients", clients).toString());
+		} finally {
+			writer.close();
+		}
+
+		ConfigManager configManager = new ConfigManager(serverConfigFile, null);
+		configManager.setApplicationFolder(applicationFolder);
+		TestDataSourceConfig dataSource = new TestDataSourceConfig(configManager);
+		dataSource.setDataSourceId("ea");
+		dataSource.setLayerType("XYZ");
+		dataSource.deleteCachedState();
+
+		DataSourceWrapper layerCatalog = new DataSourceWrapper();
+		layerCatalog.setLayers(new JSONObject().put("reefs", new JSONObject().put("title", "Reefs")));
+		String stateHash = dataSource.save(layerCatalog);
+
+		// Record the generation of the clients
+		RefreshPlanner refreshPlanner = new RefreshPlanner(configManager);
+		for (String clientId : new String[]{ "generated", "disabled", "other" }) {
+			ClientConfig clientConfig = configManager.getClientConfig(clientId);
+			refreshPlanner.saveGenerationInputs(clientConfig, refreshPlanner.getClientInputs(clientConfig));
+		}
+		ClientConfig outdatedClient = configManager.getClientConfig("outdated");
+		JSONObject outdatedInputs = refreshPlanner.getClientInputs(outdatedClient);
+		outdatedInputs.getJSONObject("dataSources").put("ea", "previousStateHash");
+		refreshPlanner.saveGenerationInputs(outdatedClient, outdatedInputs);
+
+		List<ClientConfig> clientConfigs = dataSource.getClientsGeneratedWith(stateHash);
+		assertEquals(1, clientConfigs.size());
+		assertEquals("generated", clientConfigs.get(0).getClientId());
+
+		assertEquals(0, dataSource.getClientsGeneratedWith("otherStateHash").size());
+		assertEquals(0, dataSource.getClientsGeneratedWith(null).size());
+	}
+
+	public void testLayerChanges() throws Exception {
+		JSONObject previousLayers = new JSONObject()
+				.put("ea_reefs", new JSONObject().put("title", "Reefs"))
+				.put("ea_islands", new JSONObject().put("title", "Islands"))
+				.put("ea_coast", new JSONObject().put("title", "Coast"))
+				.put("ea_old", new JSONObject().put("title", "Old layer"));
+
+		JSONObject layers = new JSONObject()
+				.put("ea_reefs", new JSONObject().put("title", "Reefs"))
+				.put("ea_islands", new JSONObject().put("title", "Islands"))
+				.put("ea_coast", new JSONObject().put("title", "Coastline"))
+				.put("ea_new", new JSONObject().put("title", "New layer"));
+
+		JSONObject layerChanges = AbstractDataSourceConfig.getLayerChanges(previousLayers, layers);
+		assertEquals("[\"ea_new\"]", layerChanges.getJSONArray("added").toString());
+		assertEquals("[\"ea_coast\"]", layerChanges.getJSONArray("modified").toString());
+		assertEquals("[\"ea_old\"]", layerChanges.getJSONArray("deleted").toString());
+	}
+
+	public void testLayerChangesSaved() throws Exception {
+		final TestDataSourceConfig dataSource = createDataSource("layerChanges");
+		final List<String> titles = Collections.synchronizedList(new ArrayList<String>());
+		titles.add("Reefs");
+		titles.add("Coast");
+		dataSource.setHarvester(new Harvester() {
+			@Override
+			public LayerCatalog harvest(TestLayerGenerator generator, boolean harvestMetadata) throws Exception {
+				return createLayerCatalog(dataSource.getConfigManager(), titles.toArray(new String[titles.size()]));
+			}
+		});
+
+		dataSource.process(false, false, false);
+		titles.remove("Coast");
+		titles.add("Islands");
+		dataSource.process(false, false, false);
+
+		DataSourceWrapper savedState = AbstractDataSourceConfig.load(dataSource.getConfigManager().getApplicationFolder(), "layerChanges");
+		JSONObject layerChanges = savedState.getLayerChanges();
+		assertEquals("[\"islands\"]", layerChanges.getJSONArray("added").toString());
+		assertEquals(0, layerChanges.getJSONArray("modified").length());
+		assertEquals("[\"coast\"]", layerChanges.getJSONArray("deleted").toString());
+		assertTrue(savedState.getMessages().toString().contains("1 added, 0 modified, 1 deleted; 1 unchanged layer reused"));
+	}
+
+	/**
+	 * The layers which inputs have not changed are taken from the previous saved state, with their overrides;
+	 * they are not built again. All the layers are built again when the data source is reconfigured.
+	 */
+	public void testUnchangedLayersReused() throws Exception {
+		final TestDataSourceConfig dataSource = createDataSource("layerReuse");
+		JSONSortedObject globalOverrides = new JSONSortedObject();
+		globalOverrides.put("reefs", new JSONObject().put("description", "Overridden description"));
+		dataSource.setGlobalManualOverride(globalOverrides);
+
+		// Title of each layer; they are the inputs of the layers
+		final Map<String, String> titles = Collections.synchronizedMap(new TreeMap<String, String>());
+		titles.put("reefs", "Reefs");
+		titles.put("coast", "Coast");
+		final List<String> builtLayers = Collections.synchronizedList(new ArrayList<String>());
+		dataSource.setHarvester(new Harvester() {
+			@Override
+			public LayerCatalog harvest(TestLayerGenerator generator, boolean harvestMetadata) throws Exception {
+				LayerCatalog layerCatalog = new LayerCatalog();
+				for (Map.Entry<String, String> title : titles.entrySet()) {
+					if (generator.reuse(title.getKey(), title.getValue()) == null) {
+						builtLayers.add(title.getKey());
+						XYZLayerConfig layer = new XYZLayerConfig(dataSource.getConfigManager());
+						layer.setLayerId(title.getKey());
+						layer.setTitle(title.getValue());
+						layerCatalog.addLayer(layer);
+					}
+				}
+				return layerCatalog;
+			}
+		});
+		File applicationFolder = dataSource.getConfigManager().getApplicationFolder();
+
+		dataSource.process(false, false, false);
+		assertEquals("[coast, reefs]", builtLayers.toString());
+
+		// Nothing has changed
+		builtLayers.clear();
+		dataSource.process(false, false, false);
+		assertEquals(0, builtLayers.size());
+		DataSourceWrapper savedState = AbstractDataSourceConfig.load(applicationFolder, "layerReuse");
+		assertEquals(2, savedState.getLayers().length());
+		assertEquals("Overridden description", new LayerWrapper(savedState.getLayers().getJSONObject("reefs")).getDescription());
+		assertTrue(savedState.getMessages().toString().contains("0 added, 0 modified, 0 deleted; 2 unchanged layers reused"));
+
+		// The input of one layer has changed
+		builtLayers.clear();
+		titles.put("coast", "Coastline");
+		dataSource.process(false, false, false);
+		assertEquals("[coast]", builtLayers.toString());
+		savedState = AbstractDataSourceConfig.load(applicationFolder, "layerReuse");
+		assertEquals("Coastline", new LayerWrapper(savedState.getLayers().getJSONObject("coast")).getTitle());
+		assertEquals("Overridden description", new LayerWrapper(savedState.getLayers().getJSONObject("reefs")).getDescription());
+		assertTrue(savedState.getMessages().toString().contains("0 added, 1 modified, 0 deleted; 1 unchanged layer reused"));
+
+		// The data source has been reconfigured
+		builtLayers.clear();
+		globalOverrides = new JSONSortedObject();
+		globalOverrides.put("reefs", new JSONObject().put("description", "New description"));
+		dataSource.setGlobalManualOverride(globalOverrides);
+		dataSource.process(false, false, false);
+		assertEquals("[coast, reefs]", builtLayers.toString());
+		savedState = AbstractDataSourceConfig.load(applicationFolder, "layerReuse");
+		assertEquals("New description", new LayerWrapper(savedState.getLayers().getJSONObject("reefs")).getDescription());
+	}
+
+	public void testFirstHarvest() throws Exception {
+		JSONObject layers = new JSONObject()
+				.put("ea_reefs", new JSONObject().put("title", "Reefs"))
+				.put("ea_islands", new JSONObject().put("title", "Islands"));
+
+		JSONObject layerChanges = AbstractDataSourceConfig.getLayerChanges(null, layers);
+		JSONArray added = layerChanges.getJSONArray("added");
+		assertEquals(2, added.length());
+		assertEquals("ea_islands", added.getString(0));
+		assertEquals("ea_reefs", added.getString(1));
+		assertEquals(0, layerChanges.getJSONArray("modified").length());
+		assertEquals(0, layerChanges.getJSONArray("deleted").length());
+	}
+
+	private static DataSourceWrapper waitUntilMetadataHarvested(File applicationFolder, String dataSourceId) throws Exception {
+		long timeout = System.currentTimeMillis() + 10000;
+		DataSourceWrapper savedState = AbstractDataSourceConfig.load(applicationFolder, dataSourceId);
+		while (savedState.isMetadataPending()) {
+			assertTrue("The metadata of the data source " + dataSourceId + " have not been harvested", System.currentTimeMillis() < timeout);
+			Thread.sleep(10);
+			savedState = AbstractDataSourceConfig.load(applicationFolder, dataSourceId);
+		}
+		return savedState;
+	}
+
+	private static JSONObject createClientJSON(int id, String clientId, boolean enable, String dataSourceId) throws Exception {
+		return new JSONObject()
+				.put("id", id)
+				.put("clientId", clientId)
+				.put("clientName", clientId)
+				.put("enable", enable)
+				.put("dataSources", new JSONArray().put(dataSourceId));
+	}
+
+	private static void waitUntilBlocked(Thread thread) throws InterruptedException {
+		long timeout = System.currentTimeMillis() + 10000;
+		while (thread.getState() != Thread.State.TIMED_WAITING && thread.getState() != Thread.State.WAITING) {
+			assertTrue("The thread " + thread.getName() + " is not waiting", System.currentTimeMillis() < timeout);
+			Thread.sleep(10);
+		}
+	}
+
+	static TestDataSourceConfig createDataSource(String dataSourceId) {
+		File applicationFolder = new File(System.getProperty("java.io.tmpdir"), "atlasmapper-test-" + dataSourceId);
+		ConfigManager configManager = new ConfigManager(null, null);
+		configManager.setApplicationFolder(applicationFolder);
+
+		TestDataSourceConfig dataSource = new TestDataSourceConfig(configManager);
+		dataSource.setDataSourceId(dataSourceId);
+		dataSource.setDataSourceName("Test " + dataSourceId);
+		dataSource.setLayerType("XYZ");
+		dataSource.deleteCachedState();
+		return dataSource;
+	}
+
+	static LayerCatalog createLayerCatalog(ConfigManager configManager, String ... titles) {
+		LayerCatalog layerCatalog = new LayerCatalog();
+		for (String title : titles) {
+			XYZLayerConfig layer = new XYZLayerConfig(configManager);
+			layer.setLayerId(title.toLowerCase());
+			layer.setTitle(title);
+			layerCatalog.addLayer(layer);
+		}
+		return layerCatalog;
+	}
+
+	/**
+	 * Build the layers of a TestDataSourceConfig.
+	 */
+	interface Harvester {
+		LayerCatalog harvest(TestLayerGenerator generator, boolean harvestMetadata) throws Exception;
+	}
+
+	/**
+	 * Data source harvested by a Harvester, without any network access.
+	 * The harvester is shared with the clones used for the harvests (see AbstractConfig.clone).
+	 */
+	public static class TestDataSourceConfig extends XYZDataSourceConfig {
+		private Harvester harvester;
+
+		public TestDataSourceConfig(ConfigManager configManager) {
+			super(configManager);
+		}
+
+		public void setHarvester(Harvester harvester) {
+			this.harvester = harvester;
+		}
+
+		@Override
+		public AbstractLayerGenerator createLayerGenerator() {
+			return new TestLayerGenerator(this.harvester);
+		}
+	}
+
+	public static class TestLayerGenerator extends XYZLayerGenerator {
+		private final Harvester harvester;
+
+		public TestLayerGenerator(Harvester harvester) {
+			this.harvester = harvester;
+		}
+
+		public void markMetadataPending() {
+			this.setMetadataPending();
+		}
+
+		public LayerWrapper reuse(String layerId, String inputHash) {
+			return this.reusePreviousLayer(layerId, inputHash);
+		}
+
+		@Override
+		public LayerCatalog generateRawLayerCatalog(XYZDataSourceConfig dataSourceConfig, boolean redownloadPrimaryFiles, boolean redownloadSecondaryFiles) {
+			if (this.harvester == null) {
+				return new LayerCatalog();
+			}
+			try {
+				return this.harvester.harvest(this, this.harvestMetadata);
+			} catch (RuntimeException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	interface Harvest {
+		void run() throws Exception;
+	}
+
+	/**
+	 * Run harvests in threads, and collect their errors (including the failed assertions)
+	 * so they can be reported by the test thread.
+	 */
+	static class ErrorCollector {
+		private final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+		public Thread start(final Harvest harvest) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						harvest.run();
+					} catch (Throwable ex) {
+						ErrorCollector.this.errors.add(ex);
+					}
+				}
+			});
+			thread.start();
+			return thread;
+		}
+
+		public void assertNoError() throws Exception {
+			synchronized (this.errors) {
+				if (!this.errors.isEmpty()) {
+					Throwable error = this.errors.get(0);
+					if (error instanceof Error) {
+						throw (Error) error;
+					}
+					throw (Exception) error;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package au.gov.aims.atlasmapperserver.dataSourceConfig;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DataSourceHarvestQueueTest extends TestCase {
+
+	public void testHostFairness() throws Exception {
+		List<AbstractDataSourceConfig> dataSources = new ArrayList<AbstractDataSourceConfig>();
+		dataSources.add(createDataSource("a1", "http://server-a.com/wms"));
+		dataSources.add(createDataSource("a2", "http://server-a.com/ncwms"));
+		dataSources.add(createDataSource("a3", "http://SERVER-A.com/wms?version=1.3.0"));
+		dataSources.add(createDataSource("b1", "http://server-b.com/wms"));
+		dataSources.add(createDataSource("google", null));
+
+		DataSourceHarvestQueue queue = new DataSourceHarvestQueue(dataSources, 1);
+
+		// The hosts are served in turn
+		AbstractDataSourceConfig a1 = queue.take();
+		assertEquals("a1", a1.getDataSourceId());
+		AbstractDataSourceConfig b1 = queue.take();
+		assertEquals("b1", b1.getDataSourceId());
+		assertEquals("google", queue.take().getDataSourceId());
+
+		// server-a.com is busy until a1 is done
+		queue.done(a1);
+		AbstractDataSourceConfig a2 = queue.take();
+		assertEquals("a2", a2.getDataSourceId());
+		queue.done(b1);
+		queue.done(a2);
+		assertEquals("a3", queue.take().getDataSourceId());
+
+		assertNull(queue.take());
+	}
+
+	public void testClose() throws Exception {
+		List<AbstractDataSourceConfig> dataSources = new ArrayList<AbstractDataSourceConfig>();
+		dataSources.add(createDataSource("a1", "http://server-a.com/wms"));
+		dataSources.add(createDataSource("a2", "http://server-a.com/ncwms"));
+
+		final DataSourceHarvestQueue queue = new DataSourceHarvestQueue(dataSources, 1);
+		assertEquals("a1", queue.take().getDataSourceId());
+
+		// The second take waits for a1 to be done; closing the queue release it.
+		final AbstractDataSourceConfig[] taken = { createDataSource("none", null) };
+		Thread worker = new Thread() {
+			@Override
+			public void run() {
+				try {
+					taken[0] = queue.take();
+				} catch (InterruptedException ex) {
+					// taken[0] stays not null
+				}
+			}
+		};
+		worker.start();
+		Thread.sleep(100);
+		assertTrue(worker.isAlive());
+
+		queue.close();
+		worker.join(10000);
+		assertFalse(worker.isAlive());
+		assertNull(taken[0]);
+	}
+
+	private static AbstractDataSourceConfig createDataSource(String dataSourceId, String serviceUrl) {
+		WMSDataSourceConfig dataSource = new WMSDataSourceConfig(null);
+		dataSource.setDataSourceId(dataSourceId);
+		dataSource.setServiceUrl(serviceUrl);
+		return dataSource;
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver.layerGenerator;
+
+import au.gov.aims.atlasmapperserver.RebuildJob;
+import au.gov.aims.atlasmapperserver.dataSourceConfig.WMSDataSourceConfig;
+import au.gov.aims.atlasmapperserver.jsonWrappers.client.LayerWrapper;
+import au.gov.aims.atlasmapperserver.layerConfig.WMSLayerConfig;
+import au.gov.aims.atlasmapperserver.xml.TC211.TC211Document;
+import junit.framework.TestCase;
+import org.geotools.data.ows.Layer;
+import org.geotools.data.ows.WMSCapabilities;
+import org.geotools.data.wms.xml.MetadataURL;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AbstractWMSLayerGeneratorTest extends TestCase {
+	private static final int NB_LAYERS = 20;
+
+	/**
+	 * The metadata documents are harvested concurrently, in any order. Each document
+	 * has to be associated with its layer, and the error of a layer must not affect the others.
+	 */
+	public void testConcurrentMetadataHarvest() throws Exception {
+		WMSDataSourceConfig dataSource = new WMSDataSourceConfig(null);
+		dataSource.setDataSourceId("wms");
+		dataSource.setMetadataMaxConcurrency(4);
+
+		final AtomicInteger runningHarvests = new AtomicInteger(0);
+		final AtomicInteger maxRunningHarvests = new AtomicInteger(0);
+		// The first layer is harvested last
+		final CountDownLatch otherLayersHarvested = new CountDownLatch(NB_LAYERS - 1);
+		final List<String> harvestedLayers = Collections.synchronizedList(new ArrayList<String>());
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+		WMSLayerGenerator layerGenerator = new WMSLayerGenerator() {
+			@Override
+			protected TC211Document getMetadataDocument(Layer layer, WMSDataSourceConfig dataSourceClone) {
+				int running = runningHarvests.incrementAndGet();
+				synchronized (maxRunningHarvests) {
+					maxRunningHarvests.set(Math.max(maxRunningHarvests.get(), running));
+				}
+				try {
+					String layerName = layer.getName();
+					if ("layer0".equals(layerName)) {
+						if (!otherLayersHarvested.await(10, TimeUnit.SECONDS)) {
+							errors.add(new AssertionError("The other layers were not harvested concurrently."));
+						}
+					}
+					harvestedLayers.add(layerName);
+					if ("layer5".equals(layerName)) {
+						throw new IllegalStateException("Unexpected error");
+					}
+					return new TC211Document("http://metadata/" + layerName);
+				} catch (InterruptedException ex) {
+					errors.add(ex);
+					return null;
+				} finally {
+					runningHarvests.decrementAndGet();
+					if (!"layer0".equals(layer.getName())) {
+						otherLayersHarvested.countDown();
+					}
+				}
+			}
+		};
+
+		Layer rootLayer = createLayerTree();
+		Map<Layer, TC211Document> metadataDocuments = layerGenerator.getMetadataDocuments(rootLayer, dataSource);
+
+		assertTrue(errors.isEmpty() ? "" : errors.get(0).toString(), errors.isEmpty());
+		assertTrue(maxRunningHarvests.get() > 1);
+		assertTrue(maxRunningHarvests.get() <= 4);
+
+		// The layers are harvested once each, in any order; the first one is the last one
+		assertEquals(NB_LAYERS, harvestedLayers.size());
+		assertEquals("layer0", harvestedLayers.get(NB_LAYERS - 1));
+
+		// Each layer get its own document, except the layer which failed and the layers without metadata URL
+		assertEquals(NB_LAYERS - 1, metadataDocuments.size());
+		for (Layer group : rootLayer.getLayerChildren()) {
+			for (Layer layer : group.getLayerChildren()) {
+				TC211Document metadataDocument = metadataDocuments.get(layer);
+				if ("layer5".equals(layer.getName()) || layer.getMetadataURL().isEmpty()) {
+					assertNull(metadataDocument);
+				} else {
+					assertEquals("http://metadata/" + layer.getName(), metadataDocument.getUri());
+				}
+			}
+		}
+	}
+
+	/**
+	 * With only one worker, the layers are harvested in the current thread, in order.
+	 */
+	public void testSequentialMetadataHarvest() throws Exception {
+		WMSDataSourceConfig dataSource = new WMSDataSourceConfig(null);
+		dataSource.setDataSourceId("wms");
+		dataSource.setMetadataMaxConcurrency(1);
+
+		final Thread currentThread = Thread.currentThread();
+		final List<String> harvestedLayers = new ArrayList<String>();
+
+		WMSLayerGenerator layerGenerator = new WMSLayerGenerator() {
+			@Override
+			protected TC211Document getMetadataDocument(Layer layer, WMSDataSourceConfig dataSourceClone) {
+				assertSame(currentThread, Thread.currentThread());
+				harvestedLayers.add(layer.getName());
+				if ("layer5".equals(layer.getName())) {
+					throw new IllegalStateException("Unexpected error");
+				}
+				return new TC211Document("http://metadata/" + layer.getName());
+			}
+		};
+
+		Map<Layer, TC211Document> metadataDocuments = layerGenerator.getMetadataDocuments(createLayerTree(), dataSource);
+
+		assertEquals(NB_LAYERS, harvestedLayers.size());
+		for (int i=0; i<NB_LAYERS; i++) {
+			assertEquals("layer" + i, harvestedLayers.get(i));
+		}
+		// The layer which failed has no metadata, the following layers are harvested
+		assertEquals(NB_LAYERS - 1, metadataDocuments.size());
+	}
+
+	/**
+	 * The harvest stops when the job is cancelled; the layers which are not harvested yet are skipped.
+	 */
+	public void testCancelledMetadataHarvest() throws Exception {
+		final WMSDataSourceConfig dataSource = new WMSDataSourceConfig(null);
+		dataSource.setDataSourceId("wms");
+		dataSource.setMetadataMaxConcurrency(4);
+
+		final RebuildJob[] job = { null };
+		final AtomicInteger nbHarvestedLayers = new AtomicInteger(0);
+		final boolean[] completed = { false };
+
+		final WMSLayerGenerator layerGenerator = new WMSLayerGenerator() {
+			@Override
+			protected TC211Document getMetadataDocument(Layer layer, WMSDataSourceConfig dataSourceClone) {
+				if (nbHarvestedLayers.incrementAndGet() == 5) {
+					job[0].cancel();
+				}
+				return new TC211Document("http://metadata/" + layer.getName());
+			}
+		};
+
+		job[0] = new RebuildJob("test:metadata", "Test") {
+			@Override
+			protected JSONObject execute() throws Exception {
+				layerGenerator.getMetadataDocuments(createLayerTree(), dataSource);
+				completed[0] = true;
+				return new JSONObject();
+			}
+		};
+		job[0].run();
+
+		assertEquals(RebuildJob.State.CANCELLED, job[0].getState());
+		assertFalse(completed[0]);
+		// Each worker may have started the harvest of one more layer before noticing the cancellation
+		assertTrue(nbHarvestedLayers.get() >= 5);
+		assertTrue(nbHarvestedLayers.get() < 5 + 4);
+
+		// The cancellation is also reported outside of a job
+		try {
+			new WMSLayerGenerator() {
+				@Override
+				protected TC211Document getMetadataDocument(Layer layer, WMSDataSourceConfig dataSourceClone) {
+					throw new CancellationException("Cancelled");
+				}
+			}.getMetadataDocuments(createLayerTree(), dataSource);
+			fail("The cancellation of the harvest was not reported.");
+		} catch (CancellationException ex) {
+			// Expected
+		}
+	}
+
+	/**
+	 * The layers which inputs (fragment of the capabilities document and metadata record)
+	 * have not changed since the previous harvest are taken from the previous saved state;
+	 * they are not built again.
+	 */
+	public void testUnchangedLayersReused() throws Exception {
+		WMSDataSourceConfig dataSource = new WMSDataSourceConfig(null);
+		dataSource.setDataSourceId("wms");
+		dataSource.setMetadataMaxConcurrency(1);
+
+		Map<String, String> metadataAbstracts = new HashMap<String, String>();
+		JSONObject layerHashes = new JSONObject();
+
+		// First harvest: all the layers are built
+		WMSCapabilities wmsCapabilities = new WMSCapabilities();
+		wmsCapabilities.setLayer(createLayerTree());
+		Map<String, WMSLayerConfig> layers = createLayerGenerator(metadataAbstracts, layerHashes)
+				.getLayersInfoFromCaps(wmsCapabilities, dataSource, null);
+		assertEquals(NB_LAYERS + 1, layers.size());
+		assertEquals(NB_LAYERS + 1, layerHashes.length());
+
+		JSONObject previousLayers = new JSONObject();
+		for (Map.Entry<String, WMSLayerConfig> layerEntry : layers.entrySet()) {
+			previousLayers.put(layerEntry.getKey(), layerEntry.getValue().toJSonObject());
+		}
+		JSONObject previousLayerHashes = new JSONObject(layerHashes.toString());
+
+		// Second harvest: the metadata record of layer3 and the title of layer12 have changed
+		metadataAbstracts.put("layer3", "New abstract");
+		wmsCapabilities.setLayer(createLayerTree());
+		wmsCapabilities.getLayer().getLayerChildren().get(1).getLayerChildren().get(2).setTitle("New title");
+
+		WMSLayerGenerator layerGenerator = createLayerGenerator(metadataAbstracts, layerHashes);
+		layerGenerator.setPreviousLayers(previousLayers, previousLayerHashes);
+		layers = layerGenerator.getLayersInfoFromCaps(wmsCapabilities, dataSource, null);
+
+		assertEquals(2, layers.size());
+		assertTrue(layers.containsKey("wms_layer3"));
+		assertEquals("New title", layers.get("wms_layer12").getTitle());
+		for (String layerId : JSONObject.getNames(previousLayerHashes)) {
+			boolean changed = "wms_layer3".equals(layerId) || "wms_layer12".equals(layerId);
+			assertEquals(layerId, changed, !previousLayerHashes.getString(layerId).equals(layerHashes.getString(layerId)));
+		}
+
+		// The cache flags of the layers are part of their inputs
+		layerGenerator = createLayerGenerator(metadataAbstracts, layerHashes);
+		layerGenerator.setPreviousLayers(previousLayers, previousLayerHashes);
+		layers = layerGenerator.getLayersInfoFromCaps(wmsCapabilities, dataSource, new JSONObject().put("available", false));
+		assertEquals(NB_LAYERS + 1, layers.size());
+	}
+
+	/**
+	 * @param metadataAbstracts The abstract of the metadata record of the layers, when it's not the default one.
+	 * @param layerHashes Receive the hash of the inputs of the layers.
+	 */
+	private static WMSLayerGenerator createLayerGenerator(final Map<String, String> metadataAbstracts, final JSONObject layerHashes) {
+		return new WMSLayerGenerator() {
+			@Override
+			protected TC211Document getMetadataDocument(Layer layer, WMSDataSourceConfig dataSourceClone) {
+				TC211Document metadataDocument = new TC211Document("http://metadata/" + layer.getName());
+				String metadataAbstract = metadataAbstracts.get(layer.getName());
+				metadataDocument.setAbstract(metadataAbstract == null ? "Abstract of " + layer.getName() : metadataAbstract);
+				return metadataDocument;
+			}
+
+			@Override
+			protected LayerWrapper reusePreviousLayer(String layerId, String inputHash) {
+				try {
+					layerHashes.put(layerId, inputHash);
+				} catch (JSONException ex) {
+					throw new IllegalStateException(ex);
+				}
+				return super.reusePreviousLayer(layerId, inputHash);
+			}
+		};
+	}
+
+	/**
+	 * Root layer
+	 *     group0: layer0 .. layer9
+	 *     group1: layer10 .. layer19, and a layer without metadata URL
+	 */
+	private static Layer createLayerTree() throws Exception {
+		Layer rootLayer = new Layer("Root");
+		for (int i=0; i<2; i++) {
+			Layer group = new Layer("Group " + i);
+			group.setName("group" + i);
+			rootLayer.addChildren(group);
+			for (int j=0; j<NB_LAYERS / 2; j++) {
+				String layerName = "layer" + (i * NB_LAYERS / 2 + j);
+				Layer layer = new Layer(layerName);
+				layer.setName(layerName);
+				List<MetadataURL> metadataUrls = new ArrayList<MetadataURL>();
+				metadataUrls.add(new MetadataURL(new URL("http://metadata/" + layerName), "text/xml", "TC211"));
+				layer.setMetadataURL(metadataUrls);
+				group.addChildren(layer);
+			}
+		}
+
+		Layer layer = new Layer("No metadata");
+		layer.setName("noMetadata");
+		rootLayer.getLayerChildren().get(1).addChildren(layer);
+
+		return rootLayer;
+	}
+}
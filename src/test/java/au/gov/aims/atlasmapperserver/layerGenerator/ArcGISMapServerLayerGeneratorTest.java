@@ -0,0 +1,296 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver.layerGenerator;
+
+import au.gov.aims.atlasmapperserver.ConfigManager;
+import au.gov.aims.atlasmapperserver.URLCache;
+import au.gov.aims.atlasmapperserver.dataSourceConfig.ArcGISMapServerDataSourceConfig;
+import au.gov.aims.atlasmapperserver.layerConfig.AbstractLayerConfig;
+import au.gov.aims.atlasmapperserver.layerConfig.GroupLayerConfig;
+import au.gov.aims.atlasmapperserver.layerConfig.LayerCatalog;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+public class ArcGISMapServerLayerGeneratorTest extends TestCase {
+	private static final String SERVICES_PATH = "/arcgis/rest/services";
+
+	// Map<String path, Integer level>
+	private static final Map<String, Integer> LEVELS = new HashMap<String, Integer>();
+	// Map<String path, JSONObject document>
+	private static final Map<String, JSONObject> DOCUMENTS = new HashMap<String, JSONObject>();
+
+	/**
+	 * ArcGIS server:
+	 *     Level 0: Root folder; folders "Reefs" and "Islands", service "Overview"
+	 *     Level 1: Folders "Reefs" (service "Reefs/Coral") and "Islands" (service "Islands/Cays"), service "Overview" (layer 0)
+	 *     Level 2: Services "Reefs/Coral" (layers 0, 1 and 2, group of 1 and 2) and "Islands/Cays" (layer 0), layer "Overview/0"
+	 *     Level 3: The layers of "Reefs/Coral" and "Islands/Cays"
+	 */
+	static {
+		try {
+			addDocument("", 0, new JSONObject()
+					.put("folders", new JSONArray().put("Reefs").put("Islands"))
+					.put("services", new JSONArray().put(new JSONObject().put("name", "Overview").put("type", "MapServer"))));
+
+			addDocument("/Reefs", 1, new JSONObject()
+					.put("services", new JSONArray().put(new JSONObject().put("name", "Reefs/Coral").put("type", "MapServer"))));
+			addDocument("/Islands", 1, new JSONObject()
+					.put("services", new JSONArray().put(new JSONObject().put("name", "Islands/Cays").put("type", "MapServer"))));
+			addDocument("/Overview/MapServer", 1, new JSONObject()
+					.put("layers", new JSONArray().put(createLayerJSON(0, "Overview", null))));
+
+			addDocument("/Reefs/Coral/MapServer", 2, new JSONObject()
+					.put("layers", new JSONArray()
+							.put(createLayerJSON(0, "Coral cover", null))
+							.put(createLayerJSON(1, "Bleaching", new JSONArray().put(2)))
+							.put(createLayerJSON(2, "Bleaching 2012", null))));
+			addDocument("/Islands/Cays/MapServer", 2, new JSONObject()
+					.put("layers", new JSONArray().put(createLayerJSON(0, "Cays", null))));
+			addDocument("/Overview/MapServer/0", 2, new JSONObject().put("description", "Overview"));
+
+			addDocument("/Reefs/Coral/MapServer/0", 3, new JSONObject().put("description", "Coral cover"));
+			addDocument("/Reefs/Coral/MapServer/1", 3, new JSONObject().put("description", "Bleaching"));
+			addDocument("/Reefs/Coral/MapServer/2", 3, new JSONObject().put("description", "Bleaching 2012"));
+			addDocument("/Islands/Cays/MapServer/0", 3, new JSONObject().put("description", "Cays"));
+		} catch (Exception ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+
+	/**
+	 * The documents are requested one level at the time; the documents of a level
+	 * are requested after all the documents of the previous level have been received.
+	 * The catalog do not depend on the order in which the documents are received.
+	 */
+	public void testCrawlLevelByLevel() throws Exception {
+		TestServer server = new TestServer();
+		try {
+			// The documents of the first half of each level are received last
+			server.slowPaths = getFirstHalfOfEachLevel();
+			List<String> layers = this.generateLayers(server, "arcgisCrawl");
+			assertLevelByLevel(server.getRequestedPaths());
+			assertEquals(new HashSet<String>(LEVELS.keySet()), new HashSet<String>(server.getRequestedPaths()));
+			// Each document is requested once
+			assertEquals(LEVELS.size(), server.getRequestedPaths().size());
+
+			// The documents of the second half of each level are received last
+			server.clearRequestedPaths();
+			Set<String> slowPaths = new HashSet<String>(LEVELS.keySet());
+			slowPaths.removeAll(server.slowPaths);
+			server.slowPaths = slowPaths;
+			List<String> otherLayers = this.generateLayers(server, "arcgisCrawl");
+			assertLevelByLevel(server.getRequestedPaths());
+
+			// Same layers, same tree, same order of children
+			assertEquals(layers, otherLayers);
+			assertEquals(8, layers.size());
+			assertTrue(layers.contains("Islands/Cays/ [Islands] Cays: Islands/Cays/0_Cays"));
+			assertTrue(layers.contains("Reefs/Coral/ [Reefs] Coral: Reefs/Coral/0_Coral cover, Reefs/Coral/1_Bleaching"));
+			assertTrue(layers.contains("Reefs/Coral/1_Bleaching [null] Bleaching: Reefs/Coral/2_Bleaching 2012"));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * The documents which could not be downloaded by the crawl are requested again from the URL cache
+	 * while building the layers; the URL is not downloaded twice.
+	 */
+	public void testMissingDocument() throws Exception {
+		TestServer server = new TestServer();
+		try {
+			server.missingOnce.add("/Islands");
+			List<String> layers = this.generateLayers(server, "arcgisMissing");
+
+			assertEquals(1, Collections.frequency(server.getRequestedPaths(), "/Islands"));
+			assertFalse(server.getRequestedPaths().contains("/Islands/Cays/MapServer"));
+
+			// The other layers are not affected
+			assertEquals(6, layers.size());
+			assertFalse(layers.contains("Islands/Cays/ [Islands] Cays: Islands/Cays/0_Cays"));
+			assertTrue(layers.contains("Reefs/Coral/ [Reefs] Coral: Reefs/Coral/0_Coral cover, Reefs/Coral/1_Bleaching"));
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * @return The layers of the catalog, sorted by ID: "<layer ID> [<tree path>] <title>: <children IDs>"
+	 */
+	private List<String> generateLayers(TestServer server, String dataSourceId) throws Exception {
+		ConfigManager configManager = new ConfigManager(null, null);
+		configManager.setApplicationFolder(new File(System.getProperty("java.io.tmpdir"), "atlasmapper-test-" + dataSourceId));
+
+		ArcGISMapServerDataSourceConfig dataSource = new ArcGISMapServerDataSourceConfig(configManager);
+		dataSource.setDataSourceId(dataSourceId);
+		dataSource.setDataSourceName(dataSourceId);
+		dataSource.setServiceUrl("http://localhost:" + server.getPort() + SERVICES_PATH);
+		URLCache.deleteCache(configManager, dataSource);
+
+		LayerCatalog layerCatalog = new ArcGISMapServerLayerGenerator().generateRawLayerCatalog(dataSource, true, true);
+		assertTrue(layerCatalog.getErrors().getErrors().isEmpty());
+
+		List<String> layers = new ArrayList<String>();
+		for (AbstractLayerConfig layer : layerCatalog.getLayers()) {
+			// The IDs of the layers are prefixed with the data source ID
+			StringBuilder layerStr = new StringBuilder(layer.getLayerId().substring(dataSourceId.length() + 1))
+					.append(" [").append(layer.getTreePath()).append("] ").append(layer.getTitle());
+			if (layer instanceof GroupLayerConfig) {
+				String[] children = ((GroupLayerConfig)layer).getLayers();
+				layerStr.append(": ").append(children == null ? null : Arrays.asList(children).toString().replaceAll("[\\[\\]]", "").replace(dataSourceId + "_", ""));
+			}
+			layers.add(layerStr.toString());
+		}
+		Collections.sort(layers);
+		return layers;
+	}
+
+	private static void assertLevelByLevel(List<String> requestedPaths) {
+		int level = 0;
+		for (String path : requestedPaths) {
+			int pathLevel = LEVELS.get(path);
+			assertTrue("The document " + path + " was requested before the end of the level " + level, pathLevel >= level);
+			level = pathLevel;
+		}
+	}
+
+	private static Set<String> getFirstHalfOfEachLevel() {
+		Set<String> paths = new HashSet<String>();
+		Map<Integer, Integer> nbPathsPerLevel = new HashMap<Integer, Integer>();
+		for (Integer level : LEVELS.values()) {
+			nbPathsPerLevel.put(level, nbPathsPerLevel.containsKey(level) ? nbPathsPerLevel.get(level) + 1 : 1);
+		}
+		Map<Integer, Integer> nbFoundPathsPerLevel = new HashMap<Integer, Integer>();
+		for (Map.Entry<String, Integer> levelEntry : LEVELS.entrySet()) {
+			Integer level = levelEntry.getValue();
+			int nbFoundPaths = nbFoundPathsPerLevel.containsKey(level) ? nbFoundPathsPerLevel.get(level) : 0;
+			if (nbFoundPaths < (nbPathsPerLevel.get(level) + 1) / 2) {
+				paths.add(levelEntry.getKey());
+			}
+			nbFoundPathsPerLevel.put(level, nbFoundPaths + 1);
+		}
+		return paths;
+	}
+
+	private static void addDocument(String path, int level, JSONObject document) {
+		LEVELS.put(path, level);
+		DOCUMENTS.put(path, document);
+	}
+
+	private static JSONObject createLayerJSON(int id, String name, JSONArray subLayerIds) throws Exception {
+		JSONObject jsonLayer = new JSONObject()
+				.put("id", id)
+				.put("name", name);
+		if (subLayerIds != null) {
+			jsonLayer.put("subLayerIds", subLayerIds);
+		}
+		return jsonLayer;
+	}
+
+	/**
+	 * Serve the ArcGIS documents, and record the requested paths.
+	 */
+	private static class TestServer implements HttpHandler {
+		private final HttpServer server;
+		private final List<String> requestedPaths = new ArrayList<String>();
+		// The documents of these paths are sent with a delay
+		private volatile Set<String> slowPaths = new HashSet<String>();
+		// The first request of these paths return a 404
+		private final Set<String> missingOnce = Collections.synchronizedSet(new HashSet<String>());
+
+		public TestServer() throws IOException {
+			this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			this.server.createContext(SERVICES_PATH, this);
+			// Serve the concurrent requests concurrently
+			this.server.setExecutor(Executors.newCachedThreadPool());
+			this.server.start();
+		}
+
+		public int getPort() {
+			return this.server.getAddress().getPort();
+		}
+
+		public List<String> getRequestedPaths() {
+			synchronized (this.requestedPaths) {
+				return new ArrayList<String>(this.requestedPaths);
+			}
+		}
+
+		public void clearRequestedPaths() {
+			synchronized (this.requestedPaths) {
+				this.requestedPaths.clear();
+			}
+		}
+
+		public void stop() {
+			this.server.stop(0);
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath().substring(SERVICES_PATH.length());
+			synchronized (this.requestedPaths) {
+				this.requestedPaths.add(path);
+			}
+
+			try {
+				JSONObject document = DOCUMENTS.get(path);
+				if (document == null || this.missingOnce.remove(path)) {
+					exchange.sendResponseHeaders(404, -1);
+					return;
+				}
+
+				if (this.slowPaths.contains(path)) {
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+
+				byte[] content = document.toString().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, content.length);
+				exchange.getResponseBody().write(content);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver.layerGenerator;
+
+import au.gov.aims.atlasmapperserver.dataSourceConfig.KMLDataSourceConfig;
+import au.gov.aims.atlasmapperserver.layerConfig.AbstractLayerConfig;
+import au.gov.aims.atlasmapperserver.layerConfig.LayerCatalog;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+public class KMLLayerGeneratorTest extends TestCase {
+
+	/**
+	 * The KML URLs are checked on every rebuild. The statuses checked by a recent
+	 * rebuild are reused, unless the admin requested the files to be re-downloaded.
+	 */
+	public void testURLValidation() throws Exception {
+		// List of "METHOD /path"
+		final List<String> requests = new ArrayList<String>();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String path = exchange.getRequestURI().getPath();
+				synchronized (requests) {
+					requests.add(exchange.getRequestMethod() + " " + path);
+				}
+				exchange.sendResponseHeaders("/missing.kml".equals(path) ? 404 : 200, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+
+		try {
+			String baseUrl = "http://localhost:" + server.getAddress().getPort();
+			KMLDataSourceConfig dataSource = new KMLDataSourceConfig(null);
+			dataSource.setDataSourceId("kml");
+			dataSource.setKmlData(new JSONArray()
+					.put(new JSONObject().put("id", "reefs").put("url", baseUrl + "/reefs.kml"))
+					.put(new JSONObject().put("id", "islands").put("url", baseUrl + "/islands.kml"))
+					.put(new JSONObject().put("id", "missing").put("url", baseUrl + "/missing.kml")));
+
+			KMLLayerGenerator layerGenerator = new KMLLayerGenerator();
+
+			// Normal rebuild
+			LayerCatalog layerCatalog = layerGenerator.generateRawLayerCatalog(dataSource, false, false);
+			assertEquals(2, layerCatalog.getLayers().size());
+			for (AbstractLayerConfig layer : layerCatalog.getLayers()) {
+				assertFalse("missing".equals(layer.getLayerId()));
+			}
+			assertEquals(1, layerCatalog.getErrors().getWarnings().size());
+			assertTrue(layerCatalog.getErrors().getWarnings().get(0).getMsg().contains("[404]"));
+			assertEquals(3, requests.size());
+			for (String request : requests) {
+				assertTrue(request.startsWith("HEAD "));
+			}
+
+			// The next rebuild reuse the statuses
+			layerCatalog = layerGenerator.generateRawLayerCatalog(dataSource, false, false);
+			assertEquals(2, layerCatalog.getLayers().size());
+			assertEquals(1, layerCatalog.getErrors().getWarnings().size());
+			assertEquals(3, requests.size());
+
+			// The admin requested the files to be re-downloaded; the URLs are checked again
+			layerCatalog = layerGenerator.generateRawLayerCatalog(dataSource, true, false);
+			assertEquals(2, layerCatalog.getLayers().size());
+			assertEquals(1, layerCatalog.getErrors().getWarnings().size());
+			assertEquals(6, requests.size());
+		} finally {
+			server.stop(0);
+		}
+	}
+}
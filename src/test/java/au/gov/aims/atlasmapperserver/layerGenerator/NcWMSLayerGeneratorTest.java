@@ -0,0 +1,95 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.gov.aims.atlasmapperserver.layerGenerator;
+
+import au.gov.aims.atlasmapperserver.Utils;
+import au.gov.aims.atlasmapperserver.dataSourceConfig.NcWMSDataSourceConfig;
+import au.gov.aims.atlasmapperserver.layerConfig.NcWMSLayerConfig;
+import junit.framework.TestCase;
+import org.geotools.data.ows.Extent;
+import org.geotools.data.ows.Layer;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class NcWMSLayerGeneratorTest extends TestCase {
+
+	/**
+	 * The time dimension is inherited from the parent layers, and stored in its compact form.
+	 */
+	public void testTimeDimension() throws Exception {
+		NcWMSDataSourceConfig dataSource = new NcWMSDataSourceConfig(null);
+		dataSource.setDataSourceId("ncwms");
+		NcWMSLayerGenerator layerGenerator = new NcWMSLayerGenerator();
+
+		Layer dataset = new Layer("Dataset");
+		Map<String, Extent> extents = new HashMap<String, Extent>();
+		extents.put("time", new Extent("time", "2013-01-03T00:00:00.000Z",
+				"2013-01-01T00:00:00.000Z,2013-01-02T00:00:00.000Z,2013-01-03T00:00:00.000Z"));
+		dataset.setExtents(extents);
+
+		Layer variable = new Layer("Temperature");
+		variable.setName("dataset/temp");
+		variable.setParent(dataset);
+
+		NcWMSLayerConfig layerConfig = new NcWMSLayerConfig(null);
+		layerGenerator.setLayerSpecificInfo(layerConfig, variable, dataSource);
+		JSONObject timeDimension = layerConfig.getTimeDimension();
+		assertNotNull(timeDimension);
+		assertEquals("2013-01-03T00:00:00.000Z", timeDimension.getString("default"));
+		assertEquals(1, timeDimension.getJSONArray("intervals").length());
+		assertFalse(timeDimension.has("values"));
+
+		// Layer without time dimension
+		Layer staticLayer = new Layer("Bathymetry");
+		staticLayer.setName("bathymetry");
+		layerConfig = new NcWMSLayerConfig(null);
+		layerGenerator.setLayerSpecificInfo(layerConfig, staticLayer, dataSource);
+		assertNull(layerConfig.getTimeDimension());
+	}
+
+	/**
+	 * The layer is built again when its time dimension changes (see AbstractWMSLayerGenerator.getLayerInputs).
+	 */
+	public void testTimeDimensionInputs() throws Exception {
+		NcWMSLayerGenerator layerGenerator = new NcWMSLayerGenerator();
+
+		Layer dataset = new Layer("Dataset");
+		Map<String, Extent> extents = new HashMap<String, Extent>();
+		extents.put("time", new Extent("time", "2013-01-02T00:00:00.000Z",
+				"2013-01-01T00:00:00.000Z,2013-01-02T00:00:00.000Z"));
+		dataset.setExtents(extents);
+
+		Layer variable = new Layer("Temperature");
+		variable.setName("dataset/temp");
+		variable.setParent(dataset);
+
+		String inputHash = Utils.jsonHash(layerGenerator.getLayerInputs(variable, "Dataset", null));
+		assertEquals(inputHash, Utils.jsonHash(layerGenerator.getLayerInputs(variable, "Dataset", null)));
+
+		// A new time step is available
+		extents.put("time", new Extent("time", "2013-01-03T00:00:00.000Z",
+				"2013-01-01T00:00:00.000Z,2013-01-02T00:00:00.000Z,2013-01-03T00:00:00.000Z"));
+		assertFalse(inputHash.equals(Utils.jsonHash(layerGenerator.getLayerInputs(variable, "Dataset", null))));
+	}
+}
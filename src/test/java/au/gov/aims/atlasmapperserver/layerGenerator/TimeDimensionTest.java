@@ -0,0 +1,142 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package au.gov.aims.atlasmapperserver.layerGenerator;
+
+import junit.framework.TestCase;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class TimeDimensionTest extends TestCase {
+
+	public void testCompactRegularTimesteps() throws Exception {
+		JSONObject json = TimeDimension.toJSON("2013-01-04T00:00:00.000Z",
+				"2013-01-01T00:00:00.000Z,2013-01-02T00:00:00.000Z,2013-01-03T00:00:00.000Z,2013-01-04T00:00:00.000Z," +
+				"2013-01-04T06:00:00.000Z,2013-02-01T00:00:00.000Z,2013-02-01T03:00:00.000Z,2013-02-01T06:00:00.000Z");
+
+		assertEquals("2013-01-04T00:00:00.000Z", json.getString("default"));
+
+		JSONArray intervals = json.getJSONArray("intervals");
+		assertEquals(2, intervals.length());
+		assertEquals("2013-01-01T00:00:00.000Z/2013-01-04T00:00:00.000Z/P1D", intervals.getString(0));
+		assertEquals("2013-02-01T00:00:00.000Z/2013-02-01T06:00:00.000Z/PT3H", intervals.getString(1));
+
+		// Not part of a sequence
+		JSONArray values = json.getJSONArray("values");
+		assertEquals(1, values.length());
+		assertEquals("2013-01-04T06:00:00.000Z", values.getString(0));
+	}
+
+	public void testUnsortedAndExistingIntervals() throws Exception {
+		JSONObject json = TimeDimension.toJSON(null,
+				"2013-01-03, 2013-01-01, 2013-01-02, 2013-01-02, 2010-01-01/2012-01-01/P1M, current");
+
+		assertFalse(json.has("default"));
+
+		JSONArray intervals = json.getJSONArray("intervals");
+		assertEquals(2, intervals.length());
+		assertEquals("2010-01-01/2012-01-01/P1M", intervals.getString(0));
+		assertEquals("2013-01-01/2013-01-03/P1D", intervals.getString(1));
+
+		JSONArray values = json.getJSONArray("values");
+		assertEquals(1, values.length());
+		assertEquals("current", values.getString(0));
+
+		assertNull(TimeDimension.toJSON(null, " "));
+	}
+
+	public void testCompactMonthlyTimesteps() throws Exception {
+		// The months do not have the same number of milliseconds
+		JSONObject json = TimeDimension.toJSON(null,
+				"2013-01-15T00:00:00.000Z,2013-02-15T00:00:00.000Z,2013-03-15T00:00:00.000Z,2013-04-15T00:00:00.000Z," +
+				"2013-05-15T00:00:00.000Z,2013-06-15T00:00:00.000Z,2013-07-15T00:00:00.000Z,2013-08-15T00:00:00.000Z," +
+				"2013-09-15T00:00:00.000Z,2013-10-15T00:00:00.000Z,2013-11-15T00:00:00.000Z,2013-12-15T00:00:00.000Z," +
+				"2014-01-20T00:00:00.000Z");
+
+		JSONArray intervals = json.getJSONArray("intervals");
+		assertEquals(1, intervals.length());
+		assertEquals("2013-01-15T00:00:00.000Z/2013-12-15T00:00:00.000Z/P1M", intervals.getString(0));
+
+		JSONArray values = json.getJSONArray("values");
+		assertEquals(1, values.length());
+		assertEquals("2014-01-20T00:00:00.000Z", values.getString(0));
+
+		// Quarterly
+		json = TimeDimension.toJSON(null,
+				"2013-01-01T12:00:00.000Z,2013-04-01T12:00:00.000Z,2013-07-01T12:00:00.000Z,2013-10-01T12:00:00.000Z");
+		intervals = json.getJSONArray("intervals");
+		assertEquals(1, intervals.length());
+		assertEquals("2013-01-01T12:00:00.000Z/2013-10-01T12:00:00.000Z/P3M", intervals.getString(0));
+		assertFalse(json.has("values"));
+
+		// Same day of the month, but not the same time of the day
+		json = TimeDimension.toJSON(null,
+				"2013-01-01T00:00:00.000Z,2013-02-01T06:00:00.000Z,2013-03-01T00:00:00.000Z");
+		assertFalse(json.has("intervals"));
+		assertEquals(3, json.getJSONArray("values").length());
+	}
+
+	public void testCompactYearlyTimesteps() throws Exception {
+		// 2012 and 2016 are leap years
+		JSONObject json = TimeDimension.toJSON("2015-07-01",
+				"2010-07-01,2011-07-01,2012-07-01,2013-07-01,2014-07-01,2015-07-01");
+
+		JSONArray intervals = json.getJSONArray("intervals");
+		assertEquals(1, intervals.length());
+		assertEquals("2010-07-01/2015-07-01/P1Y", intervals.getString(0));
+		assertFalse(json.has("values"));
+
+		// Every 2 years, from the 29th of February; the client expands it to the 1st of March
+		json = TimeDimension.toJSON(null,
+				"2012-02-29T00:00:00Z,2014-03-01T00:00:00Z,2016-02-29T00:00:00Z");
+		assertFalse(json.has("intervals"));
+
+		json = TimeDimension.toJSON(null,
+				"2000-01-01T00:00:00Z,2002-01-01T00:00:00Z,2004-01-01T00:00:00Z,2006-01-01T00:00:00Z");
+		intervals = json.getJSONArray("intervals");
+		assertEquals(1, intervals.length());
+		assertEquals("2000-01-01T00:00:00Z/2006-01-01T00:00:00Z/P2Y", intervals.getString(0));
+	}
+
+	public void testToMonthPeriod() throws Exception {
+		assertEquals("P1M", TimeDimension.toMonthPeriod(1));
+		assertEquals("P18M", TimeDimension.toMonthPeriod(18));
+		assertEquals("P1Y", TimeDimension.toMonthPeriod(12));
+		assertEquals("P3Y", TimeDimension.toMonthPeriod(36));
+	}
+
+	public void testParseTime() throws Exception {
+		assertEquals(Long.valueOf(0), TimeDimension.parseTime("1970-01-01T00:00:00.000Z"));
+		assertEquals(Long.valueOf(0), TimeDimension.parseTime("1970-01-01"));
+		assertEquals(Long.valueOf(500), TimeDimension.parseTime("1970-01-01T00:00:00.5Z"));
+		assertEquals(Long.valueOf(-10 * 3600 * 1000), TimeDimension.parseTime("1970-01-01T00:00:00+10:00"));
+		assertNull(TimeDimension.parseTime("current"));
+	}
+
+	public void testToPeriod() throws Exception {
+		assertEquals("P1D", TimeDimension.toPeriod(24 * 3600 * 1000));
+		assertEquals("PT6H", TimeDimension.toPeriod(6 * 3600 * 1000));
+		assertEquals("P1DT1H30M", TimeDimension.toPeriod(25 * 3600 * 1000 + 30 * 60 * 1000));
+		assertEquals("PT0.500S", TimeDimension.toPeriod(500));
+		assertEquals("PT0S", TimeDimension.toPeriod(0));
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ *  This file is part of AtlasMapper server and clients.
+ *
+ *  Copyright (C) 2013 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.org.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package au.gov.aims.atlasmapperserver.xml.WMS;
+
+import junit.framework.TestCase;
+import org.geotools.data.ows.CRSEnvelope;
+import org.geotools.data.ows.Dimension;
+import org.geotools.data.ows.Layer;
+import org.geotools.data.ows.StyleImpl;
+import org.geotools.data.ows.WMSCapabilities;
+import org.geotools.data.wms.xml.MetadataURL;
+import org.geotools.ows.ServiceException;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+
+public class WMSCapabilitiesParserTest extends TestCase {
+	public void testParsingWMS130() throws Exception {
+		WMSCapabilities capabilities = parse("wms130_capabilities.xml");
+
+		assertEquals("1.3.0", capabilities.getVersion());
+		assertEquals("Test Web Map Service", capabilities.getService().getTitle());
+		assertEquals("http://localhost/geoserver/wms?SERVICE=WMS&", capabilities.getRequest().getGetMap().getGet().toString());
+		assertEquals("http://localhost/geoserver/featureinfo?", capabilities.getRequest().getGetFeatureInfo().getGet().toString());
+		assertEquals("http://localhost/geoserver/legend?", capabilities.getRequest().getGetLegendGraphic().getGet().toString());
+
+		Layer rootLayer = capabilities.getLayer();
+		assertEquals("Root layer", rootLayer.getTitle());
+		List<Layer> layers = rootLayer.getLayerChildren();
+		assertEquals("Layer count do not match.", 2, layers.size());
+
+		Layer coastline = layers.get(0);
+		assertSame(rootLayer, coastline.getParent());
+		assertEquals("ea:coastline", coastline.getName());
+		assertEquals("Coastline", coastline.getTitle());
+		assertEquals("Australian coastline", coastline.get_abstract());
+		assertTrue(coastline.isQueryable());
+
+		CRSEnvelope boundingBox = coastline.getLatLonBoundingBox();
+		assertEquals(112.0, boundingBox.getMinX());
+		assertEquals(-44.0, boundingBox.getMinY());
+		assertEquals(154.0, boundingBox.getMaxX());
+		assertEquals(-9.0, boundingBox.getMaxY());
+
+		List<MetadataURL> metadataUrls = coastline.getMetadataURL();
+		assertEquals(1, metadataUrls.size());
+		assertEquals("TC211", metadataUrls.get(0).getType());
+		assertEquals("text/xml", metadataUrls.get(0).getFormat());
+		assertEquals("http://localhost/geonetwork/srv/en/iso19139.xml?uuid=abc", metadataUrls.get(0).getUrl().toString());
+
+		List<StyleImpl> styles = coastline.getStyles();
+		assertEquals("Style count do not match.", 2, styles.size());
+		assertEquals("polygon", styles.get(0).getName());
+		assertEquals("Default polygon", styles.get(0).getTitle().toString());
+		assertEquals("Grey polygon", styles.get(0).getAbstract().toString());
+		assertEquals("outline", styles.get(1).getName());
+		assertNull(styles.get(1).getAbstract());
+
+		Layer group = layers.get(1);
+		assertNull(group.getName());
+		Layer temperature = group.getLayerChildren().get(0);
+		assertEquals("ea:temperature", temperature.getName());
+		assertFalse(temperature.isQueryable());
+
+		Dimension time = temperature.getDimensions().get("time");
+		assertEquals("ISO8601", time.getUnits());
+		assertEquals("2013-01-03T00:00:00.000Z", time.getExtent().getDefaultValue());
+		assertEquals("2013-01-01T00:00:00.000Z,2013-01-02T00:00:00.000Z,2013-01-03T00:00:00.000Z", time.getExtent().getValue());
+	}
+
+	public void testParsingWMS111() throws Exception {
+		WMSCapabilities capabilities = parse("wms111_capabilities.xml");
+
+		assertEquals("1.1.1", capabilities.getVersion());
+		assertEquals("http://localhost/geoserver/wms?SERVICE=WMS&", capabilities.getRequest().getGetMap().getGet().toString());
+		assertNull(capabilities.getRequest().getGetFeatureInfo());
+
+		List<Layer> layers = capabilities.getLayer().getLayerChildren();
+		assertEquals("Layer count do not match.", 1, layers.size());
+
+		Layer reefs = layers.get(0);
+		assertEquals("ea:reefs", reefs.getName());
+		assertEquals(142.0, reefs.getLatLonBoundingBox().getMinX());
+		assertEquals(-10.0, reefs.getLatLonBoundingBox().getMaxY());
+		assertEquals(1, reefs.getStyles().size());
+		assertTrue(reefs.getMetadataURL().isEmpty());
+
+		// WMS 1.1.1: The values of the dimension are in the Extent element
+		Dimension time = reefs.getDimensions().get("time");
+		assertEquals("2013-01-01/2013-12-01/P1M", time.getExtent().getValue());
+	}
+
+	public void testServiceException() throws Exception {
+		String exceptionReport = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+				"<ServiceExceptionReport version=\"1.3.0\" xmlns=\"http://www.opengis.net/ogc\">" +
+				"<ServiceException code=\"InvalidParameterValue\">Unknown layer</ServiceException>" +
+				"</ServiceExceptionReport>";
+
+		try {
+			WMSCapabilitiesParser.parseInputStream(new ByteArrayInputStream(exceptionReport.getBytes("UTF-8")), "exception");
+			fail("The service exception report has been parsed as a capabilities document.");
+		} catch (ServiceException ex) {
+			assertEquals("Unknown layer", ex.getMessage());
+		}
+	}
+
+	private static WMSCapabilities parse(String resource) throws Exception {
+		URL url = WMSCapabilitiesParserTest.class.getClassLoader().getResource(resource);
+
+		InputStream inputStream = null;
+		try {
+			inputStream = url.openStream();
+			return WMSCapabilitiesParser.parseInputStream(inputStream, resource);
+		} finally {
+			if (inputStream != null) {
+				inputStream.close();
+			}
+		}
+	}
+}